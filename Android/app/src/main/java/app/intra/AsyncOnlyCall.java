@@ -0,0 +1,128 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import app.intra.util.IpTagInterceptor;
+import app.intra.util.LogWrapper;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * A Call for a query that a ServerConnection sends without OkHttp.  The query is already underway
+ * when the Call is returned, and callers only ever cancel it, so it can't be executed, enqueued or
+ * cloned.  The answer is delivered to the Callback as a synthetic HTTP response, so that callers
+ * handle it like any other.
+ */
+abstract class AsyncOnlyCall implements Call {
+  private static final String LOG_TAG = "AsyncOnlyCall";
+  private static final MediaType DNS_MESSAGE = MediaType.parse("application/dns-message");
+
+  private final Request request;
+  private final Callback cb;
+  private volatile boolean canceled = false;
+
+  /**
+   * @param request Stands in for an HTTP request in the Call and Response.
+   * @param cb Told of the answer or failure.
+   */
+  AsyncOnlyCall(Request request, Callback cb) {
+    this.request = request;
+    this.cb = cb;
+  }
+
+  /**
+   * Stops the query, after cancel() has marked it as canceled.
+   */
+  abstract void onCancel();
+
+  /**
+   * Marks the query as canceled, without stopping it.
+   */
+  void setCanceled() {
+    canceled = true;
+  }
+
+  /**
+   * @return A successful response that carries |answer|, which callers may add headers to.
+   */
+  Response.Builder newResponse(byte[] answer, String serverIp) {
+    return new Response.Builder()
+        .request(request)
+        // Callers only look at the code, headers, and body.
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .header(IpTagInterceptor.HEADER_NAME, serverIp)
+        .body(ResponseBody.create(DNS_MESSAGE, answer));
+  }
+
+  void deliver(Response response) {
+    try {
+      cb.onResponse(this, response);
+    } catch (IOException e) {
+      LogWrapper.logcat(Log.WARN, LOG_TAG, "Callback failed: " + e);
+    }
+  }
+
+  void fail(IOException e) {
+    cb.onFailure(this, e);
+  }
+
+  @Override
+  public Request request() {
+    return request;
+  }
+
+  @Override
+  public Response execute() {
+    throw new UnsupportedOperationException("Queries are always asynchronous");
+  }
+
+  @Override
+  public void enqueue(Callback responseCallback) {
+    throw new IllegalStateException("Already Executed");
+  }
+
+  @Override
+  public void cancel() {
+    canceled = true;
+    onCancel();
+  }
+
+  @Override
+  public boolean isExecuted() {
+    return true;
+  }
+
+  @Override
+  public boolean isCanceled() {
+    return canceled;
+  }
+
+  @Override
+  public Call clone() {
+    throw new UnsupportedOperationException("Queries can't be repeated");
+  }
+}
@@ -0,0 +1,255 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.LogWrapper;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * A ServerConnection that spreads queries across several upstream servers, preferring the ones
+ * that are currently fast and reliable, so that one slow or failing provider does not degrade all
+ * resolution.
+ *
+ * Each upstream has an exponentially weighted moving average (EWMA) of its latency and of its
+ * error rate.  Each query picks two upstreams at random and uses the one with the lower cost
+ * ("power of two choices"), which steers load towards the best upstreams without sending
+ * everything to a single one.  An upstream that fails several queries in a row is ejected for a
+ * backoff period that doubles on each ejection.  When the period expires, a single probe query is
+ * sent to it, and it is only readmitted if the probe succeeds.
+ */
+class BalancedServerConnection implements ServerConnection {
+  private static final String LOG_TAG = "BalancedServerConnection";
+
+  // Weight of each new sample in the moving averages.
+  private static final double LATENCY_ALPHA = 0.3;
+  private static final double ERROR_ALPHA = 0.1;
+  // Latency assumed for an upstream that has not answered yet.
+  private static final double INITIAL_LATENCY_MS = 200;
+  // Consecutive failures that cause an ejection.
+  private static final int EJECT_FAILURES = 3;
+  private static final long MIN_EJECTION_MS = 5 * 1000;
+  private static final long MAX_EJECTION_MS = 5 * 60 * 1000;
+
+  /**
+   * Health of a single upstream.  Guarded by the BalancedServerConnection.
+   */
+  static class Upstream {
+    final ServerConnection connection;
+    double latencyMs = INITIAL_LATENCY_MS;
+    double errorRate = 0;
+    int inFlight = 0;
+    int consecutiveFailures = 0;
+    // Number of ejections since the upstream last succeeded, for backoff.
+    int ejections = 0;
+    // While ejected, the time when a probe may be sent.  0 if not ejected.
+    long ejectedUntil = 0;
+    boolean probing = false;
+
+    Upstream(ServerConnection connection) {
+      this.connection = connection;
+    }
+
+    boolean isEjected() {
+      return ejectedUntil != 0;
+    }
+
+    // Lower is better.  Queries already in flight and recent errors both count against it.
+    double cost() {
+      return latencyMs * (inFlight + 1) / Math.max(0.05, 1 - errorRate);
+    }
+  }
+
+  private final List<Upstream> upstreams = new ArrayList<>();
+  private final Random random = new Random();
+
+  /**
+   * @param connections The upstreams.  The first one provides this connection's URL.
+   */
+  BalancedServerConnection(List<ServerConnection> connections) {
+    if (connections.isEmpty()) {
+      throw new IllegalArgumentException("No upstreams");
+    }
+    for (ServerConnection c : connections) {
+      upstreams.add(new Upstream(c));
+    }
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Picks the upstream for a new query, and counts the query as in flight.
+   */
+  synchronized Upstream choose() {
+    long now = elapsedRealtime();
+    List<Upstream> available = new ArrayList<>(upstreams.size());
+    Upstream soonest = null;
+    for (Upstream u : upstreams) {
+      if (!u.isEjected()) {
+        available.add(u);
+        continue;
+      }
+      if (!u.probing && now >= u.ejectedUntil) {
+        // Send this query as a probe.
+        u.probing = true;
+        ++u.inFlight;
+        return u;
+      }
+      if (soonest == null || u.ejectedUntil < soonest.ejectedUntil) {
+        soonest = u;
+      }
+    }
+
+    Upstream chosen;
+    if (available.isEmpty()) {
+      // Everything is ejected.  Keep trying the upstream that is closest to readmission.
+      chosen = soonest;
+    } else if (available.size() == 1) {
+      chosen = available.get(0);
+    } else {
+      int i = random.nextInt(available.size());
+      int j = random.nextInt(available.size() - 1);
+      if (j >= i) {
+        ++j;
+      }
+      Upstream a = available.get(i);
+      Upstream b = available.get(j);
+      chosen = a.cost() <= b.cost() ? a : b;
+    }
+    ++chosen.inFlight;
+    return chosen;
+  }
+
+  synchronized void onSuccess(Upstream u, long latencyMs) {
+    --u.inFlight;
+    u.latencyMs = LATENCY_ALPHA * latencyMs + (1 - LATENCY_ALPHA) * u.latencyMs;
+    u.errorRate = (1 - ERROR_ALPHA) * u.errorRate;
+    u.consecutiveFailures = 0;
+    if (u.isEjected()) {
+      LogWrapper.logcat(Log.INFO, LOG_TAG, "Readmitting " + u.connection.getUrl());
+    }
+    u.ejections = 0;
+    u.ejectedUntil = 0;
+    u.probing = false;
+  }
+
+  synchronized void onFailure(Upstream u) {
+    --u.inFlight;
+    u.errorRate = ERROR_ALPHA + (1 - ERROR_ALPHA) * u.errorRate;
+    ++u.consecutiveFailures;
+    if (u.probing || (!u.isEjected() && u.consecutiveFailures >= EJECT_FAILURES)) {
+      long backoff = Math.min(MAX_EJECTION_MS, MIN_EJECTION_MS << Math.min(u.ejections, 16));
+      u.ejectedUntil = elapsedRealtime() + backoff;
+      ++u.ejections;
+      u.probing = false;
+      LogWrapper.logcat(Log.WARN, LOG_TAG,
+          "Ejecting " + u.connection.getUrl() + " for " + backoff + " ms");
+    }
+  }
+
+  // The query ended without telling us anything about the upstream, e.g. it was canceled.
+  synchronized void onAbandoned(Upstream u) {
+    --u.inFlight;
+    u.probing = false;
+  }
+
+  /**
+   * @return The number of upstreams that are currently ejected.
+   */
+  synchronized int getEjectedCount() {
+    int ejected = 0;
+    for (Upstream u : upstreams) {
+      if (u.isEjected()) {
+        ++ejected;
+      }
+    }
+    return ejected;
+  }
+
+  @Override
+  public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, final Callback cb) {
+    final Upstream upstream = choose();
+    final long start = elapsedRealtime();
+    try {
+      return upstream.connection.performDnsRequest(metadata, data, new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          if (e instanceof UpstreamDispatcher.DeadlineExceededException) {
+            // The deadline cancels the call, but the upstream was too slow.
+            BalancedServerConnection.this.onFailure(upstream);
+          } else if (call.isCanceled() || e instanceof UpstreamDispatcher.ShedException) {
+            onAbandoned(upstream);
+          } else {
+            BalancedServerConnection.this.onFailure(upstream);
+          }
+          cb.onFailure(call, e);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+          if (response.isSuccessful()) {
+            onSuccess(upstream, elapsedRealtime() - start);
+          } else {
+            BalancedServerConnection.this.onFailure(upstream);
+          }
+          cb.onResponse(call, response);
+        }
+      });
+    } catch (RuntimeException e) {
+      onAbandoned(upstream);
+      throw e;
+    }
+  }
+
+  @Override
+  public String getUrl() {
+    return upstreams.get(0).connection.getUrl();
+  }
+
+  @Override
+  public void reset() {
+    for (Upstream u : upstreams) {
+      u.connection.reset();
+    }
+  }
+
+  @Override
+  public void migrate(String from, String to) {
+    for (Upstream u : upstreams) {
+      u.connection.migrate(from, to);
+    }
+  }
+
+  @Override
+  public void addStats(ConnectionStats stats) {
+    for (Upstream u : upstreams) {
+      u.connection.addStats(stats);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.ProtocolException;
+import java.util.List;
+
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsResponseCache;
+import app.intra.util.DnsTransaction;
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.LogWrapper;
+import app.intra.util.QueryFrequencySketch;
+
+/**
+ * Prefetches a list of popular queries into the response cache, so that the cache is already hot
+ * when the user starts opening apps.  Queries are sent at a limited rate so that the warmup does
+ * not compete with real traffic.  Prefetch results are not reported to the DnsQueryTracker.
+ */
+class CacheWarmer extends Thread implements DnsResponseWriter {
+  private static final String LOG_TAG = "CacheWarmer";
+
+  private final ServerConnection serverConnection;
+  private final DnsResponseCache cache;
+  private final List<QueryFrequencySketch.Query> queries;
+  private final long intervalMs;
+
+  /**
+   * @param serverConnection The connection to use for the prefetch queries
+   * @param cache The cache that will receive the responses
+   * @param queries The queries to prefetch, in order
+   * @param intervalMs The delay between consecutive queries
+   */
+  CacheWarmer(ServerConnection serverConnection, DnsResponseCache cache,
+      List<QueryFrequencySketch.Query> queries, long intervalMs) {
+    super(LOG_TAG);
+    this.serverConnection = serverConnection;
+    this.cache = cache;
+    this.queries = queries;
+    this.intervalMs = intervalMs;
+  }
+
+  @Override
+  public void run() {
+    LogWrapper.logcat(Log.INFO, LOG_TAG, "Prefetching " + queries.size() + " queries");
+    for (QueryFrequencySketch.Query q : queries) {
+      byte[] data;
+      try {
+        data = DnsQueryBuilder.build(q.name, q.type);
+      } catch (ProtocolException e) {
+        continue;
+      }
+      DnsUdpQuery query = new DnsUdpQuery();
+      query.name = q.name;
+      query.type = q.type;
+      query.timestamp = SystemClock.elapsedRealtime();
+      // Already-cached queries are answered locally without any network activity.
+      DnsResolverUdpToHttps.processQuery(serverConnection, cache, query, data, this);
+      try {
+        Thread.sleep(intervalMs);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void sendResult(DnsUdpQuery query, DnsTransaction transaction) {
+    // The response has already been stored in the cache, and there is no client to send it to.
+  }
+}
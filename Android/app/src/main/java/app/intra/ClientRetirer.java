@@ -0,0 +1,97 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import app.intra.util.LogWrapper;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+
+/**
+ * Shuts down OkHttpClients that have been replaced by a new one.  After a reset, the old client's
+ * calls are canceled at once.  After a network change, the old network often keeps working for a
+ * few seconds, so the old client is retired after a grace period instead, giving the queries in
+ * flight on it a chance to finish.
+ */
+class ClientRetirer {
+  private static final String LOG_TAG = "ClientRetirer";
+
+  // Longer than the longest query deadline set by UpstreamDispatcher.
+  static final long DEFAULT_GRACE_MS = 5000;
+
+  // Runs the grace period timers for all clients.
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = Executors.defaultThreadFactory().newThread(r);
+          t.setName(LOG_TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * Cancels all of |client|'s calls, queued and running.
+   * @return The number of calls that were canceled.
+   */
+  static int cancelAll(OkHttpClient client) {
+    int canceled = 0;
+    for (Call call : client.dispatcher().queuedCalls()) {
+      call.cancel();
+      ++canceled;
+    }
+    for (Call call : client.dispatcher().runningCalls()) {
+      call.cancel();
+      ++canceled;
+    }
+    return canceled;
+  }
+
+  /**
+   * After |graceMs|, cancels the calls still on |client| and closes its pooled connections.
+   * Returns immediately.
+   * @param healthTracker Told how many calls were canceled.
+   */
+  static void retire(final OkHttpClient client, long graceMs,
+      final ConnectionHealthTracker healthTracker) {
+    schedule(new Runnable() {
+      @Override
+      public void run() {
+        int canceled = cancelAll(client);
+        client.connectionPool().evictAll();
+        healthTracker.onReset(canceled);
+        if (canceled > 0) {
+          LogWrapper.logcat(Log.INFO, LOG_TAG,
+              "Canceled " + canceled + " calls left on the old network");
+        }
+      }
+    }, graceMs);
+  }
+
+  /**
+   * Runs |task| after |graceMs|, for connections that retire their old sessions by other means.
+   */
+  static void schedule(Runnable task, long graceMs) {
+    timer.schedule(task, graceMs, TimeUnit.MILLISECONDS);
+  }
+}
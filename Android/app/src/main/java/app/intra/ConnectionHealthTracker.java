@@ -0,0 +1,234 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import app.intra.util.LogWrapper;
+import app.intra.util.Names;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+
+/**
+ * Tracks which connection carries each call, so that a connection that stops responding can be
+ * closed on its own.  This replaces the old workaround for
+ * https://github.com/square/okhttp/issues/3146, which rebuilt the whole OkHttpClient after any
+ * timeout and canceled every call in progress, including calls on healthy connections.
+ *
+ * When a call fails with a timeout after acquiring a connection, or its UpstreamDispatcher deadline
+ * expires, that connection's socket is closed.  OkHttp then fails the other calls on that
+ * connection (which were most likely stuck as well) and never returns it from the pool, while calls
+ * on other connections carry on.
+ *
+ * Also keeps count of evictions and full resets, and of how many other calls each one disrupted,
+ * and measures TLS handshakes.  A handshake counts as resumed if its session was created before
+ * the handshake started, i.e. it was reused from the TlsSessionCache.
+ *
+ * Thread-safe.
+ */
+class ConnectionHealthTracker extends EventListener {
+  private static final String LOG_TAG = "ConnectionHealthTracker";
+
+  // The connection most recently acquired by each unfinished call.
+  private final Map<Call, Connection> connections = new HashMap<>();
+  private long numEvictions = 0;
+  private long numEvictionCallsDisrupted = 0;
+  private long numResets = 0;
+  private long numResetCallsCanceled = 0;
+
+  // A TLS handshake that has started or finished, but whose connection has not been acquired yet.
+  private static class PendingHandshake {
+    final long startWallTime = System.currentTimeMillis();
+    final long startTime = SystemClock.elapsedRealtime();
+    long durationMs = -1;
+  }
+
+  private final Map<Call, PendingHandshake> handshakes = new HashMap<>();
+  private long numFullHandshakes = 0;
+  private long numResumedHandshakes = 0;
+  private long totalFullHandshakeMs = 0;
+  private long totalResumedHandshakeMs = 0;
+
+  @Override
+  public synchronized void secureConnectStart(Call call) {
+    handshakes.put(call, new PendingHandshake());
+  }
+
+  @Override
+  public synchronized void secureConnectEnd(Call call, Handshake handshake) {
+    PendingHandshake pending = handshakes.get(call);
+    if (pending != null) {
+      pending.durationMs = SystemClock.elapsedRealtime() - pending.startTime;
+    }
+  }
+
+  // Classifies the handshake that produced |connection|, now that its session is available.
+  private void recordHandshake(Call call, Connection connection) {
+    PendingHandshake pending = handshakes.remove(call);
+    if (pending == null || pending.durationMs < 0
+        || !(connection.socket() instanceof SSLSocket)) {
+      // Reused a pooled connection, or the handshake failed.
+      return;
+    }
+    SSLSession session = ((SSLSocket) connection.socket()).getSession();
+    boolean resumed = session != null && session.getCreationTime() < pending.startWallTime;
+    if (resumed) {
+      ++numResumedHandshakes;
+      totalResumedHandshakeMs += pending.durationMs;
+    } else {
+      ++numFullHandshakes;
+      totalFullHandshakeMs += pending.durationMs;
+    }
+  }
+
+  @Override
+  public synchronized void connectionAcquired(Call call, Connection connection) {
+    connections.put(call, connection);
+    recordHandshake(call, connection);
+  }
+
+  @Override
+  public synchronized void callEnd(Call call) {
+    connections.remove(call);
+    handshakes.remove(call);
+  }
+
+  @Override
+  public void callFailed(Call call, IOException e) {
+    synchronized (this) {
+      handshakes.remove(call);
+      if (!(e instanceof SocketTimeoutException)) {
+        connections.remove(call);
+        return;
+      }
+    }
+    evict(call);
+  }
+
+  /**
+   * Records that |call| has stalled without a timeout, e.g. because its deadline expired, and
+   * closes its connection.  Must be called before the call is canceled.
+   */
+  void onStall(Call call) {
+    evict(call);
+  }
+
+  // Closes the connection carrying |call|, if it has one.
+  private void evict(Call call) {
+    Connection connection;
+    int disrupted = 0;
+    synchronized (this) {
+      connection = connections.remove(call);
+      if (connection == null) {
+        // Failures before a connection was acquired, like connect timeouts, are handled by OkHttp.
+        return;
+      }
+      for (Map.Entry<Call, Connection> entry : connections.entrySet()) {
+        if (entry.getValue() == connection) {
+          ++disrupted;
+        }
+      }
+      ++numEvictions;
+      numEvictionCallsDisrupted += disrupted;
+    }
+    Socket socket = connection.socket();
+    LogWrapper.logcat(Log.WARN, LOG_TAG,
+        "Closing timed-out connection to " + socket.getRemoteSocketAddress() + ", disrupting "
+            + disrupted + " other calls");
+    try {
+      socket.close();
+    } catch (IOException closeError) {
+      // The connection is unusable either way.
+    }
+  }
+
+  /**
+   * Records a full reset of the client, which canceled |canceled| calls.
+   */
+  synchronized void onReset(int canceled) {
+    ++numResets;
+    numResetCallsCanceled += canceled;
+  }
+
+  /**
+   * Adds the eviction and reset counts, and the number and total duration of each kind of
+   * handshake, to |stats|.
+   */
+  synchronized void addStats(ConnectionStats stats) {
+    stats.add(Names.EVICTIONS, numEvictions);
+    stats.add(Names.EVICTION_CALLS_DISRUPTED, numEvictionCallsDisrupted);
+    stats.add(Names.RESETS, numResets);
+    stats.add(Names.RESET_CALLS_CANCELED, numResetCallsCanceled);
+    stats.add(Names.FULL_HANDSHAKES, numFullHandshakes);
+    stats.add(Names.FULL_HANDSHAKE_MS, totalFullHandshakeMs);
+    stats.add(Names.RESUMED_HANDSHAKES, numResumedHandshakes);
+    stats.add(Names.RESUMED_HANDSHAKE_MS, totalResumedHandshakeMs);
+  }
+
+  /**
+   * @return The number of connections that were closed after a timeout.
+   */
+  synchronized long getNumEvictions() {
+    return numEvictions;
+  }
+
+  /**
+   * @return The total number of other calls that were in progress on evicted connections.
+   */
+  synchronized long getNumEvictionCallsDisrupted() {
+    return numEvictionCallsDisrupted;
+  }
+
+  /**
+   * @return The number of times the whole client was reset.
+   */
+  synchronized long getNumResets() {
+    return numResets;
+  }
+
+  /**
+   * @return The total number of calls canceled by full resets.
+   */
+  synchronized long getNumResetCallsCanceled() {
+    return numResetCallsCanceled;
+  }
+
+  /**
+   * @return The number of TLS handshakes that created a new session.
+   */
+  synchronized long getNumFullHandshakes() {
+    return numFullHandshakes;
+  }
+
+  /**
+   * @return The number of TLS handshakes that resumed an earlier session.
+   */
+  synchronized long getNumResumedHandshakes() {
+    return numResumedHandshakes;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import app.intra.util.Names;
+
+/**
+ * Collects the counters of a ServerConnection and of every connection it wraps, so that they can
+ * be reported as one analytics event.  Counts from several connections are added up, and maxima
+ * keep the largest value.
+ *
+ * Not thread-safe.
+ */
+class ConnectionStats {
+  private final Map<Names, Long> counters = new EnumMap<>(Names.class);
+
+  /**
+   * Adds |value| to the counter |name|.
+   */
+  void add(Names name, long value) {
+    Long old = counters.get(name);
+    counters.put(name, old == null ? value : old + value);
+  }
+
+  /**
+   * Raises the counter |name| to |value|, if it is lower.
+   */
+  void max(Names name, long value) {
+    Long old = counters.get(name);
+    if (old == null || value > old) {
+      counters.put(name, value);
+    }
+  }
+
+  /**
+   * @return The value of the counter |name|, or 0 if no connection reported it.
+   */
+  long get(Names name) {
+    Long value = counters.get(name);
+    return value == null ? 0 : value;
+  }
+
+  /**
+   * @return Every reported counter.
+   */
+  Map<Names, Long> getCounters() {
+    return Collections.unmodifiableMap(counters);
+  }
+}
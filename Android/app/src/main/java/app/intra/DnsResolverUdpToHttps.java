@@ -17,16 +17,19 @@ package app.intra;
 
 import com.google.firebase.crash.FirebaseCrash;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.ProtocolException;
-import java.net.SocketTimeoutException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 import app.intra.util.BlockedSites;
+import app.intra.util.DnsPacket;
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsResponseCache;
 import app.intra.util.DnsUdpQuery;
 import app.intra.util.DnsTransaction;
 import app.intra.util.DummyDnsPacket;
@@ -34,6 +37,7 @@ import app.intra.util.IpPacket;
 import app.intra.util.IpTagInterceptor;
 import app.intra.util.Ipv4Packet;
 import app.intra.util.Ipv6Packet;
+import app.intra.util.QueryRateLimiter;
 import app.intra.util.UdpPacket;
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -48,18 +52,19 @@ class DnsResolverUdpToHttps {
   /**
    * Send a query.
    * @param serverConnection The connection to use for the query
+   * @param cache The response cache, or null if caching is disabled.
    * @param query The query information parsed from the packet
    * @param dnsPacketData The raw data of the DNS query (starting with the ID number)
    * @param responseWriter The object that will receive the response when it's ready.
    */
-  static void processQuery(ServerConnection serverConnection, DnsUdpQuery query,
-                           byte[] dnsPacketData, DnsResponseWriter responseWriter) {
+  static void processQuery(ServerConnection serverConnection, DnsResponseCache cache,
+                           DnsUdpQuery query, byte[] dnsPacketData,
+                           DnsResponseWriter responseWriter) {
     BlockedSites.Category category = BlockedSites
             .getUrlCategory(query.name);
     if (category != BlockedSites.Category.UNKNOWN) {
       try {
-        new DnsResolverUdpToHttps.DnsResponseCallback(
-                serverConnection, query, responseWriter)
+        new DnsResolverUdpToHttps.DnsResponseCallback(null, query, responseWriter)
                 .processResponse(DummyDnsPacket.generate(query.name), true);
       } catch(ProtocolException e) {
         DnsTransaction transaction = new DnsTransaction(query);
@@ -68,9 +73,24 @@ class DnsResolverUdpToHttps {
       }
       return;
     }
+    if (cache != null) {
+      DnsResponseCache.Hit hit =
+          cache.get(query.name, query.type, getCacheFlags(query), query.timestamp);
+      if (hit != null) {
+        DnsTransaction transaction = new DnsTransaction(query);
+        ByteBuffer.wrap(hit.response).putShort(query.requestId);
+        DnsPacket.copyQuestionName(dnsPacketData, hit.response);
+        transaction.status = DnsTransaction.Status.COMPLETE;
+        transaction.response = hit.response;
+        transaction.cacheHit = true;
+        transaction.savedByTtlPolicy = hit.savedByTtlPolicy;
+        responseWriter.sendResult(query, transaction);
+        return;
+      }
+    }
     try {
       serverConnection.performDnsRequest(query, dnsPacketData,
-          new DnsResolverUdpToHttps.DnsResponseCallback(serverConnection, query, responseWriter));
+          new DnsResolverUdpToHttps.DnsResponseCallback(cache, query, responseWriter));
     } catch (NullPointerException e) {
       DnsTransaction transaction = new DnsTransaction(query);
       transaction.status = DnsTransaction.Status.SEND_FAIL;
@@ -78,13 +98,57 @@ class DnsResolverUdpToHttps {
     }
   }
 
+  // Returns the DnsResponseCache flags for |query|.
+  private static int getCacheFlags(DnsUdpQuery query) {
+    int flags = 0;
+    if (query.dnssecOk) {
+      flags |= DnsResponseCache.FLAG_DNSSEC_OK;
+    }
+    if (query.checkingDisabled) {
+      flags |= DnsResponseCache.FLAG_CHECKING_DISABLED;
+    }
+    return flags;
+  }
+
+  /**
+   * Applies |limiter| to |query|, charging it to the query's source address.
+   * @param query The query information parsed from the packet
+   * @param responseWriter The object that will receive the REFUSED response, if any.
+   * @return False if the query is within its limits, and should be processed as usual.
+   */
+  static boolean throttle(QueryRateLimiter limiter, DnsUdpQuery query,
+                          DnsResponseWriter responseWriter) {
+    QueryRateLimiter.Decision decision = limiter.check(query.sourceAddress, query.timestamp);
+    if (decision == QueryRateLimiter.Decision.REFUSE) {
+      refuse(query, responseWriter);
+    }
+    return decision != QueryRateLimiter.Decision.ALLOW;
+  }
+
+  // Answers |query| locally with REFUSED, because its source has sent too many.
+  private static void refuse(DnsUdpQuery query, DnsResponseWriter responseWriter) {
+    DnsTransaction transaction = new DnsTransaction(query);
+    // Like a shed query, this says nothing about the health of the server.
+    transaction.status = DnsTransaction.Status.CANCELED;
+    transaction.rateLimited = true;
+    try {
+      byte[] refused = DnsQueryBuilder.buildError(query.name, query.type,
+          DnsPacket.RCODE_REFUSED);
+      ByteBuffer.wrap(refused).putShort(query.requestId);
+      transaction.response = refused;
+    } catch (ProtocolException e) {
+      // The client will time out instead.
+    }
+    responseWriter.sendResult(query, transaction);
+  }
+
   /**
    * A callback object to listen for a DNS response. The caller should create one such object for
    * each DNS request. Responses will run on a reader thread owned by OkHttp.
    */
   private static class DnsResponseCallback implements Callback {
 
-    private final ServerConnection serverConnection;
+    private final DnsResponseCache cache;
     private final DnsResponseWriter responseWriter;
     private final DnsUdpQuery dnsUdpQuery;
     private final DnsTransaction transaction;
@@ -92,13 +156,14 @@ class DnsResolverUdpToHttps {
     /**
      * Constructs a callback object to listen for a DNS response
      *
+     * @param cache Receives successful responses, or null if they should not be cached.
      * @param request Represents the request. Used to know the request ID, and the client's ip and
      * port.
      * @param responseWriter Receives the response
      */
-    DnsResponseCallback(ServerConnection serverConnection, DnsUdpQuery request,
+    DnsResponseCallback(DnsResponseCache cache, DnsUdpQuery request,
                         DnsResponseWriter responseWriter) {
-      this.serverConnection = serverConnection;
+      this.cache = cache;
       dnsUdpQuery = request;
       this.responseWriter = responseWriter;
       transaction = new DnsTransaction(request);
@@ -111,30 +176,69 @@ class DnsResolverUdpToHttps {
       buffer.putShort(dnsRequestId);
     }
 
+    // Sets the transaction's response to a local error with |rcode|.
+    private void setErrorResponse(byte rcode) {
+      try {
+        byte[] error = DnsQueryBuilder.buildError(dnsUdpQuery.name, dnsUdpQuery.type, rcode);
+        writeRequestIdToDnsResponse(error, dnsUdpQuery.requestId);
+        transaction.response = error;
+      } catch (ProtocolException e) {
+        // The client will time out instead.
+      }
+    }
+
+    private static long parseHeader(Response response, String name) {
+      String value = response.header(name);
+      if (value == null) {
+        return 0;
+      }
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+
     private void sendResult() {
       responseWriter.sendResult(dnsUdpQuery, transaction);
     }
 
     @Override
     public void onFailure(Call call, IOException e) {
+      if (e instanceof UpstreamDispatcher.ShedException) {
+        // Dropped locally under load.  This says nothing about the health of the server.
+        transaction.status = DnsTransaction.Status.CANCELED;
+        transaction.shed = true;
+        // Answer with SERVFAIL, so the client doesn't wait out its own timeout for a query that
+        // will never be sent.
+        setErrorResponse(DnsPacket.RCODE_SERVFAIL);
+        sendResult();
+        return;
+      }
+      if (e instanceof UpstreamDispatcher.DeadlineExceededException) {
+        transaction.deadlineMs = ((UpstreamDispatcher.DeadlineExceededException) e).deadlineMs;
+        transaction.status = DnsTransaction.Status.TIMEOUT;
+        FirebaseCrash.logcat(Log.INFO, LOG_TAG, "Query deadline expired: " + e.getMessage());
+        // Answer with SERVFAIL now, so the client can retry or give up without waiting for its own
+        // timeout.
+        setErrorResponse(DnsPacket.RCODE_SERVFAIL);
+        sendResult();
+        return;
+      }
       transaction.status = call.isCanceled() ?
           DnsTransaction.Status.CANCELED : DnsTransaction.Status.SEND_FAIL;
       FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Failed to read HTTPS response: " + e.toString());
-      if (e instanceof SocketTimeoutException) {
-        FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Workaround for OkHttp3 #3146: resetting");
-        try {
-          serverConnection.reset();
-        } catch (NullPointerException npe) {
-          FirebaseCrash.logcat(Log.WARN, LOG_TAG,
-              "Unlikely race: Null server connection at reset.");
-        }
-      }
       sendResult();
     }
 
     // Populate |transaction| from the headers and body of |response|.
     private void processResponse(Response response) {
       transaction.serverIp = response.header(IpTagInterceptor.HEADER_NAME);
+      transaction.queueWaitMs = parseHeader(response, UpstreamDispatcher.QUEUE_WAIT_HEADER);
+      transaction.inFlight = (int) parseHeader(response, UpstreamDispatcher.IN_FLIGHT_HEADER);
+      transaction.deadlineMs = parseHeader(response, UpstreamDispatcher.DEADLINE_HEADER);
+      transaction.unprotected =
+          response.header(NetworkResolverConnection.UNPROTECTED_HEADER) != null;
       if (!response.isSuccessful()) {
         transaction.status = DnsTransaction.Status.HTTP_ERROR;
         return;
@@ -166,6 +270,13 @@ class DnsResolverUdpToHttps {
         }
       }
 
+      if (cache != null && !transaction.unprotected) {
+        // Unprotected answers aren't cached, so they stop as soon as the server is reachable again.
+        // Clamps the TTLs in dnsResponse, so the client sees the same TTLs as the cache.
+        cache.put(dnsUdpQuery.name, dnsUdpQuery.type, getCacheFlags(dnsUdpQuery), dnsResponse,
+            SystemClock.elapsedRealtime());
+      }
+
       transaction.status = DnsTransaction.Status.COMPLETE;
       transaction.response = dnsResponse;
       if (sendResult)
@@ -20,6 +20,7 @@ import com.google.firebase.crash.FirebaseCrash;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.FileInputStream;
@@ -40,6 +41,7 @@ import app.intra.util.DnsUdpQuery;
 import app.intra.util.IpPacket;
 import app.intra.util.Ipv4Packet;
 import app.intra.util.Ipv6Packet;
+import app.intra.util.QueryRateLimiter;
 import app.intra.util.UdpPacket;
 
 /**
@@ -78,6 +80,11 @@ public class DnsVpnAdapter extends VpnAdapter implements DnsResponseWriter {
   @NonNull private final ParcelFileDescriptor tunFd;
   private final FileInputStream in;
   private final FileOutputStream out;
+  // Keyed by the query's source address on the tunnel.
+  private final QueryRateLimiter rateLimiter = new QueryRateLimiter(
+      QueryRateLimiter.DEFAULT_SOURCE_RATE, QueryRateLimiter.DEFAULT_SOURCE_BURST,
+      QueryRateLimiter.DEFAULT_GLOBAL_RATE, QueryRateLimiter.DEFAULT_GLOBAL_BURST,
+      SystemClock.elapsedRealtime());
 
   static DnsVpnAdapter establish(DnsVpnService vpnService) {
     ParcelFileDescriptor tunFd = establishVpn(vpnService);
@@ -291,8 +298,14 @@ public class DnsVpnAdapter extends VpnAdapter implements DnsResponseWriter {
         dnsRequest.sourcePort = udpPacket.sourcePort;
         dnsRequest.destPort = udpPacket.destPort;
 
+        if (DnsResolverUdpToHttps.throttle(rateLimiter, dnsRequest, this)) {
+          continue;
+        }
+        if (vpnService.waitForConnection(dnsRequest, udpPacket.data, this)) {
+          continue;
+        }
         DnsResolverUdpToHttps.processQuery(vpnService.getServerConnection(),
-            dnsRequest, udpPacket.data, this);
+            vpnService.getResponseCache(), dnsRequest, udpPacket.data, this);
       } catch (Exception e) {
         if (!isInterrupted()) {
           FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Unexpected exception in UDP loop.");
@@ -357,6 +370,11 @@ public class DnsVpnAdapter extends VpnAdapter implements DnsResponseWriter {
     vpnService.recordTransaction(transaction);
   }
 
+  @Override
+  public QueryRateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
   @Override
   public void close() {
     try {
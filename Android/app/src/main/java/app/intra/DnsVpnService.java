@@ -26,9 +26,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
 import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.VpnService;
 import android.os.Build;
@@ -38,15 +41,30 @@ import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import androidx.annotation.WorkerThread;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import app.intra.util.BlockedSites;
 import app.intra.socks.SocksVpnAdapter;
 import app.intra.util.DnsQueryTracker;
+import app.intra.util.DnsResponseCache;
 import app.intra.util.DnsTransaction;
+import app.intra.util.DnsUdpQuery;
 import app.intra.util.Names;
+import app.intra.util.QueryRateLimiter;
+import app.intra.util.TtlPolicy;
+import okhttp3.Cache;
 
 public class DnsVpnService extends VpnService implements NetworkManager.NetworkListener,
     SharedPreferences.OnSharedPreferenceChangeListener {
@@ -55,11 +73,52 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
   private static final int SERVICE_ID = 1; // Only has to be unique within this app.
   private static final String CHANNEL_ID = "vpn";
 
+  // Response cache budget.  DNS responses are typically 100-500 bytes, so this holds a few thousand.
+  private static final long CACHE_BYTES = 1024 * 1024;
+  // TTL policy, read from this asset.  See TtlPolicy for the format.
+  private static final String TTL_POLICY_ASSET = "ttl_policy.txt";
+  // The TTL policy to use if the asset can't be read, in seconds.  The floor suppresses repeated
+  // queries for names with very short TTLs, and the safety cap keeps any floor from holding onto an
+  // answer for more than 5 minutes.
+  private static final int MIN_TTL = 60;
+  private static final int MAX_TTL = 24 * 60 * 60;
+  private static final int TTL_FLOOR_CAP = 5 * 60;
+  // Cache warmup: the number of popular queries to prefetch at startup, and the delay between them.
+  private static final int WARMUP_QUERIES = 100;
+  private static final long WARMUP_INTERVAL_MS = 50;
+  // Hedging to the secondary server: at most 5% extra queries, sent after the primary's p95
+  // latency, bounded to this range.
+  private static final double HEDGE_MAX_EXTRA_LOAD = 0.05;
+  private static final long HEDGE_MIN_DELAY_MS = 100;
+  private static final long HEDGE_MAX_DELAY_MS = 1000;
+  // On-disk HTTP cache for GET responses from custom servers.
+  private static final String HTTP_CACHE_DIR = "doh";
+  private static final long HTTP_CACHE_BYTES = 512 * 1024;
+
   private NetworkManager networkManager;
   private VpnAdapter vpnAdapter = null;
-  private ServerConnection serverConnection = null;
+  // Read without the lock by the resolver threads.
+  private volatile ServerConnection serverConnection = null;
+  // Holds queries that arrive before the first server connection is ready.
+  private final QueryWaitQueue waitQueue =
+      new QueryWaitQueue(QueryWaitQueue.DEFAULT_CAPACITY, QueryWaitQueue.DEFAULT_MAX_WAIT_MS);
+  // Created in onCreate(), once the TTL policy has been read.
+  private DnsResponseCache responseCache = null;
   private boolean networkConnected = false;
+  // The network that |serverConnection| has been using, as named by NetworkManager, and whether the
+  // device has been offline since.  Guarded by |this|.
+  private String network = null;
+  private boolean networkLost = false;
   private String url = null;
+  // The secondary server settings that the current serverConnection was built with.
+  private List<String> connectedSecondaryUrls = new ArrayList<>();
+  private boolean connectedLoadBalance = false;
+  private boolean connectedUseGet = false;
+  private boolean connectedAllowFallback = false;
+  // When the current fallback to the network's resolver started, if there is one.
+  private volatile long fallbackStartTime = 0;
+  // Shared by all connections, and created in onCreate().
+  private Cache httpCache = null;
 
   private FirebaseAnalytics firebaseAnalytics;
 
@@ -77,6 +136,12 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
       url = PersistentState.getServerUrl(this);
       spawnServerUpdate();
     }
+    if (PersistentState.SECONDARY_URL_KEY.equals(key)
+        || PersistentState.LOAD_BALANCE_KEY.equals(key)
+        || PersistentState.USE_GET_KEY.equals(key)
+        || PersistentState.ALLOW_FALLBACK_KEY.equals(key)) {
+      spawnServerUpdate();
+    }
   }
 
   private synchronized void spawnServerUpdate() {
@@ -166,26 +231,91 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
     return serverConnection;
   }
 
+  DnsResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * Queues a query from the tunnel if there is no server connection yet because bootstrap is still
+   * running.  The query is sent when bootstrap finishes.
+   * @return False if the caller should process the query now.
+   */
+  boolean waitForConnection(DnsUdpQuery query, byte[] data, DnsResponseWriter writer) {
+    return serverConnection == null && waitQueue.offer(query, data, writer);
+  }
+
   @WorkerThread
   private synchronized void updateServerConnection() {
-    if (serverConnection != null && TextUtils.equals(url, serverConnection.getUrl())) {
+    List<String> secondaryUrls = PersistentState.getSecondaryServerUrls(this);
+    boolean loadBalance = PersistentState.getLoadBalance(this);
+    boolean useGet = PersistentState.getUseGet(this);
+    boolean allowFallback = PersistentState.getAllowFallback(this);
+    if (serverConnection != null && TextUtils.equals(url, serverConnection.getUrl())
+        && secondaryUrls.equals(connectedSecondaryUrls) && loadBalance == connectedLoadBalance
+        && useGet == connectedUseGet && allowFallback == connectedAllowFallback) {
       return;
     }
 
+    // Answers from the previous server should not be attributed to the new one.
+    responseCache.clear();
+
     // Inform the controller that we are starting a new connection.
     DnsVpnController controller = DnsVpnController.getInstance();
     controller.onConnectionStateChanged(this, ServerConnection.State.NEW);
 
     // Bootstrap the new server connection, which may require resolving the new server's name, using
-    // the current DNS configuration.
+    // the current DNS configuration.  If there is no connection yet, queries wait for this one.
+    waitQueue.hold();
+    try {
+      bootstrap(secondaryUrls, loadBalance, useGet, allowFallback);
+    } finally {
+      waitQueue.release(new QueryWaitQueue.Handler() {
+        @Override
+        public void process(DnsUdpQuery query, byte[] data, DnsResponseWriter writer) {
+          DnsResolverUdpToHttps.processQuery(serverConnection, responseCache, query, data, writer);
+        }
+      });
+    }
+  }
+
+  // Replaces the server connection.  Called with |this| held.
+  @WorkerThread
+  private void bootstrap(List<String> secondaryUrls, boolean loadBalance, boolean useGet,
+                         boolean allowFallback) {
+    DnsVpnController controller = DnsVpnController.getInstance();
+    if (serverConnection != null) {
+      reportServerStats(serverConnection);
+    }
     Bundle bootstrap = new Bundle();
     long beforeBootstrap = SystemClock.elapsedRealtime();
     if (url == null || url.isEmpty()) {
       // Use the Google Resolver
       AssetManager assets = this.getApplicationContext().getAssets();
-      serverConnection = GoogleServerConnection.get(new GoogleServerDatabase(this, assets));
+      GoogleServerDatabase db = new GoogleServerDatabase(this, assets);
+      GoogleServerConnection google = GoogleServerConnection.get(db);
+      if (google != null) {
+        // Bootstrap is reported in phases.  It ends with the first answer to the A and AAAA
+        // lookups, which is reported here.  The other lookup finishes in the background, so the
+        // time until both had finished is reported with the connection's SERVER_STATS.
+        bootstrap.putInt(Names.FIRST_ANSWER_LATENCY.name(), (int) google.getFirstAnswerMs());
+      }
+      serverConnection = google;
     } else {
-      serverConnection = StandardServerConnection.get(url);
+      serverConnection = getServerConnection(url, useGet);
+    }
+    connectedSecondaryUrls = secondaryUrls;
+    connectedLoadBalance = loadBalance;
+    connectedUseGet = useGet;
+    connectedAllowFallback = allowFallback;
+    if (serverConnection != null && !secondaryUrls.isEmpty()) {
+      serverConnection = addSecondaryServers(serverConnection, secondaryUrls, loadBalance, useGet);
+    }
+    if (serverConnection != null && allowFallback
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      // The network's resolvers can only be found on Lollipop and later.
+      serverConnection = new FallbackServerConnection(serverConnection,
+          new NetworkResolverConnection(resolverSource, NetworkResolverConnection.DEFAULT_PORT,
+              NetworkResolverConnection.DEFAULT_TIMEOUT_MS), fallbackListener);
     }
 
     if (serverConnection != null) {
@@ -201,6 +331,110 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
     }
   }
 
+  @WorkerThread
+  private ServerConnection getServerConnection(String url, boolean useGet) {
+    return getServerConnection(url, useGet, httpCache);
+  }
+
+  /**
+   * @return A DNS-over-TLS connection for tls:// URLs, and a DNS-over-HTTPS connection otherwise,
+   * or null if the server is unusable.
+   */
+  @WorkerThread
+  static ServerConnection getServerConnection(String url, boolean useGet, Cache httpCache) {
+    if (url.startsWith(TlsServerConnection.SCHEME + "://")) {
+      return TlsServerConnection.get(url);
+    }
+    return StandardServerConnection.get(url, useGet, httpCache);
+  }
+
+  // Combines |primary| with the user's secondary servers, either by hedging to the first one or by
+  // balancing queries across all of them.
+  @WorkerThread
+  private ServerConnection addSecondaryServers(ServerConnection primary, List<String> urls,
+                                               boolean loadBalance, boolean useGet) {
+    List<ServerConnection> secondaries = new ArrayList<>();
+    for (String secondaryUrl : urls) {
+      ServerConnection secondary = getServerConnection(secondaryUrl, useGet);
+      if (secondary != null) {
+        secondaries.add(secondary);
+      } else {
+        FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Secondary server is unusable: " + secondaryUrl);
+      }
+    }
+    if (secondaries.isEmpty()) {
+      return primary;
+    }
+    if (loadBalance) {
+      List<ServerConnection> all = new ArrayList<>();
+      all.add(primary);
+      all.addAll(secondaries);
+      return new BalancedServerConnection(all);
+    }
+    return new HedgedServerConnection(primary, secondaries.get(0), HEDGE_MAX_EXTRA_LOAD,
+        HEDGE_MIN_DELAY_MS, HEDGE_MAX_DELAY_MS);
+  }
+
+  // Finds the DNS servers of the underlying network, for the fallback.
+  private final NetworkResolverConnection.ResolverSource resolverSource =
+      new NetworkResolverConnection.ResolverSource() {
+        @Override
+        public List<InetAddress> getResolvers() {
+          return getNetworkResolvers();
+        }
+
+        @Override
+        public void protect(DatagramSocket socket) {
+          // DnsVpnAdapter routes private subnets, which often include the network's resolvers.
+          DnsVpnService.this.protect(socket);
+        }
+      };
+
+  // Returns the DNS servers of the first connected non-VPN network with Internet access.
+  private List<InetAddress> getNetworkResolvers() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return Collections.emptyList();
+    }
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+    for (Network network : connectivityManager.getAllNetworks()) {
+      NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+      NetworkInfo info = connectivityManager.getNetworkInfo(network);
+      if (capabilities == null || info == null || !info.isConnected()
+          || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)
+          || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+        continue;
+      }
+      LinkProperties properties = connectivityManager.getLinkProperties(network);
+      if (properties != null && !properties.getDnsServers().isEmpty()) {
+        return properties.getDnsServers();
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  // Tracks the time spent falling back, so that users can see when they weren't protected.
+  private final FallbackServerConnection.Listener fallbackListener =
+      new FallbackServerConnection.Listener() {
+        @Override
+        public void onFallbackChanged(boolean active) {
+          long now = SystemClock.elapsedRealtime();
+          getTracker().onFallbackChanged(active, now);
+          DnsVpnController controller = DnsVpnController.getInstance();
+          if (active) {
+            fallbackStartTime = now;
+            controller.onConnectionStateChanged(DnsVpnService.this,
+                ServerConnection.State.UNPROTECTED);
+          } else {
+            Bundle event = new Bundle();
+            event.putLong(Names.DURATION.name(), now - fallbackStartTime);
+            firebaseAnalytics.logEvent(Names.FALLBACK.name(), event);
+            controller.onConnectionStateChanged(DnsVpnService.this,
+                ServerConnection.State.WORKING);
+          }
+        }
+      };
+
   /**
    * Starts the VPN. This method performs network activity, so it must not run on the main thread.
    * This method is idempotent, and is marked synchronized so that it can safely be called from a
@@ -212,11 +446,24 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
       return;
     }
 
-    // The server connection setup process may rely on DNS, so it has to occur before we set up
-    // the VPN.
-    updateServerConnection();
-    startVpnAdapter();
-    BlockedSites.loadSites(false);
+    getTracker().onStartup(SystemClock.elapsedRealtime());
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      // SocksVpnAdapter excludes this app from the VPN, so bootstrap doesn't depend on the tunnel.
+      // Bring the tunnel up first, so that DNS is protected during bootstrap.  Queries that arrive
+      // before the server connection is ready wait in |waitQueue|.
+      if (serverConnection == null) {
+        waitQueue.hold();
+      }
+      startVpnAdapter();
+      updateServerConnection();
+    } else {
+      // The server connection setup process may rely on DNS, and DnsVpnAdapter would capture this
+      // app's own DNS queries, so it has to occur before we set up the VPN.
+      updateServerConnection();
+      startVpnAdapter();
+    }
+    loadBlocklist();
+    startCacheWarmup();
     DnsVpnController.getInstance().onStartComplete(this, vpnAdapter != null);
     if (vpnAdapter == null) {
       FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Failed to startVpn VPN adapter");
@@ -224,6 +471,35 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
     }
   }
 
+  // Maps the compiled blocklist from the APK, once per process.
+  private void loadBlocklist() {
+    if (BlockedSites.isLoaded()) {
+      return;
+    }
+    try {
+      AssetFileDescriptor asset = getAssets().openFd(BlockedSites.ASSET_NAME);
+      try {
+        BlockedSites.loadSites(asset.getFileDescriptor(), asset.getStartOffset(),
+            asset.getLength());
+      } finally {
+        asset.close();
+      }
+    } catch (IOException e) {
+      FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Failed to load the blocklist");
+      FirebaseCrash.report(e);
+    }
+  }
+
+  private void startCacheWarmup() {
+    DnsQueryTracker tracker = getTracker();
+    if (serverConnection == null || !tracker.isHistoryEnabled()) {
+      // The popular queries are only kept while the user has chosen to keep history.
+      return;
+    }
+    new CacheWarmer(serverConnection, responseCache, tracker.getTopQueries(WARMUP_QUERIES),
+        WARMUP_INTERVAL_MS).start();
+  }
+
   private synchronized void restartVpn() {
     // Attempt seamless handoff as described in the docs for VpnService.Builder.establish().
     final VpnAdapter oldAdapter = vpnAdapter;
@@ -234,6 +510,7 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
       serverConnection.reset();
     }
     oldAdapter.close();
+    reportRateLimits(oldAdapter);
     if (vpnAdapter != null) {
       vpnAdapter.start();
     } else {
@@ -247,10 +524,27 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
     DnsVpnController.getInstance().setDnsVpnService(this);
 
     firebaseAnalytics = FirebaseAnalytics.getInstance(this);
+    httpCache = new Cache(new File(getCacheDir(), HTTP_CACHE_DIR), HTTP_CACHE_BYTES);
+    responseCache = new DnsResponseCache(CACHE_BYTES, readTtlPolicy());
 
     syncNumRequests();
   }
 
+  private TtlPolicy readTtlPolicy() {
+    try {
+      Reader reader = new InputStreamReader(getAssets().open(TTL_POLICY_ASSET), "UTF-8");
+      try {
+        return TtlPolicy.read(reader);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Using the default TTL policy");
+      FirebaseCrash.report(e);
+      return new TtlPolicy(MIN_TTL, MAX_TTL, TTL_FLOOR_CAP);
+    }
+  }
+
   public void signalStopService(boolean userInitiated) {
     // TODO(alalama): display alert if not user initiated
     FirebaseCrash.logcat(
@@ -293,6 +587,7 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
   private synchronized void stopVpnAdapter() {
     if (vpnAdapter != null) {
       vpnAdapter.close();
+      reportRateLimits(vpnAdapter);
       vpnAdapter = null;
       DnsVpnController.getInstance().onConnectionStateChanged(this, null);
     }
@@ -310,6 +605,10 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
     }
 
     syncNumRequests();
+    reportStats();
+    if (serverConnection != null) {
+      reportServerStats(serverConnection);
+    }
     serverConnection = null;
 
     DnsVpnController.getInstance().setDnsVpnService(null);
@@ -388,7 +687,22 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
     transaction.responseTime = SystemClock.elapsedRealtime();
     transaction.responseCalendar = Calendar.getInstance();
 
-    getTracker().recordTransaction(this, transaction);
+    DnsQueryTracker tracker = getTracker();
+    long firstAnswerMs = -1;
+    synchronized (tracker) {
+      boolean first = tracker.getTimeToFirstAnswerMs() < 0;
+      tracker.recordTransaction(this, transaction);
+      if (first) {
+        firstAnswerMs = tracker.getTimeToFirstAnswerMs();
+      }
+    }
+    if (firstAnswerMs >= 0) {
+      // Logged outside the lock, which every query takes.
+      Bundle event = new Bundle();
+      event.putInt(Names.LATENCY.name(), (int) firstAnswerMs);
+      event.putLong(Names.WAITING_QUERIES.name(), waitQueue.getNumHeld());
+      firebaseAnalytics.logEvent(Names.FIRST_ANSWER.name(), event);
+    }
 
     Intent intent = new Intent(Names.RESULT.name());
     intent.putExtra(Names.TRANSACTION.name(), transaction);
@@ -402,19 +716,75 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
     // Update the connection state.  If the transaction succeeded, then the connection is working.
     // If the transaction failed, then the connection is not working.
     // If the transaction was canceled, then we don't have any new information about the status
-    // of the connection, so we don't send an update.
+    // of the connection, so we don't send an update.  While the fallback is active, answers from
+    // the cache or a probe of the primary don't mean that queries are protected again.
     DnsVpnController controller = DnsVpnController.getInstance();
-    if (transaction.status == DnsTransaction.Status.COMPLETE) {
+    if (transaction.status == DnsTransaction.Status.COMPLETE
+        && (transaction.unprotected || isFallbackActive())) {
+      controller.onConnectionStateChanged(this, ServerConnection.State.UNPROTECTED);
+    } else if (transaction.status == DnsTransaction.Status.COMPLETE) {
       controller.onConnectionStateChanged(this, ServerConnection.State.WORKING);
     } else if (transaction.status != DnsTransaction.Status.CANCELED) {
       controller.onConnectionStateChanged(this, ServerConnection.State.FAILING);
     }
   }
 
+  private boolean isFallbackActive() {
+    ServerConnection connection = serverConnection;
+    return connection instanceof FallbackServerConnection
+        && ((FallbackServerConnection) connection).isActive();
+  }
+
   private DnsQueryTracker getTracker() {
     return DnsVpnController.getInstance().getTracker(this);
   }
 
+  // Reports the tracker's counters, which cover everything since the process started.
+  private void reportStats() {
+    DnsQueryTracker tracker = getTracker();
+    Bundle event = new Bundle();
+    event.putLong(Names.CACHE_HITS.name(), tracker.getNumCacheHits());
+    event.putLong(Names.TTL_POLICY_SAVINGS.name(), tracker.getNumTtlPolicySavings());
+    event.putDouble(Names.STARTUP_HIT_RATE.name(), tracker.getStartupHitRate());
+    event.putLong(Names.SHED.name(), tracker.getNumShed());
+    event.putDouble(Names.MEAN_QUEUE_WAIT_MS.name(), tracker.getMeanQueueWaitMs());
+    event.putLong(Names.MAX_QUEUE_WAIT_MS.name(), tracker.getMaxQueueWaitMs());
+    event.putLong(Names.MAX_IN_FLIGHT.name(), tracker.getMaxInFlight());
+    event.putLong(Names.RATE_LIMITED.name(), tracker.getNumRateLimited());
+    firebaseAnalytics.logEvent(Names.STATS.name(), event);
+  }
+
+  // Reports how many queries an adapter that is being replaced or shut down has throttled, if any.
+  private void reportRateLimits(VpnAdapter adapter) {
+    QueryRateLimiter rateLimiter = adapter.getRateLimiter();
+    if (rateLimiter == null) {
+      return;
+    }
+    List<QueryRateLimiter.Source> throttled = rateLimiter.getThrottledSources();
+    if (throttled.isEmpty()) {
+      return;
+    }
+    // Only counts are reported, not the sources' addresses.
+    QueryRateLimiter.Source worst = throttled.get(0);
+    Bundle event = new Bundle();
+    event.putLong(Names.REFUSED.name(), rateLimiter.getNumRefused());
+    event.putLong(Names.DROPPED.name(), rateLimiter.getNumDropped());
+    event.putInt(Names.THROTTLED_SOURCES.name(), throttled.size());
+    event.putLong(Names.MAX_SOURCE_THROTTLED.name(), worst.numRefused + worst.numDropped);
+    firebaseAnalytics.logEvent(Names.RATE_LIMITS.name(), event);
+  }
+
+  // Reports the counters of a server connection that is being replaced or shut down.
+  private void reportServerStats(ServerConnection connection) {
+    ConnectionStats stats = new ConnectionStats();
+    connection.addStats(stats);
+    Bundle event = new Bundle();
+    for (Map.Entry<Names, Long> counter : stats.getCounters().entrySet()) {
+      event.putLong(counter.getKey().name(), counter.getValue());
+    }
+    firebaseAnalytics.logEvent(Names.SERVER_STATS.name(), event);
+  }
+
   private void syncNumRequests() {
     getTracker().sync(this);
   }
@@ -434,21 +804,45 @@ public class DnsVpnService extends VpnService implements NetworkManager.NetworkL
   public void onNetworkConnected(NetworkInfo networkInfo) {
     FirebaseCrash.logcat(Log.INFO, LOG_TAG, "Connected event.");
     setNetworkConnected(true);
+    final String name = NetworkManager.getNetworkName(networkInfo);
     // This code is used to start the VPN for the first time, but startVpn is idempotent, so we can
     // call it every time. startVpn performs network activity so it has to run on a separate thread.
     new Thread(
         new Runnable() {
           public void run() {
             startVpn();
+            migrateServerConnection(name);
           }
         }, "startVpn-onNetworkConnected")
         .start();
   }
 
+  // Moves the server connection to |newNetwork| if its connections may belong to another network.
+  // Without this, queries would keep going to sockets on the old network until they time out.
+  @WorkerThread
+  private synchronized void migrateServerConnection(String newNetwork) {
+    String oldNetwork = network;
+    boolean lost = networkLost;
+    network = newNetwork;
+    networkLost = false;
+    if (serverConnection == null || oldNetwork == null
+        || (!lost && newNetwork.equals(oldNetwork))) {
+      // Not started yet, or a redundant event.
+      return;
+    }
+    FirebaseCrash.logcat(Log.INFO, LOG_TAG, "Migrating from "
+        + NetworkManager.getNetworkType(oldNetwork) + " to "
+        + NetworkManager.getNetworkType(newNetwork));
+    serverConnection.migrate(oldNetwork, newNetwork);
+  }
+
   @Override
   public void onNetworkDisconnected() {
     FirebaseCrash.logcat(Log.INFO, LOG_TAG, "Disconnected event.");
     setNetworkConnected(false);
+    synchronized (this) {
+      networkLost = true;
+    }
     DnsVpnController.getInstance().onConnectionStateChanged(this, null);
   }
 }
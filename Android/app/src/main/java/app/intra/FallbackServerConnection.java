@@ -0,0 +1,248 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.LogWrapper;
+import app.intra.util.Names;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * A ServerConnection that falls back to an unprotected resolver when the primary server is
+ * unreachable, e.g. because it is blocked, or because a captive portal intercepts HTTPS.  Without
+ * this, every query would fail until the user turned Intra off.  The fallback is opt-in, because
+ * the fallback resolver offers no protection.
+ *
+ * The outcomes of the most recent primary queries are kept in a sliding window.  When most of
+ * them have failed, queries go to the fallback instead.  While falling back, a copy of a live query
+ * is sent to the primary every so often, with exponential backoff between copies, and the first
+ * answer from the primary ends the fallback.  A reset or network change also ends it, since the
+ * next network may well reach the primary.
+ *
+ * Queries that were canceled, or dropped locally under load, say nothing about the primary's
+ * reachability, so they are not counted.
+ */
+class FallbackServerConnection implements ServerConnection {
+  private static final String LOG_TAG = "FallbackServerConnection";
+
+  // The number of recent primary queries whose outcomes are kept.
+  static final int WINDOW = 20;
+  // Fall back only after at least this many outcomes, so that a single early failure can't do it.
+  static final int MIN_SAMPLES = 6;
+  static final double MAX_FAILURE_RATE = 0.8;
+  // The range of intervals between probes of the primary, while falling back.
+  static final long MIN_PROBE_INTERVAL_MS = 2000;
+  static final long MAX_PROBE_INTERVAL_MS = 30 * 1000;
+
+  /**
+   * Told when the fallback starts and ends.  May be called on any thread.
+   */
+  interface Listener {
+    void onFallbackChanged(boolean active);
+  }
+
+  private final ServerConnection primary;
+  private final ServerConnection fallback;
+  private final Listener listener;
+
+  // The outcomes of the most recent primary queries, as a ring buffer.  Guarded by |this|.
+  private final boolean[] failures = new boolean[WINDOW];
+  private int numOutcomes = 0;
+  private int nextOutcome = 0;
+  private int numFailures = 0;
+  private boolean active = false;
+  private long nextProbeTime = 0;
+  private long probeIntervalMs = MIN_PROBE_INTERVAL_MS;
+  // The number of times that queries have switched to the fallback, and the queries sent to it.
+  private long numFallbacks = 0;
+  private long numFallbackQueries = 0;
+
+  /**
+   * @param primary The protected server, which is used whenever it is reachable.
+   * @param fallback The unprotected server, which is used while the primary is unreachable.
+   * @param listener Told when the fallback starts and ends.
+   */
+  FallbackServerConnection(ServerConnection primary, ServerConnection fallback,
+      Listener listener) {
+    this.primary = primary;
+    this.fallback = fallback;
+    this.listener = listener;
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * @return True if queries are currently going to the fallback.
+   */
+  synchronized boolean isActive() {
+    return active;
+  }
+
+  @Override
+  public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+    if (!isActive()) {
+      return primary.performDnsRequest(metadata, data, new Observer(cb));
+    }
+    if (takeProbe()) {
+      primary.performDnsRequest(metadata, data, new Probe());
+    }
+    synchronized (this) {
+      ++numFallbackQueries;
+    }
+    return fallback.performDnsRequest(metadata, data, cb);
+  }
+
+  @Override
+  public String getUrl() {
+    return primary.getUrl();
+  }
+
+  @Override
+  public void reset() {
+    primary.reset();
+    fallback.reset();
+    end("reset");
+  }
+
+  @Override
+  public void migrate(String from, String to) {
+    primary.migrate(from, to);
+    fallback.migrate(from, to);
+    end("network change");
+  }
+
+  @Override
+  public void addStats(ConnectionStats stats) {
+    primary.addStats(stats);
+    fallback.addStats(stats);
+    synchronized (this) {
+      stats.add(Names.FALLBACKS, numFallbacks);
+      stats.add(Names.FALLBACK_QUERIES, numFallbackQueries);
+    }
+  }
+
+  // Adds a primary query's outcome to the window, and starts the fallback if too many failed.
+  private void addOutcome(boolean failed) {
+    synchronized (this) {
+      if (active) {
+        // Late results from before the fallback started.
+        return;
+      }
+      if (numOutcomes == WINDOW) {
+        if (failures[nextOutcome]) {
+          --numFailures;
+        }
+      } else {
+        ++numOutcomes;
+      }
+      failures[nextOutcome] = failed;
+      if (failed) {
+        ++numFailures;
+      }
+      nextOutcome = (nextOutcome + 1) % WINDOW;
+      if (numOutcomes < MIN_SAMPLES || numFailures < MAX_FAILURE_RATE * numOutcomes) {
+        return;
+      }
+      active = true;
+      ++numFallbacks;
+      probeIntervalMs = MIN_PROBE_INTERVAL_MS;
+      nextProbeTime = elapsedRealtime() + probeIntervalMs;
+    }
+    LogWrapper.logcat(Log.WARN, LOG_TAG, "Primary server is unreachable.  Falling back.");
+    listener.onFallbackChanged(true);
+  }
+
+  // Returns true if it's time to probe the primary, and schedules the next probe.
+  private synchronized boolean takeProbe() {
+    long now = elapsedRealtime();
+    if (!active || now < nextProbeTime) {
+      return false;
+    }
+    probeIntervalMs = Math.min(2 * probeIntervalMs, MAX_PROBE_INTERVAL_MS);
+    nextProbeTime = now + probeIntervalMs;
+    return true;
+  }
+
+  // Ends the fallback, if it is active, and starts a fresh window.
+  private void end(String reason) {
+    synchronized (this) {
+      numOutcomes = 0;
+      nextOutcome = 0;
+      numFailures = 0;
+      if (!active) {
+        return;
+      }
+      active = false;
+    }
+    LogWrapper.logcat(Log.INFO, LOG_TAG, "Fallback ended by " + reason);
+    listener.onFallbackChanged(false);
+  }
+
+  // Records the outcome of a primary query, and passes its result to the caller.
+  private class Observer implements Callback {
+    private final Callback cb;
+
+    Observer(Callback cb) {
+      this.cb = cb;
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      boolean canceled = call != null && call.isCanceled();
+      if (e instanceof UpstreamDispatcher.DeadlineExceededException) {
+        addOutcome(true);
+      } else if (!(e instanceof UpstreamDispatcher.ShedException) && !canceled) {
+        addOutcome(true);
+      }
+      cb.onFailure(call, e);
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) throws IOException {
+      addOutcome(!response.isSuccessful());
+      cb.onResponse(call, response);
+    }
+  }
+
+  // Receives a copy of a query that was sent to the primary while falling back.
+  private class Probe implements Callback {
+    @Override
+    public void onFailure(Call call, IOException e) {
+      // Still unreachable.  The next probe has already been scheduled.
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      boolean successful = response.isSuccessful();
+      if (response.body() != null) {
+        response.body().close();
+      }
+      if (successful) {
+        end("an answer from the primary server");
+      }
+    }
+  }
+}
@@ -15,12 +15,15 @@ limitations under the License.
 */
 package app.intra;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
@@ -29,13 +32,13 @@ import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import app.intra.util.DnsPacket;
 import app.intra.util.DnsUdpQuery;
 import app.intra.util.DualStackResult;
 import app.intra.util.IpTagInterceptor;
+import app.intra.util.LogWrapper;
+import app.intra.util.Names;
 
 /**
  * Represents a connection to the DNS-over-HTTPS server. Contains functionality for finding a
@@ -46,10 +49,19 @@ public class GoogleServerConnection implements ServerConnection {
   private static final String LOG_TAG = "GoogleServerConnection";
 
   private static final String HOSTNAME = "dns.google.com";
+  private static final short TYPE_A = 1;
+  private static final short TYPE_AAAA = 28;
 
   // Client, with DNS fixed to the selectedServer.  Initialized by bootstrap.
   private OkHttpClient client = null;
   final private GoogleServerDatabase db;
+  final private UpstreamDispatcher dispatcher;
+  final private IdleConnectionMonitor idleMonitor = new IdleConnectionMonitor();
+  final private ConnectionHealthTracker healthTracker = new ConnectionHealthTracker();
+  final private NetworkProfiles profiles = new NetworkProfiles();
+  private long firstAnswerMs = -1;
+  // The bootstrap that made the connection usable.  Its slower lookup may still be running.
+  private volatile Bootstrap lastBootstrap = null;
 
   /**
    * Gets a working GoogleServerConnection, or null if the GoogleServerConnection cannot be made to
@@ -57,51 +69,193 @@ public class GoogleServerConnection implements ServerConnection {
    * network activity, so it cannot be called on the application's main thread.
    */
   public static GoogleServerConnection get(GoogleServerDatabase db) {
-    GoogleServerConnection s = new GoogleServerConnection(db);
-    DualStackResult redirects = s.bootstrap();
-    if (redirects == null) {
-      return null;  // No working server.
+    return get(db, new UpstreamDispatcher());
+  }
+
+  static GoogleServerConnection get(GoogleServerDatabase db, UpstreamDispatcher dispatcher) {
+    GoogleServerConnection s = new GoogleServerConnection(db, dispatcher);
+    if (!s.bootstrap()) {
+      // None of the usual servers worked.  Try again with the hardcoded ones.
+      if (!db.enableFallback() || !s.bootstrap()) {
+        return null;  // No working server.
+      }
     }
-    db.setPreferred(redirects);
+    db.probe();
     return s;
   }
 
-  private GoogleServerConnection(GoogleServerDatabase db) {
+  private GoogleServerConnection(GoogleServerDatabase db, UpstreamDispatcher dispatcher) {
     this.db = db;
+    this.dispatcher = dispatcher;
     reset();
   }
 
   /**
    * Attempts to connect to the DNS server, and checks the connection by fetching fresh IPs for
-   * dns.google.com
+   * dns.google.com.  The A and AAAA lookups are sent at the same time, and this returns as soon as
+   * either produces addresses.  The other lookup finishes in the background, and its addresses are
+   * saved for the next startup.
    *
-   * @return The a list of preferred IPs, or null if the connection failed.
+   * @return True if the connection worked.
    */
-  private DualStackResult bootstrap() {
-    String[] names4 = resolve(HOSTNAME, "A");
-    if (names4 == null || names4.length == 0) {
-      return null;
+  private boolean bootstrap() {
+    Bootstrap bootstrap = new Bootstrap() {
+      @Override
+      void onComplete(DualStackResult all) {
+        db.savePreferred(all);
+      }
+    };
+    for (short type : new short[]{TYPE_A, TYPE_AAAA}) {
+      // These bypass the dispatcher, whose deadline would cut short a search through the
+      // database's addresses.
+      client.newCall(buildRequest(HOSTNAME, type)).enqueue(bootstrap);
+    }
+    DualStackResult redirects;
+    try {
+      redirects = bootstrap.awaitFirst();
+    } catch (InterruptedException e) {
+      // Let the caller see the interruption.
+      Thread.currentThread().interrupt();
+      return false;
     }
-    String[] names6 = resolve(HOSTNAME, "AAAA");
-    if (names6 == null) {
-      names6 = new String[0];
+    if (redirects == null) {
+      return false;
     }
+    firstAnswerMs = bootstrap.getFirstAnswerMs();
+    lastBootstrap = bootstrap;
+    db.setPreferred(redirects);
+    bootstrap.release();
+    return true;
+  }
 
-    return new DualStackResult(names4, names6);
+  /**
+   * @return The time from the start of bootstrap until the first usable answer, in ms.
+   */
+  long getFirstAnswerMs() {
+    return firstAnswerMs;
   }
 
-  private String[] resolve(final String name, final String type) {
-    String response;
-    try {
-      response = performJsonDnsRequest(name, type);
-    } catch (IOException e) {
-      // No working connection
-      return null;
+  /**
+   * Collects the answers to the bootstrap's A and AAAA lookups.
+   */
+  abstract static class Bootstrap implements Callback {
+    private final long start;
+    private final List<InetAddress> addresses = new ArrayList<>();
+    private int pending = 2;
+    private long firstAnswerMs = -1;
+    private long completeMs = -1;
+    private boolean released = false;
+    private boolean completed = false;
+    // The number of addresses returned by awaitFirst().
+    private int numDelivered = 0;
+
+    Bootstrap() {
+      start = elapsedRealtime();
     }
-    if (response == null) {
-      return null;  // Unexpected
+
+    // Overridden by tests.
+    long elapsedRealtime() {
+      return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Called once both lookups have finished and release() has been called, if the lookups produced
+     * addresses that awaitFirst() did not return.
+     * @param all The addresses from both lookups.
+     */
+    abstract void onComplete(DualStackResult all);
+
+    /**
+     * Waits for the first lookup that produces addresses.
+     * @return Its addresses, or null if neither lookup produced any.
+     */
+    synchronized DualStackResult awaitFirst() throws InterruptedException {
+      while (addresses.isEmpty() && pending > 0) {
+        wait();
+      }
+      numDelivered = addresses.size();
+      return addresses.isEmpty() ? null : new DualStackResult(addresses);
+    }
+
+    synchronized long getFirstAnswerMs() {
+      return firstAnswerMs;
+    }
+
+    /**
+     * @return The time from the start until both lookups had finished, in ms, or -1 if one is still
+     *     pending.
+     */
+    synchronized long getCompleteMs() {
+      return completeMs;
+    }
+
+    /**
+     * Allows onComplete() to run, once the result of awaitFirst() has been recorded.
+     */
+    void release() {
+      synchronized (this) {
+        released = true;
+      }
+      maybeComplete();
+    }
+
+    private void maybeComplete() {
+      List<InetAddress> all;
+      synchronized (this) {
+        if (completed || !released || pending > 0 || addresses.size() == numDelivered) {
+          // Not finished, or nothing new to save.
+          return;
+        }
+        completed = true;
+        all = new ArrayList<>(addresses);
+      }
+      onComplete(new DualStackResult(all));
+    }
+
+    // Records one lookup's addresses, which are null if it failed.
+    private void finish(List<InetAddress> found, String type) {
+      long elapsed = elapsedRealtime() - start;
+      synchronized (this) {
+        if (addresses.isEmpty() && found != null && !found.isEmpty()) {
+          firstAnswerMs = elapsed;
+        }
+        if (found != null) {
+          addresses.addAll(found);
+        }
+        if (--pending == 0) {
+          completeMs = elapsed;
+        }
+        notifyAll();
+      }
+      LogWrapper.logcat(Log.INFO, LOG_TAG, "Bootstrap lookup for type " + type + " "
+          + (found == null ? "failed" : "found " + found.size() + " addresses") + " after "
+          + elapsed + " ms");
+      maybeComplete();
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      finish(null, call.request().url().queryParameter("type"));
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      String type = call.request().url().queryParameter("type");
+      List<InetAddress> found = null;
+      try {
+        if (response.isSuccessful()) {
+          DnsPacket packet = new DnsPacket(response.body().bytes());
+          if (packet.getRcode() == DnsPacket.RCODE_NOERROR) {
+            found = packet.getResponseAddresses();
+          }
+        }
+      } catch (IOException e) {
+        found = null;
+      } finally {
+        response.close();
+      }
+      finish(found, type);
     }
-    return parseJsonDnsResponse(response);
   }
 
   private String urlEncode(final String name) {
@@ -116,18 +270,23 @@ public class GoogleServerConnection implements ServerConnection {
   }
 
   @Override
-  public void performDnsRequest(final DnsUdpQuery metadata, final byte[] data, Callback cb) {
-    final int unsignedType = metadata.type & 0xffff; // Convert Java's signed short to unsigned int
+  public Call performDnsRequest(final DnsUdpQuery metadata, final byte[] data, Callback cb) {
+    Request request = buildRequest(metadata.name, metadata.type);
+    idleMonitor.checkIdle(client);
+    return dispatcher.enqueue(client, request, metadata, cb);
+  }
+
+  // Builds a request for a wire-format answer from the JSON API.
+  private Request buildRequest(String name, short type) {
+    final int unsignedType = type & 0xffff; // Convert Java's signed short to unsigned int
     String url =
         String.format(Locale.ROOT,
-            "https://%s/resolve?name=%s&type=%d&encoding=raw", HOSTNAME, urlEncode(metadata.name),
+            "https://%s/resolve?name=%s&type=%d&encoding=raw", HOSTNAME, urlEncode(name),
             unsignedType);
-    Request request =
-        new Request.Builder()
-            .url(url)
-            .header("User-Agent", String.format("Jigsaw-DNS/%s", BuildConfig.VERSION_NAME))
-            .build();
-    client.newCall(request).enqueue(cb);
+    return new Request.Builder()
+        .url(url)
+        .header("User-Agent", String.format("Jigsaw-DNS/%s", BuildConfig.VERSION_NAME))
+        .build();
   }
 
   @Override
@@ -136,60 +295,62 @@ public class GoogleServerConnection implements ServerConnection {
     return null;
   }
 
-  /**
-   * Performs a synchronous JSON DNS request for |name| over HTTP using a provided client.
-   *
-   * @param name The domain name to look up
-   * @param type The query type string to look up, e.g. "AAAA". Case-insensitive.
-   * @return The entire JSON response, as a string.
-   */
-  private String performJsonDnsRequest(final String name, final String type) throws IOException {
-    String url = String.format("https://%s/resolve?name=%s&type=%s", HOSTNAME, urlEncode(name),
-        type);
-    Request request = new Request.Builder().url(url).build();
-    Response response = client.newCall(request).execute();
-    return response.body().string();
+  @Override
+  public void reset() {
+    OkHttpClient oldClient = client;
+    client = buildClient();
+    if (oldClient != null) {
+      healthTracker.onReset(ClientRetirer.cancelAll(oldClient));
+      // Resets usually follow a network change.
+      db.probe();
+    }
   }
 
-  /**
-   * Reads the results from a JSON DNS-over-HTTPS response.
-   *
-   * Only used during bootstrap.
-   *
-   * @param response The JSON string returned by the server
-   * @return The list of IP addresses (usually just 1), or null if the response is not valid.
-   */
-  private String[] parseJsonDnsResponse(String response) {
-    try {
-      JSONObject json = new JSONObject(response);
-      JSONArray answers = json.getJSONArray("Answer");
-      ArrayList<String> names = new ArrayList<String>();
-      for (int i = 0; i < answers.length(); ++i) {
-        JSONObject answer = answers.getJSONObject(i);
-        names.add(answer.getString("data"));
+  @Override
+  public void migrate(String from, String to) {
+    // The database's scoreboard keeps the addresses' connection times for each network, so only
+    // the round-trip times need to be saved here.
+    profiles.save(from, new NetworkProfiles.Profile(null, dispatcher.getRttEstimator()));
+    NetworkProfiles.Profile profile = profiles.restore(to);
+    dispatcher.setRttEstimator(profile != null && profile.rtt != null ?
+        profile.rtt : UpstreamDispatcher.newRttEstimator());
+    // Switches the database to the new network's scores before the new client looks up addresses.
+    db.probe();
+    OkHttpClient oldClient = client;
+    client = buildClient();
+    // Open a connection on the new network now, instead of on the next query, by repeating the
+    // bootstrap lookups in the background.  Their answers are saved for the next startup.
+    Bootstrap warmup = new Bootstrap() {
+      @Override
+      void onComplete(DualStackResult all) {
+        db.savePreferred(all);
       }
-      return names.toArray(new String[names.size()]);
-    } catch (JSONException e) {
-      Log.w(LOG_TAG, e);
-      return null;
+    };
+    warmup.release();
+    for (short type : new short[]{TYPE_A, TYPE_AAAA}) {
+      client.newCall(buildRequest(HOSTNAME, type)).enqueue(warmup);
     }
+    ClientRetirer.retire(oldClient, ClientRetirer.DEFAULT_GRACE_MS, healthTracker);
   }
 
   @Override
-  public void reset() {
-    OkHttpClient oldClient = client;
-    client = new OkHttpClient.Builder()
+  public void addStats(ConnectionStats stats) {
+    idleMonitor.addStats(stats);
+    healthTracker.addStats(stats);
+    stats.add(Names.PROFILES_RESTORED, profiles.getNumRestored());
+    Bootstrap bootstrap = lastBootstrap;
+    if (bootstrap != null && bootstrap.getCompleteMs() >= 0) {
+      stats.max(Names.BOOTSTRAP_COMPLETE_MS, bootstrap.getCompleteMs());
+    }
+  }
+
+  private OkHttpClient buildClient() {
+    OkHttpClient.Builder builder =
+        idleMonitor.configure(TlsSessionCache.configure(new OkHttpClient.Builder()));
+    return dispatcher.configure(builder, healthTracker)
         .dns(db)
         .connectTimeout(3, TimeUnit.SECONDS)  // Detect blocked connections.  TODO: tune.
         .addNetworkInterceptor(new IpTagInterceptor())
         .build();
-    if (oldClient != null) {
-      for (Call call : oldClient.dispatcher().queuedCalls()) {
-        call.cancel();
-      }
-      for (Call call : oldClient.dispatcher().runningCalls()) {
-        call.cancel();
-      }
-    }
   }
 }
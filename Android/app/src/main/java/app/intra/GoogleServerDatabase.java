@@ -17,19 +17,22 @@ package app.intra;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
 
 import androidx.annotation.WorkerThread;
 import app.intra.util.DiversitySampler;
 import app.intra.util.DualStackResult;
+import app.intra.util.PackedAddresses;
 
 import com.google.firebase.crash.FirebaseCrash;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -41,6 +44,15 @@ import okhttp3.Dns;
  * of addresses,  Since the corresponding client is only used to access a single service
  * (dns.google.com), this allows us to direct its connections to an IP address that we know to be
  * hosting that service.
+ *
+ * The pool starts with the servers that worked last time, followed by the addresses of NAMES from
+ * the system resolver.  A sample of hardcoded addresses is added only if none of those work, so
+ * the hardcoded list is not read at all on a normal startup.  Once added, the sample goes first.
+ *
+ * OkHttp tries the addresses in order, waiting for a connect timeout on each one that doesn't
+ * respond, so the pool is sorted by a ServerScoreboard of connection times measured on the current
+ * network.  The measurements come from a ServerProber that runs in the background after bootstrap
+ * and after each network change, and are saved so that they survive restarts.
  */
 public class GoogleServerDatabase implements Dns {
 
@@ -55,63 +67,185 @@ public class GoogleServerDatabase implements Dns {
    */
   private static final String[] NAMES = {"dns.google.com", "www.google.com"};
 
-  private LinkedList<InetAddress> tryOrder;
-  private Context context;
+  // Hardcoded addresses, packed at build time from src/main/addresses.
+  static final String V4_ASSET = "google.v4";
+  static final String V6_ASSET = "google.v6";
 
+  // Max number of addresses in the pool.  setPreferred() adds to the front, so this drops the
+  // least preferred addresses.
+  private static final int MAX_POOL_SIZE = 40;
+
+  private final Context context;
+  private final AssetManager assets;
+  // Guarded by |this|.
+  private LinkedList<InetAddress> preferred;
+  // The addresses of NAMES, or null until they have been resolved.
+  private List<InetAddress> named = null;
+  // A sample of the hardcoded addresses, or null until enableFallback().
+  private List<InetAddress> fallback = null;
+  // The packed hardcoded addresses, or null until enableFallback().
+  private byte[] hardcoded4 = null;
+  private byte[] hardcoded6 = null;
+  private final ServerScoreboard scoreboard;
+  private final ServerProber prober;
+
+  /**
+   * Returns quickly: the names are resolved in the background, and the hardcoded addresses are
+   * only read if enableFallback() is called.
+   */
   public GoogleServerDatabase(Context context, AssetManager assets) {
     this.context = context;
+    this.assets = assets;
+    scoreboard = new ServerScoreboard(PersistentState.getScoreboardSalt(context));
+    prober = new ServerProber(scoreboard, NAMES[0], 443, ServerProber.DEFAULT_MAX_PROBES,
+        ServerProber.DEFAULT_MIN_INTERVAL_MS);
     // Try the preferred servers, then dns.google.com, then www.google.com.
-    DualStackResult preferredServers = getPreferred();
-    tryOrder = preferredServers.getInterleaved();
+    preferred = getPreferred().getInterleaved();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        resolveNames();
+      }
+    }, LOG_TAG).start();
+
+    scoreboard.load(PersistentState.getGoogleScoreboard(context));
+    scoreboard.setNetwork(getNetworkName());
+  }
+
+  @WorkerThread
+  private void resolveNames() {
+    List<InetAddress> addresses = new ArrayList<>();
     for (String name : NAMES) {
-      addAddress(name);
+      try {
+        addresses.addAll(Arrays.asList(InetAddress.getAllByName(name)));
+      } catch (UnknownHostException e) {
+        // It's expected that some addresses might fail to resolve.
+      }
+    }
+    synchronized (this) {
+      named = addresses;
+      notifyAll();
     }
+  }
 
-    // If none of the good choices work, try some random hardcoded IP addresses.  We set
-    // recurse=true so that if a connection works, we query it for an IP address of dns.google.com,
-    // and try to switch.  This should help with geo-locality.
-    List<InetAddress> secondTier6 = readIPs(assets, "ipv6.txt");
-    List<InetAddress> secondTier4 = readIPs(assets, "ipv4.txt");
-    DiversitySampler sampler6 = new DiversitySampler(secondTier6);
-    DiversitySampler sampler4 = new DiversitySampler(secondTier4);
+  // Identifies the active network, so that measurements from different networks are kept apart.
+  private String getNetworkName() {
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo info = connectivityManager != null ?
+        connectivityManager.getActiveNetworkInfo() : null;
+    return NetworkManager.getNetworkName(info);
+  }
+
+  /**
+   * Adds a diverse sample of the hardcoded addresses to the pool, for use when none of the preferred
+   * or named addresses work.  From then on, the sample is tried before the other addresses.
+   *
+   * The other addresses are not recorded as failures in the scoreboard, which is saved, because
+   * that would demote them for a day after the network recovers.
+   *
+   * @return False if the fallback was already enabled, or there are no hardcoded addresses.
+   */
+  public synchronized boolean enableFallback() {
+    if (fallback != null) {
+      return false;
+    }
+    hardcoded6 = readIPs(V6_ASSET, 16);
+    hardcoded4 = readIPs(V4_ASSET, 4);
+    fallback = sampleHardcoded();
+    return !fallback.isEmpty();
+  }
+
+  // Picks MAX_ATTEMPTS of each family from the hardcoded addresses.  Called with |this| held.
+  private List<InetAddress> sampleHardcoded() {
+    // We set recurse=true so that if a connection works, we query it for an IP address of
+    // dns.google.com, and try to switch.  This should help with geo-locality.
+    DiversitySampler sampler6 = DiversitySampler.fromPacked(hardcoded6, 16);
+    DiversitySampler sampler4 = DiversitySampler.fromPacked(hardcoded4, 4);
+    int size6 = hardcoded6.length / 16;
+    int size4 = hardcoded4.length / 4;
+    List<InetAddress> sample = new ArrayList<>();
     for (int i = 0; i < MAX_ATTEMPTS; ++i) {
       // Alternately try IPv6 and IPv4 addresses
-      if (i < secondTier6.size()) {
-        tryOrder.add(sampler6.choose());
+      if (i < size6) {
+        sample.add(sampler6.choose());
       }
-      if (i < secondTier4.size()) {
-        tryOrder.add(sampler4.choose());
+      if (i < size4) {
+        sample.add(sampler4.choose());
       }
     }
+    return sample;
   }
 
-  private List<InetAddress> readIPs(AssetManager assets, String filename) {
-    List<InetAddress> addresses = new ArrayList<InetAddress>();
+  private byte[] readIPs(String filename, int addressLength) {
     try {
-      InputStream input = assets.open(filename);
-      BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-        addresses.add(InetAddress.getByName(line));
-      }
-      reader.close();
-      input.close();
-    } finally {
-      return addresses;
+      return PackedAddresses.readPacked(assets.open(filename), addressLength);
+    } catch (IOException e) {
+      FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Can't read " + filename + ": " + e);
+      return new byte[0];
     }
   }
 
-  @WorkerThread
-  private void addAddress(String address) {
-    try {
-      tryOrder.addAll(Arrays.asList(InetAddress.getAllByName(address)));
-    } catch (UnknownHostException e) {
-      // It's expected that some addresses might fail to resolve.
+  // Returns all the addresses, without duplicates, in order of preference, up to MAX_POOL_SIZE.
+  // The fallback sample comes first, if it is enabled.  Called with |this| held.
+  private List<InetAddress> getPool() {
+    LinkedHashSet<InetAddress> pool = new LinkedHashSet<>();
+    if (fallback != null) {
+      pool.addAll(fallback);
+    }
+    pool.addAll(preferred);
+    if (named != null) {
+      pool.addAll(named);
     }
+    List<InetAddress> bounded = new ArrayList<>(pool);
+    return bounded.subList(0, Math.min(bounded.size(), MAX_POOL_SIZE));
   }
 
   @Override
-  public List<InetAddress> lookup(String hostname) {
-    return tryOrder;
+  public synchronized List<InetAddress> lookup(String hostname) {
+    // With no preferred servers, as on the first run, the names are the only good choices.
+    while (preferred.isEmpty() && named == null && fallback == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // Let the caller see the interruption.
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    List<InetAddress> pool = getPool();
+    if (fallback == null) {
+      return scoreboard.order(pool);
+    }
+    // Everything else failed when the fallback was enabled, so the scores only order the sample
+    // and the other addresses among themselves.
+    int split = 0;
+    while (split < pool.size() && fallback.contains(pool.get(split))) {
+      ++split;
+    }
+    List<InetAddress> ordered = new ArrayList<>(scoreboard.order(pool.subList(0, split)));
+    ordered.addAll(scoreboard.order(pool.subList(split, pool.size())));
+    return ordered;
+  }
+
+  /**
+   * Switches to the measurements for the active network, and measures the best candidates in the
+   * background if they haven't been measured recently on this network.  Returns immediately.
+   */
+  public void probe() {
+    scoreboard.setNetwork(getNetworkName());
+    synchronized (this) {
+      if (fallback != null) {
+        // Draw a new sample, in case different subnets are blocked on this network.
+        fallback = sampleHardcoded();
+      }
+    }
+    prober.maybeProbe(lookup(NAMES[0]), new ServerProber.Listener() {
+      @Override
+      public void onProbesDone() {
+        PersistentState.setGoogleScoreboard(context, scoreboard.save());
+      }
+    });
   }
 
   /**
@@ -131,10 +265,26 @@ public class GoogleServerDatabase implements Dns {
    */
   public void setPreferred(DualStackResult servers) {
     // Prepend these servers to the list, preserving the interleaved order.
-    tryOrder.addAll(0, servers.getInterleaved());
+    synchronized (this) {
+      preferred.addAll(0, servers.getInterleaved());
+      preferred = new LinkedList<>(new LinkedHashSet<>(preferred));
+      while (preferred.size() > MAX_POOL_SIZE) {
+        preferred.removeLast();
+      }
+    }
 
     // Record them to disk so they can be prepended at the next startup.
     PersistentState.setExtraGoogleV4Servers(context, servers.getV4());
     PersistentState.setExtraGoogleV6Servers(context, servers.getV6());
   }
+
+  /**
+   * Record servers to try first at the next startup, without changing the current order.
+   *
+   * @param servers IP addresses to try first.
+   */
+  public void savePreferred(DualStackResult servers) {
+    PersistentState.setExtraGoogleV4Servers(context, servers.getV4());
+    PersistentState.setExtraGoogleV6Servers(context, servers.getV6());
+  }
 }
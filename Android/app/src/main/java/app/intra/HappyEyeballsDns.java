@@ -0,0 +1,395 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import app.intra.util.DualStackResult;
+import app.intra.util.LogWrapper;
+import okhttp3.Dns;
+
+/**
+ * Returns a fixed set of server addresses to OkHttp, ordered so that the first one is known to
+ * accept connections.  OkHttp tries addresses one after another, each with the full connect
+ * timeout, so on a network with broken IPv6 every new connection would otherwise wait several
+ * seconds.
+ *
+ * The first lookup runs a Happy Eyeballs race (RFC 8305): TCP connections are attempted to the
+ * addresses in interleaved order, starting a new attempt every stagger interval, or immediately
+ * when an attempt fails.  The first address to connect wins.  Its address family is remembered, and
+ * later lookups return that family first without racing again.  An instance is used for a single
+ * OkHttpClient, which is rebuilt on every network change, so the winner is remembered per network.
+ * A winner from an earlier visit to the same network can be restored with setWinner(), which skips
+ * the race.
+ *
+ * The losing connections are closed once a winner is found.  The winning connection is handed to
+ * the client by getSocketFactory(), so that the client doesn't have to connect to the winner again.
+ *
+ * The addresses can be replaced with setAddresses().  The previous set is returned after the new
+ * one, as a fallback in case none of the new addresses work.
+ */
+class HappyEyeballsDns implements Dns {
+  private static final String LOG_TAG = "HappyEyeballsDns";
+
+  // Recommended "Connection Attempt Delay" from RFC 8305 Section 5.
+  static final long DEFAULT_STAGGER_MS = 250;
+
+  // Runs connection attempts for all instances.
+  private static final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = Executors.defaultThreadFactory().newThread(r);
+          t.setName("HappyEyeballs");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * A socket opened by a race.  Connecting it again to the endpoint that it is already connected to
+   * does nothing, so that the winner can be handed to a client that connects every socket it
+   * creates.
+   */
+  static class RaceSocket extends Socket {
+    final InetAddress target;
+
+    RaceSocket(InetAddress target) {
+      this.target = target;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+      if (isConnected() && endpoint.equals(getRemoteSocketAddress())) {
+        return;
+      }
+      super.connect(endpoint, timeout);
+    }
+  }
+
+  // The sockets opened during one race, so that the losers can be closed when it ends.
+  private static class Probes {
+    private List<Socket> sockets = new ArrayList<>();
+
+    // Returns false if the race is already over.
+    synchronized boolean add(Socket socket) {
+      if (sockets == null) {
+        return false;
+      }
+      sockets.add(socket);
+      return true;
+    }
+
+    // Closes all the sockets except |winner|, which may be null.
+    void closeAllExcept(Socket winner) {
+      List<Socket> toClose;
+      synchronized (this) {
+        toClose = sockets;
+        sockets = null;
+      }
+      for (Socket socket : toClose) {
+        if (socket != winner) {
+          closeQuietly(socket);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the client's sockets.  The first socket after a race is the race's winning connection.
+   */
+  private class HandoffSocketFactory extends SocketFactory {
+    @Override
+    public Socket createSocket() {
+      Socket socket = takeWinningSocket();
+      return socket != null ? socket : new Socket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return SocketFactory.getDefault().createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException {
+      return SocketFactory.getDefault().createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return SocketFactory.getDefault().createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+        int localPort) throws IOException {
+      return SocketFactory.getDefault().createSocket(address, port, localAddress, localPort);
+    }
+  }
+
+  private final int port;
+  private final long staggerMs;
+  private final long timeoutMs;
+  private final SocketFactory socketFactory = new HandoffSocketFactory();
+  // Guarded by |this|.
+  private List<InetAddress> ips;
+  private List<InetAddress> fallback;
+  private Boolean preferIpv6 = null;
+  private InetAddress winner = null;
+  // The winning connection from the last race, until the client takes it.
+  private Socket winningSocket = null;
+  private long timeToFirstConnectionMs = -1;
+
+  /**
+   * @param ips The server's addresses.
+   * @param fallback Addresses to try after |ips|, which may be empty.
+   * @param port The server's TCP port.
+   * @param staggerMs The delay before starting each additional connection attempt.
+   * @param timeoutMs The connect timeout for each attempt.
+   */
+  HappyEyeballsDns(List<InetAddress> ips, List<InetAddress> fallback, int port, long staggerMs,
+      long timeoutMs) {
+    setAddresses(ips, fallback);
+    this.port = port;
+    this.staggerMs = staggerMs;
+    this.timeoutMs = timeoutMs;
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  // Connects a race socket to |address|.  Overridden by tests.
+  void connect(Socket socket, InetAddress address) throws IOException {
+    socket.connect(new InetSocketAddress(address, port), (int) timeoutMs);
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing was sent on it.
+    }
+  }
+
+  /**
+   * @return A factory for the client's sockets.  The client must connect to the addresses in the
+   * order returned by lookup(), so that the first socket after a race is connected to the winner.
+   */
+  SocketFactory getSocketFactory() {
+    return socketFactory;
+  }
+
+  // Returns the winning connection of the last race, if the client hasn't already taken it.
+  private synchronized Socket takeWinningSocket() {
+    Socket socket = winningSocket;
+    winningSocket = null;
+    if (socket != null && socket.isClosed()) {
+      return null;
+    }
+    return socket;
+  }
+
+  /**
+   * Replaces the addresses returned by future lookups.  Connections that are already open are not
+   * affected.
+   * @param ips The server's new addresses.
+   * @param fallback Addresses to try after |ips|, which may be empty.
+   */
+  synchronized void setAddresses(List<InetAddress> ips, List<InetAddress> fallback) {
+    this.ips = new DualStackResult(ips).getInterleaved();
+    this.fallback = new ArrayList<>(new DualStackResult(fallback).getInterleaved());
+    this.fallback.removeAll(this.ips);
+  }
+
+  /**
+   * Uses |winner| as if it had won a race, so that lookups don't race.
+   * @param winner An address that connected first the last time the device was on this network.
+   */
+  synchronized void setWinner(InetAddress winner) {
+    this.winner = winner;
+    preferIpv6 = winner instanceof Inet6Address;
+  }
+
+  /**
+   * @return The address that won the race, or was set with setWinner(), or null if there is none.
+   */
+  synchronized InetAddress getWinner() {
+    return winner;
+  }
+
+  @Override
+  public List<InetAddress> lookup(String hostname) {
+    List<InetAddress> current;
+    List<InetAddress> previous;
+    Boolean v6;
+    InetAddress first;
+    synchronized (this) {
+      current = ips;
+      previous = fallback;
+      v6 = preferIpv6;
+      first = winner;
+    }
+    if (v6 == null) {
+      first = race(current);
+      if (first == null) {
+        // Nothing connected.  Let OkHttp try every address and report the error.
+        List<InetAddress> all = new ArrayList<>(current);
+        all.addAll(previous);
+        return all;
+      }
+      v6 = first instanceof Inet6Address;
+      synchronized (this) {
+        preferIpv6 = v6;
+        winner = first;
+      }
+    }
+    if (!current.contains(first)) {
+      // The addresses have changed since |first| won.
+      first = null;
+    }
+    List<InetAddress> ordered = order(current, first, v6);
+    ordered.addAll(order(previous, null, v6));
+    return ordered;
+  }
+
+  // Returns |first| (if not null), then the other addresses in |ips| of the preferred family, then
+  // the rest.
+  private static List<InetAddress> order(List<InetAddress> ips, InetAddress first, boolean v6) {
+    List<InetAddress> ordered = new ArrayList<>(ips.size());
+    if (first != null) {
+      ordered.add(first);
+    }
+    for (InetAddress ip : ips) {
+      if (ip != first && (ip instanceof Inet6Address) == v6) {
+        ordered.add(ip);
+      }
+    }
+    for (InetAddress ip : ips) {
+      if ((ip instanceof Inet6Address) != v6) {
+        ordered.add(ip);
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Races connections to |ips|.
+   * @return The first address that accepted a connection, or null if none did.
+   */
+  InetAddress race(List<InetAddress> ips) {
+    long start = elapsedRealtime();
+    ExecutorCompletionService<RaceSocket> attempts = new ExecutorCompletionService<>(executor);
+    final Probes probes = new Probes();
+    List<Future<RaceSocket>> futures = new ArrayList<>();
+    RaceSocket winningSocket = null;
+    int started = 0;
+    int finished = 0;
+    try {
+      while (winningSocket == null && finished < ips.size()) {
+        if (started < ips.size()) {
+          final InetAddress address = ips.get(started++);
+          futures.add(attempts.submit(new Callable<RaceSocket>() {
+            @Override
+            public RaceSocket call() {
+              RaceSocket socket = new RaceSocket(address);
+              if (!probes.add(socket)) {
+                return null;
+              }
+              try {
+                connect(socket, address);
+                return socket;
+              } catch (IOException e) {
+                return null;
+              }
+            }
+          }));
+        }
+        // Wait for an attempt to finish.  Once all have started, wait as long as it takes.
+        Future<RaceSocket> done = started < ips.size() ?
+            attempts.poll(staggerMs, TimeUnit.MILLISECONDS) : attempts.take();
+        if (done == null) {
+          continue;  // Time to start the next attempt.
+        }
+        ++finished;
+        winningSocket = done.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      LogWrapper.logcat(Log.WARN, LOG_TAG, "Race interrupted: " + e);
+    } finally {
+      for (Future<RaceSocket> f : futures) {
+        f.cancel(true);
+      }
+      probes.closeAllExcept(winningSocket);
+    }
+
+    InetAddress winner = winningSocket != null ? winningSocket.target : null;
+    if (winner != null) {
+      long elapsed = elapsedRealtime() - start;
+      Socket unclaimed;
+      synchronized (this) {
+        timeToFirstConnectionMs = elapsed;
+        unclaimed = this.winningSocket;
+        this.winningSocket = winningSocket;
+      }
+      if (unclaimed != null) {
+        closeQuietly(unclaimed);
+      }
+      LogWrapper.logcat(Log.INFO, LOG_TAG,
+          "Connected to " + winner.getHostAddress() + " first, after " + elapsed + " ms");
+    } else {
+      LogWrapper.logcat(Log.WARN, LOG_TAG, "No address accepted a connection");
+    }
+    return winner;
+  }
+
+  /**
+   * @return True if IPv6 won the race, false if IPv4 won, or null if there has been no winner.
+   */
+  synchronized Boolean getPreferIpv6() {
+    return preferIpv6;
+  }
+
+  /**
+   * @return The time from the start of the race until the first connection succeeded, in ms, or -1
+   * if no race has succeeded.
+   */
+  synchronized long getTimeToFirstConnectionMs() {
+    return timeToFirstConnectionMs;
+  }
+}
@@ -0,0 +1,291 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.Names;
+import app.intra.util.RttEstimator;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * A ServerConnection that hedges slow queries.  Each query is sent to the primary server.  If
+ * there is no answer after a delay close to the primary's 95th percentile latency, the same query
+ * is also sent to the secondary server, and whichever answers first is used.  The other call is
+ * canceled.
+ *
+ * Hedges are paid for from a token bucket that fills by a fixed fraction of a token per primary
+ * query, so hedging can never add more than that fraction of extra load, even when the primary
+ * server slows down for everyone.
+ */
+class HedgedServerConnection implements ServerConnection {
+
+  // Hedge after this quantile of the primary's recent latency distribution.
+  private static final double HEDGE_QUANTILE = 0.95;
+  private static final int RTT_WINDOW = 64;
+  // The largest number of hedges that can be sent in a burst.
+  private static final double MAX_TOKENS = 10;
+
+  // Runs the hedge timers for all instances.
+  private static final ScheduledThreadPoolExecutor timer = makeTimer();
+
+  private static ScheduledThreadPoolExecutor makeTimer() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setName("HedgeTimer");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  private final ServerConnection primary;
+  private final ServerConnection secondary;
+  private final double maxExtraLoad;
+  private final long minDelayMs;
+  private final long maxDelayMs;
+  private final RttEstimator primaryRtt = new RttEstimator(RTT_WINDOW);
+  // Starts empty, so that hedges never exceed the load limit.  Guarded by |this|.
+  private double tokens = 0;
+  private long numHedges = 0;
+  private long numHedgeWins = 0;
+
+  /**
+   * @param primary The server that receives every query.
+   * @param secondary The server that receives hedged queries.
+   * @param maxExtraLoad The largest number of hedges per primary query, e.g. 0.05 for 5%.
+   * @param minDelayMs The shortest time to wait before hedging.
+   * @param maxDelayMs The longest time to wait before hedging.  Also used until the primary's
+   *     latency has been measured.
+   */
+  HedgedServerConnection(ServerConnection primary, ServerConnection secondary,
+      double maxExtraLoad, long minDelayMs, long maxDelayMs) {
+    this.primary = primary;
+    this.secondary = secondary;
+    this.maxExtraLoad = maxExtraLoad;
+    this.minDelayMs = minDelayMs;
+    this.maxDelayMs = maxDelayMs;
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  // Runs |task| on the hedge timer after |delayMs|.  Overridden by tests.
+  ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+    return timer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  long getHedgeDelayMs() {
+    long delay = primaryRtt.getQuantile(HEDGE_QUANTILE, maxDelayMs);
+    return Math.max(minDelayMs, Math.min(maxDelayMs, delay));
+  }
+
+  private synchronized void addTokens() {
+    tokens = Math.min(MAX_TOKENS, tokens + maxExtraLoad);
+  }
+
+  private synchronized boolean takeToken() {
+    if (tokens < 1) {
+      return false;
+    }
+    tokens -= 1;
+    ++numHedges;
+    return true;
+  }
+
+  private synchronized void onHedgeWin() {
+    ++numHedgeWins;
+  }
+
+  /**
+   * @return The number of queries that were sent to the secondary server.
+   */
+  synchronized long getNumHedges() {
+    return numHedges;
+  }
+
+  /**
+   * @return The number of hedged queries that the secondary server answered first.
+   */
+  synchronized long getNumHedgeWins() {
+    return numHedgeWins;
+  }
+
+  /**
+   * Tracks the calls for one query, and passes the first successful result to the caller.
+   */
+  private class Race {
+    private final Callback cb;
+    private final long startTime = elapsedRealtime();
+    private Call primaryCall = null;
+    private Call secondaryCall = null;
+    private ScheduledFuture<?> hedgeTimer = null;
+    private int pending = 0;
+    private boolean done = false;
+
+    Race(Callback cb) {
+      this.cb = cb;
+    }
+
+    synchronized void setPrimaryCall(Call call) {
+      primaryCall = call;
+    }
+
+    synchronized void setHedgeTimer(ScheduledFuture<?> timer) {
+      hedgeTimer = timer;
+    }
+
+    synchronized boolean isDone() {
+      return done;
+    }
+
+    // Called before sending each request.  Returns false if the race is already over.
+    synchronized boolean start() {
+      if (done) {
+        return false;
+      }
+      ++pending;
+      return true;
+    }
+
+    synchronized void setSecondaryCall(Call call) {
+      secondaryCall = call;
+      if (done) {
+        // The primary answered while the hedge was being sent.
+        call.cancel();
+      }
+    }
+
+    // Returns true if this result should be delivered to the caller.
+    private synchronized boolean finish(boolean success) {
+      if (done) {
+        return false;
+      }
+      --pending;
+      if (!success && pending > 0) {
+        // Wait for the other call.
+        return false;
+      }
+      done = true;
+      if (hedgeTimer != null) {
+        hedgeTimer.cancel(false);
+      }
+      return true;
+    }
+
+    private synchronized void cancelOther(boolean isPrimary) {
+      Call other = isPrimary ? secondaryCall : primaryCall;
+      if (other != null) {
+        other.cancel();
+      }
+    }
+
+    Callback callback(final boolean isPrimary) {
+      return new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          if (finish(false)) {
+            cb.onFailure(call, e);
+          }
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+          boolean success = response.isSuccessful();
+          if (!finish(success)) {
+            response.close();
+            return;
+          }
+          if (success) {
+            // If the secondary won, the primary took at least this long.
+            primaryRtt.addSample(elapsedRealtime() - startTime);
+            if (!isPrimary) {
+              onHedgeWin();
+            }
+            cancelOther(isPrimary);
+          }
+          cb.onResponse(call, response);
+        }
+      };
+    }
+  }
+
+  @Override
+  public Call performDnsRequest(final DnsUdpQuery metadata, final byte[] data, Callback cb) {
+    final Race race = new Race(cb);
+    addTokens();
+    race.start();
+    // Each connection zeroes the ID in place, so give each one its own copy.
+    Call primaryCall =
+        primary.performDnsRequest(metadata, Arrays.copyOf(data, data.length), race.callback(true));
+    race.setPrimaryCall(primaryCall);
+    race.setHedgeTimer(schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (race.isDone() || !takeToken() || !race.start()) {
+          return;
+        }
+        race.setSecondaryCall(secondary.performDnsRequest(metadata,
+            Arrays.copyOf(data, data.length), race.callback(false)));
+      }
+    }, getHedgeDelayMs()));
+    // Canceling the primary call ends the race, unless the hedge has already been sent.
+    return primaryCall;
+  }
+
+  @Override
+  public String getUrl() {
+    return primary.getUrl();
+  }
+
+  @Override
+  public void reset() {
+    primary.reset();
+    secondary.reset();
+  }
+
+  @Override
+  public void migrate(String from, String to) {
+    primary.migrate(from, to);
+    secondary.migrate(from, to);
+  }
+
+  @Override
+  public void addStats(ConnectionStats stats) {
+    primary.addStats(stats);
+    secondary.addStats(stats);
+    stats.add(Names.HEDGES, getNumHedges());
+    stats.add(Names.HEDGE_WINS, getNumHedgeWins());
+  }
+}
@@ -0,0 +1,87 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import app.intra.util.DnsPacket;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Reduces the TTLs in DNS responses that have been sitting in an HTTP cache, as required by
+ * RFC 8484 Section 5.1.  The TTLs in a cached body are the ones the server sent, so without this a
+ * client could keep using an answer for longer than the server allowed.
+ *
+ * The age of a response is the value of its Age header, which is set by intermediary caches, plus
+ * the time it has spent in OkHttp's own cache.  This must be an application interceptor, so that it
+ * sees responses served from OkHttp's cache.
+ */
+class HttpCacheAgeInterceptor implements Interceptor {
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Response response = chain.proceed(chain.request());
+    long ageMs = parseAgeSeconds(response) * 1000;
+    if (response.networkResponse() == null && response.cacheResponse() != null) {
+      ageMs += Math.max(0, System.currentTimeMillis() - response.receivedResponseAtMillis());
+    }
+    int ageSeconds = (int) Math.min(Integer.MAX_VALUE, ageMs / 1000);
+    if (ageSeconds <= 0 || !response.isSuccessful() || response.body() == null) {
+      return response;
+    }
+    ResponseBody body = response.body();
+    byte[] dnsResponse = body.bytes();
+    subtractAge(dnsResponse, ageSeconds);
+    return response.newBuilder()
+        .body(ResponseBody.create(body.contentType(), dnsResponse))
+        .build();
+  }
+
+  private static long parseAgeSeconds(Response response) {
+    String age = response.header("Age");
+    if (age == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(age.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Reduces every TTL in |dnsResponse| by |ageSeconds|, stopping at zero.  Does nothing if
+   * |dnsResponse| cannot be parsed.
+   */
+  static void subtractAge(byte[] dnsResponse, int ageSeconds) {
+    DnsPacket packet;
+    try {
+      packet = new DnsPacket(dnsResponse);
+    } catch (ProtocolException e) {
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(dnsResponse);
+    for (int offset : packet.getTtlOffsets()) {
+      // TTLs are unsigned, but values with the top bit set are treated as zero (RFC 2181).
+      int ttl = Math.max(0, buffer.getInt(offset));
+      buffer.putInt(offset, Math.max(0, ttl - ageSeconds));
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import app.intra.util.LogWrapper;
+import app.intra.util.Names;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Keeps pooled HTTP/2 connections to the DNS server alive while the phone is idle, and avoids
+ * reusing connections that may have died silently.
+ *
+ * While the CPU is awake, OkHttp sends an HTTP/2 PING on each pooled connection every ping
+ * interval, which keeps NAT mappings open, and closes any connection that fails to answer.  A
+ * connection that survives is known to be alive.  However, pings cannot run while the device is in
+ * deep sleep, which is exactly when NATs time out and radios go dormant.  This class notices that
+ * the device has slept (SystemClock.uptimeMillis() stops during deep sleep, but elapsedRealtime()
+ * does not), and if it slept for longer than the ping interval since the last exchange, it evicts
+ * the idle pooled connections before the next query.  That query then opens a fresh connection,
+ * instead of waiting for a socket timeout on a dead one.
+ */
+class IdleConnectionMonitor implements Interceptor {
+  private static final String LOG_TAG = "IdleConnectionMonitor";
+
+  // Default PING interval.  Most mobile NATs keep idle TCP mappings for at least a minute.
+  static final long DEFAULT_PING_INTERVAL_MS = 30 * 1000;
+
+  private final long pingIntervalMs;
+  // Time of the last successful exchange, on both clocks.  Guarded by |this|.
+  private long lastElapsed;
+  private long lastUptime;
+  private long numIdleEvictions = 0;
+
+  IdleConnectionMonitor() {
+    this(DEFAULT_PING_INTERVAL_MS);
+  }
+
+  /**
+   * @param pingIntervalMs The interval between HTTP/2 PINGs on each connection.
+   */
+  IdleConnectionMonitor(long pingIntervalMs) {
+    this.pingIntervalMs = pingIntervalMs;
+    markActive();
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  // Overridden by tests.
+  long uptimeMillis() {
+    return SystemClock.uptimeMillis();
+  }
+
+  private synchronized void markActive() {
+    lastElapsed = elapsedRealtime();
+    lastUptime = uptimeMillis();
+  }
+
+  /**
+   * Enables PINGs on |builder|, and starts tracking the health of its connections.
+   */
+  OkHttpClient.Builder configure(OkHttpClient.Builder builder) {
+    return builder
+        .pingInterval(pingIntervalMs, TimeUnit.MILLISECONDS)
+        .addNetworkInterceptor(this);
+  }
+
+  /**
+   * Call before sending a query on |client|.  Evicts idle connections if they have gone unchecked
+   * for too long.
+   */
+  void checkIdle(OkHttpClient client) {
+    long sleptMs;
+    synchronized (this) {
+      long elapsed = elapsedRealtime() - lastElapsed;
+      long awake = uptimeMillis() - lastUptime;
+      sleptMs = elapsed - awake;
+      if (sleptMs <= pingIntervalMs) {
+        return;
+      }
+      // Only evict once per sleep.
+      markActive();
+      ++numIdleEvictions;
+    }
+    LogWrapper.logcat(Log.INFO, LOG_TAG, "Slept for " + sleptMs + " ms; evicting idle connections");
+    // Connections that are carrying requests are not affected.
+    client.connectionPool().evictAll();
+  }
+
+  /**
+   * Adds the number of times that idle connections have been evicted after a sleep to |stats|.
+   */
+  synchronized void addStats(ConnectionStats stats) {
+    stats.add(Names.IDLE_EVICTIONS, numIdleEvictions);
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Response response = chain.proceed(chain.request());
+    // Any response shows that the connection was alive just now.
+    markActive();
+    return response;
+  }
+}
@@ -15,6 +15,7 @@ limitations under the License.
 */
 package app.intra;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -31,6 +32,7 @@ import androidx.annotation.Nullable;
 import app.intra.util.DnsTransaction;
 import app.intra.util.DnsUdpQuery;
 import app.intra.util.LogWrapper;
+import app.intra.util.QueryRateLimiter;
 
 /**
  * Implements a DNS resolver that binds to an arbitrary port on localhost and forwards queries
@@ -43,6 +45,12 @@ public class LocalhostResolver extends Thread implements DnsResponseWriter {
 
   private final DatagramSocket socket;
   private final DnsVpnService vpnService;
+  // Keyed by the client's address, which is always localhost, so the per-source limit applies to
+  // all queries from the tunnel together.
+  private final QueryRateLimiter rateLimiter = new QueryRateLimiter(
+      QueryRateLimiter.DEFAULT_SOURCE_RATE, QueryRateLimiter.DEFAULT_SOURCE_BURST,
+      QueryRateLimiter.DEFAULT_GLOBAL_RATE, QueryRateLimiter.DEFAULT_GLOBAL_BURST,
+      SystemClock.elapsedRealtime());
 
   /**
    * Get a localhost resolver, bound to a port and ready to be started by calling start().
@@ -96,10 +104,21 @@ public class LocalhostResolver extends Thread implements DnsResponseWriter {
       dnsRequest.sourcePort = (short)packet.getPort();
       dnsRequest.destPort = (short)socket.getLocalPort();
 
-      DnsResolverUdpToHttps.processQuery(vpnService.getServerConnection(), dnsRequest, data, this);
+      if (DnsResolverUdpToHttps.throttle(rateLimiter, dnsRequest, this)) {
+        continue;
+      }
+      if (vpnService.waitForConnection(dnsRequest, data, this)) {
+        continue;
+      }
+      DnsResolverUdpToHttps.processQuery(vpnService.getServerConnection(),
+          vpnService.getResponseCache(), dnsRequest, data, this);
     }
   }
 
+  public QueryRateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
   public InetSocketAddress getAddress() {
     return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
   }
@@ -121,8 +140,8 @@ public class LocalhostResolver extends Thread implements DnsResponseWriter {
 
   @Override
   public void sendResult(DnsUdpQuery query, DnsTransaction transaction) {
-    if (transaction.status == DnsTransaction.Status.COMPLETE &&
-        transaction.response != null) {
+    // Timeouts also have a response, which tells the client to give up or retry.
+    if (transaction.response != null) {
       // Construct a reply to the query's source port.
       DatagramPacket responsePacket = new DatagramPacket(transaction.response,
           transaction.response.length, query.sourceAddress, query.sourcePort & 0xFFFF);
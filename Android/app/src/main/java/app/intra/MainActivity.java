@@ -38,6 +38,7 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.SystemClock;
+import android.text.format.DateUtils;
 import android.text.method.LinkMovementMethod;
 import android.util.Log;
 import android.view.Gravity;
@@ -269,7 +270,7 @@ public class MainActivity extends AppCompatActivity
         new CompoundButton.OnCheckedChangeListener() {
           @Override
           public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-            tracker.setHistoryEnabled(isChecked);
+            tracker.setHistoryEnabled(MainActivity.this, isChecked);
 
             if (!isChecked) {
               // Clear the visual state immediately
@@ -315,12 +316,21 @@ public class MainActivity extends AppCompatActivity
     final DnsQueryTracker tracker = DnsVpnController.getInstance().getTracker(this);
     final Handler controlViewUpdateHandler = new Handler();
     final TextView qpmView = (TextView) controlView.findViewById(R.id.qpm);
+    final TextView cacheSavingsView = controlView.findViewById(R.id.cache_savings);
+    final TextView protectionTimeView = controlView.findViewById(R.id.protection_time);
     final Runnable doUpdate = new Runnable() {
       @Override
       public void run() {
-        long oneMinuteAgo = SystemClock.elapsedRealtime() - 60 * 1000;
+        long now = SystemClock.elapsedRealtime();
+        long oneMinuteAgo = now - 60 * 1000;
         qpmView.setText(String.format(Locale.getDefault(), "%d",
             tracker.countQueriesSince(oneMinuteAgo)));
+        cacheSavingsView.setText(getString(R.string.cache_savings,
+            String.format(Locale.getDefault(), "%,d", tracker.getNumCacheHits()),
+            String.format(Locale.getDefault(), "%,d", tracker.getNumTtlPolicySavings())));
+        protectionTimeView.setText(getString(R.string.protection_time,
+            DateUtils.formatElapsedTime(tracker.getProtectedMs(now) / 1000),
+            DateUtils.formatElapsedTime(tracker.getUnprotectedMs(now) / 1000)));
       }
     };
     int intervalMs = 500;  // Update the value twice a second
@@ -558,6 +568,9 @@ public class MainActivity extends AppCompatActivity
       } else if (status.connectionState == ServerConnection.State.WORKING) {
         statusId = R.string.status_protected;
         explanationId = R.string.explanation_protected;
+      } else if (status.connectionState == ServerConnection.State.UNPROTECTED) {
+        statusId = R.string.status_exposed;
+        explanationId = R.string.explanation_unprotected;
       } else {
         // status.connectionState == ServerConnection.State.FAILING
         statusId = R.string.status_protected;
@@ -581,7 +594,9 @@ public class MainActivity extends AppCompatActivity
     }
 
     final int colorId;
-    if (status.on) {
+    if (status.on && status.connectionState == ServerConnection.State.UNPROTECTED) {
+      colorId = R.color.accent_bad;
+    } else if (status.on) {
       colorId = R.color.accent_good;
     } else if (privateDnsMode == PrivateDnsMode.STRICT) {
       // If the VPN is off but we're in strict mode, show the status in white.  This isn't a bad
@@ -607,6 +622,10 @@ public class MainActivity extends AppCompatActivity
     // Show/hide secure/insecure details
     View systemDetails = controlView.findViewById(R.id.system_details);
     systemDetails.setVisibility(status.on ? View.VISIBLE : View.GONE);
+    View cacheSavings = controlView.findViewById(R.id.cache_savings);
+    cacheSavings.setVisibility(status.on ? View.VISIBLE : View.GONE);
+    View protectionTime = controlView.findViewById(R.id.protection_time);
+    protectionTime.setVisibility(status.on ? View.VISIBLE : View.GONE);
     View insecureSystemDetails = controlView.findViewById(R.id.insecure_system_details);
     insecureSystemDetails.setVisibility(status.on ? View.GONE : View.VISIBLE);
     if (!status.on) {
@@ -106,6 +106,27 @@ public class NetworkManager {
     }
   }
 
+  /**
+   * @return A name for the network, which distinguishes Wi-Fi networks by SSID and mobile networks
+   *     by APN, or "" if |info| is null.
+   */
+  public static String getNetworkName(NetworkInfo info) {
+    if (info == null) {
+      return "";
+    }
+    // The extra info is the Wi-Fi SSID or the mobile APN.
+    return info.getTypeName() + " " + info.getExtraInfo();
+  }
+
+  /**
+   * @return The type of a network named by getNetworkName(), e.g. "WIFI".  Unlike the full name, it
+   *     doesn't identify the user's Wi-Fi network or carrier, so it is safe to log.
+   */
+  public static String getNetworkType(String name) {
+    int space = name.indexOf(' ');
+    return space < 0 ? name : name.substring(0, space);
+  }
+
   // Returns true if the supplied network is connected and available
   private static boolean isConnectedNetwork(NetworkInfo networkInfo) {
     if (networkInfo == null) {
@@ -0,0 +1,92 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import app.intra.util.RttEstimator;
+
+/**
+ * Remembers what a server connection learned on each network, so that it can pick up where it left
+ * off when the device returns to a network, instead of measuring everything again.  A profile holds
+ * the address that connected first, which also determines the preferred address family, and the
+ * recent round-trip times, which set the query deadlines.
+ *
+ * Profiles are kept in memory for the MAX_NETWORKS most recently used networks.
+ */
+class NetworkProfiles {
+  static final int MAX_NETWORKS = 8;
+
+  /**
+   * A snapshot of a connection's state on one network.
+   */
+  static class Profile {
+    // The address that connected first, or null if none has.
+    final InetAddress bestAddress;
+    // The recent round-trip times, or null if there are none.
+    final RttEstimator rtt;
+
+    Profile(InetAddress bestAddress, RttEstimator rtt) {
+      this.bestAddress = bestAddress;
+      this.rtt = rtt;
+    }
+
+    /**
+     * @return True if IPv6 is preferred, false if IPv4 is, or null if it isn't known.
+     */
+    Boolean preferIpv6() {
+      return bestAddress == null ? null : bestAddress instanceof Inet6Address;
+    }
+  }
+
+  // Profiles by network name, in access order so that the least recently used network is first.
+  private final LinkedHashMap<String, Profile> profiles =
+      new LinkedHashMap<>(MAX_NETWORKS, 0.75f, true);
+  private long numRestored = 0;
+
+  /**
+   * Saves the state of the connection on |network|, replacing any earlier profile.
+   */
+  synchronized void save(String network, Profile profile) {
+    profiles.put(network, profile);
+    if (profiles.size() > MAX_NETWORKS) {
+      Iterator<String> leastRecent = profiles.keySet().iterator();
+      leastRecent.next();
+      leastRecent.remove();
+    }
+  }
+
+  /**
+   * @return The profile saved for |network|, or null if there is none.
+   */
+  synchronized Profile restore(String network) {
+    Profile profile = profiles.get(network);
+    if (profile != null) {
+      ++numRestored;
+    }
+    return profile;
+  }
+
+  /**
+   * @return The number of times that a saved profile has been restored.
+   */
+  synchronized long getNumRestored() {
+    return numRestored;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.LogWrapper;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+
+/**
+ * A ServerConnection that sends queries in the clear, over UDP, to the DNS servers of the
+ * underlying network.  This offers none of Intra's protection, so it is only used as a temporary
+ * fallback when the encrypted server can't be reached (see FallbackServerConnection).
+ *
+ * Each query gets its own socket, with a random source port and a random ID, and the resolvers
+ * are tried in order until one answers.  Like TlsServerConnection, callbacks receive a synthetic
+ * OkHttp Response whose body is the DNS answer.  It also carries UNPROTECTED_HEADER, so that
+ * callers can tell these answers apart.
+ */
+class NetworkResolverConnection implements ServerConnection {
+  private static final String LOG_TAG = "NetworkResolver";
+
+  // Set on every response from this class.
+  static final String UNPROTECTED_HEADER = "X-Intra-Unprotected";
+  // Not a server URL.  Identifies this connection in logs.
+  static final String URL = "udp://network-resolver";
+  static final int DEFAULT_PORT = 53;
+  static final long DEFAULT_TIMEOUT_MS = 2000;
+  // Large enough for any UDP answer to a query with an EDNS buffer size of 4096.
+  private static final int MAX_RESPONSE_SIZE = 4096;
+
+  /**
+   * Provides the underlying network's resolvers, which can change at any time.
+   */
+  interface ResolverSource {
+    /**
+     * @return The current network's DNS servers, in order of preference, or an empty list if they
+     *     aren't known.
+     */
+    List<InetAddress> getResolvers();
+
+    /**
+     * Keeps |socket|'s traffic out of the VPN.
+     */
+    void protect(DatagramSocket socket);
+  }
+
+  // Runs the queries for all instances.  Each thread waits for one answer at a time.
+  private static final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = Executors.defaultThreadFactory().newThread(r);
+          t.setName(LOG_TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private final ResolverSource source;
+  private final int port;
+  private final long timeoutMs;
+  // Stands in for an HTTP request in the Calls and Responses given to callers.
+  private final Request request = new Request.Builder().url("https://network-resolver.invalid/")
+      .build();
+
+  /**
+   * @param source The resolvers to query.
+   * @param port The resolvers' port.  Always DEFAULT_PORT, except in tests.
+   * @param timeoutMs How long to wait for each resolver before trying the next one.
+   */
+  NetworkResolverConnection(ResolverSource source, int port, long timeoutMs) {
+    this.source = source;
+    this.port = port;
+    this.timeoutMs = timeoutMs;
+  }
+
+  @Override
+  public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+    Query query = new Query(data, cb);
+    executor.execute(query);
+    return query;
+  }
+
+  @Override
+  public String getUrl() {
+    return URL;
+  }
+
+  @Override
+  public void reset() {
+    // There is no connection state.  The next query looks up the current resolvers.
+  }
+
+  @Override
+  public void migrate(String from, String to) {
+    reset();
+  }
+
+  @Override
+  public void addStats(ConnectionStats stats) {
+    // FallbackServerConnection counts the queries that it sends to the network's resolvers.
+  }
+
+  /**
+   * A query, which is sent to each resolver in turn until one answers.
+   */
+  private class Query extends AsyncOnlyCall implements Runnable {
+    private final byte[] data;
+    // The socket that is waiting for an answer, if any.  Closed to cancel the query.
+    private volatile DatagramSocket socket = null;
+
+    Query(byte[] data, Callback cb) {
+      super(request, cb);
+      // Send a fresh ID, so that an off-path attacker has to guess it as well as the port.
+      this.data = Arrays.copyOf(data, data.length);
+      if (this.data.length >= 2) {
+        int id = random.nextInt();
+        this.data[0] = (byte) (id >> 8);
+        this.data[1] = (byte) id;
+      }
+    }
+
+    @Override
+    public void run() {
+      IOException error = new IOException("No network resolvers");
+      for (InetAddress resolver : source.getResolvers()) {
+        if (isCanceled()) {
+          break;
+        }
+        byte[] answer;
+        try {
+          answer = exchange(resolver);
+        } catch (IOException e) {
+          LogWrapper.logcat(Log.INFO, LOG_TAG, "No answer from a resolver: " + e);
+          error = e;
+          continue;
+        }
+        deliver(answer, resolver.getHostAddress());
+        return;
+      }
+      fail(isCanceled() ? new IOException("Canceled") : error);
+    }
+
+    // Sends the query to |resolver|, and returns its answer.
+    private byte[] exchange(InetAddress resolver) throws IOException {
+      DatagramSocket s = new DatagramSocket();
+      socket = s;
+      try {
+        if (isCanceled()) {
+          throw new IOException("Canceled");
+        }
+        source.protect(s);
+        s.send(new DatagramPacket(data, data.length, resolver, port));
+        byte[] buffer = new byte[MAX_RESPONSE_SIZE];
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            throw new SocketTimeoutException("No answer from " + resolver.getHostAddress());
+          }
+          s.setSoTimeout((int) remaining);
+          DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+          s.receive(packet);
+          // Ignore anything that isn't from the resolver and doesn't match the query's ID.
+          if (resolver.equals(packet.getAddress()) && packet.getLength() >= 2
+              && buffer[0] == data[0] && buffer[1] == data[1]) {
+            return Arrays.copyOf(buffer, packet.getLength());
+          }
+        }
+      } finally {
+        socket = null;
+        s.close();
+      }
+    }
+
+    private void deliver(byte[] answer, String serverIp) {
+      deliver(newResponse(answer, serverIp).header(UNPROTECTED_HEADER, "1").build());
+    }
+
+    @Override
+    void onCancel() {
+      DatagramSocket s = socket;
+      if (s != null) {
+        s.close();
+      }
+    }
+  }
+}
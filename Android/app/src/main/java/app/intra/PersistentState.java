@@ -7,8 +7,11 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -26,11 +29,18 @@ public class PersistentState {
 
   public static final String APPS_KEY = "pref_apps";
   public static final String URL_KEY = "pref_server_url";
+  public static final String SECONDARY_URL_KEY = "pref_secondary_url";
+  public static final String LOAD_BALANCE_KEY = "pref_load_balance";
+  public static final String USE_GET_KEY = "pref_use_get";
+  public static final String ALLOW_FALLBACK_KEY = "pref_allow_fallback";
 
   private static final String APPROVED_KEY = "approved";
   private static final String ENABLED_KEY = "enabled";
   private static final String EXTRA_SERVERS_V4_KEY = "extraServersV4";
   private static final String EXTRA_SERVERS_V6_KEY = "extraServersV6";
+  private static final String GOOGLE_SCOREBOARD_KEY = "googleScoreboard";
+  private static final String SCOREBOARD_SALT_KEY = "scoreboardSalt";
+  private static final String BENCHMARK_RESULTS_KEY = "benchmarkResults";
   private static final String SERVER_KEY = "server";
 
   private static final String INTERNAL_STATE_NAME = "MainActivity";
@@ -108,6 +118,50 @@ public class PersistentState {
     return Untemplate.strip(urlTemplate);
   }
 
+  /**
+   * @return The URLs of the optional secondary servers, which may be empty.
+   */
+  public static List<String> getSecondaryServerUrls(Context context) {
+    return splitUrls(getUserPreferences(context).getString(SECONDARY_URL_KEY, ""));
+  }
+
+  /**
+   * @return The URLs in |urls|, which are separated by spaces or commas.
+   */
+  static List<String> splitUrls(String urls) {
+    List<String> result = new ArrayList<>();
+    for (String url : urls.split("[\\s,]+")) {
+      if (!url.isEmpty()) {
+        result.add(url);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return True if queries should be spread across the primary and secondary servers, instead of
+   * only hedging to the secondary.
+   */
+  public static boolean getLoadBalance(Context context) {
+    return getUserPreferences(context).getBoolean(LOAD_BALANCE_KEY, false);
+  }
+
+  /**
+   * @return True if queries to custom servers should be sent as RFC 8484 GET requests, which can
+   * be cached, instead of POST requests.
+   */
+  public static boolean getUseGet(Context context) {
+    return getUserPreferences(context).getBoolean(USE_GET_KEY, false);
+  }
+
+  /**
+   * @return True if queries may be sent unprotected to the network's resolver while the server is
+   * unreachable.
+   */
+  public static boolean getAllowFallback(Context context) {
+    return getUserPreferences(context).getBoolean(ALLOW_FALLBACK_KEY, false);
+  }
+
   public static String getServerName(Context context) {
     String url = getServerUrl(context);
     if (url == null || url.isEmpty()) {
@@ -115,9 +169,8 @@ public class PersistentState {
     }
 
     try {
-      URL parsed = new URL(url);
-      return parsed.getHost();
-    } catch (MalformedURLException e) {
+      return new URI(url).getHost();
+    } catch (URISyntaxException e) {
       FirebaseCrash.logcat(Log.WARN, LOG_TAG, "Stored URL is corrupted");
       return null;
     }
@@ -145,6 +198,39 @@ public class PersistentState {
     editor.apply();
   }
 
+  public static String getGoogleScoreboard(Context context) {
+    return getInternalState(context).getString(GOOGLE_SCOREBOARD_KEY, "");
+  }
+
+  public static void setGoogleScoreboard(Context context, String scoreboard) {
+    SharedPreferences.Editor editor = getInternalState(context).edit();
+    editor.putString(GOOGLE_SCOREBOARD_KEY, scoreboard);
+    editor.apply();
+  }
+
+  /**
+   * @return A random salt for hashing network names, which is created on first use.
+   */
+  public static synchronized String getScoreboardSalt(Context context) {
+    SharedPreferences prefs = getInternalState(context);
+    String salt = prefs.getString(SCOREBOARD_SALT_KEY, null);
+    if (salt == null) {
+      salt = new BigInteger(128, new SecureRandom()).toString(16);
+      prefs.edit().putString(SCOREBOARD_SALT_KEY, salt).apply();
+    }
+    return salt;
+  }
+
+  public static String getBenchmarkResults(Context context) {
+    return getInternalState(context).getString(BENCHMARK_RESULTS_KEY, "");
+  }
+
+  public static void setBenchmarkResults(Context context, String results) {
+    SharedPreferences.Editor editor = getInternalState(context).edit();
+    editor.putString(BENCHMARK_RESULTS_KEY, results);
+    editor.apply();
+  }
+
   private static SharedPreferences getApprovalSettings(Context context) {
     return context.getSharedPreferences(APPROVAL_PREFS_NAME, Context.MODE_PRIVATE);
   }
@@ -0,0 +1,234 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import app.intra.util.DnsPacket;
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.LogWrapper;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * Keeps a DNS server's own addresses up to date by resolving its hostname through the server
+ * itself.  The addresses are first resolved once through the system resolver and then pinned, so
+ * without this a connection would keep using them after the provider moved or retired them.
+ *
+ * A refresh sends A and AAAA queries for the hostname, and is due once the shortest TTL in the
+ * previous answers has expired (within bounds).  Refreshes are only started by maybeRefresh(), which
+ * the connection calls before each query, so an idle connection sends no extra traffic.  The
+ * queries run in the background, and the new addresses are delivered to the Listener once both
+ * have been answered.
+ */
+class PinnedAddressRefresher {
+  private static final String LOG_TAG = "PinnedAddressRefresher";
+
+  private static final short TYPE_A = 1;
+  private static final short TYPE_AAAA = 28;
+
+  // Bounds on the refresh interval.  The minimum also applies after a failed refresh, and before
+  // the first refresh, when the TTL is unknown.
+  static final long DEFAULT_MIN_INTERVAL_MS = 60 * 1000;
+  static final long DEFAULT_MAX_INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+  /**
+   * Receives the server's new addresses.
+   */
+  interface Listener {
+    void onAddresses(List<InetAddress> addresses);
+  }
+
+  private final String hostname;
+  private final Listener listener;
+  private final long minIntervalMs;
+  private final long maxIntervalMs;
+  // Guarded by |this|.
+  private long nextRefresh;
+  private boolean refreshing = false;
+  private long numRefreshes = 0;
+
+  /**
+   * @param hostname The server's hostname.
+   * @param listener Receives the addresses after each successful refresh.
+   * @param minIntervalMs The shortest time between refreshes.
+   * @param maxIntervalMs The longest time between refreshes, however long the TTL.
+   */
+  PinnedAddressRefresher(String hostname, Listener listener, long minIntervalMs,
+      long maxIntervalMs) {
+    this.hostname = hostname;
+    this.listener = listener;
+    this.minIntervalMs = minIntervalMs;
+    this.maxIntervalMs = maxIntervalMs;
+    nextRefresh = elapsedRealtime() + minIntervalMs;
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Starts a refresh through |connection| if one is due.  Returns immediately.
+   */
+  void maybeRefresh(ServerConnection connection) {
+    long now = elapsedRealtime();
+    synchronized (this) {
+      if (refreshing || now < nextRefresh) {
+        return;
+      }
+      refreshing = true;
+    }
+    start(connection, now);
+  }
+
+  /**
+   * Starts a refresh through |connection| even if none is due, e.g. after a network change, unless
+   * one is already running.  Returns immediately.
+   */
+  void refresh(ServerConnection connection) {
+    synchronized (this) {
+      if (refreshing) {
+        return;
+      }
+      refreshing = true;
+    }
+    start(connection, elapsedRealtime());
+  }
+
+  private void start(ServerConnection connection, long now) {
+    Refresh refresh = new Refresh();
+    for (short type : new short[]{TYPE_A, TYPE_AAAA}) {
+      byte[] query;
+      try {
+        query = DnsQueryBuilder.build(hostname, type);
+      } catch (ProtocolException e) {
+        // The hostname came from a valid URL, so this should never happen.
+        refresh.finish(null);
+        continue;
+      }
+      DnsUdpQuery metadata = new DnsUdpQuery();
+      metadata.name = hostname;
+      metadata.type = type;
+      metadata.timestamp = now;
+      connection.performDnsRequest(metadata, query, refresh);
+    }
+  }
+
+  /**
+   * @return The number of refreshes that produced addresses.
+   */
+  synchronized long getNumRefreshes() {
+    return numRefreshes;
+  }
+
+  // Called when a refresh has finished.  |addresses| is null if it failed.
+  private void onRefreshed(List<InetAddress> addresses, long ttlMs) {
+    long interval = Math.max(minIntervalMs, Math.min(maxIntervalMs, ttlMs));
+    synchronized (this) {
+      refreshing = false;
+      nextRefresh = elapsedRealtime() + (addresses == null ? minIntervalMs : interval);
+      if (addresses != null) {
+        ++numRefreshes;
+      }
+    }
+    if (addresses == null) {
+      LogWrapper.logcat(Log.WARN, LOG_TAG, "Failed to refresh addresses for " + hostname);
+      return;
+    }
+    LogWrapper.logcat(Log.INFO, LOG_TAG,
+        "Refreshed " + addresses.size() + " addresses for " + hostname + ", next in "
+            + interval + " ms");
+    listener.onAddresses(addresses);
+  }
+
+  /**
+   * Collects the answers to the A and AAAA queries.
+   */
+  private class Refresh implements Callback {
+    private final List<InetAddress> addresses = new ArrayList<>();
+    private long minTtlMs = Long.MAX_VALUE;
+    private int pending = 2;
+    private boolean failed = false;
+
+    // Records one answer, or a failure if |response| is null.
+    void finish(byte[] response) {
+      synchronized (this) {
+        --pending;
+        if (response == null) {
+          failed = true;
+        } else {
+          record(response);
+        }
+        if (pending > 0) {
+          return;
+        }
+      }
+      // An empty answer for one family is fine, but a failure leaves the set incomplete.
+      boolean success = !failed && !addresses.isEmpty();
+      onRefreshed(success ? addresses : null, minTtlMs);
+    }
+
+    private void record(byte[] response) {
+      DnsPacket packet;
+      try {
+        packet = new DnsPacket(response);
+      } catch (ProtocolException e) {
+        failed = true;
+        return;
+      }
+      if (packet.getRcode() != DnsPacket.RCODE_NOERROR) {
+        failed = true;
+        return;
+      }
+      addresses.addAll(packet.getResponseAddresses());
+      ByteBuffer buffer = ByteBuffer.wrap(response);
+      for (int offset : packet.getTtlOffsets()) {
+        minTtlMs = Math.min(minTtlMs, (buffer.getInt(offset) & 0xFFFFFFFFL) * 1000);
+      }
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      finish(null);
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      byte[] body = null;
+      try {
+        if (response.isSuccessful()) {
+          body = response.body().bytes();
+        }
+      } catch (IOException e) {
+        body = null;
+      } finally {
+        response.close();
+      }
+      finish(body);
+    }
+  }
+}
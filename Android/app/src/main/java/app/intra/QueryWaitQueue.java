@@ -0,0 +1,152 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import app.intra.util.DnsTransaction;
+import app.intra.util.DnsUdpQuery;
+
+/**
+ * Holds queries that arrive while there is no server connection yet, so that they can be sent once
+ * bootstrap finishes instead of failing immediately.  Between hold() and release(), offer() accepts
+ * queries; at other times it refuses them, and the caller should handle them directly.
+ *
+ * The queue is bounded: when it is full, the oldest query is failed to make room, since its client
+ * has most likely already retried.  Queries that have waited longer than maxWaitMs by the time the
+ * queue is released are also failed rather than sent.  Failed queries are reported with SEND_FAIL,
+ * just as if they had arrived with no connection.
+ */
+class QueryWaitQueue {
+  static final int DEFAULT_CAPACITY = 64;
+  static final long DEFAULT_MAX_WAIT_MS = 10 * 1000;
+
+  /**
+   * Receives the held queries when the queue is released.
+   */
+  interface Handler {
+    void process(DnsUdpQuery query, byte[] data, DnsResponseWriter writer);
+  }
+
+  private static class Waiting {
+    final DnsUdpQuery query;
+    final byte[] data;
+    final DnsResponseWriter writer;
+
+    Waiting(DnsUdpQuery query, byte[] data, DnsResponseWriter writer) {
+      this.query = query;
+      this.data = data;
+      this.writer = writer;
+    }
+
+    void fail() {
+      DnsTransaction transaction = new DnsTransaction(query);
+      transaction.status = DnsTransaction.Status.SEND_FAIL;
+      writer.sendResult(query, transaction);
+    }
+  }
+
+  private final int capacity;
+  private final long maxWaitMs;
+  // Guarded by |this|.
+  private final LinkedList<Waiting> waiting = new LinkedList<>();
+  private boolean holding = false;
+  private long numHeld = 0;
+  private long numDropped = 0;
+
+  QueryWaitQueue(int capacity, long maxWaitMs) {
+    this.capacity = capacity;
+    this.maxWaitMs = maxWaitMs;
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Starts accepting queries.
+   */
+  synchronized void hold() {
+    holding = true;
+  }
+
+  /**
+   * Queues a query if the queue is holding.
+   * @param query The query, whose timestamp is its arrival time.
+   * @return False if the queue is not holding, in which case the caller must handle the query.
+   */
+  boolean offer(DnsUdpQuery query, byte[] data, DnsResponseWriter writer) {
+    Waiting evicted = null;
+    synchronized (this) {
+      if (!holding) {
+        return false;
+      }
+      if (waiting.size() >= capacity) {
+        evicted = waiting.removeFirst();
+        ++numDropped;
+      }
+      waiting.add(new Waiting(query, data, writer));
+      ++numHeld;
+    }
+    if (evicted != null) {
+      evicted.fail();
+    }
+    return true;
+  }
+
+  /**
+   * Stops accepting queries, and passes the queued ones to |handler|, oldest first.
+   */
+  void release(Handler handler) {
+    List<Waiting> released;
+    synchronized (this) {
+      holding = false;
+      released = new ArrayList<>(waiting);
+      waiting.clear();
+    }
+    long now = elapsedRealtime();
+    for (Waiting w : released) {
+      if (now - w.query.timestamp > maxWaitMs) {
+        synchronized (this) {
+          ++numDropped;
+        }
+        w.fail();
+      } else {
+        handler.process(w.query, w.data, w.writer);
+      }
+    }
+  }
+
+  /**
+   * @return The number of queries that have been queued.
+   */
+  synchronized long getNumHeld() {
+    return numHeld;
+  }
+
+  /**
+   * @return The number of queued queries that were failed because the queue was full or they waited
+   *     too long.
+   */
+  synchronized long getNumDropped() {
+    return numDropped;
+  }
+}
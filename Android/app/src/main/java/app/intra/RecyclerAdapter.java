@@ -226,11 +226,17 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         serverAddress = null;
       }
 
+      String resolverAddress;
       if (serverAddress != null) {
         @Nullable String countryCode = getCountryCode(serverAddress);
-        resolver = makeAddressPair(countryCode, serverAddress.getHostAddress());
+        resolverAddress = makeAddressPair(countryCode, serverAddress.getHostAddress());
       } else {
-        resolver = transaction.serverIp;
+        resolverAddress = transaction.serverIp;
+      }
+      if (transaction.unprotected) {
+        resolver = activity.getString(R.string.resolver_unprotected, resolverAddress);
+      } else {
+        resolver = resolverAddress;
       }
 
       if (transaction.status == DnsTransaction.Status.COMPLETE) {
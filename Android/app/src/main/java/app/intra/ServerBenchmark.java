@@ -0,0 +1,429 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.WorkerThread;
+import app.intra.util.DnsPacket;
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.LogWrapper;
+import app.intra.util.RttEstimator;
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * Measures how quickly each candidate server answers on the current network, so that the user can
+ * pick the fastest one.  Each server gets its own ServerConnection, exactly as it would be used for
+ * real queries, and the servers are measured in parallel.  Within a server, the names are resolved
+ * one at a time, so that the measurements don't compete with each other.  The first query also
+ * opens the connection, which only happens once in normal use, so it is not counted.
+ *
+ * The names are a fixed list of popular sites, rather than the user's own queries, so that running
+ * the benchmark doesn't reveal the user's browsing to servers that they haven't chosen.
+ */
+class ServerBenchmark {
+  private static final String LOG_TAG = "ServerBenchmark";
+
+  static final List<String> DEFAULT_NAMES = Collections.unmodifiableList(Arrays.asList(
+      "www.google.com", "www.youtube.com", "www.facebook.com", "www.wikipedia.org",
+      "www.amazon.com", "www.instagram.com", "www.twitter.com", "www.reddit.com",
+      "www.yahoo.com", "www.linkedin.com", "www.netflix.com", "www.microsoft.com"));
+  static final long DEFAULT_QUERY_TIMEOUT_MS = 5000;
+  // A server that fails more often than this is not recommended, however fast it is.
+  static final double MAX_FAILURE_RATE = 0.2;
+  private static final short TYPE_A = 1;
+  private static final short TYPE_AAAA = 28;
+  private static final String HTTP_CACHE_DIR = "benchmark";
+  private static final long HTTP_CACHE_BYTES = 64 * 1024;
+
+  // Guarded by ServerBenchmark.class.
+  private static Cache httpCache = null;
+
+  /**
+   * Opens a connection to a candidate server.
+   */
+  interface ConnectionFactory {
+    /**
+     * @return A connection to the server at |url|, or null if it can't be reached.
+     */
+    ServerConnection connect(String url);
+  }
+
+  /**
+   * The measurements for one server.
+   */
+  static class Result {
+    final String url;
+    // Latency quantiles of the answered queries, or -1 if none were answered.
+    final long medianMs;
+    final long p95Ms;
+    final int numQueries;
+    final int numFailures;
+    // When the measurement was made, according to System.currentTimeMillis().
+    final long time;
+
+    Result(String url, long medianMs, long p95Ms, int numQueries, int numFailures, long time) {
+      this.url = url;
+      this.medianMs = medianMs;
+      this.p95Ms = p95Ms;
+      this.numQueries = numQueries;
+      this.numFailures = numFailures;
+      this.time = time;
+    }
+
+    double getFailureRate() {
+      return numQueries == 0 ? 1 : (double) numFailures / numQueries;
+    }
+
+    /**
+     * @return True if the server answered reliably enough to be recommended.
+     */
+    boolean isReachable() {
+      return numFailures < numQueries && getFailureRate() <= MAX_FAILURE_RATE;
+    }
+  }
+
+  // Runs the measurements for all instances, one thread per server.
+  private static final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = Executors.defaultThreadFactory().newThread(r);
+          t.setName(LOG_TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private final ConnectionFactory factory;
+  private final List<String> names;
+  private final long queryTimeoutMs;
+
+  /**
+   * @param factory Opens the connections to the servers.
+   * @param names The names to resolve on each server.  The first one is used to open the
+   *     connection, and also measured afterwards.
+   * @param queryTimeoutMs How long to wait for each answer before counting it as a failure.
+   */
+  ServerBenchmark(ConnectionFactory factory, List<String> names, long queryTimeoutMs) {
+    this.factory = factory;
+    this.names = names;
+    this.queryTimeoutMs = queryTimeoutMs;
+  }
+
+  /**
+   * @return A factory for the connections that DnsVpnService would make for each URL.
+   */
+  static ConnectionFactory getDefaultFactory(Context context) {
+    final Context applicationContext = context.getApplicationContext();
+    final boolean useGet = PersistentState.getUseGet(applicationContext);
+    final Cache httpCache = getHttpCache(applicationContext);
+    return new ConnectionFactory() {
+      @Override
+      public ServerConnection connect(String url) {
+        if (url == null || url.isEmpty()) {
+          return GoogleServerConnection.get(
+              new GoogleServerDatabase(applicationContext, applicationContext.getAssets()));
+        }
+        return DnsVpnService.getServerConnection(url, useGet, httpCache);
+      }
+    };
+  }
+
+  // Returns an empty HTTP cache for the benchmark's connections, or null if it can't be cleared.
+  // The service's cache can't be shared, because each cache directory may only have one owner, and
+  // answers left over from an earlier run would be measured as instant.
+  private static synchronized Cache getHttpCache(Context context) {
+    if (httpCache == null) {
+      httpCache = new Cache(new File(context.getCacheDir(), HTTP_CACHE_DIR), HTTP_CACHE_BYTES);
+    }
+    try {
+      httpCache.evictAll();
+    } catch (IOException e) {
+      LogWrapper.logcat(Log.WARN, LOG_TAG, "Couldn't clear the HTTP cache: " + e.getMessage());
+      return null;
+    }
+    return httpCache;
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Measures all of |urls| in parallel, and blocks until they are done.
+   * @return The results, in the same order as |urls|.
+   */
+  @WorkerThread
+  List<Result> run(List<String> urls) throws InterruptedException {
+    List<Future<Result>> futures = new ArrayList<>();
+    for (final String url : urls) {
+      futures.add(executor.submit(new Callable<Result>() {
+        @Override
+        public Result call() {
+          return measure(url);
+        }
+      }));
+    }
+    List<Result> results = new ArrayList<>();
+    try {
+      for (Future<Result> future : futures) {
+        results.add(future.get());
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<Result> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Measures one server, on the calling thread.
+   */
+  @WorkerThread
+  Result measure(String url) {
+    ServerConnection connection = factory.connect(url);
+    if (connection == null) {
+      LogWrapper.logcat(Log.INFO, LOG_TAG, "Couldn't connect to " + url);
+      return new Result(url, -1, -1, names.size(), names.size(), System.currentTimeMillis());
+    }
+    RttEstimator latencies = new RttEstimator(names.size());
+    int failures = 0;
+    try {
+      // A different type than the measured queries, so that the answer can't come from the cache.
+      query(connection, names.get(0), TYPE_AAAA);
+      for (String name : names) {
+        long start = elapsedRealtime();
+        if (query(connection, name, TYPE_A)) {
+          latencies.addSample(elapsedRealtime() - start);
+        } else {
+          ++failures;
+        }
+      }
+    } finally {
+      connection.reset();
+    }
+    return new Result(url, latencies.getQuantile(0.5, -1), latencies.getQuantile(0.95, -1),
+        names.size(), failures, System.currentTimeMillis());
+  }
+
+  // Sends one query and waits for the answer.  Returns true if the server answered it, even if the
+  // answer was NXDOMAIN.
+  private boolean query(ServerConnection connection, String name, short type) {
+    byte[] data;
+    try {
+      data = DnsQueryBuilder.build(name, type);
+    } catch (ProtocolException e) {
+      return false;
+    }
+    DnsUdpQuery metadata = new DnsUdpQuery();
+    metadata.name = name;
+    metadata.type = type;
+    metadata.timestamp = elapsedRealtime();
+    final BlockingQueue<Boolean> answered = new ArrayBlockingQueue<>(1);
+    Call call = connection.performDnsRequest(metadata, data, new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        answered.offer(false);
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        boolean ok = false;
+        try {
+          if (response.isSuccessful()) {
+            DnsPacket packet = new DnsPacket(response.body().bytes());
+            ok = packet.getRcode() != DnsPacket.RCODE_SERVFAIL;
+          }
+        } catch (IOException e) {
+          ok = false;
+        } finally {
+          response.close();
+        }
+        answered.offer(ok);
+      }
+    });
+    Boolean ok;
+    try {
+      ok = answered.poll(queryTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      ok = null;
+    }
+    if (ok == null) {
+      if (call != null) {
+        call.cancel();
+      }
+      return false;
+    }
+    return ok;
+  }
+
+  /**
+   * @return The reachable server with the lowest median latency, or null if none is reachable.
+   */
+  static Result recommend(List<Result> results) {
+    Result best = null;
+    for (Result r : results) {
+      if (!r.isReachable()) {
+        continue;
+      }
+      if (best == null || r.medianMs < best.medianMs
+          || (r.medianMs == best.medianMs && r.p95Ms < best.p95Ms)) {
+        best = r;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Keeps the most recent results for each network, so that the benchmark doesn't have to run every
+   * time the server chooser opens.  Results are kept for the MAX_NETWORKS most recently measured
+   * networks, and expire after MAX_AGE_MS.  Timestamps are wall-clock times, so that saved results
+   * age correctly across reboots.
+   */
+  static class ResultCache {
+    static final int MAX_NETWORKS = 8;
+    static final long MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    // Results by network and then by URL, in access order so that the least recently used network
+    // is first.
+    // Keyed by the salted hash of each network's name, like ServerScoreboard, because the names
+    // identify the user's Wi-Fi networks and carriers.
+    private final LinkedHashMap<String, Map<String, Result>> networks =
+        new LinkedHashMap<>(MAX_NETWORKS, 0.75f, true);
+    private final String salt;
+
+    /**
+     * @param salt Mixed into the hash of each network name.  It must be the same every time the
+     *     saved results are loaded.
+     */
+    ResultCache(String salt) {
+      this.salt = salt;
+    }
+
+    /**
+     * Adds |results| for |network|, replacing older results for the same servers.
+     */
+    synchronized void put(String network, List<Result> results) {
+      putHashed(ServerScoreboard.hashNetwork(salt, network), results);
+    }
+
+    private void putHashed(String networkHash, List<Result> results) {
+      Map<String, Result> byUrl = networks.get(networkHash);
+      if (byUrl == null) {
+        byUrl = new LinkedHashMap<>();
+        networks.put(networkHash, byUrl);
+        if (networks.size() > MAX_NETWORKS) {
+          Iterator<String> leastRecent = networks.keySet().iterator();
+          leastRecent.next();
+          leastRecent.remove();
+        }
+      }
+      for (Result r : results) {
+        byUrl.put(r.url, r);
+      }
+    }
+
+    /**
+     * @param now The current time, according to System.currentTimeMillis().
+     * @return The results for each of |urls| on |network|, in the same order, or null unless all of
+     *     them have been measured recently.
+     */
+    synchronized List<Result> get(String network, List<String> urls, long now) {
+      Map<String, Result> byUrl = networks.get(ServerScoreboard.hashNetwork(salt, network));
+      if (byUrl == null) {
+        return null;
+      }
+      List<Result> results = new ArrayList<>();
+      for (String url : urls) {
+        Result r = byUrl.get(url);
+        if (r == null || now - r.time > MAX_AGE_MS || r.time > now) {
+          return null;
+        }
+        results.add(r);
+      }
+      return results;
+    }
+
+    /**
+     * @return The results, in the format read by load().
+     */
+    synchronized String save() {
+      StringBuilder out = new StringBuilder();
+      for (Map.Entry<String, Map<String, Result>> network : networks.entrySet()) {
+        for (Result r : network.getValue().values()) {
+          // The Google server's URL is empty, so it is saved as "-".
+          out.append(String.format(Locale.ROOT, "%d %d %d %d %d %s %s\n", r.time, r.medianMs,
+              r.p95Ms, r.numQueries, r.numFailures, r.url.isEmpty() ? "-" : r.url,
+              network.getKey()));
+        }
+      }
+      return out.toString();
+    }
+
+    /**
+     * Adds the results from a string produced by save().  Malformed lines are skipped.
+     */
+    synchronized void load(String saved) {
+      for (String line : saved.split("\n")) {
+        String[] fields = line.split(" ", 7);
+        if (fields.length != 7 || !ServerScoreboard.NETWORK_HASH.matcher(fields[6]).matches()) {
+          continue;
+        }
+        try {
+          String url = fields[5].equals("-") ? "" : fields[5];
+          Result r = new Result(url, Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+              Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Long.parseLong(fields[0]));
+          putHashed(fields[6], Collections.singletonList(r));
+        } catch (NumberFormatException e) {
+          // Skip this line.
+        }
+      }
+    }
+  }
+}
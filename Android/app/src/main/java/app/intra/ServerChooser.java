@@ -21,8 +21,8 @@ import android.content.res.TypedArray;
 import android.os.Build;
 import android.util.AttributeSet;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Locale;
 
 import androidx.preference.DialogPreference;
@@ -96,9 +96,9 @@ public class ServerChooser extends DialogPreference {
       domain = defaultDomain;
     } else {
       try {
-        URL parsed = new URL(url);
-        domain = parsed.getHost();
-      } catch (MalformedURLException e) {
+        // URI rather than URL, which rejects tls:// URLs.
+        domain = new URI(url).getHost();
+      } catch (URISyntaxException e) {
         // Leave domain null.
       }
     }
@@ -16,6 +16,8 @@ limitations under the License.
 package app.intra;
 
 import android.app.Dialog;
+import android.content.Context;
+import android.net.ConnectivityManager;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -27,7 +29,13 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import androidx.appcompat.app.AlertDialog;
 import androidx.preference.PreferenceDialogFragmentCompat;
@@ -42,6 +50,8 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
     private RadioGroup buttons = null;
     private EditText text = null;
     private TextView warning = null;
+    private Button benchmarkButton = null;
+    private TextView benchmarkResults = null;
 
     public static ServerChooserFragment newInstance(String key) {
         final ServerChooserFragment fragment = new ServerChooserFragment();
@@ -92,8 +102,12 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
     }
 
     // Check that the URL is a plausible DOH server: https with a domain, a path (at least "/"),
-    // and no query parameters or fragment.
-    private boolean checkUrl(String url) {
+    // and no query parameters or fragment.  DNS-over-TLS servers are also accepted, as
+    // tls://domain[:port] with nothing else.
+    static boolean checkUrl(String url) {
+        if (url.startsWith("tls://")) {
+            return checkTlsUrl(url);
+        }
         try {
             URL parsed = new URL(url);
             return parsed.getProtocol().equals("https") && !parsed.getHost().isEmpty() &&
@@ -103,6 +117,17 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
         }
     }
 
+    private static boolean checkTlsUrl(String url) {
+        try {
+            URI parsed = new URI(url);
+            return parsed.getHost() != null && parsed.getUserInfo() == null &&
+                (parsed.getPath() == null || parsed.getPath().isEmpty()) &&
+                parsed.getQuery() == null && parsed.getFragment() == null;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
     @Override
     public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
         // Usability optimization:
@@ -140,6 +165,127 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
         text.addTextChangedListener(this);
         text.setOnEditorActionListener(this);
         updateUI();
+
+        benchmarkButton = view.findViewById(R.id.server_benchmark);
+        benchmarkResults = view.findViewById(R.id.server_benchmark_results);
+        benchmarkButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                runBenchmark();
+            }
+        });
+        // Show the last results for this network, if they are recent, instead of measuring again.
+        List<ServerBenchmark.Result> cached = loadBenchmarkResults().get(
+            getNetworkName(), getCandidateUrls(), System.currentTimeMillis());
+        if (cached != null) {
+            showBenchmarkResults(cached);
+        }
+    }
+
+    // Returns the URLs of the listed servers, the custom server if its URL is valid, and the
+    // backup servers.
+    private List<String> getCandidateUrls() {
+        Set<String> urls = new LinkedHashSet<>();
+        urls.add(getResources().getString(R.string.url0));
+        urls.add(getResources().getString(R.string.url1));
+        String custom = Untemplate.strip(text.getText().toString());
+        if (checkUrl(custom)) {
+            urls.add(custom);
+        }
+        for (String url : PersistentState.getSecondaryServerUrls(getContext())) {
+            url = Untemplate.strip(url);
+            if (checkUrl(url)) {
+                urls.add(url);
+            }
+        }
+        return new ArrayList<>(urls);
+    }
+
+    private String getNetworkName() {
+        ConnectivityManager connectivityManager =
+            (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        return NetworkManager.getNetworkName(
+            connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null);
+    }
+
+    private ServerBenchmark.ResultCache loadBenchmarkResults() {
+        ServerBenchmark.ResultCache cache =
+            new ServerBenchmark.ResultCache(PersistentState.getScoreboardSalt(getContext()));
+        cache.load(PersistentState.getBenchmarkResults(getContext()));
+        return cache;
+    }
+
+    // Measures every candidate server in the background, and shows the results when done.
+    private void runBenchmark() {
+        final Context context = getContext().getApplicationContext();
+        final List<String> urls = getCandidateUrls();
+        final String network = getNetworkName();
+        benchmarkButton.setEnabled(false);
+        benchmarkResults.setVisibility(View.VISIBLE);
+        benchmarkResults.setText(R.string.server_benchmark_running);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ServerBenchmark benchmark = new ServerBenchmark(
+                    ServerBenchmark.getDefaultFactory(context), ServerBenchmark.DEFAULT_NAMES,
+                    ServerBenchmark.DEFAULT_QUERY_TIMEOUT_MS);
+                final List<ServerBenchmark.Result> results;
+                try {
+                    results = benchmark.run(urls);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ServerBenchmark.ResultCache cache = new ServerBenchmark.ResultCache(
+                    PersistentState.getScoreboardSalt(context));
+                cache.load(PersistentState.getBenchmarkResults(context));
+                cache.put(network, results);
+                PersistentState.setBenchmarkResults(context, cache.save());
+                benchmarkResults.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded()) {
+                            benchmarkButton.setEnabled(true);
+                            showBenchmarkResults(results);
+                        }
+                    }
+                });
+            }
+        }, "runBenchmark").start();
+    }
+
+    private void showBenchmarkResults(List<ServerBenchmark.Result> results) {
+        StringBuilder summary = new StringBuilder();
+        for (ServerBenchmark.Result r : results) {
+            if (r.medianMs < 0) {
+                summary.append(getString(R.string.server_benchmark_unreachable, getDomain(r.url)));
+            } else {
+                summary.append(getString(R.string.server_benchmark_result, getDomain(r.url),
+                    r.medianMs, r.p95Ms, Math.round(100 * r.getFailureRate())));
+            }
+            summary.append('\n');
+        }
+        ServerBenchmark.Result best = ServerBenchmark.recommend(results);
+        if (best != null) {
+            summary.append(getString(R.string.server_benchmark_recommendation, getDomain(best.url)));
+        } else {
+            summary.append(getString(R.string.server_benchmark_no_recommendation));
+        }
+        benchmarkResults.setText(summary);
+        benchmarkResults.setVisibility(View.VISIBLE);
+    }
+
+    // Returns the name to show for the server at |url|.
+    private String getDomain(String url) {
+        if (url.equals(getResources().getString(R.string.url0))) {
+            return getResources().getString(R.string.domain0);
+        }
+        try {
+            // URI rather than URL, which rejects tls:// URLs.
+            String host = new URI(url).getHost();
+            return host != null ? host : url;
+        } catch (URISyntaxException e) {
+            return url;
+        }
     }
 
     @Override
@@ -151,6 +297,7 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
         text.removeTextChangedListener(this);
         text.setOnEditorActionListener(null);
         buttons.setOnCheckedChangeListener(null);
+        benchmarkButton.setOnClickListener(null);
     }
 
     @Override
@@ -17,6 +17,7 @@ package app.intra;
 
 import app.intra.util.DnsUdpQuery;
 
+import okhttp3.Call;
 import okhttp3.Callback;
 
 /**
@@ -29,8 +30,10 @@ public interface ServerConnection {
    * NEW: The connection has not yet completed bootstrap.
    * WORKING: The last query (or bootstrap) succeeded.
    * FAILING: The last query (or bootstrap) failed.
+   * UNPROTECTED: The last query was answered by the network's resolver, because the server was
+   *   unreachable.
    */
-  enum State { NEW, WORKING, FAILING };
+  enum State { NEW, WORKING, FAILING, UNPROTECTED };
 
   /**
    * Performs a binary, asynchronous DNS request over HTTPS.
@@ -38,8 +41,9 @@ public interface ServerConnection {
    * @param metadata Information about the request
    * @param data The request body
    * @param cb An OkHttp response callback to receive the result.
+   * @return The call carrying the request, which the caller may cancel.
    */
-  void performDnsRequest(final DnsUdpQuery metadata, final byte[] data, Callback cb);
+  Call performDnsRequest(final DnsUdpQuery metadata, final byte[] data, Callback cb);
 
   /**
    * @return The URL identifying this ServerConnection.
@@ -47,9 +51,25 @@ public interface ServerConnection {
   String getUrl();
 
   /**
-   * Reset the state of the connection.  Users can call this if they believe the connection has
-   * gotten into an invalid state.
-   * Workaround for https://github.com/square/okhttp/issues/3146
+   * Reset the state of the connection, canceling all outstanding queries.  Users can call this if
+   * every existing connection has become unusable, e.g. after a change of network.  Individual
+   * connections that time out are closed automatically, without a reset.
    */
   void reset();
+
+  /**
+   * Moves the connection to a new network.  Later queries use new connections, which are opened on
+   * the new network right away, and what was learned about |to| the last time the device was on it
+   * is restored.  Unlike reset(), queries already in flight on the old network are given a short
+   * grace period to finish before they are canceled.
+   *
+   * @param from The network that the connection has been using, as named by NetworkManager.
+   * @param to The new network.
+   */
+  void migrate(String from, String to);
+
+  /**
+   * Adds this connection's counters, and those of any connections it wraps, to |stats|.
+   */
+  void addStats(ConnectionStats stats);
 }
@@ -0,0 +1,185 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import app.intra.util.LogWrapper;
+
+/**
+ * Measures how long it takes to connect to each of a server's candidate addresses, and records the
+ * results in a ServerScoreboard.  A connection is a TCP connect followed by a TLS handshake, just
+ * like OkHttp's, and is closed as soon as the handshake completes.  Each probe makes a full
+ * handshake with its own SSLContext.  Resuming a session, from the clients' shared cache or from an
+ * earlier probe, would make whichever addresses were probed later look faster.
+ *
+ * Probes run one at a time on a background thread, so that they don't compete with real queries.
+ * A round probes at most maxProbes addresses, and rounds on the same network are at least
+ * minIntervalMs apart, so probing costs a handful of connections per network.
+ */
+class ServerProber {
+  private static final String LOG_TAG = "ServerProber";
+
+  static final int DEFAULT_MAX_PROBES = 8;
+  static final long DEFAULT_MIN_INTERVAL_MS = 10 * 60 * 1000;
+  private static final int CONNECT_TIMEOUT_MS = 3000;
+
+  /**
+   * Notified after each round of probes.
+   */
+  interface Listener {
+    void onProbesDone();
+  }
+
+  // Runs probes for all instances.
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = Executors.defaultThreadFactory().newThread(r);
+          t.setName(LOG_TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private final ServerScoreboard scoreboard;
+  private final String hostname;
+  private final int port;
+  private final int maxProbes;
+  private final long minIntervalMs;
+  // Guarded by |this|.
+  private String lastNetwork = null;
+  private long lastRound = 0;
+  private boolean running = false;
+
+  /**
+   * @param scoreboard Receives the measurements.
+   * @param hostname The server's hostname, which is sent in the TLS handshake.
+   * @param port The server's port.
+   * @param maxProbes The maximum number of addresses to probe in each round.
+   * @param minIntervalMs The minimum time between rounds on the same network.
+   */
+  ServerProber(ServerScoreboard scoreboard, String hostname, int port, int maxProbes,
+      long minIntervalMs) {
+    this.scoreboard = scoreboard;
+    this.hostname = hostname;
+    this.port = port;
+    this.maxProbes = maxProbes;
+    this.minIntervalMs = minIntervalMs;
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  // Connects to |address| and completes a TLS handshake.  Overridden by tests.
+  void connect(InetAddress address) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+      socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+      SSLSocketFactory factory = newSocketFactory();
+      SSLSocket tls = (SSLSocket) factory.createSocket(socket, hostname, port, true);
+      tls.startHandshake();
+      tls.close();
+    } finally {
+      socket.close();
+    }
+  }
+
+  // Returns a factory with an empty session cache of its own, so that the handshake can't resume.
+  private static SSLSocketFactory newSocketFactory() throws IOException {
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, null, null);
+      return context.getSocketFactory();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Starts a round of probes to the first addresses in |candidates|, unless a round is running or
+   * one ran recently on the current network.  Returns immediately.
+   * @param listener Notified when the round is done, if one was started.
+   */
+  void maybeProbe(List<InetAddress> candidates, final Listener listener) {
+    String network = scoreboard.getNetwork();
+    long now = elapsedRealtime();
+    synchronized (this) {
+      if (running || (network.equals(lastNetwork) && now - lastRound < minIntervalMs)) {
+        return;
+      }
+      running = true;
+      lastNetwork = network;
+      lastRound = now;
+    }
+    final List<InetAddress> targets =
+        new ArrayList<>(candidates.subList(0, Math.min(maxProbes, candidates.size())));
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          probe(targets);
+        } finally {
+          synchronized (ServerProber.this) {
+            running = false;
+          }
+        }
+        if (listener != null) {
+          listener.onProbesDone();
+        }
+      }
+    });
+  }
+
+  /**
+   * Probes each of |targets| in turn, on the calling thread.
+   */
+  void probe(List<InetAddress> targets) {
+    int reached = 0;
+    for (InetAddress address : targets) {
+      long start = elapsedRealtime();
+      try {
+        connect(address);
+        scoreboard.recordSuccess(address, elapsedRealtime() - start);
+        ++reached;
+      } catch (IOException e) {
+        scoreboard.recordFailure(address);
+      }
+    }
+    LogWrapper.logcat(Log.INFO, LOG_TAG,
+        "Reached " + reached + " of " + targets.size() + " addresses");
+  }
+}
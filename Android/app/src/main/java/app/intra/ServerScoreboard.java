@@ -0,0 +1,260 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers how well each server address has worked on each network, so that the addresses most
+ * likely to connect quickly can be tried first.
+ *
+ * Each address's record holds a moving average of its connection time (TCP connect plus TLS
+ * handshake) and of its reachability (the fraction of attempts that succeeded).  Its score is the
+ * expected cost of trying it: the connection time if it works, or FAILURE_COST_MS, roughly a
+ * connect timeout, if it doesn't.  Addresses with no record score UNKNOWN_COST_MS, which places
+ * them after addresses that are known to work well and before addresses that are known to fail.
+ * Records fade toward unknown with a half-life of HALF_LIFE_MS, so that a network's changes are
+ * eventually noticed, and an address that failed once is eventually retried.
+ *
+ * Records are kept for the MAX_NETWORKS most recently used networks and up to MAX_ADDRESSES per
+ * network, and can be saved to a string for persistence.  Timestamps are wall-clock times, so that
+ * saved records age correctly across reboots.  Networks are identified by a salted hash of their
+ * name, so that the saved records don't reveal which Wi-Fi networks the device has joined.
+ */
+class ServerScoreboard {
+  static final long HALF_LIFE_MS = 24 * 60 * 60 * 1000;
+  static final double FAILURE_COST_MS = 3000;
+  static final double UNKNOWN_COST_MS = 1000;
+  // Weight of each new measurement in the moving averages.
+  private static final double ALPHA = 0.3;
+  static final int MAX_NETWORKS = 8;
+  static final int MAX_ADDRESSES = 64;
+  // A hex-encoded SHA-256 hash.
+  static final Pattern NETWORK_HASH = Pattern.compile("[0-9a-f]{64}");
+
+  private static class Record {
+    double connectMs;
+    double reachability;
+    long updated;
+
+    Record(double connectMs, double reachability, long updated) {
+      this.connectMs = connectMs;
+      this.reachability = reachability;
+      this.updated = updated;
+    }
+  }
+
+  // Records by network, in access order so that the least recently used network is first.
+  private final LinkedHashMap<String, LinkedHashMap<InetAddress, Record>> networks =
+      new LinkedHashMap<>(MAX_NETWORKS, 0.75f, true);
+  private final String salt;
+  private String network = "";
+
+  /**
+   * @param salt Mixed into the hash of each network name.  It must be the same every time the
+   *     saved records are loaded.
+   */
+  ServerScoreboard(String salt) {
+    this.salt = salt;
+  }
+
+  // Overridden by tests.
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Selects the network whose records are used by all other methods.
+   * @param network An identifier for the network, which is not interpreted.
+   */
+  synchronized void setNetwork(String network) {
+    this.network = hashNetwork(salt, network);
+  }
+
+  /**
+   * @return The hash of the current network's identifier.
+   */
+  synchronized String getNetwork() {
+    return network;
+  }
+
+  /**
+   * @return A hex-encoded SHA-256 hash of |network| and |salt|, which identifies the network in
+   *     saved state without revealing its name.
+   */
+  static String hashNetwork(String salt, String network) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Android version provides SHA-256.
+      throw new IllegalStateException(e);
+    }
+    digest.update(salt.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest(network.getBytes(StandardCharsets.UTF_8))) {
+      hex.append(String.format(Locale.ROOT, "%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Records a successful connection to |address|.
+   * @param connectMs The time taken to connect, including the TLS handshake.
+   */
+  synchronized void recordSuccess(InetAddress address, long connectMs) {
+    record(address, connectMs, 1.0);
+  }
+
+  /**
+   * Records a failed connection to |address|.
+   */
+  synchronized void recordFailure(InetAddress address) {
+    record(address, -1, 0.0);
+  }
+
+  private void record(InetAddress address, long connectMs, double reached) {
+    long now = currentTimeMillis();
+    LinkedHashMap<InetAddress, Record> records = getRecords(network);
+    Record r = records.remove(address);
+    if (r == null) {
+      r = new Record(connectMs >= 0 ? connectMs : FAILURE_COST_MS, reached, now);
+    } else {
+      // Old measurements count for less, so a stale record is mostly replaced.
+      double weight = Math.max(ALPHA, 1 - confidence(r, now));
+      if (connectMs >= 0) {
+        r.connectMs += weight * (connectMs - r.connectMs);
+      }
+      r.reachability += weight * (reached - r.reachability);
+      r.updated = now;
+    }
+    // Reinsert so that the least recently updated address is evicted first.
+    records.put(address, r);
+    if (records.size() > MAX_ADDRESSES) {
+      Iterator<InetAddress> oldest = records.keySet().iterator();
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  private LinkedHashMap<InetAddress, Record> getRecords(String network) {
+    LinkedHashMap<InetAddress, Record> records = networks.get(network);
+    if (records == null) {
+      records = new LinkedHashMap<>();
+      networks.put(network, records);
+      if (networks.size() > MAX_NETWORKS) {
+        Iterator<String> leastRecent = networks.keySet().iterator();
+        leastRecent.next();
+        leastRecent.remove();
+      }
+    }
+    return records;
+  }
+
+  // The weight of a record, which halves every HALF_LIFE_MS.
+  private static double confidence(Record r, long now) {
+    return Math.pow(0.5, Math.max(0, now - r.updated) / (double) HALF_LIFE_MS);
+  }
+
+  /**
+   * @return The expected cost, in ms, of trying to connect to |address| on the current network.
+   */
+  synchronized double getScore(InetAddress address) {
+    return score(address, currentTimeMillis());
+  }
+
+  private double score(InetAddress address, long now) {
+    Map<InetAddress, Record> records = networks.get(network);
+    Record r = records == null ? null : records.get(address);
+    if (r == null) {
+      return UNKNOWN_COST_MS;
+    }
+    double expected = r.reachability * r.connectMs + (1 - r.reachability) * FAILURE_COST_MS;
+    double c = confidence(r, now);
+    return c * expected + (1 - c) * UNKNOWN_COST_MS;
+  }
+
+  /**
+   * @return A copy of |addresses|, sorted by score.  Addresses with equal scores, such as those
+   *     with no records, keep their order.
+   */
+  synchronized List<InetAddress> order(List<InetAddress> addresses) {
+    final long now = currentTimeMillis();
+    final Map<InetAddress, Double> scores = new HashMap<>();
+    for (InetAddress address : addresses) {
+      scores.put(address, score(address, now));
+    }
+    List<InetAddress> ordered = new ArrayList<>(addresses);
+    Collections.sort(ordered, new Comparator<InetAddress>() {
+      @Override
+      public int compare(InetAddress a, InetAddress b) {
+        return Double.compare(scores.get(a), scores.get(b));
+      }
+    });
+    return ordered;
+  }
+
+  /**
+   * @return The records, in the format read by load().
+   */
+  synchronized String save() {
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, LinkedHashMap<InetAddress, Record>> network : networks.entrySet()) {
+      for (Map.Entry<InetAddress, Record> entry : network.getValue().entrySet()) {
+        Record r = entry.getValue();
+        out.append(String.format(Locale.ROOT, "%s %.1f %.3f %d %s\n",
+            entry.getKey().getHostAddress(), r.connectMs, r.reachability, r.updated,
+            network.getKey()));
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Adds the records from a string produced by save().  Malformed lines are skipped.
+   */
+  synchronized void load(String saved) {
+    for (String line : saved.split("\n")) {
+      String[] fields = line.split(" ", 5);
+      if (fields.length != 5 || !NETWORK_HASH.matcher(fields[4]).matches()) {
+        continue;
+      }
+      try {
+        InetAddress address = InetAddress.getByName(fields[0]);
+        Record r = new Record(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+            Long.parseLong(fields[3]));
+        getRecords(fields[4]).put(address, r);
+      } catch (NumberFormatException | UnknownHostException e) {
+        // Skip this line.
+      }
+    }
+  }
+}
@@ -22,6 +22,7 @@ import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -106,6 +107,22 @@ public class SettingsFragment extends PreferenceFragmentCompat {
       appPref.setEnabled(false);
       appPref.setSummary(R.string.old_android);
     }
+
+    // Reject backup server URLs that the server chooser wouldn't accept as the main server.
+    findPreference(PersistentState.SECONDARY_URL_KEY).setOnPreferenceChangeListener(
+        new Preference.OnPreferenceChangeListener() {
+          @Override
+          public boolean onPreferenceChange(Preference preference, Object newValue) {
+            for (String url : PersistentState.splitUrls((String) newValue)) {
+              if (!ServerChooserFragment.checkUrl(url)) {
+                Toast.makeText(getContext(), getString(R.string.secondary_server_invalid, url),
+                    Toast.LENGTH_LONG).show();
+                return false;
+              }
+            }
+            return true;
+          }
+        });
   }
 
   @Override
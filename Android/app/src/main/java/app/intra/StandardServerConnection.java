@@ -16,51 +16,76 @@ limitations under the License.
 package app.intra;
 
 import app.intra.util.DnsUdpQuery;
-import app.intra.util.DualStackResult;
 import app.intra.util.IpTagInterceptor;
+import app.intra.util.Names;
 
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.Cache;
 import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.Dns;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
+import okio.ByteString;
 
 /**
- * Allows the caller to perform DNS-over-HTTPS queries using the IETF draft protocol.
+ * Allows the caller to perform DNS-over-HTTPS queries using the IETF protocol.  Queries are sent
+ * either by POST, which is supported by servers that implement early drafts, or by GET as in
+ * RFC 8484.  GET responses can be stored by HTTP caches, including an optional local one.
+ *
+ * The server's addresses are resolved through the system resolver when the connection is created,
+ * and afterwards kept up to date through the server itself by a PinnedAddressRefresher.
  */
 public class StandardServerConnection implements ServerConnection {
 
-  private final String url;
-  private OkHttpClient client;
-  private final List<InetAddress> ips;
-
-  private class PinnedDns implements Dns {
+  // Media types for POST bodies (draft protocol) and GET responses (RFC 8484).
+  private static final MediaType DRAFT_MEDIA_TYPE = MediaType.parse("application/dns-udpwireformat");
+  private static final String DNS_MESSAGE = "application/dns-message";
 
-    private final List<InetAddress> ips;
+  private static final long CONNECT_TIMEOUT_MS = 3000;
 
-    public PinnedDns(List<InetAddress> ips) {
-      DualStackResult result = new DualStackResult(ips);
-      this.ips = result.getInterleaved();
-    }
+  private final String url;
+  private final HttpUrl parsedUrl;
+  private final boolean useGet;
+  private final Cache httpCache;
+  private OkHttpClient client;
+  private HappyEyeballsDns dns;
+  // The server's current addresses, and the ones they replaced.  Guarded by |this|.
+  private List<InetAddress> ips;
+  private List<InetAddress> previousIps = Collections.emptyList();
+  private final PinnedAddressRefresher refresher;
+  private final UpstreamDispatcher dispatcher;
+  private final IdleConnectionMonitor idleMonitor = new IdleConnectionMonitor();
+  private final ConnectionHealthTracker healthTracker = new ConnectionHealthTracker();
+  private final NetworkProfiles profiles = new NetworkProfiles();
 
-    @Override
-    public List<InetAddress> lookup(String hostname) {
-      return ips;
-    }
+  public static StandardServerConnection get(String url) {
+    return get(url, false, null);
+  }
 
+  /**
+   * @param url The server's URL, without any template variables.
+   * @param useGet True to send queries by GET, as in RFC 8484, instead of POST.
+   * @param httpCache Stores GET responses for as long as their Cache-Control headers allow, or null
+   *     to disable local HTTP caching.
+   */
+  public static StandardServerConnection get(String url, boolean useGet, Cache httpCache) {
+    return get(url, new UpstreamDispatcher(), useGet, httpCache);
   }
 
-  public static StandardServerConnection get(String url) {
+  static StandardServerConnection get(String url, UpstreamDispatcher dispatcher, boolean useGet,
+      Cache httpCache) {
     URL parsedUrl;
     try {
       parsedUrl = new URL(url);
@@ -81,30 +106,80 @@ public class StandardServerConnection implements ServerConnection {
     if (ips.length == 0) {
       return null;
     }
-    return new StandardServerConnection(url, Arrays.asList(ips));
+    return new StandardServerConnection(url, Arrays.asList(ips), dispatcher, useGet, httpCache);
   }
 
-  private StandardServerConnection(String url, List<InetAddress> ips) {
+  private StandardServerConnection(String url, List<InetAddress> ips,
+      UpstreamDispatcher dispatcher, boolean useGet, Cache httpCache) {
     this.url = url;
+    this.parsedUrl = HttpUrl.parse(url);
     this.ips = ips;
+    this.dispatcher = dispatcher;
+    this.useGet = useGet;
+    this.httpCache = httpCache;
+    this.refresher = new PinnedAddressRefresher(this.parsedUrl.host(),
+        new PinnedAddressRefresher.Listener() {
+          @Override
+          public void onAddresses(List<InetAddress> addresses) {
+            setAddresses(addresses);
+          }
+        },
+        PinnedAddressRefresher.DEFAULT_MIN_INTERVAL_MS,
+        PinnedAddressRefresher.DEFAULT_MAX_INTERVAL_MS);
 
     reset();
   }
 
+  // Replaces the server's addresses for new connections.  Open connections, and the queries on
+  // them, are not affected.
+  private synchronized void setAddresses(List<InetAddress> addresses) {
+    if (new HashSet<>(addresses).equals(new HashSet<>(ips))) {
+      return;
+    }
+    previousIps = ips;
+    ips = addresses;
+    dns.setAddresses(ips, previousIps);
+  }
+
   @Override
-  public void performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+  public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
     // Zero out the ID
     data[0] = 0;
     data[1] = 0;
 
-    MediaType mediaType = MediaType.parse("application/dns-udpwireformat");
-    RequestBody body = RequestBody.create(mediaType, data);
-    Request request = new Request.Builder()
-        .url(url)
-        .header("User-Agent", String.format("Jigsaw-DNS/%s", BuildConfig.VERSION_NAME))
-        .post(body)
+    Request.Builder builder = new Request.Builder()
+        .header("User-Agent", String.format("Jigsaw-DNS/%s", BuildConfig.VERSION_NAME));
+    if (useGet) {
+      // With the ID zeroed, identical queries have identical URLs, so they share a cache entry.
+      builder.url(getQueryUrl(parsedUrl, data))
+          .header("Accept", DNS_MESSAGE)
+          .get();
+    } else {
+      builder.url(url)
+          .post(RequestBody.create(DRAFT_MEDIA_TYPE, data));
+    }
+    Request request = builder.build();
+    idleMonitor.checkIdle(client);
+    Call call = dispatcher.enqueue(client, request, metadata, cb);
+    refresher.maybeRefresh(this);
+    return call;
+  }
+
+  // Returns the URL for an RFC 8484 GET request to |base| for the query |data|.
+  static HttpUrl getQueryUrl(HttpUrl base, byte[] data) {
+    // RFC 8484 uses base64url without padding.
+    String dns = ByteString.of(data).base64Url().replace("=", "");
+    return base.newBuilder()
+        .addQueryParameter("dns", dns)
         .build();
-    client.newCall(request).enqueue(cb);
+  }
+
+  /**
+   * @return The time that the current network's Happy Eyeballs race took to find a working address,
+   * in milliseconds, or -1 if it has not succeeded.
+   */
+  long getTimeToFirstConnectionMs() {
+    return dns.getTimeToFirstConnectionMs();
   }
 
   @Override
@@ -115,19 +190,62 @@ public class StandardServerConnection implements ServerConnection {
   @Override
   public void reset() {
     OkHttpClient oldClient = client;
-    client = new OkHttpClient.Builder()
-        .dns(new PinnedDns(ips))
-        .connectTimeout(3, TimeUnit.SECONDS) // Detect blocked connections.  TODO: tune.
-        .addNetworkInterceptor(new IpTagInterceptor())
-        .build();
+    client = buildClient(null);
     if (oldClient != null) {
-      for (Call call : oldClient.dispatcher().queuedCalls()) {
-        call.cancel();
-      }
-      for (Call call : oldClient.dispatcher().runningCalls()) {
-        call.cancel();
-      }
+      healthTracker.onReset(ClientRetirer.cancelAll(oldClient));
+    }
+  }
+
+  @Override
+  public void migrate(String from, String to) {
+    profiles.save(from, new NetworkProfiles.Profile(dns.getWinner(), dispatcher.getRttEstimator()));
+    NetworkProfiles.Profile profile = profiles.restore(to);
+    dispatcher.setRttEstimator(profile != null && profile.rtt != null ?
+        profile.rtt : UpstreamDispatcher.newRttEstimator());
+    OkHttpClient oldClient = client;
+    client = buildClient(profile != null ? profile.bestAddress : null);
+    // Open a connection on the new network now, instead of on the next query, by refreshing the
+    // server's addresses.  The answer may also differ on the new network.
+    refresher.refresh(this);
+    ClientRetirer.retire(oldClient, ClientRetirer.DEFAULT_GRACE_MS, healthTracker);
+  }
+
+  @Override
+  public void addStats(ConnectionStats stats) {
+    idleMonitor.addStats(stats);
+    healthTracker.addStats(stats);
+    stats.add(Names.REFRESHES, refresher.getNumRefreshes());
+    stats.add(Names.PROFILES_RESTORED, profiles.getNumRestored());
+    long timeToFirstConnectionMs = getTimeToFirstConnectionMs();
+    if (timeToFirstConnectionMs >= 0) {
+      stats.max(Names.TIME_TO_FIRST_CONNECTION_MS, timeToFirstConnectionMs);
     }
+  }
 
+  // Builds a client for the current network.  |winner| is the address that connected first the last
+  // time the device was on this network, or null to race the addresses again.
+  private OkHttpClient buildClient(InetAddress winner) {
+    OkHttpClient.Builder builder =
+        idleMonitor.configure(TlsSessionCache.configure(new OkHttpClient.Builder()));
+    if (httpCache != null) {
+      builder.cache(httpCache)
+          .addInterceptor(new HttpCacheAgeInterceptor());
+    }
+    // A new client is built on each network change, so the address family is raced again unless it
+    // is already known.
+    synchronized (this) {
+      dns = new HappyEyeballsDns(ips, previousIps, parsedUrl.port(),
+          HappyEyeballsDns.DEFAULT_STAGGER_MS, CONNECT_TIMEOUT_MS);
+      if (winner != null) {
+        dns.setWinner(winner);
+      }
+    }
+    return dispatcher.configure(builder, healthTracker)
+        .dns(dns)
+        // Takes over the connection that won the race.
+        .socketFactory(dns.getSocketFactory())
+        .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS) // Detect blocked connections.
+        .addNetworkInterceptor(new IpTagInterceptor())
+        .build();
   }
 }
@@ -0,0 +1,600 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.LogWrapper;
+import app.intra.util.Names;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+
+/**
+ * A ServerConnection that uses DNS-over-TLS (RFC 7858) instead of DNS-over-HTTPS.  There is no
+ * HTTP framing, so each query costs only a two-byte length prefix, and it provides a second
+ * transport in case DoH is blocked or throttled.  URLs have the form tls://hostname[:port].
+ *
+ * Queries share a single TLS connection to the server.  They are written back-to-back without
+ * waiting for earlier answers, and the server may answer them in any order (RFC 7766), so each
+ * query is given a new ID on the wire and answers are matched to queries through a lock-free
+ * table indexed by ID.
+ *
+ * The connection is opened on demand and closed after it has been idle for the idle timeout.  If
+ * connecting fails, queries fail immediately until a backoff period, which doubles on each
+ * consecutive failure, has passed.  A query that goes unanswered for the query timeout fails on
+ * its own.  If nothing at all has arrived for that long, the connection is assumed dead and
+ * closed, failing all its queries.
+ *
+ * Callbacks receive a synthetic OkHttp Response whose body is the DNS answer, so that callers can
+ * treat this like any other ServerConnection.
+ */
+class TlsServerConnection implements ServerConnection {
+  private static final String LOG_TAG = "TlsServerConnection";
+
+  static final String SCHEME = "tls";
+  static final int DEFAULT_PORT = 853;
+  static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+  static final long DEFAULT_QUERY_TIMEOUT_MS = 4000;
+  private static final long CONNECT_TIMEOUT_MS = 3000;
+  private static final long MIN_BACKOFF_MS = 1000;
+  private static final long MAX_BACKOFF_MS = 60 * 1000;
+  // The size of each connection's pending table, which limits the queries in flight.  Must be a
+  // power of 2, no larger than the 65536 possible IDs.
+  static final int MAX_PENDING = 1024;
+
+  private final String url;
+  private final String host;
+  private final int port;
+  private final List<InetAddress> ips;
+  // Replaced on each network change.
+  private volatile HappyEyeballsDns dns;
+  private final SSLSocketFactory socketFactory;
+  private final HostnameVerifier hostnameVerifier;
+  private final long idleTimeoutMs;
+  private final long queryTimeoutMs;
+  // How often the reader looks for expired queries and idleness.
+  private final long checkIntervalMs;
+  // Stands in for an HTTP request in the Calls and Responses given to callers.
+  private final Request request;
+  private final NetworkProfiles profiles = new NetworkProfiles();
+
+  // Guarded by |this|.
+  private Session session = null;
+  private int consecutiveFailures = 0;
+  private long nextConnectTime = 0;
+  private long numConnections = 0;
+
+  /**
+   * @param url A URL of the form tls://hostname[:port].
+   * @return A connection to the server, or null if the URL is invalid or the hostname can't be
+   *     resolved.  The TLS connection is opened by the first query.
+   */
+  static TlsServerConnection get(String url) {
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+    if (!SCHEME.equals(uri.getScheme()) || uri.getHost() == null) {
+      return null;
+    }
+    InetAddress[] ips;
+    try {
+      ips = InetAddress.getAllByName(uri.getHost());
+    } catch (UnknownHostException e) {
+      return null;
+    }
+    if (ips.length == 0) {
+      return null;
+    }
+    int port = uri.getPort() != -1 ? uri.getPort() : DEFAULT_PORT;
+    return new TlsServerConnection(url, uri.getHost(), port, Arrays.asList(ips),
+        TlsSessionCache.getSocketFactory(), HttpsURLConnection.getDefaultHostnameVerifier(),
+        DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_QUERY_TIMEOUT_MS);
+  }
+
+  /**
+   * @param socketFactory Creates the TLS sockets.
+   * @param hostnameVerifier Checks the server's certificate against |host|.
+   * @param idleTimeoutMs How long to keep a connection open with no queries in flight.
+   * @param queryTimeoutMs How long to wait for an answer before failing the query.  If nothing at
+   *     all arrives for this long, the connection is closed too.
+   */
+  TlsServerConnection(String url, String host, int port, List<InetAddress> ips,
+      SSLSocketFactory socketFactory, HostnameVerifier hostnameVerifier, long idleTimeoutMs,
+      long queryTimeoutMs) {
+    this.url = url;
+    this.host = host;
+    this.port = port;
+    this.ips = ips;
+    this.dns = newDns(null);
+    this.socketFactory = socketFactory;
+    this.hostnameVerifier = hostnameVerifier;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.queryTimeoutMs = queryTimeoutMs;
+    this.checkIntervalMs = Math.min(idleTimeoutMs, queryTimeoutMs) / 2;
+    this.request = new Request.Builder()
+        .url("https://" + (host.contains(":") ? "[" + host + "]" : host) + ":" + port + "/")
+        .build();
+  }
+
+  // Overridden by tests.
+  long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  @Override
+  public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+    Query query = new Query(data, cb);
+    Session s;
+    try {
+      s = getSession();
+    } catch (IOException e) {
+      query.fail(e);
+      return query;
+    }
+    if (!s.send(query)) {
+      query.fail(new IOException("Too many queries in flight"));
+    }
+    return query;
+  }
+
+  // Returns the open connection, or starts a new one.
+  private synchronized Session getSession() throws IOException {
+    if (session != null && !session.isClosed()) {
+      return session;
+    }
+    long now = elapsedRealtime();
+    if (now < nextConnectTime) {
+      throw new IOException("Reconnecting in " + (nextConnectTime - now) + " ms");
+    }
+    session = new Session();
+    ++numConnections;
+    session.start();
+    return session;
+  }
+
+  private synchronized void onConnected() {
+    consecutiveFailures = 0;
+  }
+
+  private synchronized void onConnectFailed(Session s, IOException e) {
+    ++consecutiveFailures;
+    long backoff = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(consecutiveFailures - 1, 16));
+    nextConnectTime = elapsedRealtime() + backoff;
+    LogWrapper.logcat(Log.WARN, LOG_TAG,
+        "Failed to connect to " + host + ", retrying in " + backoff + " ms: " + e);
+    if (session == s) {
+      session = null;
+    }
+  }
+
+  private synchronized void onClosed(Session s) {
+    if (session == s) {
+      session = null;
+    }
+  }
+
+  /**
+   * @return The number of TLS connections that have been opened or attempted.
+   */
+  synchronized long getNumConnections() {
+    return numConnections;
+  }
+
+  @Override
+  public void addStats(ConnectionStats stats) {
+    // Timed-out queries fail on their own here, so there are no evictions to count.
+    stats.add(Names.PROFILES_RESTORED, profiles.getNumRestored());
+    long timeToFirstConnectionMs = dns.getTimeToFirstConnectionMs();
+    if (timeToFirstConnectionMs >= 0) {
+      stats.max(Names.TIME_TO_FIRST_CONNECTION_MS, timeToFirstConnectionMs);
+    }
+  }
+
+  @Override
+  public String getUrl() {
+    return url;
+  }
+
+  // |winner| is the address that connected first the last time the device was on this network, or
+  // null to race the addresses again.
+  private HappyEyeballsDns newDns(InetAddress winner) {
+    HappyEyeballsDns d = new HappyEyeballsDns(ips, Collections.<InetAddress>emptyList(), port,
+        HappyEyeballsDns.DEFAULT_STAGGER_MS, CONNECT_TIMEOUT_MS);
+    if (winner != null) {
+      d.setWinner(winner);
+    }
+    return d;
+  }
+
+  @Override
+  public void migrate(String from, String to) {
+    profiles.save(from, new NetworkProfiles.Profile(dns.getWinner(), null));
+    NetworkProfiles.Profile profile = profiles.restore(to);
+    final Session old;
+    synchronized (this) {
+      dns = newDns(profile != null ? profile.bestAddress : null);
+      old = session;
+      session = null;
+      consecutiveFailures = 0;
+      nextConnectTime = 0;
+    }
+    // Connect on the new network now, instead of on the next query.
+    try {
+      getSession();
+    } catch (IOException e) {
+      // Not reachable, since the backoff was just cleared.
+    }
+    if (old != null) {
+      // Queries in flight on the old network may still be answered.
+      ClientRetirer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          old.cancelAll();
+        }
+      }, ClientRetirer.DEFAULT_GRACE_MS);
+    }
+  }
+
+  @Override
+  public void reset() {
+    Session old;
+    synchronized (this) {
+      old = session;
+      session = null;
+      consecutiveFailures = 0;
+      nextConnectTime = 0;
+    }
+    if (old != null) {
+      old.cancelAll();
+    }
+  }
+
+  /**
+   * One query, which is also the Call returned to the caller.
+   */
+  private class Query extends AsyncOnlyCall {
+    // The query, with its length prefix.  The ID is filled in when it is sent.
+    final byte[] frame;
+    // Set before the query is placed in the pending table.
+    volatile Session session = null;
+    int id;
+    int slot;
+    long sentTime;
+
+    Query(byte[] data, Callback cb) {
+      super(request, cb);
+      frame = new byte[data.length + 2];
+      frame[0] = (byte) (data.length >> 8);
+      frame[1] = (byte) data.length;
+      System.arraycopy(data, 0, frame, 2, data.length);
+    }
+
+    void setId(int id) {
+      this.id = id;
+      frame[2] = (byte) (id >> 8);
+      frame[3] = (byte) id;
+    }
+
+    void deliver(byte[] answer, String serverIp) {
+      deliver(newResponse(answer, serverIp).build());
+    }
+
+    @Override
+    void onCancel() {
+      Session s = session;
+      if (s != null && s.remove(this)) {
+        fail(new IOException("Canceled"));
+      }
+    }
+  }
+
+  // Wakes the writer thread when the connection closes.
+  private final Query POISON = new Query(new byte[2], null);
+
+  /**
+   * A single TLS connection, with a writer thread that opens it and sends queries, and a reader
+   * thread that receives answers.
+   */
+  private class Session {
+    // Queries awaiting an answer, indexed by ID modulo MAX_PENDING.
+    private final AtomicReferenceArray<Query> pending = new AtomicReferenceArray<>(MAX_PENDING);
+    private final AtomicInteger nextId = new AtomicInteger((int) (Math.random() * 0x10000));
+    // Queries waiting to be written.
+    private final LinkedBlockingQueue<Query> outbox = new LinkedBlockingQueue<>();
+    private volatile SSLSocket socket = null;
+    private volatile boolean closed = false;
+    private volatile long lastActivity = elapsedRealtime();
+    private volatile String serverIp = null;
+
+    boolean isClosed() {
+      return closed;
+    }
+
+    void start() {
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          write();
+        }
+      }, "DoT writer " + host);
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    // Assigns |query| an ID and queues it.  Returns false if the pending table is full.
+    boolean send(Query query) {
+      for (int i = 0; i < MAX_PENDING; ++i) {
+        int id = nextId.getAndIncrement() & 0xFFFF;
+        int slot = id & (MAX_PENDING - 1);
+        if (pending.get(slot) != null) {
+          continue;
+        }
+        query.setId(id);
+        query.slot = slot;
+        query.session = this;
+        if (!pending.compareAndSet(slot, null, query)) {
+          continue;
+        }
+        query.sentTime = elapsedRealtime();
+        outbox.add(query);
+        if (closed) {
+          // Raced with close(), which may have already emptied the table.
+          if (remove(query)) {
+            query.fail(new IOException("Connection closed"));
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+
+    // Removes |query| from the pending table.  Returns false if it has already been answered,
+    // failed, or removed.
+    boolean remove(Query query) {
+      return pending.compareAndSet(query.slot, query, null);
+    }
+
+    private void write() {
+      OutputStream out;
+      try {
+        socket = connect();
+        out = new BufferedOutputStream(socket.getOutputStream());
+      } catch (IOException e) {
+        onConnectFailed(this, e);
+        close(e);
+        return;
+      }
+      onConnected();
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          read();
+        }
+      }, "DoT reader " + host);
+      reader.setDaemon(true);
+      reader.start();
+
+      try {
+        while (!closed) {
+          Query query = outbox.take();
+          // Write everything that is queued before flushing, so that a burst of queries shares
+          // TLS records and TCP segments.
+          while (query != null && query != POISON) {
+            if (pending.get(query.slot) == query) {
+              out.write(query.frame);
+            }
+            query = outbox.poll();
+          }
+          out.flush();
+        }
+      } catch (IOException e) {
+        close(e);
+      } catch (InterruptedException e) {
+        close(new IOException(e));
+      }
+    }
+
+    // Connects to the server's addresses in turn, starting with the one that connects fastest.
+    private SSLSocket connect() throws IOException {
+      IOException lastError = new IOException("No addresses");
+      HappyEyeballsDns d = dns;
+      for (InetAddress address : d.lookup(host)) {
+        // The first socket after a race is already connected to the winner.
+        Socket tcp = d.getSocketFactory().createSocket();
+        try {
+          tcp.connect(new InetSocketAddress(address, port), (int) CONNECT_TIMEOUT_MS);
+          tcp.setTcpNoDelay(true);
+          tcp.setSoTimeout((int) checkIntervalMs);
+          SSLSocket tls = (SSLSocket) socketFactory.createSocket(tcp, host, port, true);
+          tls.startHandshake();
+          if (!hostnameVerifier.verify(host, tls.getSession())) {
+            tls.close();
+            throw new IOException("Certificate does not match " + host);
+          }
+          serverIp = address.getHostAddress();
+          return tls;
+        } catch (IOException e) {
+          tcp.close();
+          lastError = e;
+        }
+      }
+      throw lastError;
+    }
+
+    private void read() {
+      try {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        long nextCheck = elapsedRealtime() + checkIntervalMs;
+        // The length prefix, which may arrive one byte at a time, e.g. if the server sends each
+        // byte in its own TLS record.  A timeout between the bytes must not lose the first one.
+        byte[] prefix = new byte[2];
+        int prefixRead = 0;
+        while (!closed) {
+          int n;
+          try {
+            n = in.read(prefix, prefixRead, prefix.length - prefixRead);
+          } catch (SocketTimeoutException e) {
+            // Nothing was read, so |prefixRead| is still correct.
+            checkTimeouts();
+            nextCheck = elapsedRealtime() + checkIntervalMs;
+            continue;
+          }
+          if (n < 0) {
+            throw new EOFException();
+          }
+          prefixRead += n;
+          if (prefixRead < prefix.length) {
+            continue;
+          }
+          prefixRead = 0;
+          int length = ((prefix[0] & 0xFF) << 8) | (prefix[1] & 0xFF);
+          byte[] answer = new byte[length];
+          // A timeout here, in the middle of an answer, closes the connection.
+          in.readFully(answer);
+          long now = elapsedRealtime();
+          lastActivity = now;
+          if (now >= nextCheck) {
+            // The socket never times out while answers keep arriving, so a query that the server
+            // dropped has to be found here.
+            failExpired(now);
+            nextCheck = now + checkIntervalMs;
+          }
+          if (length < 2) {
+            continue;
+          }
+          int id = ((answer[0] & 0xFF) << 8) | (answer[1] & 0xFF);
+          int slot = id & (MAX_PENDING - 1);
+          Query query = pending.get(slot);
+          if (query != null && query.id == id && pending.compareAndSet(slot, query, null)) {
+            query.deliver(answer, serverIp);
+          }
+        }
+      } catch (EOFException e) {
+        // The server closed the connection, e.g. because it was idle.
+        close(new IOException("Connection closed by server"));
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    // Fails each query that has gone unanswered for too long.
+    private void failExpired(long now) {
+      for (int i = 0; i < MAX_PENDING; ++i) {
+        Query query = pending.get(i);
+        if (query != null && now - query.sentTime >= queryTimeoutMs && remove(query)) {
+          query.fail(new SocketTimeoutException("No answer in " + queryTimeoutMs + " ms"));
+        }
+      }
+    }
+
+    // Returns the time when the oldest pending query was sent, or Long.MAX_VALUE if there are none.
+    private long getOldestSentTime() {
+      long oldest = Long.MAX_VALUE;
+      for (int i = 0; i < MAX_PENDING; ++i) {
+        Query query = pending.get(i);
+        if (query != null) {
+          oldest = Math.min(oldest, query.sentTime);
+        }
+      }
+      return oldest;
+    }
+
+    // Called periodically while no answers arrive.  Closes the connection if a query has gone
+    // unanswered for too long and nothing else has arrived in that time either, or if it has been
+    // idle for too long.  Otherwise, only the expired queries fail.
+    private void checkTimeouts() throws IOException {
+      long now = elapsedRealtime();
+      long oldest = getOldestSentTime();
+      if (oldest != Long.MAX_VALUE && now - oldest >= queryTimeoutMs
+          && now - lastActivity >= queryTimeoutMs) {
+        throw new SocketTimeoutException("No answer in " + queryTimeoutMs + " ms");
+      }
+      failExpired(now);
+      if (oldest == Long.MAX_VALUE && now - lastActivity >= idleTimeoutMs) {
+        LogWrapper.logcat(Log.INFO, LOG_TAG, "Closing idle connection to " + host);
+        close(null);
+      }
+    }
+
+    // Closes the connection and fails all pending queries with |cause|.
+    void close(IOException cause) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      onClosed(this);
+      outbox.add(POISON);
+      Socket s = socket;
+      if (s != null) {
+        try {
+          s.close();
+        } catch (IOException e) {
+          // Already closed.
+        }
+      }
+      IOException error = cause != null ? cause : new IOException("Connection closed");
+      for (int i = 0; i < MAX_PENDING; ++i) {
+        Query query = pending.getAndSet(i, null);
+        if (query != null) {
+          query.fail(error);
+        }
+      }
+    }
+
+    // Closes the connection, and reports every pending query as canceled.
+    void cancelAll() {
+      for (int i = 0; i < MAX_PENDING; ++i) {
+        Query query = pending.get(i);
+        if (query != null) {
+          query.setCanceled();
+        }
+      }
+      close(new IOException("Canceled"));
+    }
+  }
+}
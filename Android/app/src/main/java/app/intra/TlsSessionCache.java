@@ -0,0 +1,122 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import app.intra.util.LogWrapper;
+import okhttp3.OkHttpClient;
+
+/**
+ * Lets TLS sessions outlive the OkHttpClient that created them.  By default, OkHttp creates a new
+ * SSLContext, and therefore a new, empty client session cache, for every OkHttpClient.  Connections
+ * rebuild their client on every reset() and network change, and the service rebuilds its
+ * connections when the settings change, so each of these events used to cost a full TLS handshake.
+ *
+ * All clients configured here share one SSLContext for the life of the process, so a new client
+ * resumes the previous client's session (with a session ID or ticket) and saves a round trip on its
+ * first connection.  Sessions are keyed by hostname and port, so they are resumed even when the
+ * new connection goes to a different address.  Sessions expire after SESSION_TIMEOUT_S.
+ */
+final class TlsSessionCache {
+  private static final String LOG_TAG = "TlsSessionCache";
+
+  // Servers limit resumption further, e.g. by ticket lifetime, so this is only an upper bound.
+  static final int SESSION_TIMEOUT_S = 24 * 60 * 60;
+  // Enough for the primary and secondary servers, and the bootstrap servers.
+  static final int SESSION_CACHE_SIZE = 16;
+
+  private static TlsSessionCache instance = null;
+
+  private final SSLContext sslContext;
+  private final X509TrustManager trustManager;
+
+  private TlsSessionCache(SSLContext sslContext, X509TrustManager trustManager) {
+    this.sslContext = sslContext;
+    this.trustManager = trustManager;
+  }
+
+  /**
+   * @return The shared cache, or null if the platform's TLS implementation could not be set up.
+   */
+  private static synchronized TlsSessionCache get() {
+    if (instance == null) {
+      try {
+        instance = create();
+      } catch (GeneralSecurityException | IllegalStateException e) {
+        LogWrapper.logcat(Log.WARN, LOG_TAG, "Can't share TLS sessions: " + e);
+        return null;
+      }
+    }
+    return instance;
+  }
+
+  // Sets up an SSLContext with the same trust settings as OkHttp's default.
+  private static TlsSessionCache create() throws GeneralSecurityException {
+    TrustManagerFactory factory =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    factory.init((KeyStore) null);
+    TrustManager[] trustManagers = factory.getTrustManagers();
+    if (trustManagers.length != 1 || !(trustManagers[0] instanceof X509TrustManager)) {
+      throw new IllegalStateException(
+          "Unexpected default trust managers: " + Arrays.toString(trustManagers));
+    }
+    X509TrustManager trustManager = (X509TrustManager) trustManagers[0];
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, new TrustManager[]{trustManager}, null);
+    SSLSessionContext sessions = sslContext.getClientSessionContext();
+    if (sessions != null) {
+      sessions.setSessionTimeout(SESSION_TIMEOUT_S);
+      sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+    }
+    return new TlsSessionCache(sslContext, trustManager);
+  }
+
+  /**
+   * Makes clients built by |builder| share TLS sessions with all other configured clients.  Does
+   * nothing if the shared cache is unavailable.
+   */
+  static OkHttpClient.Builder configure(OkHttpClient.Builder builder) {
+    TlsSessionCache cache = get();
+    if (cache == null) {
+      return builder;
+    }
+    return builder.sslSocketFactory(cache.sslContext.getSocketFactory(), cache.trustManager);
+  }
+
+  /**
+   * @return A socket factory that shares TLS sessions with all configured clients, or the default
+   *     factory if the shared cache is unavailable.
+   */
+  static SSLSocketFactory getSocketFactory() {
+    TlsSessionCache cache = get();
+    if (cache == null) {
+      return (SSLSocketFactory) SSLSocketFactory.getDefault();
+    }
+    return cache.sslContext.getSocketFactory();
+  }
+}
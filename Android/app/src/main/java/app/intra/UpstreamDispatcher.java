@@ -0,0 +1,373 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.RttEstimator;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Controls how DNS queries are admitted to a ServerConnection's OkHttpClient.  OkHttp's default
+ * Dispatcher only runs 5 requests per host and queues the rest without limit, so during a burst
+ * queries can wait so long that the client has already given up and retried.  This class:
+ *  - sets the number of concurrent requests to the server,
+ *  - bounds the number of queued queries, failing new queries immediately when the queue is full,
+ *  - drops queued queries that are already older than the client's retry timeout, just before they
+ *    would be sent,
+ *  - gives each query a deadline, derived from the server's recent round-trip times, after which
+ *    the call is canceled and the caller is told immediately, instead of waiting for OkHttp's
+ *    10-second read timeout.  The ConnectionHealthTracker is told about the stall, so that it can
+ *    close the connection that the query was stuck on, and
+ *  - tags each response with the time it spent in the queue, the number of requests in flight, and
+ *    its deadline.
+ *
+ * Each OkHttpClient needs its own Dispatcher, so a ServerConnection should call configure() every
+ * time it builds a new client.  Requests that were not sent through enqueue(), like bootstrap
+ * queries, are not subject to shedding.
+ */
+class UpstreamDispatcher implements Interceptor {
+
+  // Time the query spent waiting for a free slot, in milliseconds.
+  static final String QUEUE_WAIT_HEADER = "X-Intra-Queue-Wait-Ms";
+  // Number of requests running on the client when this query was sent, including this one.
+  static final String IN_FLIGHT_HEADER = "X-Intra-In-Flight";
+  // The deadline that was set for this query, in milliseconds.
+  static final String DEADLINE_HEADER = "X-Intra-Deadline-Ms";
+
+  // Defaults.  Android's stub resolver retries after 5 seconds, so a query that has waited longer
+  // than DEFAULT_MAX_QUERY_AGE_MS will most likely be superseded by a retry before it is answered.
+  static final int DEFAULT_MAX_IN_FLIGHT = 16;
+  static final int DEFAULT_MAX_QUEUED = 64;
+  static final long DEFAULT_MAX_QUERY_AGE_MS = 4000;
+  // The deadline is a multiple of a high quantile of the recent round-trip times, clamped to a
+  // range.  The ceiling leaves time to answer with an error before the stub resolver retries, and
+  // is also used until the first round-trip time is measured.
+  static final long DEFAULT_MIN_DEADLINE_MS = 1500;
+  static final long DEFAULT_MAX_DEADLINE_MS = 4000;
+  private static final double DEADLINE_QUANTILE = 0.95;
+  private static final long DEADLINE_MULTIPLIER = 3;
+  private static final int RTT_WINDOW = 64;
+
+  // Runs the deadline timers for all instances.
+  private static final ScheduledThreadPoolExecutor timer = makeTimer();
+
+  private static ScheduledThreadPoolExecutor makeTimer() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setName("DeadlineTimer");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /**
+   * Reported to the Callback in place of a response when a query is dropped without being sent.
+   */
+  static class ShedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ShedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Reported to the Callback in place of a response when a query's deadline expires.  The call
+   * has been canceled.
+   */
+  static class DeadlineExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final long deadlineMs;
+
+    DeadlineExceededException(long deadlineMs) {
+      super("No response within " + deadlineMs + " ms");
+      this.deadlineMs = deadlineMs;
+    }
+  }
+
+  // Attached to each request as a tag, to measure its time in the queue.
+  private static class Ticket {
+    final long queryTime;
+    final long enqueueTime;
+    final long deadlineMs;
+    // The time when the call left the queue, or -1 if it is still queued.
+    volatile long sendTime = -1;
+
+    Ticket(long queryTime, long enqueueTime, long deadlineMs) {
+      this.queryTime = queryTime;
+      this.enqueueTime = enqueueTime;
+      this.deadlineMs = deadlineMs;
+    }
+  }
+
+  /**
+   * Delivers exactly one result to the caller: the call's own result, or a
+   * DeadlineExceededException if the deadline expires first.
+   */
+  private class DeadlineCallback implements Callback, Runnable {
+    private final Callback cb;
+    private final Ticket ticket;
+    private Call call = null;
+    private ScheduledFuture<?> deadlineTimer = null;
+    private boolean done = false;
+
+    DeadlineCallback(Callback cb, Ticket ticket) {
+      this.cb = cb;
+      this.ticket = ticket;
+    }
+
+    synchronized void start(Call call) {
+      this.call = call;
+      if (!done) {
+        deadlineTimer = timer.schedule(this, ticket.deadlineMs, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    // Returns true if the caller has not been given a result yet.
+    private synchronized boolean finish() {
+      if (done) {
+        return false;
+      }
+      done = true;
+      if (deadlineTimer != null) {
+        deadlineTimer.cancel(false);
+      }
+      return true;
+    }
+
+    // Runs on the timer thread when the deadline expires.
+    @Override
+    public void run() {
+      Call expired;
+      synchronized (this) {
+        expired = call;
+      }
+      if (!finish()) {
+        return;
+      }
+      long sendTime = ticket.sendTime;
+      if (sendTime >= 0) {
+        // The true round-trip time is at least as long as the server has had the query.  Counting
+        // that as a sample lets the deadline grow when the server slows down.  Time spent in the
+        // queue says nothing about the server, so queries that were never sent are not counted.
+        rtt.addSample(SystemClock.elapsedRealtime() - sendTime);
+      }
+      ConnectionHealthTracker tracker = healthTracker;
+      if (tracker != null) {
+        // Canceling the call only reports an IOException, so report the stall first.
+        tracker.onStall(expired);
+      }
+      expired.cancel();
+      cb.onFailure(expired, new DeadlineExceededException(ticket.deadlineMs));
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      if (finish()) {
+        cb.onFailure(call, e);
+      }
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) throws IOException {
+      if (!finish()) {
+        response.close();
+        return;
+      }
+      cb.onResponse(call, response);
+    }
+  }
+
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final long maxQueryAgeMs;
+  private final long minDeadlineMs;
+  private final long maxDeadlineMs;
+  // Time from leaving the queue to receiving the response headers, on the current network.
+  private volatile RttEstimator rtt = newRttEstimator();
+  // The dispatcher of the most recently configured client.
+  private volatile Dispatcher dispatcher = null;
+  // Told about queries that stall until their deadline.
+  private volatile ConnectionHealthTracker healthTracker = null;
+
+  UpstreamDispatcher() {
+    this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_QUEUED, DEFAULT_MAX_QUERY_AGE_MS);
+  }
+
+  /**
+   * @param maxInFlight The maximum number of concurrent requests to the server.
+   * @param maxQueued The maximum number of queries waiting to be sent.
+   * @param maxQueryAgeMs Queries that have waited longer than this, since they were received from
+   *     the client, are dropped instead of sent.
+   */
+  UpstreamDispatcher(int maxInFlight, int maxQueued, long maxQueryAgeMs) {
+    this(maxInFlight, maxQueued, maxQueryAgeMs, DEFAULT_MIN_DEADLINE_MS, DEFAULT_MAX_DEADLINE_MS);
+  }
+
+  /**
+   * @param minDeadlineMs The shortest deadline that will be set for a query.
+   * @param maxDeadlineMs The longest deadline that will be set for a query.  Also used until the
+   *     server's round-trip time has been measured.
+   */
+  UpstreamDispatcher(int maxInFlight, int maxQueued, long maxQueryAgeMs, long minDeadlineMs,
+      long maxDeadlineMs) {
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    this.maxQueryAgeMs = maxQueryAgeMs;
+    this.minDeadlineMs = minDeadlineMs;
+    this.maxDeadlineMs = maxDeadlineMs;
+  }
+
+  static RttEstimator newRttEstimator() {
+    return new RttEstimator(RTT_WINDOW);
+  }
+
+  /**
+   * @return The round-trip times that set the deadlines.
+   */
+  RttEstimator getRttEstimator() {
+    return rtt;
+  }
+
+  /**
+   * Replaces the round-trip times that set the deadlines, e.g. after a network change.
+   */
+  void setRttEstimator(RttEstimator rtt) {
+    this.rtt = rtt;
+  }
+
+  /**
+   * @return The deadline for a query sent now, measured from when it is enqueued.
+   */
+  long getDeadlineMs() {
+    long deadline = rtt.getQuantile(DEADLINE_QUANTILE, maxDeadlineMs) * DEADLINE_MULTIPLIER;
+    return Math.max(minDeadlineMs, Math.min(maxDeadlineMs, deadline));
+  }
+
+  /**
+   * Installs a new Dispatcher and the shedding interceptor on |builder|.
+   */
+  OkHttpClient.Builder configure(OkHttpClient.Builder builder) {
+    return configure(builder, null);
+  }
+
+  /**
+   * Like configure(builder), and also installs |healthTracker| as the client's EventListener.
+   * Queries whose deadline expires are reported to it as stalls.
+   */
+  OkHttpClient.Builder configure(OkHttpClient.Builder builder,
+      ConnectionHealthTracker healthTracker) {
+    this.healthTracker = healthTracker;
+    if (healthTracker != null) {
+      builder.eventListener(healthTracker);
+    }
+    Dispatcher d = new Dispatcher();
+    d.setMaxRequests(maxInFlight);
+    // Every request from a ServerConnection goes to the same host.
+    d.setMaxRequestsPerHost(maxInFlight);
+    dispatcher = d;
+    return builder.dispatcher(d).addInterceptor(this);
+  }
+
+  /**
+   * Sends a query on |client|, which must have been built with configure(), or fails it
+   * immediately if the queue is full.  If there is no response before the query's deadline, the
+   * call is canceled and |cb| receives a DeadlineExceededException.
+   * @return The call, which has either been enqueued or already failed.
+   */
+  Call enqueue(OkHttpClient client, Request request, DnsUdpQuery metadata, Callback cb) {
+    long now = SystemClock.elapsedRealtime();
+    Ticket ticket = new Ticket(metadata.timestamp, now, getDeadlineMs());
+    Request tagged = request.newBuilder()
+        .tag(Ticket.class, ticket)
+        .build();
+    Call call = client.newCall(tagged);
+    // The check and the enqueue are not atomic, so a burst can briefly overfill the queue.
+    if (client.dispatcher().queuedCallsCount() >= maxQueued) {
+      cb.onFailure(call, new ShedException("Upstream queue is full"));
+      return call;
+    }
+    DeadlineCallback deadlineCallback = new DeadlineCallback(cb, ticket);
+    call.enqueue(deadlineCallback);
+    deadlineCallback.start(call);
+    return call;
+  }
+
+  // Runs on the dispatcher's thread after the call leaves the queue, before any network activity.
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    Ticket ticket = request.tag(Ticket.class);
+    if (ticket == null) {
+      return chain.proceed(request);
+    }
+    long now = SystemClock.elapsedRealtime();
+    if (now - ticket.queryTime > maxQueryAgeMs) {
+      throw new ShedException("Query expired in the upstream queue");
+    }
+    ticket.sendTime = now;
+    Dispatcher d = dispatcher;
+    int inFlight = d != null ? d.runningCallsCount() : 0;
+    Response response = chain.proceed(request);
+    if (response.cacheResponse() == null || response.networkResponse() != null) {
+      // Responses from the local HTTP cache say nothing about the server's round-trip time.
+      rtt.addSample(SystemClock.elapsedRealtime() - now);
+    }
+    return response.newBuilder()
+        .header(QUEUE_WAIT_HEADER, Long.toString(now - ticket.enqueueTime))
+        .header(IN_FLIGHT_HEADER, Integer.toString(inFlight))
+        .header(DEADLINE_HEADER, Long.toString(ticket.deadlineMs))
+        .build();
+  }
+
+  /**
+   * @return The number of queries currently being sent.
+   */
+  int getInFlightCount() {
+    Dispatcher d = dispatcher;
+    return d != null ? d.runningCallsCount() : 0;
+  }
+
+  /**
+   * @return The number of queries waiting to be sent.
+   */
+  int getQueuedCount() {
+    Dispatcher d = dispatcher;
+    return d != null ? d.queuedCallsCount() : 0;
+  }
+}
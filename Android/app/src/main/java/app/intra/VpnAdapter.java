@@ -1,5 +1,7 @@
 package app.intra;
 
+import app.intra.util.QueryRateLimiter;
+
 /**
  * Abstract class representing a VPN Adapter, for use by DnsVpnService.  For our purposes, a
  * VpnAdapter is just a thread that can safely be stopped at any time.
@@ -12,6 +14,13 @@ public abstract class VpnAdapter extends Thread {
     super(name);
   }
 
+  /**
+   * @return The rate limiter for incoming queries, or null if the adapter doesn't limit them.
+   */
+  public QueryRateLimiter getRateLimiter() {
+    return null;
+  }
+
   /**
    * Perform a safe shutdown.
    */
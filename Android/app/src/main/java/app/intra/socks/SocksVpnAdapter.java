@@ -18,6 +18,7 @@ import app.intra.DnsVpnService;
 import app.intra.LocalhostResolver;
 import app.intra.VpnAdapter;
 import app.intra.util.LogWrapper;
+import app.intra.util.QueryRateLimiter;
 import app.intra.util.SafeTun2Socks;
 import sockslib.common.methods.NoAuthenticationRequiredMethod;
 
@@ -157,6 +158,11 @@ public class SocksVpnAdapter extends VpnAdapter {
     }
   }
 
+  @Override
+  public QueryRateLimiter getRateLimiter() {
+    return resolver.getRateLimiter();
+  }
+
   @Override
   public void close() {
     // Stop the thread.
@@ -1,72 +1,53 @@
 package app.intra.util;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 public class BlockedSites {
-    private static Site[] list = null;
+    // The compiled blocklist, as written by the compileBlocklists task in app/build.gradle.  It is
+    // stored uncompressed in the APK so that it can be memory-mapped.
+    public static final String ASSET_NAME = "sites.blocklist";
+    // Replaced as a whole by loadSites(), and read without locking.
+    private static volatile DomainTrie sites = null;
     public enum Category {
         UNKNOWN,
         ANNOYING,
         PROCRASTINATION,
         NEWS
     }
-    public static class Site implements Comparable<Site> {
-        public final char[] url;
-        public final Category category;
-        public static String reverseUrl(String original) {
-            String[] pieces = original.split("\\x2E");
-            StringBuilder builder = new StringBuilder();
-            for (int i = pieces.length - 1; i >= 0; i--) {
-                if (pieces[i].length() == 0)
-                    continue;
-                builder.append(".");
-                builder.append(pieces[i]);
-            }
-            return builder.toString();
-        }
-        public Site(String url, Category category) {
-            this.url = reverseUrl(url).toLowerCase().toCharArray();
-            this.category = category;
-        }
-        @Override
-        public int compareTo(Site other) {
-            int lim = Math.min(url.length, other.url.length);
-            for (int i = 0; i < lim; i++) {
-                if (url[i] == '*' || other.url[i] == '*')
-                    return 0;
-                if (url[i] != other.url[i])
-                    return url[i] - other.url[i];
-            }
-            return url.length - other.url.length;
-        }
-    }
-    public static void loadSites(boolean forceReload) {
-        if (list != null && !forceReload)
-            return;
-        List<Site> sites = new ArrayList<>();
-        sites.add(new Site("*.advertising.com",
-                Category.ANNOYING));
-        sites.add(new Site("*.facebook.com",
-                Category.ANNOYING));
-        sites.add(new Site("*.facebook.net",
-                Category.ANNOYING));
-        sites.add(new Site("*.criteo.com",
-                Category.ANNOYING));
-        sites.add(new Site("*.doubleclick.net",
-                Category.ANNOYING));
-        sites.add(new Site("*.qq.com",
-                Category.ANNOYING));
+    // Category.values() returns a new array on each call.
+    private static final Category[] CATEGORIES = Category.values();
 
-        list = sites.toArray(new Site[0]);
-        Arrays.sort(list);
+    public static boolean isLoaded() {
+        return sites != null;
+    }
+    /**
+     * Memory-maps a compiled blocklist and uses it in place, so loading takes constant time and
+     * heap, however long the list is.  The mapping stays valid after |fd| is closed.
+     * @param fd A file containing the blocklist, e.g. from AssetManager.openFd(ASSET_NAME).
+     * @param offset The blocklist's offset in the file.
+     * @param length The blocklist's length in bytes.
+     * @throws IOException if the file can't be mapped, or doesn't hold a blocklist.
+     */
+    public static void loadSites(FileDescriptor fd, long offset, long length)
+            throws IOException {
+        FileChannel channel = new FileInputStream(fd).getChannel();
+        DomainTrie trie = DomainTrie.read(
+                channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+        sites = trie;
     }
+    // Doesn't allocate, so it is cheap enough to call for every query.
     public static Category getUrlCategory(String url) {
-        int foundIdx = Arrays.binarySearch(
-                list, new Site(url, Category.UNKNOWN));
-        if (foundIdx < 0)
+        DomainTrie current = sites;
+        if (current == null)
+            return Category.UNKNOWN;
+        int value = current.lookup(url);
+        // Values are category ordinals, so a list compiled for a newer set of categories may have
+        // values that this version doesn't know.
+        if (value >= CATEGORIES.length)
             return Category.UNKNOWN;
-        return list[foundIdx].category;
+        return CATEGORIES[value];
     }
 }
@@ -16,8 +16,9 @@ limitations under the License.
 package app.intra.util;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -27,61 +28,151 @@ import java.util.Random;
  * Low Hamming distance is taken as an indication of correlated failure.  In the most significant
  * bits, this would happen if an entire subnet become unusable.  In the least significant bits, this
  * would indicate a change to a configuration that is replicated across many subnets.
+ *
+ * Each choice costs O(n): the minimum distances are updated incrementally with one XOR and popcount
+ * per word, and the upper half is found with a quickselect rather than a full sort.
  */
 public final class DiversitySampler {
 
-  private class Pair implements Comparable<Pair> {
+  // Each address as one (IPv4) or two (IPv6) words, with address i at words [i * width, (i + 1) *
+  // width).
+  private final long[] words;
+  private final int width;
+  private final int addressLength;
+  // The original addresses, or null if they are created on demand from |words|.
+  private final InetAddress[] addresses;
+  // The hamming distance of each address to the nearest address in the sample.
+  private final int[] distances;
+  // A permutation of the address indices.  After each choice, the second half holds the addresses
+  // with the largest distances, in no particular order.
+  private final int[] order;
+  private final Random random = new Random();
+
+  /**
+   * @param values Addresses of a single family.
+   */
+  public DiversitySampler(List<InetAddress> values) {
+    this(pack(values), values.isEmpty() ? 4 : values.get(0).getAddress().length,
+        values.toArray(new InetAddress[values.size()]));
+  }
 
-    public InetAddress address;
-    // The hamming distance of this value to the nearest value in the sample.
-    public int distance = Integer.MAX_VALUE;
+  /**
+   * Samples from addresses stored as raw 4- or 16-byte addresses, back-to-back, as read by
+   * PackedAddresses.readPacked().  InetAddress objects are only created for the chosen addresses.
+   */
+  public static DiversitySampler fromPacked(byte[] packed, int addressLength) {
+    return new DiversitySampler(packed, addressLength, null);
+  }
 
-    Pair(InetAddress address) {
-      this.address = address;
+  private DiversitySampler(byte[] packed, int addressLength, InetAddress[] addresses) {
+    this.addressLength = addressLength;
+    this.addresses = addresses;
+    width = addressLength / 8 + (addressLength % 8 == 0 ? 0 : 1);
+    int n = packed.length / addressLength;
+    words = new long[n * width];
+    ByteBuffer buffer = ByteBuffer.wrap(packed);
+    for (int i = 0; i < n; ++i) {
+      if (addressLength == 4) {
+        words[i] = buffer.getInt() & 0xFFFFFFFFL;
+      } else {
+        for (int w = 0; w < width; ++w) {
+          words[i * width + w] = buffer.getLong();
+        }
+      }
+    }
+    distances = new int[n];
+    Arrays.fill(distances, Integer.MAX_VALUE);
+    order = new int[n];
+    for (int i = 0; i < n; ++i) {
+      order[i] = i;
     }
+    // Shuffle, so that ties are broken at random.
+    for (int i = n - 1; i > 0; --i) {
+      swap(order, i, random.nextInt(i + 1));
+    }
+  }
 
-    @Override
-    public int compareTo(Pair other) {
-      return distance - other.distance;
+  private static byte[] pack(List<InetAddress> values) {
+    int length = values.isEmpty() ? 4 : values.get(0).getAddress().length;
+    ByteBuffer buffer = ByteBuffer.allocate(values.size() * length);
+    for (InetAddress value : values) {
+      buffer.put(value.getAddress());
     }
+    return buffer.array();
   }
 
-  // A list of addresses, maintained in sorted order by distance.
-  private List<Pair> population;
-  private Random random = new Random();
+  private static void swap(int[] a, int i, int j) {
+    int t = a[i];
+    a[i] = a[j];
+    a[j] = t;
+  }
 
-  private static int hammingDistance(InetAddress a, InetAddress b) {
-    byte[] aBytes = a.getAddress();
-    byte[] bBytes = b.getAddress();
+  private int hammingDistance(int a, int b) {
     int d = 0;
-    for (int i = 0; i < aBytes.length; ++i) {
-      d += Integer.bitCount((aBytes[i] ^ bBytes[i]) & 0xff);
+    for (int w = 0; w < width; ++w) {
+      d += Long.bitCount(words[a * width + w] ^ words[b * width + w]);
     }
     return d;
   }
 
-  public DiversitySampler(List<InetAddress> values) {
-    population = new ArrayList<>(values.size());
-    for (int i = 0; i < values.size(); ++i) {
-      population.add(new Pair(values.get(i)));
+  // Rearranges order[lo, hi) so that order[k] holds the address with the k-th smallest distance,
+  // with smaller-or-equal distances before it and larger-or-equal ones after it (quickselect).
+  private void select(int lo, int hi, int k) {
+    while (hi - lo > 1) {
+      int pivot = distances[order[lo + random.nextInt(hi - lo)]];
+      // Three-way partition: [lo, lt) < pivot, [lt, gt) == pivot, [gt, hi) > pivot.
+      int lt = lo;
+      int gt = hi;
+      int i = lo;
+      while (i < gt) {
+        int d = distances[order[i]];
+        if (d < pivot) {
+          swap(order, lt++, i++);
+        } else if (d > pivot) {
+          swap(order, i, --gt);
+        } else {
+          ++i;
+        }
+      }
+      if (k < lt) {
+        hi = lt;
+      } else if (k >= gt) {
+        lo = gt;
+      } else {
+        return;
+      }
     }
-    Collections.shuffle(population);
   }
 
   public InetAddress choose() {
     // Choose at random from the upper half of the population
-    int start = population.size() / 2;
-    int index = start + random.nextInt(population.size() - start);
-    InetAddress choice = population.get(index).address;
-
-    // Recompute minimum distances
-    for (Pair p : population) {
-      p.distance = Math.min(p.distance, hammingDistance(choice, p.address));
+    int n = order.length;
+    int start = n / 2;
+    select(0, n, start);
+    int index = order[start + random.nextInt(n - start)];
+
+    // Update the minimum distances
+    for (int i = 0; i < n; ++i) {
+      distances[i] = Math.min(distances[i], hammingDistance(index, i));
     }
 
-    // Put the population in order by minimum distance again.
-    Collections.sort(population);
+    return getAddress(index);
+  }
 
-    return choice;
+  private InetAddress getAddress(int index) {
+    if (addresses != null) {
+      return addresses[index];
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(width * 8);
+    for (int w = 0; w < width; ++w) {
+      buffer.putLong(words[index * width + w]);
+    }
+    byte[] bytes = Arrays.copyOfRange(buffer.array(), width * 8 - addressLength, width * 8);
+    try {
+      return InetAddress.getByAddress(bytes);
+    } catch (UnknownHostException e) {
+      // Only thrown for an invalid length.
+      throw new IllegalStateException(e);
+    }
   }
 }
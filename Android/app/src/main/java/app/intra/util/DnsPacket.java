@@ -21,6 +21,7 @@ import java.net.UnknownHostException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -33,6 +34,18 @@ public class DnsPacket {
 
   private static final short TYPE_A = 1;
   private static final short TYPE_AAAA = 28;
+  // The TTL field of an EDNS0 OPT pseudo-record holds flags, not a TTL.
+  private static final short TYPE_OPT = 41;
+  // The DNSSEC OK bit, in the flags that an OPT record carries in its TTL field.
+  private static final int DO_FLAG = 0x8000;
+  // The bits of the second flag byte that must be zero.  The AD and CD bits may be set in queries
+  // (RFC 6840 Sections 5.7 and 5.9).
+  private static final byte Z_MASK = 0x4;
+
+  public static final byte RCODE_NOERROR = 0;
+  public static final byte RCODE_SERVFAIL = 2;
+  public static final byte RCODE_NXDOMAIN = 3;
+  public static final byte RCODE_REFUSED = 5;
 
   private static class DnsQuestion {
 
@@ -47,6 +60,8 @@ public class DnsPacket {
     short rtype;
     short rclass;
     int ttl;
+    // Position of the TTL field within the packet.
+    int ttlOffset;
     byte[] data;
   }
 
@@ -58,6 +73,7 @@ public class DnsPacket {
   private boolean rd;
   private boolean ra;
   private byte z;
+  private boolean cd;
   private byte rcode;
   private DnsQuestion[] question;
   private DnsRecord[] answer;
@@ -109,6 +125,7 @@ public class DnsPacket {
       r.name = readName(src);
       r.rtype = src.getShort();
       r.rclass = src.getShort();
+      r.ttlOffset = src.position();
       r.ttl = src.getInt();
       r.data = new byte[src.getShort()];
       src.get(r.data);
@@ -149,11 +166,13 @@ public class DnsPacket {
       final int RA_BIT = 7;
       final int ZEROS_START = 4;
       final int ZEROS_SIZE = 3;
+      final int CD_BIT = 4;
       final int RCODE_START = 0;
       final int RCODE_SIZE = 4;
       byte flags2 = buffer.get();
       ra = getBit(flags2, RA_BIT);
       z = getBits(flags2, ZEROS_START, ZEROS_SIZE);
+      cd = getBit(flags2, CD_BIT);
       rcode = getBits(flags2, RCODE_START, RCODE_SIZE);
 
       short numQuestions = buffer.getShort();
@@ -181,13 +200,42 @@ public class DnsPacket {
   }
 
   public boolean isNormalQuery() {
-    return !qr && question.length > 0 && z == 0 && authority.length == 0 && answer.length == 0;
+    return !qr && question.length > 0 && (z & Z_MASK) == 0 && authority.length == 0
+        && answer.length == 0;
   }
 
   public boolean isResponse() {
     return qr;
   }
 
+  public boolean isTruncated() {
+    return tc;
+  }
+
+  public byte getRcode() {
+    return rcode;
+  }
+
+  /**
+   * @return True if the Checking Disabled bit is set, which asks the server not to validate DNSSEC.
+   */
+  public boolean isCheckingDisabled() {
+    return cd;
+  }
+
+  /**
+   * @return True if the packet has an EDNS0 OPT record with the DNSSEC OK bit set, which asks for
+   * DNSSEC records in the response.
+   */
+  public boolean isDnssecOk() {
+    for (DnsRecord r : additional) {
+      if (r.rtype == TYPE_OPT && (r.ttl & DO_FLAG) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public String getQueryName() {
     if (question.length > 0) {
       return question[0].name;
@@ -202,6 +250,52 @@ public class DnsPacket {
     return 0;
   }
 
+  /**
+   * @return The offset in the packet of every TTL field in the answer, authority, and additional
+   * sections, skipping the EDNS0 OPT pseudo-record.  TTL fields are 32-bit big-endian integers.
+   */
+  public int[] getTtlOffsets() {
+    int count = 0;
+    int[] offsets = new int[answer.length + authority.length + additional.length];
+    for (DnsRecord[] src : new DnsRecord[][]{answer, authority, additional}) {
+      for (DnsRecord r : src) {
+        if (r.rtype != TYPE_OPT) {
+          offsets[count++] = r.ttlOffset;
+        }
+      }
+    }
+    return Arrays.copyOf(offsets, count);
+  }
+
+  /**
+   * Copies the question name of |query| into |response|, if the two names differ only in case.
+   * Clients that randomize the case of their queries (draft-vixie-dnsext-dns0x20) reject answers
+   * that don't echo it, so a cached response has to take on the case of each new query.
+   * @param query A DNS query, starting with the ID.
+   * @param response A response to the same question, which will be modified.
+   */
+  public static void copyQuestionName(byte[] query, byte[] response) {
+    final int QUESTION_START = 12;
+    int end = QUESTION_START;
+    // The question is the first name in the packet, so it is never compressed.
+    while (end < query.length && query[end] > 0) {
+      end += query[end] + 1;
+    }
+    if (end >= query.length || query[end] != 0 || end >= response.length) {
+      return;
+    }
+    for (int i = QUESTION_START; i < end; ++i) {
+      if (toLowerCase(query[i]) != toLowerCase(response[i])) {
+        return;
+      }
+    }
+    System.arraycopy(query, QUESTION_START, response, QUESTION_START, end - QUESTION_START);
+  }
+
+  private static byte toLowerCase(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + 'a' - 'A') : b;
+  }
+
   public List<InetAddress> getResponseAddresses() {
     List<InetAddress> addresses = new ArrayList<>();
     for (DnsRecord[] src : new DnsRecord[][]{answer, authority}) {
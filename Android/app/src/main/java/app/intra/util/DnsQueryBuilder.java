@@ -0,0 +1,96 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Static class for constructing DNS queries that don't originate from a client, e.g. cache
+ * prefetches, and error responses that don't originate from a server.
+ */
+public class DnsQueryBuilder {
+  private static final int HEADER_SIZE = 12;
+  private static final int MAX_LABEL_LENGTH = 63;
+  private static final int MAX_NAME_LENGTH = 255;
+  private static final short CLASS_IN = 1;
+  private static final byte FLAGS_RD = 1;
+  private static final byte FLAGS_QR = (byte) 0x80;
+  private static final byte FLAGS_RA = (byte) 0x80;
+
+  /**
+   * @param name The query name, with or without the trailing dot.
+   * @param type The query type, e.g. 1 for A.
+   * @return A query packet with ID 0 and recursion desired.
+   * @throws ProtocolException if |name| is not a valid ASCII hostname.
+   */
+  public static byte[] build(String name, short type) throws ProtocolException {
+    String[] labels = name.split("\\.");
+    int nameSize = 1;  // Terminating zero-length label.
+    for (String label : labels) {
+      if (label.isEmpty()) {
+        continue;
+      }
+      if (label.length() > MAX_LABEL_LENGTH) {
+        throw new ProtocolException("Label too long");
+      }
+      nameSize += 1 + label.length();
+    }
+    if (nameSize > MAX_NAME_LENGTH) {
+      throw new ProtocolException("Name too long");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + nameSize + 4);
+    buffer.putShort((short) 0);  // ID
+    buffer.put(FLAGS_RD);
+    buffer.put((byte) 0);
+    buffer.putShort((short) 1);  // QDCOUNT
+    buffer.putShort((short) 0);  // ANCOUNT
+    buffer.putShort((short) 0);  // NSCOUNT
+    buffer.putShort((short) 0);  // ARCOUNT
+    for (String label : labels) {
+      if (label.isEmpty()) {
+        continue;
+      }
+      buffer.put((byte) label.length());
+      for (int i = 0; i < label.length(); ++i) {
+        char c = label.charAt(i);
+        if (c > 127) {
+          throw new ProtocolException("Non-ASCII name");
+        }
+        buffer.put((byte) c);
+      }
+    }
+    buffer.put((byte) 0);
+    buffer.putShort(type);
+    buffer.putShort(CLASS_IN);
+    return buffer.array();
+  }
+
+  /**
+   * @param name The query name, with or without the trailing dot.
+   * @param type The query type, e.g. 1 for A.
+   * @param rcode The response code, e.g. DnsPacket.RCODE_SERVFAIL.
+   * @return A response with ID 0, the question, no records, and the given response code.
+   * @throws ProtocolException if |name| is not a valid ASCII hostname.
+   */
+  public static byte[] buildError(String name, short type, byte rcode) throws ProtocolException {
+    byte[] response = build(name, type);
+    response[2] |= FLAGS_QR;
+    response[3] = (byte) (FLAGS_RA | (rcode & 0xF));
+    return response;
+  }
+}
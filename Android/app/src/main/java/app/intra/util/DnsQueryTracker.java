@@ -18,32 +18,87 @@ package app.intra.util;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import static android.content.Context.MODE_PRIVATE;
 
 /**
  * A class for tracking DNS transactions.  This class counts the number of successful transactions,
  * records the last minute of query timestamps, and optionally maintains a history of recent
- * transactions.
+ * transactions.  While history is enabled, it also keeps a decaying summary of the most popular
+ * queries, which is saved to app-private storage so that the cache can be warmed up at startup.
+ * Disabling history deletes the summary.
  * Thread-safe.
  */
 public class DnsQueryTracker {
 
+  private static final String LOG_TAG = "DnsQueryTracker";
   private static final String NUM_REQUESTS = "numRequests";
 
   private static final int HISTORY_SIZE = 100;
   private static final int ACTIVITY_MEMORY_MS = 60 * 1000;  // One minute
 
+  private static final String SKETCH_FILE = "query_sketch";
+  private static final int SKETCH_CAPACITY = 256;
+  private static final long SKETCH_HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;  // One week
+  // Queries in this period after startup count towards the startup cache hit rate.
+  private static final long STARTUP_WINDOW_MS = 10 * 60 * 1000;  // Ten minutes
+
+  // Writes snapshots of the sketch to storage, in order, so that the query path never waits for file
+  // I/O.
+  private static final ExecutorService sketchWriter = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = Executors.defaultThreadFactory().newThread(r);
+          t.setName(LOG_TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
   private long numRequests = 0;
+  private long numCacheHits = 0;
+  private long numTtlPolicySavings = 0;
+  private long numShed = 0;
+  private long numRateLimited = 0;
+  private long numTimeouts = 0;
+  private long numSent = 0;
+  private long totalQueueWaitMs = 0;
+  private long maxQueueWaitMs = 0;
+  private int maxInFlight = 0;
   private Queue<DnsTransaction> recentTransactions = new LinkedList<>();
   private Queue<Long> recentActivity = new LinkedList<>();
   private boolean historyEnabled = false;
+  private final QueryFrequencySketch sketch =
+      new QueryFrequencySketch(SKETCH_CAPACITY, SKETCH_HALF_LIFE_MS);
+  private long startupWindowEnd = 0;
+  private long numStartupQueries = 0;
+  private long numStartupCacheHits = 0;
+  private long startupTime = 0;
+  private long timeToFirstAnswerMs = -1;
+  // Time spent answering queries with the unprotected fallback resolver since the most recent
+  // startup, not counting the current fallback, which started at |fallbackStartTime| if active.
+  private long unprotectedMs = 0;
+  private boolean fallbackActive = false;
+  private long fallbackStartTime = 0;
 
   public DnsQueryTracker(Context context) {
+    // History starts out disabled, so the stored sketch isn't loaded until it is enabled.
     sync(context);
   }
 
@@ -51,6 +106,140 @@ public class DnsQueryTracker {
     return numRequests;
   }
 
+  /**
+   * @return The number of queries answered from the local cache since the process started.
+   */
+  public synchronized long getNumCacheHits() {
+    return numCacheHits;
+  }
+
+  /**
+   * @return The number of cache hits that would have been upstream queries without the TTL floor.
+   */
+  public synchronized long getNumTtlPolicySavings() {
+    return numTtlPolicySavings;
+  }
+
+  /**
+   * @return The number of queries dropped because the upstream queue was overloaded.
+   */
+  public synchronized long getNumShed() {
+    return numShed;
+  }
+
+  /**
+   * @return The number of queries that were refused because their source sent too many.  Queries
+   * that were dropped without an answer aren't recorded, so they aren't counted.
+   */
+  public synchronized long getNumRateLimited() {
+    return numRateLimited;
+  }
+
+  /**
+   * @return The number of queries that were answered with SERVFAIL after their deadline expired.
+   */
+  public synchronized long getNumTimeouts() {
+    return numTimeouts;
+  }
+
+  /**
+   * @return The mean time that answered upstream queries spent waiting to be sent, in ms.
+   */
+  public synchronized double getMeanQueueWaitMs() {
+    if (numSent == 0) {
+      return 0;
+    }
+    return (double) totalQueueWaitMs / numSent;
+  }
+
+  public synchronized long getMaxQueueWaitMs() {
+    return maxQueueWaitMs;
+  }
+
+  /**
+   * @return The largest number of concurrent upstream requests seen since the process started.
+   */
+  public synchronized int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * @return Up to |n| of the most popular queries, most popular first.  Empty while history is
+   * disabled.
+   */
+  public synchronized List<QueryFrequencySketch.Query> getTopQueries(int n) {
+    return sketch.getTop(n);
+  }
+
+  /**
+   * Start measuring the cache hit rate for a new startup.
+   * @param startTime The startup time, according to SystemClock.elapsedRealtime().
+   */
+  public synchronized void onStartup(long startTime) {
+    startupWindowEnd = startTime + STARTUP_WINDOW_MS;
+    numStartupQueries = 0;
+    numStartupCacheHits = 0;
+    startupTime = startTime;
+    timeToFirstAnswerMs = -1;
+    unprotectedMs = 0;
+  }
+
+  /**
+   * Records the start or end of a fallback to the unprotected resolver.
+   * @param active True if the fallback started, false if it ended.
+   * @param now The current time, according to SystemClock.elapsedRealtime().
+   */
+  public synchronized void onFallbackChanged(boolean active, long now) {
+    if (active == fallbackActive) {
+      return;
+    }
+    fallbackActive = active;
+    if (active) {
+      fallbackStartTime = now;
+    } else {
+      unprotectedMs += now - Math.max(fallbackStartTime, startupTime);
+    }
+  }
+
+  /**
+   * @param now The current time, according to SystemClock.elapsedRealtime().
+   * @return The time since the most recent startup that queries were answered by the unprotected
+   * fallback resolver, in ms.
+   */
+  public synchronized long getUnprotectedMs(long now) {
+    if (!fallbackActive) {
+      return unprotectedMs;
+    }
+    return unprotectedMs + now - Math.max(fallbackStartTime, startupTime);
+  }
+
+  /**
+   * @param now The current time, according to SystemClock.elapsedRealtime().
+   * @return The time since the most recent startup that queries were protected, in ms.
+   */
+  public synchronized long getProtectedMs(long now) {
+    return now - startupTime - getUnprotectedMs(now);
+  }
+
+  /**
+   * @return The time from the most recent startup until the first successful answer to a query that
+   * arrived after it, in ms, or -1 if there has been no such answer yet.
+   */
+  public synchronized long getTimeToFirstAnswerMs() {
+    return timeToFirstAnswerMs;
+  }
+
+  /**
+   * @return The fraction of successful queries after the most recent startup that were answered
+   * from the cache, or 0 if there have been none.
+   */
+  public synchronized double getStartupHitRate() {
+    if (numStartupQueries == 0) {
+      return 0;
+    }
+    return (double) numStartupCacheHits / numStartupQueries;
+  }
+
   public synchronized Queue<DnsTransaction> getRecentTransactions() {
     return new LinkedList<>(recentTransactions);
   }
@@ -73,10 +262,15 @@ public class DnsQueryTracker {
     return queries;
   }
 
-  public synchronized void setHistoryEnabled(boolean enabled) {
+  public synchronized void setHistoryEnabled(Context context, boolean enabled) {
+    if (enabled && !historyEnabled) {
+      loadSketch(context);
+    }
     historyEnabled = enabled;
     if (!enabled) {
       recentTransactions.clear();
+      sketch.clear();
+      deleteSketch(context);
     }
   }
 
@@ -95,6 +289,41 @@ public class DnsQueryTracker {
         // excessive disk I/O from syncing the counter to disk after every request.
         sync(context);
       }
+
+      if (transaction.cacheHit) {
+        ++numCacheHits;
+        if (transaction.savedByTtlPolicy) {
+          ++numTtlPolicySavings;
+        }
+      }
+
+      if (timeToFirstAnswerMs < 0 && transaction.queryTime >= startupTime) {
+        timeToFirstAnswerMs = transaction.responseTime - startupTime;
+      }
+
+      if (transaction.queryTime < startupWindowEnd) {
+        ++numStartupQueries;
+        if (transaction.cacheHit) {
+          ++numStartupCacheHits;
+        }
+      }
+
+      if (historyEnabled) {
+        sketch.record(transaction.name, transaction.type, System.currentTimeMillis());
+      }
+
+      if (!transaction.cacheHit) {
+        ++numSent;
+        totalQueueWaitMs += transaction.queueWaitMs;
+        maxQueueWaitMs = Math.max(maxQueueWaitMs, transaction.queueWaitMs);
+        maxInFlight = Math.max(maxInFlight, transaction.inFlight);
+      }
+    } else if (transaction.shed) {
+      ++numShed;
+    } else if (transaction.rateLimited) {
+      ++numRateLimited;
+    } else if (transaction.status == DnsTransaction.Status.TIMEOUT) {
+      ++numTimeouts;
     }
 
     recentActivity.add(transaction.queryTime);
@@ -123,6 +352,62 @@ public class DnsQueryTracker {
       editor.putLong(NUM_REQUESTS, numRequests);
       editor.apply();
     }
+    if (historyEnabled) {
+      // The sketch holds query names, so it is only stored if the user has chosen to keep history.
+      saveSketch(context);
+    }
+  }
+
+  private void loadSketch(Context context) {
+    try {
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(context.openFileInput(SKETCH_FILE)));
+      try {
+        sketch.readFrom(in);
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException e) {
+      // No queries have been recorded yet.
+    } catch (IOException e) {
+      LogWrapper.report(e);
+    }
+  }
+
+  // Takes a snapshot of the sketch, and writes it in the background.  Called with |this| held.
+  private void saveSketch(final Context context) {
+    final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    try {
+      sketch.writeTo(new DataOutputStream(snapshot));
+    } catch (IOException e) {
+      LogWrapper.report(e);
+      return;
+    }
+    sketchWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          OutputStream out = context.openFileOutput(SKETCH_FILE, MODE_PRIVATE);
+          try {
+            snapshot.writeTo(out);
+          } finally {
+            out.close();
+          }
+        } catch (IOException e) {
+          LogWrapper.report(e);
+        }
+      }
+    });
+  }
+
+  // Deletes the stored sketch, after any writes that are still queued.  Called with |this| held.
+  private void deleteSketch(final Context context) {
+    sketchWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        context.deleteFile(SKETCH_FILE);
+      }
+    });
   }
 
 }
@@ -0,0 +1,236 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A cache of DNS responses, keyed by query name, type and flags, with least-recently-used eviction
+ * under a fixed memory budget.  Responses are stored after their TTLs have been clamped by a
+ * TtlPolicy, and the TTLs are counted down when a cached response is served.
+ *
+ * All times are in milliseconds on a monotonic clock supplied by the caller, which allows the
+ * cache to be driven by recorded timestamps as well as by SystemClock.
+ *
+ * Thread-safe.
+ */
+public class DnsResponseCache {
+
+  // Query flags that change the response, so that queries with and without them are cached apart.
+  public static final int FLAG_DNSSEC_OK = 1;
+  public static final int FLAG_CHECKING_DISABLED = 2;
+
+  // Rough per-entry cost of the map node, key, and Entry object, in bytes.
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private static class Entry {
+    final byte[] response;
+    final int[] ttlOffsets;
+    final long storedAt;
+    final int ttl;
+    final int originalTtl;
+
+    Entry(byte[] response, int[] ttlOffsets, long storedAt, int ttl, int originalTtl) {
+      this.response = response;
+      this.ttlOffsets = ttlOffsets;
+      this.storedAt = storedAt;
+      this.ttl = ttl;
+      this.originalTtl = originalTtl;
+    }
+
+    long expiration() {
+      return storedAt + ttl * 1000L;
+    }
+
+    int size(String key) {
+      return ENTRY_OVERHEAD + 2 * key.length() + response.length + 4 * ttlOffsets.length;
+    }
+  }
+
+  /**
+   * A response served from the cache.
+   */
+  public static class Hit {
+    // The response, with ID zero and with TTLs reduced by the time spent in the cache.
+    public final byte[] response;
+    // True if this response would have expired without the TtlPolicy floor.
+    public final boolean savedByTtlPolicy;
+    // When the response was stored, and when it expires, on the caller's clock.
+    public final long storedAt;
+    public final long expiration;
+
+    Hit(byte[] response, boolean savedByTtlPolicy, long storedAt, long expiration) {
+      this.response = response;
+      this.savedByTtlPolicy = savedByTtlPolicy;
+      this.storedAt = storedAt;
+      this.expiration = expiration;
+    }
+  }
+
+  private final long maxBytes;
+  private final TtlPolicy ttlPolicy;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  /**
+   * @param maxBytes Approximate memory budget for the cache.
+   * @param ttlPolicy The policy applied to each response before it is stored.
+   */
+  public DnsResponseCache(long maxBytes, TtlPolicy ttlPolicy) {
+    this.maxBytes = maxBytes;
+    this.ttlPolicy = ttlPolicy;
+  }
+
+  /**
+   * @return How long after it expires a response may still be served.  The app never serves
+   * expired responses, but the cache simulator overrides this to model serve-stale (RFC 8767).
+   */
+  protected long getStaleMs() {
+    return 0;
+  }
+
+  private static String key(String name, short type, int flags) {
+    return name.toLowerCase(Locale.ROOT) + "/" + (type & 0xffff) + "/" + flags;
+  }
+
+  /**
+   * Like put(name, type, flags, response, now), for a query with no flags.
+   */
+  public boolean put(String name, short type, byte[] response, long now) {
+    return put(name, type, 0, response, now);
+  }
+
+  /**
+   * Clamps the TTLs in |response| according to the TtlPolicy, and stores a copy if it is cacheable.
+   * The caller's array is modified in place, so that the client also sees the clamped TTLs.
+   *
+   * @param name The query name
+   * @param type The query type
+   * @param flags The query's FLAG_* bits
+   * @param response A DNS response to that query
+   * @param now The current time
+   * @return True if the response was stored.
+   */
+  public boolean put(String name, short type, int flags, byte[] response, long now) {
+    DnsPacket packet;
+    try {
+      packet = new DnsPacket(response);
+    } catch (ProtocolException e) {
+      return false;
+    }
+    if (!packet.isResponse() || packet.isTruncated()) {
+      return false;
+    }
+    byte rcode = packet.getRcode();
+    if (rcode != DnsPacket.RCODE_NOERROR && rcode != DnsPacket.RCODE_NXDOMAIN) {
+      return false;
+    }
+    int[] ttlOffsets = packet.getTtlOffsets();
+    TtlPolicy.Result ttls = ttlPolicy.apply(name, response, ttlOffsets);
+    if (ttls == null || ttls.clampedTtl <= 0) {
+      // No TTL, so we don't know how long this response may be cached.
+      return false;
+    }
+
+    byte[] copy = Arrays.copyOf(response, response.length);
+    // Zero the ID so that cached responses don't leak information about earlier queries.
+    copy[0] = 0;
+    copy[1] = 0;
+    String key = key(name, type, flags);
+    Entry entry = new Entry(copy, ttlOffsets, now, ttls.clampedTtl, ttls.originalTtl);
+    synchronized (this) {
+      Entry old = entries.put(key, entry);
+      if (old != null) {
+        bytes -= old.size(key);
+      }
+      bytes += entry.size(key);
+      evict();
+    }
+    return true;
+  }
+
+  // Drop least-recently-used entries until the cache is within budget.
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      bytes -= eldest.getValue().size(eldest.getKey());
+      it.remove();
+    }
+  }
+
+  /**
+   * Like get(name, type, flags, now), for a query with no flags.
+   */
+  public Hit get(String name, short type, long now) {
+    return get(name, type, 0, now);
+  }
+
+  /**
+   * @param name The query name
+   * @param type The query type
+   * @param flags The query's FLAG_* bits
+   * @param now The current time
+   * @return A fresh copy of the cached response, or null if there is no servable response.  Its
+   * question name has the case of the query that stored it.
+   */
+  public Hit get(String name, short type, int flags, long now) {
+    String key = key(name, type, flags);
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (now >= entry.expiration() + getStaleMs()) {
+        entries.remove(key);
+        bytes -= entry.size(key);
+        return null;
+      }
+    }
+
+    // Entries are immutable, so the copy can be made outside the lock.
+    int age = (int) ((now - entry.storedAt) / 1000);
+    byte[] response = Arrays.copyOf(entry.response, entry.response.length);
+    ByteBuffer buffer = ByteBuffer.wrap(response);
+    for (int offset : entry.ttlOffsets) {
+      buffer.putInt(offset, Math.max(0, buffer.getInt(offset) - age));
+    }
+    return new Hit(response, age >= entry.originalTtl, entry.storedAt, entry.expiration());
+  }
+
+  /**
+   * @return The approximate memory used by the cache, in bytes.
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+}
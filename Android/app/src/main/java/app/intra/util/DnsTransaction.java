@@ -29,7 +29,8 @@ public class DnsTransaction implements Serializable {
     HTTP_ERROR,
     BAD_RESPONSE,
     INTERNAL_ERROR,
-    CANCELED
+    CANCELED,
+    TIMEOUT
   }
 
   public DnsTransaction(DnsUdpQuery query) {
@@ -46,4 +47,22 @@ public class DnsTransaction implements Serializable {
   public byte[] response;
   public Calendar responseCalendar;
   public String serverIp;
+  // True if the response was served from the local cache instead of the server.
+  public boolean cacheHit = false;
+  // True if the cached response would already have expired under the server's original TTL.
+  public boolean savedByTtlPolicy = false;
+  // True if the query was dropped before it was sent because the upstream queue was overloaded.
+  public boolean shed = false;
+  // True if the query was refused locally because its source exceeded its rate limit.
+  public boolean rateLimited = false;
+  // True if the query was answered in the clear by the network's resolver, because the server was
+  // unreachable.
+  public boolean unprotected = false;
+  // Time the query waited for a free upstream slot, in milliseconds.
+  public long queueWaitMs = 0;
+  // Number of upstream requests in flight when the query was sent, including itself.
+  public int inFlight = 0;
+  // Time allowed for the server to answer before the query failed with TIMEOUT, in milliseconds.
+  // 0 if the query was not sent.
+  public long deadlineMs = 0;
 }
@@ -35,6 +35,9 @@ public class DnsUdpQuery {
   public short sourcePort;
   public short destPort;
   public long timestamp;
+  // Flags that change the response, so that queries differing in them can't share a cached answer.
+  public boolean dnssecOk;
+  public boolean checkingDisabled;
 
   // Returns the question name, type, and id  present in |dnsPacket|, as a DnsUdpQuery object.
   // Assumes the DNS packet has been validated.
@@ -61,6 +64,8 @@ public class DnsUdpQuery {
       return null;
     }
     dnsUdpQuery.requestId = dnsPacket.getId();
+    dnsUdpQuery.dnssecOk = dnsPacket.isDnssecOk();
+    dnsUdpQuery.checkingDisabled = dnsPacket.isCheckingDisabled();
 
     return dnsUdpQuery;
   }
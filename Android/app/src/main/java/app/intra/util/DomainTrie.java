@@ -0,0 +1,376 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of domain patterns, each with a small value, stored as a trie of labels in reverse order,
+ * so that "www.example.com" is found under "com", then "example", then "www".  A pattern is either
+ * an exact name, like "example.com", or a wildcard, like "*.example.com", which matches every
+ * subdomain of example.com, but not example.com itself.  An exact match takes precedence over a
+ * wildcard, and a more specific wildcard over a less specific one.
+ *
+ * The trie is stored in a few flat arrays, so that millions of patterns fit in tens of megabytes.
+ * The nodes are in breadth-first order, so each node's children are contiguous, and sorted by
+ * label.  Each node costs two ints and a byte, and each distinct label is stored once.  Lookups
+ * walk the name's labels from the end, without allocating.
+ *
+ * The arrays are read in place from a single buffer, in the format written by writeTo(), so a
+ * compiled trie can be memory-mapped from a file and used without copying it onto the heap.  All
+ * values are big-endian:
+ *
+ *   int MAGIC, int VERSION, int size, int numNodes, int numLabels, int numLabelBytes
+ *   int labels[numNodes]
+ *   int firstChild[numNodes + 1]
+ *   int labelOffsets[numLabels + 1]
+ *   byte values[numNodes]
+ *   byte labelBytes[numLabelBytes]
+ *
+ * Immutable, and therefore thread-safe.  Use a Builder to create one, or read() to load one.
+ */
+public final class DomainTrie {
+  // The largest value that can be stored.  0 means no value.
+  public static final int MAX_VALUE = 15;
+
+  private static final int MAGIC = 0x49545249;  // "ITRI"
+  private static final int VERSION = 1;
+  private static final int HEADER_INTS = 6;
+
+  // The whole trie, in the format written by writeTo().
+  private final ByteBuffer buffer;
+  // For each node, the ID of its label.  The root has no label.
+  private final IntBuffer labels;
+  // Node i's children are the nodes in [firstChild[i], firstChild[i + 1]).
+  private final IntBuffer firstChild;
+  // For each node, the value of the exact pattern in the low 4 bits, and of the wildcard pattern in
+  // the high 4 bits.
+  private final ByteBuffer values;
+  // Label i is labelBytes[labelOffsets[i], labelOffsets[i + 1]), in lower case.
+  private final IntBuffer labelOffsets;
+  private final ByteBuffer labelBytes;
+  private final int size;
+
+  private DomainTrie(ByteBuffer buffer, int size, int numNodes, int numLabels,
+      int numLabelBytes) {
+    this.buffer = buffer;
+    this.size = size;
+    int position = HEADER_INTS * 4;
+    labels = slice(buffer, position, numNodes * 4).asIntBuffer();
+    position += numNodes * 4;
+    firstChild = slice(buffer, position, (numNodes + 1) * 4).asIntBuffer();
+    position += (numNodes + 1) * 4;
+    labelOffsets = slice(buffer, position, (numLabels + 1) * 4).asIntBuffer();
+    position += (numLabels + 1) * 4;
+    values = slice(buffer, position, numNodes);
+    position += numNodes;
+    labelBytes = slice(buffer, position, numLabelBytes);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(position);
+    duplicate.limit(position + length);
+    return duplicate.slice();
+  }
+
+  /**
+   * Uses a trie written by writeTo() in place.  This only checks the header, so it takes constant
+   * time however large the trie is.
+   * @param buffer The trie, from its position to its limit.  It must not be modified afterwards.
+   * @throws IOException if |buffer| doesn't hold a trie.
+   */
+  public static DomainTrie read(ByteBuffer buffer) throws IOException {
+    ByteBuffer trie = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+    if (trie.remaining() < HEADER_INTS * 4) {
+      throw new IOException("Truncated header");
+    }
+    if (trie.getInt(0) != MAGIC) {
+      throw new IOException("Not a domain trie");
+    }
+    if (trie.getInt(4) != VERSION) {
+      throw new IOException("Unsupported version " + trie.getInt(4));
+    }
+    int size = trie.getInt(8);
+    int numNodes = trie.getInt(12);
+    int numLabels = trie.getInt(16);
+    int numLabelBytes = trie.getInt(20);
+    if (size < 0 || numNodes < 1 || numLabels < 0 || numLabelBytes < 0) {
+      throw new IOException("Bad header");
+    }
+    long length = HEADER_INTS * 4L + numNodes * 4L + (numNodes + 1) * 4L + (numLabels + 1) * 4L
+        + numNodes + numLabelBytes;
+    if (trie.remaining() != length) {
+      throw new IOException("Expected " + length + " bytes, found " + trie.remaining());
+    }
+    return new DomainTrie(trie, size, numNodes, numLabels, numLabelBytes);
+  }
+
+  /**
+   * Writes the trie in the format read by read().
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.clear();
+    byte[] chunk = new byte[8192];
+    while (duplicate.hasRemaining()) {
+      int n = Math.min(chunk.length, duplicate.remaining());
+      duplicate.get(chunk, 0, n);
+      out.write(chunk, 0, n);
+    }
+  }
+
+  /**
+   * @return The size of the trie in bytes, as written by writeTo().
+   */
+  public int getSizeBytes() {
+    return buffer.capacity();
+  }
+
+  /**
+   * @return The number of patterns.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The number of nodes, including the root.
+   */
+  public int getNumNodes() {
+    return values.limit();
+  }
+
+  /**
+   * @param name A domain name, in any case, with or without a trailing dot.
+   * @return The value of the most specific pattern that matches |name|, or 0 if none does.
+   */
+  public int lookup(String name) {
+    int node = 0;
+    int wildcard = 0;
+    int end = name.length();
+    while (end > 0) {
+      int start = name.lastIndexOf('.', end - 1) + 1;
+      if (start < end) {
+        // The rest of the name is a subdomain of |node|'s name.
+        int nodeWildcard = (values.get(node) >> 4) & 0xF;
+        if (nodeWildcard != 0) {
+          wildcard = nodeWildcard;
+        }
+        node = findChild(node, name, start, end);
+        if (node < 0) {
+          return wildcard;
+        }
+      }
+      end = start - 1;
+    }
+    int exact = values.get(node) & 0xF;
+    return exact != 0 ? exact : wildcard;
+  }
+
+  // Returns the child of |node| whose label is name[start, end), or -1 if there is none.
+  private int findChild(int node, String name, int start, int end) {
+    int low = firstChild.get(node);
+    int high = firstChild.get(node + 1) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareLabel(labels.get(mid), name, start, end);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  // Compares label |id| to name[start, end), ignoring the case of the name.
+  private int compareLabel(int id, String name, int start, int end) {
+    int offset = labelOffsets.get(id);
+    int length = labelOffsets.get(id + 1) - offset;
+    int n = Math.min(length, end - start);
+    for (int i = 0; i < n; ++i) {
+      int a = labelBytes.get(offset + i) & 0xFF;
+      int b = name.charAt(start + i);
+      if (b >= 'A' && b <= 'Z') {
+        b += 'a' - 'A';
+      }
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return length - (end - start);
+  }
+
+  /**
+   * Collects patterns, and then lays them out as a DomainTrie.
+   */
+  public static class Builder {
+    private static class Node {
+      // Sorted by label.  Labels are lower-case ASCII, so this matches the order of their bytes.
+      final TreeMap<String, Node> children = new TreeMap<>();
+      int exact = 0;
+      int wildcard = 0;
+    }
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    /**
+     * Adds a pattern.  If the pattern was already added, its value is replaced.
+     * @param pattern An exact name like "example.com", or a wildcard like "*.example.com".
+     * @param value A value from 1 to MAX_VALUE.
+     * @return False if |pattern| isn't an ASCII domain name, in which case it is ignored.
+     */
+    public boolean add(String pattern, int value) {
+      if (value < 1 || value > MAX_VALUE) {
+        throw new IllegalArgumentException("Value out of range: " + value);
+      }
+      boolean wildcard = pattern.startsWith("*.");
+      String[] parts = (wildcard ? pattern.substring(2) : pattern).split("\\.");
+      for (String part : parts) {
+        for (int i = 0; i < part.length(); ++i) {
+          char c = part.charAt(i);
+          if (c >= 0x80 || c == '*') {
+            return false;
+          }
+        }
+      }
+      if (pattern.replace(".", "").replace("*", "").isEmpty()) {
+        // No labels.
+        return false;
+      }
+      Node node = root;
+      for (int i = parts.length - 1; i >= 0; --i) {
+        if (parts[i].isEmpty()) {
+          continue;
+        }
+        String label = toLowerCase(parts[i]);
+        Node child = node.children.get(label);
+        if (child == null) {
+          child = new Node();
+          node.children.put(label, child);
+        }
+        node = child;
+      }
+      if (wildcard) {
+        if (node.wildcard == 0) {
+          ++size;
+        }
+        node.wildcard = value;
+      } else {
+        if (node.exact == 0) {
+          ++size;
+        }
+        node.exact = value;
+      }
+      return true;
+    }
+
+    // Unlike String.toLowerCase(), this doesn't depend on the locale.
+    private static String toLowerCase(String label) {
+      char[] chars = label.toCharArray();
+      for (int i = 0; i < chars.length; ++i) {
+        if (chars[i] >= 'A' && chars[i] <= 'Z') {
+          chars[i] += 'a' - 'A';
+        }
+      }
+      return new String(chars);
+    }
+
+    public DomainTrie build() {
+      // Number the nodes in breadth-first order, so that each node's children are contiguous.
+      List<Node> nodes = new ArrayList<>();
+      List<String> nodeLabels = new ArrayList<>();
+      nodes.add(root);
+      nodeLabels.add(null);
+      for (int i = 0; i < nodes.size(); ++i) {
+        for (Map.Entry<String, Node> entry : nodes.get(i).children.entrySet()) {
+          nodes.add(entry.getValue());
+          nodeLabels.add(entry.getKey());
+        }
+      }
+      int numNodes = nodes.size();
+      int[] firstChild = new int[numNodes + 1];
+      int next = 1;
+      for (int i = 0; i < numNodes; ++i) {
+        firstChild[i] = next;
+        next += nodes.get(i).children.size();
+      }
+      firstChild[numNodes] = next;
+
+      // Store each distinct label once.
+      Map<String, Integer> labelIds = new HashMap<>();
+      List<String> distinctLabels = new ArrayList<>();
+      int[] labels = new int[numNodes];
+      byte[] values = new byte[numNodes];
+      int numLabelBytes = 0;
+      for (int i = 0; i < numNodes; ++i) {
+        Node node = nodes.get(i);
+        values[i] = (byte) (node.exact | (node.wildcard << 4));
+        String label = nodeLabels.get(i);
+        if (label == null) {
+          continue;
+        }
+        Integer id = labelIds.get(label);
+        if (id == null) {
+          id = distinctLabels.size();
+          labelIds.put(label, id);
+          distinctLabels.add(label);
+          numLabelBytes += label.length();
+        }
+        labels[i] = id;
+      }
+      int numLabels = distinctLabels.size();
+
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_INTS * 4 + numNodes * 4
+          + (numNodes + 1) * 4 + (numLabels + 1) * 4 + numNodes + numLabelBytes);
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(numNodes).putInt(numLabels)
+          .putInt(numLabelBytes);
+      for (int label : labels) {
+        buffer.putInt(label);
+      }
+      for (int child : firstChild) {
+        buffer.putInt(child);
+      }
+      int offset = 0;
+      for (String label : distinctLabels) {
+        buffer.putInt(offset);
+        offset += label.length();
+      }
+      buffer.putInt(offset);
+      buffer.put(values);
+      for (String label : distinctLabels) {
+        for (int j = 0; j < label.length(); ++j) {
+          buffer.put((byte) label.charAt(j));
+        }
+      }
+      buffer.flip();
+      return new DomainTrie(buffer, size, numNodes, numLabels, numLabelBytes);
+    }
+  }
+}
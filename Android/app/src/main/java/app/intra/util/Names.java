@@ -19,9 +19,46 @@ package app.intra.util;
 // Each name is used to generate a string.
 public enum Names {
   BOOTSTRAP,
+  BOOTSTRAP_COMPLETE_MS,
   BOOTSTRAP_FAILED,
+  CACHE_HITS,
   DNS_STATUS,
+  DROPPED,
+  DURATION,
+  EVICTIONS,
+  EVICTION_CALLS_DISRUPTED,
+  FALLBACK,
+  FALLBACKS,
+  FALLBACK_QUERIES,
+  FIRST_ANSWER,
+  FIRST_ANSWER_LATENCY,
+  FULL_HANDSHAKES,
+  FULL_HANDSHAKE_MS,
+  HEDGES,
+  HEDGE_WINS,
+  IDLE_EVICTIONS,
   LATENCY,
+  MAX_IN_FLIGHT,
+  MAX_QUEUE_WAIT_MS,
+  MAX_SOURCE_THROTTLED,
+  MEAN_QUEUE_WAIT_MS,
+  PROFILES_RESTORED,
+  RATE_LIMITED,
+  RATE_LIMITS,
+  REFRESHES,
+  REFUSED,
+  RESETS,
+  RESET_CALLS_CANCELED,
   RESULT,
+  RESUMED_HANDSHAKES,
+  RESUMED_HANDSHAKE_MS,
+  SERVER_STATS,
+  SHED,
+  STARTUP_HIT_RATE,
+  STATS,
+  THROTTLED_SOURCES,
+  TIME_TO_FIRST_CONNECTION_MS,
   TRANSACTION,
+  TTL_POLICY_SAVINGS,
+  WAITING_QUERIES,
 }
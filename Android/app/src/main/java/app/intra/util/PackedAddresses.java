@@ -0,0 +1,53 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a list of IP addresses stored as raw 4- or 16-byte addresses, back-to-back.  These files
+ * are generated at build time by the packServerAddresses task in app/build.gradle, so that the app
+ * doesn't have to parse address text.  Large lists can be kept packed for
+ * DiversitySampler.fromPacked(), which only decodes the addresses it chooses.
+ */
+public final class PackedAddresses {
+
+  private PackedAddresses() {}
+
+  /**
+   * Reads the packed addresses from |input| without decoding them, and closes it.
+   * @param addressLength 4 for IPv4, or 16 for IPv6.
+   * @throws IOException if |input| can't be read, or doesn't hold a whole number of addresses.
+   */
+  public static byte[] readPacked(InputStream input, int addressLength) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try {
+      int n;
+      byte[] temp = new byte[4096];
+      while ((n = input.read(temp, 0, temp.length)) != -1) {
+        buffer.write(temp, 0, n);
+      }
+    } finally {
+      input.close();
+    }
+    if (buffer.size() % addressLength != 0) {
+      throw new IOException("Truncated address list");
+    }
+    return buffer.toByteArray();
+  }
+}
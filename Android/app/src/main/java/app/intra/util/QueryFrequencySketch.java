@@ -0,0 +1,198 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A fixed-size summary of the most frequently queried (name, type) pairs.  This uses the
+ * Space-Saving algorithm (Metwally et al. 2005): when the table is full, a new query replaces the
+ * least frequent entry and inherits its count.  Frequent queries are retained reliably, while rare
+ * queries churn through the bottom of the table.
+ *
+ * Counts decay exponentially with a configurable half-life, so the summary follows changes in
+ * usage instead of remembering last month's favorites forever.
+ *
+ * Not thread-safe.
+ */
+public class QueryFrequencySketch {
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * A (name, type) pair.
+   */
+  public static class Query {
+    public final String name;
+    public final short type;
+
+    Query(String name, short type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  private static class Counter extends Query {
+    double count;
+
+    Counter(String name, short type, double count) {
+      super(name, type);
+      this.count = count;
+    }
+  }
+
+  private final int capacity;
+  private final long halfLifeMs;
+  private final HashMap<String, Counter> counters;
+  // Time of the last decay, in milliseconds since the epoch.
+  private long lastDecay = 0;
+
+  /**
+   * @param capacity The number of distinct queries to track.
+   * @param halfLifeMs The time it takes for a count to decay by half.
+   */
+  public QueryFrequencySketch(int capacity, long halfLifeMs) {
+    this.capacity = capacity;
+    this.halfLifeMs = halfLifeMs;
+    counters = new HashMap<>(capacity * 2);
+  }
+
+  private static String key(String name, short type) {
+    return name.toLowerCase(Locale.ROOT) + "/" + (type & 0xffff);
+  }
+
+  /**
+   * Count one query.
+   * @param now The current wall-clock time in milliseconds.  Must survive reboots.
+   */
+  public void record(String name, short type, long now) {
+    decay(now);
+    String key = key(name, type);
+    Counter counter = counters.get(key);
+    if (counter != null) {
+      counter.count += 1;
+      return;
+    }
+    double count = 1;
+    if (counters.size() >= capacity) {
+      Counter min = null;
+      for (Counter c : counters.values()) {
+        if (min == null || c.count < min.count) {
+          min = c;
+        }
+      }
+      counters.remove(key(min.name, min.type));
+      count += min.count;
+    }
+    counters.put(key, new Counter(name, type, count));
+  }
+
+  private void decay(long now) {
+    if (lastDecay == 0 || now < lastDecay) {
+      // First use, or the clock went backwards.
+      lastDecay = now;
+      return;
+    }
+    long elapsed = now - lastDecay;
+    if (elapsed < halfLifeMs / 16) {
+      // Decay in coarse steps to avoid a scan of the table on every query.
+      return;
+    }
+    double factor = Math.pow(0.5, (double) elapsed / halfLifeMs);
+    for (Counter c : counters.values()) {
+      c.count *= factor;
+    }
+    lastDecay = now;
+  }
+
+  /**
+   * @return Up to |n| queries, most frequent first.
+   */
+  public List<Query> getTop(int n) {
+    List<Counter> sorted = new ArrayList<>(counters.values());
+    Collections.sort(sorted, new Comparator<Counter>() {
+      @Override
+      public int compare(Counter a, Counter b) {
+        return Double.compare(b.count, a.count);
+      }
+    });
+    List<Query> top = new ArrayList<>(Math.min(n, sorted.size()));
+    for (int i = 0; i < n && i < sorted.size(); ++i) {
+      top.add(sorted.get(i));
+    }
+    return top;
+  }
+
+  public int size() {
+    return counters.size();
+  }
+
+  /**
+   * Forget all queries.
+   */
+  public void clear() {
+    counters.clear();
+    lastDecay = 0;
+  }
+
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(lastDecay);
+    out.writeInt(counters.size());
+    for (Counter c : counters.values()) {
+      out.writeUTF(c.name);
+      out.writeShort(c.type);
+      out.writeDouble(c.count);
+    }
+  }
+
+  /**
+   * Replace the contents of this sketch with data previously written by writeTo().
+   */
+  public void readFrom(DataInputStream in) throws IOException {
+    if (in.readInt() != FORMAT_VERSION) {
+      throw new IOException("Unknown sketch format");
+    }
+    long storedLastDecay = in.readLong();
+    int size = in.readInt();
+    HashMap<String, Counter> stored = new HashMap<>(size * 2);
+    for (int i = 0; i < size; ++i) {
+      String name = in.readUTF();
+      short type = in.readShort();
+      double count = in.readDouble();
+      stored.put(key(name, type), new Counter(name, type, count));
+    }
+    counters.clear();
+    counters.putAll(stored);
+    lastDecay = storedLastDecay;
+    // If the capacity has shrunk, keep the most frequent entries.
+    if (counters.size() > capacity) {
+      List<Query> top = getTop(capacity);
+      counters.clear();
+      for (Query q : top) {
+        counters.put(key(q.name, q.type), (Counter) q);
+      }
+    }
+  }
+}
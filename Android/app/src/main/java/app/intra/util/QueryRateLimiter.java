@@ -0,0 +1,201 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Token-bucket rate limits for incoming queries, so that one misbehaving client, such as an app in
+ * a retry loop, can't monopolize the upstream connection.  Each source address has its own bucket,
+ * and all queries also share a global bucket.  Ports aren't part of the key, because clients
+ * usually send each query from a new ephemeral port.
+ *
+ * A query that finds its bucket empty is refused, and the refusal is charged to the bucket, which
+ * goes into debt.  Once the debt reaches the bucket's burst size, further queries are dropped
+ * without an answer until it is paid off.  Refusals therefore never exceed the bucket's rate, and a
+ * flood costs no more than reading the packets.
+ *
+ * Buckets are kept for the MAX_SOURCES most recently active sources.  Thread-safe.
+ */
+public class QueryRateLimiter {
+  private static final String LOG_TAG = "QueryRateLimiter";
+
+  // Enough for a page load's worth of queries at once.
+  public static final double DEFAULT_SOURCE_RATE = 50;
+  public static final double DEFAULT_SOURCE_BURST = 100;
+  public static final double DEFAULT_GLOBAL_RATE = 200;
+  public static final double DEFAULT_GLOBAL_BURST = 400;
+  static final int MAX_SOURCES = 256;
+
+  public enum Decision {
+    // Process the query as usual.
+    ALLOW,
+    // Answer locally with REFUSED.
+    REFUSE,
+    // Don't answer.
+    DROP
+  }
+
+  /**
+   * The throttling counters for one source.
+   */
+  public static class Source {
+    public final InetAddress address;
+    public final long numRefused;
+    public final long numDropped;
+
+    Source(InetAddress address, long numRefused, long numDropped) {
+      this.address = address;
+      this.numRefused = numRefused;
+      this.numDropped = numDropped;
+    }
+  }
+
+  private static class Bucket {
+    final double rate;  // Tokens per second
+    final double burst;
+    // Negative while in debt.
+    double tokens;
+    long lastTime;
+    long numRefused = 0;
+    long numDropped = 0;
+
+    Bucket(double rate, double burst, long now) {
+      this.rate = rate;
+      this.burst = burst;
+      tokens = burst;
+      lastTime = now;
+    }
+
+    Decision take(long now) {
+      tokens = Math.min(burst, tokens + (now - lastTime) * rate / 1000);
+      lastTime = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return Decision.ALLOW;
+      }
+      if (tokens > -burst) {
+        tokens -= 1;
+        return Decision.REFUSE;
+      }
+      return Decision.DROP;
+    }
+  }
+
+  private final double sourceRate;
+  private final double sourceBurst;
+  private final Bucket global;
+  // Buckets by source, in access order so that the least recently active source is first.
+  private final LinkedHashMap<InetAddress, Bucket> sources =
+      new LinkedHashMap<>(MAX_SOURCES, 0.75f, true);
+  private long numRefused = 0;
+  private long numDropped = 0;
+
+  /**
+   * @param sourceRate The sustained queries per second allowed from each source.
+   * @param sourceBurst The number of queries that each source can send at once.
+   * @param globalRate The sustained queries per second allowed from all sources together.
+   * @param globalBurst The number of queries that all sources together can send at once.
+   * @param now The current time, according to SystemClock.elapsedRealtime().
+   */
+  public QueryRateLimiter(double sourceRate, double sourceBurst, double globalRate,
+      double globalBurst, long now) {
+    this.sourceRate = sourceRate;
+    this.sourceBurst = sourceBurst;
+    global = new Bucket(globalRate, globalBurst, now);
+  }
+
+  /**
+   * Charges a query from |source| to its bucket and the global bucket.
+   * @param now The query's arrival time, according to SystemClock.elapsedRealtime().
+   * @return What to do with the query.
+   */
+  public synchronized Decision check(InetAddress source, long now) {
+    Bucket bucket = sources.get(source);
+    if (bucket == null) {
+      bucket = new Bucket(sourceRate, sourceBurst, now);
+      sources.put(source, bucket);
+      if (sources.size() > MAX_SOURCES) {
+        Iterator<InetAddress> leastRecent = sources.keySet().iterator();
+        leastRecent.next();
+        leastRecent.remove();
+      }
+    }
+    Decision decision = bucket.take(now);
+    if (decision == Decision.ALLOW) {
+      decision = global.take(now);
+    }
+    if (decision == Decision.ALLOW) {
+      return decision;
+    }
+    if (bucket.numRefused + bucket.numDropped == 0) {
+      LogWrapper.logcat(Log.WARN, LOG_TAG, "Throttling queries from " + source);
+    }
+    if (decision == Decision.REFUSE) {
+      ++bucket.numRefused;
+      ++numRefused;
+    } else {
+      ++bucket.numDropped;
+      ++numDropped;
+    }
+    return decision;
+  }
+
+  /**
+   * @return The number of queries that have been refused.
+   */
+  public synchronized long getNumRefused() {
+    return numRefused;
+  }
+
+  /**
+   * @return The number of queries that have been dropped.
+   */
+  public synchronized long getNumDropped() {
+    return numDropped;
+  }
+
+  /**
+   * @return The recently active sources that have been throttled, most throttled first.
+   */
+  public synchronized List<Source> getThrottledSources() {
+    List<Source> throttled = new ArrayList<>();
+    for (Map.Entry<InetAddress, Bucket> entry : sources.entrySet()) {
+      Bucket bucket = entry.getValue();
+      if (bucket.numRefused + bucket.numDropped > 0) {
+        throttled.add(new Source(entry.getKey(), bucket.numRefused, bucket.numDropped));
+      }
+    }
+    Collections.sort(throttled, new Comparator<Source>() {
+      @Override
+      public int compare(Source a, Source b) {
+        long countA = a.numRefused + a.numDropped;
+        long countB = b.numRefused + b.numDropped;
+        return countA < countB ? 1 : countA > countB ? -1 : 0;
+      }
+    });
+    return throttled;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent round-trip times to one server, and estimates quantiles of their
+ * distribution.  The window is small, so quantiles are computed by sorting a copy on demand.
+ *
+ * Thread-safe.
+ */
+public class RttEstimator {
+
+  private final long[] samples;
+  // Index of the next sample to overwrite.
+  private int next = 0;
+  private int count = 0;
+
+  /**
+   * @param windowSize The number of recent samples to keep.
+   */
+  public RttEstimator(int windowSize) {
+    samples = new long[windowSize];
+  }
+
+  /**
+   * @param rttMs A round-trip time, in milliseconds.
+   */
+  public synchronized void addSample(long rttMs) {
+    samples[next] = rttMs;
+    next = (next + 1) % samples.length;
+    count = Math.min(count + 1, samples.length);
+  }
+
+  public synchronized int getSampleCount() {
+    return count;
+  }
+
+  /**
+   * @param q The quantile, between 0 and 1.  For example, 0.95 returns the 95th percentile.
+   * @param defaultMs The value to return if there are no samples.
+   * @return The smallest sample that is at least as large as a fraction |q| of the samples.
+   */
+  public long getQuantile(double q, long defaultMs) {
+    long[] sorted;
+    synchronized (this) {
+      if (count == 0) {
+        return defaultMs;
+      }
+      sorted = Arrays.copyOf(samples, count);
+    }
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(q * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+}
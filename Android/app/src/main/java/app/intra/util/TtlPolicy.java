@@ -0,0 +1,220 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Clamps the TTLs in DNS responses to a configurable range.  Some apps query names with very short
+ * TTLs every few seconds, which generates upstream traffic and wakes up the radio.  Raising those
+ * TTLs to a floor lets both our cache and the client's stub resolver keep the answer for longer.
+ *
+ * The range can be overridden for any domain suffix (e.g. "example.com" also matches
+ * "www.example.com").  The longest matching suffix wins.  No floor, including an override, can
+ * raise a TTL above the safety cap, so a bad override cannot pin a stale answer for a long time.
+ *
+ * A policy can be read from a text file with one setting per line:
+ *
+ *   default 60 86400      The default floor and ceiling.
+ *   cap 300               The safety cap.
+ *   example.com 0 30      An override for example.com and its subdomains.
+ *
+ * Blank lines and lines starting with '#' are ignored.  All values are in seconds.
+ *
+ * Thread-safe.
+ */
+public class TtlPolicy {
+
+  /**
+   * The TTLs of a response before and after clamping, in seconds.
+   */
+  public static class Result {
+    // The smallest TTL in the response as sent by the server.
+    public final int originalTtl;
+    // The smallest TTL in the response after clamping.
+    public final int clampedTtl;
+
+    Result(int originalTtl, int clampedTtl) {
+      this.originalTtl = originalTtl;
+      this.clampedTtl = clampedTtl;
+    }
+  }
+
+  private static class Range {
+    final int min;
+    final int max;
+
+    Range(int min, int max) {
+      this.min = min;
+      this.max = max;
+    }
+  }
+
+  private final Range defaultRange;
+  private final int safetyCap;
+  private final Map<String, Range> overrides = new HashMap<>();
+
+  /**
+   * @param minTtl The default TTL floor, in seconds.
+   * @param maxTtl The default TTL ceiling, in seconds.
+   * @param safetyCap The largest TTL, in seconds, that any floor may raise a record to.
+   */
+  public TtlPolicy(int minTtl, int maxTtl, int safetyCap) {
+    if (minTtl < 0 || maxTtl < minTtl || safetyCap < 0) {
+      throw new IllegalArgumentException("Bad TTL range");
+    }
+    defaultRange = new Range(minTtl, maxTtl);
+    this.safetyCap = safetyCap;
+  }
+
+  /**
+   * Use a different TTL range for |suffix| and all of its subdomains.
+   */
+  public synchronized void setOverride(String suffix, int minTtl, int maxTtl) {
+    if (minTtl < 0 || maxTtl < minTtl) {
+      throw new IllegalArgumentException("Bad TTL range");
+    }
+    overrides.put(normalize(suffix), new Range(minTtl, maxTtl));
+  }
+
+  /**
+   * Reads a policy in the format described above.  The default range and the cap are required.
+   * @throws IOException if the file can't be read, or has a malformed line.
+   */
+  public static TtlPolicy read(Reader reader) throws IOException {
+    BufferedReader in = new BufferedReader(reader);
+    Range defaults = null;
+    int cap = -1;
+    Map<String, Range> overrides = new LinkedHashMap<>();
+    String line;
+    int lineNumber = 0;
+    while ((line = in.readLine()) != null) {
+      ++lineNumber;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\\s+");
+      try {
+        if (fields[0].equals("cap") && fields.length == 2) {
+          cap = Integer.parseInt(fields[1]);
+        } else if (fields.length == 3) {
+          Range range = new Range(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+          if (fields[0].equals("default")) {
+            defaults = range;
+          } else {
+            overrides.put(fields[0], range);
+          }
+        } else {
+          throw new IOException("Bad TTL policy at line " + lineNumber + ": " + line);
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad TTL policy at line " + lineNumber + ": " + line);
+      }
+    }
+    if (defaults == null || cap < 0) {
+      throw new IOException("TTL policy needs a default range and a cap");
+    }
+    try {
+      TtlPolicy policy = new TtlPolicy(defaults.min, defaults.max, cap);
+      for (Map.Entry<String, Range> override : overrides.entrySet()) {
+        policy.setOverride(override.getKey(), override.getValue().min, override.getValue().max);
+      }
+      return policy;
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Bad TTL range in policy");
+    }
+  }
+
+  private static String normalize(String name) {
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  private synchronized Range getRange(String name) {
+    if (overrides.isEmpty()) {
+      return defaultRange;
+    }
+    // Try each suffix, from longest to shortest.
+    String suffix = normalize(name);
+    while (true) {
+      Range range = overrides.get(suffix);
+      if (range != null) {
+        return range;
+      }
+      int dot = suffix.indexOf('.');
+      if (dot < 0) {
+        return defaultRange;
+      }
+      suffix = suffix.substring(dot + 1);
+    }
+  }
+
+  /**
+   * @param name The query name
+   * @param ttl A TTL from the response, in seconds.
+   * @return The TTL that should be used instead.
+   */
+  public int clamp(String name, int ttl) {
+    return clamp(getRange(name), ttl);
+  }
+
+  private int clamp(Range range, int ttl) {
+    if (ttl < 0) {
+      // RFC 2181 Section 8: Treat TTLs with the most significant bit set as zero.
+      ttl = 0;
+    }
+    if (ttl > range.max) {
+      return range.max;
+    }
+    int floor = Math.min(range.min, safetyCap);
+    return Math.max(ttl, floor);
+  }
+
+  /**
+   * Rewrites every TTL in a DNS response, in place.
+   * @param name The query name, used to select the TTL range.
+   * @param response The response packet, which will be modified.
+   * @param ttlOffsets The location of each TTL in |response|, from DnsPacket.getTtlOffsets().
+   * @return The smallest TTL before and after clamping, or null if the response has no TTLs.
+   */
+  public Result apply(String name, byte[] response, int[] ttlOffsets) {
+    if (ttlOffsets.length == 0) {
+      return null;
+    }
+    Range range = getRange(name);
+    ByteBuffer buffer = ByteBuffer.wrap(response);
+    int originalTtl = Integer.MAX_VALUE;
+    int clampedTtl = Integer.MAX_VALUE;
+    for (int offset : ttlOffsets) {
+      int ttl = buffer.getInt(offset);
+      int clamped = clamp(range, ttl);
+      buffer.putInt(offset, clamped);
+      originalTtl = Math.min(originalTtl, Math.max(ttl, 0));
+      clampedTtl = Math.min(clampedTtl, clamped);
+    }
+    return new Result(originalTtl, clampedTtl);
+  }
+}
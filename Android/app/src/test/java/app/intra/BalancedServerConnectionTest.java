@@ -0,0 +1,141 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import app.intra.util.DnsUdpQuery;
+import okhttp3.Callback;
+
+public class BalancedServerConnectionTest {
+
+  // A BalancedServerConnection with a manual clock.
+  private static class TestBalancer extends BalancedServerConnection {
+    long now = 1000;
+
+    TestBalancer(ServerConnection... connections) {
+      super(Arrays.asList(connections));
+    }
+
+    @Override
+    long elapsedRealtime() {
+      return now;
+    }
+  }
+
+  @Test
+  public void testPrefersFastUpstream() {
+    ServerConnection fast = mock(ServerConnection.class);
+    ServerConnection slow = mock(ServerConnection.class);
+    TestBalancer balancer = new TestBalancer(fast, slow);
+    int fastCount = 0;
+    for (int i = 0; i < 100; ++i) {
+      BalancedServerConnection.Upstream u = balancer.choose();
+      if (u.connection == fast) {
+        ++fastCount;
+        balancer.onSuccess(u, 10);
+      } else {
+        balancer.onSuccess(u, 500);
+      }
+    }
+    assertTrue(fastCount > 90);
+  }
+
+  @Test
+  public void testEjectionAndProbe() {
+    ServerConnection bad = mock(ServerConnection.class);
+    ServerConnection good = mock(ServerConnection.class);
+    TestBalancer balancer = new TestBalancer(bad, good);
+
+    // Fail the bad upstream until it is ejected.  Queries to the good upstream are left in flight,
+    // which makes it look busy, so that the bad upstream keeps getting chosen.
+    List<BalancedServerConnection.Upstream> pending = new ArrayList<>();
+    int failures = 0;
+    while (balancer.getEjectedCount() == 0) {
+      BalancedServerConnection.Upstream u = balancer.choose();
+      if (u.connection == bad) {
+        balancer.onFailure(u);
+        ++failures;
+      } else {
+        pending.add(u);
+      }
+    }
+    assertEquals(3, failures);
+    for (BalancedServerConnection.Upstream u : pending) {
+      balancer.onSuccess(u, 50);
+    }
+
+    // While ejected, all queries go to the good upstream.
+    for (int i = 0; i < 10; ++i) {
+      BalancedServerConnection.Upstream u = balancer.choose();
+      assertSame(good, u.connection);
+      balancer.onSuccess(u, 50);
+    }
+
+    // After the backoff, one query probes the bad upstream, and the rest avoid it.
+    balancer.now += 5000;
+    BalancedServerConnection.Upstream probe = balancer.choose();
+    assertSame(bad, probe.connection);
+    assertSame(good, balancer.choose().connection);
+
+    // A failed probe doubles the backoff.
+    balancer.onFailure(probe);
+    balancer.now += 5000;
+    assertSame(good, balancer.choose().connection);
+    balancer.now += 5000;
+    probe = balancer.choose();
+    assertSame(bad, probe.connection);
+
+    // A successful probe readmits the upstream.
+    balancer.onSuccess(probe, 50);
+    assertEquals(0, balancer.getEjectedCount());
+  }
+
+  @Test
+  public void testAllEjected() {
+    ServerConnection only = mock(ServerConnection.class);
+    TestBalancer balancer = new TestBalancer(only);
+    for (int i = 0; i < 3; ++i) {
+      balancer.onFailure(balancer.choose());
+    }
+    assertEquals(1, balancer.getEjectedCount());
+    // Queries still go somewhere.
+    assertSame(only, balancer.choose().connection);
+  }
+
+  @Test
+  public void testUnsentQueryIsNotInFlight() {
+    ServerConnection only = mock(ServerConnection.class);
+    TestBalancer balancer = new TestBalancer(only);
+    DnsUdpQuery query = new DnsUdpQuery();
+    when(only.performDnsRequest(any(DnsUdpQuery.class), any(byte[].class), any(Callback.class)))
+        .thenThrow(new IllegalStateException());
+    try {
+      balancer.performDnsRequest(query, new byte[12], mock(Callback.class));
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    assertEquals(1, balancer.choose().inFlight);
+  }
+}
@@ -0,0 +1,167 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.Test;
+
+import app.intra.util.Names;
+import okhttp3.Call;
+import okhttp3.Connection;
+
+public class ConnectionHealthTrackerTest {
+
+  private static Connection mockConnection(Socket socket) {
+    Connection connection = mock(Connection.class);
+    when(connection.socket()).thenReturn(socket);
+    return connection;
+  }
+
+  @Test
+  public void testTimeoutClosesOnlyThatConnection() throws Exception {
+    ConnectionHealthTracker tracker = new ConnectionHealthTracker();
+    Socket socketA = mock(Socket.class);
+    Socket socketB = mock(Socket.class);
+    Connection a = mockConnection(socketA);
+    Connection b = mockConnection(socketB);
+    Call stuck = mock(Call.class);
+    Call neighbor = mock(Call.class);
+    Call healthy = mock(Call.class);
+    tracker.connectionAcquired(stuck, a);
+    tracker.connectionAcquired(neighbor, a);
+    tracker.connectionAcquired(healthy, b);
+
+    tracker.callFailed(stuck, new SocketTimeoutException());
+    verify(socketA).close();
+    verify(socketB, never()).close();
+    assertEquals(1, tracker.getNumEvictions());
+    assertEquals(1, tracker.getNumEvictionCallsDisrupted());
+
+    // The healthy call completes normally.
+    tracker.callEnd(healthy);
+    assertEquals(1, tracker.getNumEvictions());
+  }
+
+  @Test
+  public void testStallClosesConnection() throws Exception {
+    ConnectionHealthTracker tracker = new ConnectionHealthTracker();
+    Socket socket = mock(Socket.class);
+    Call stalled = mock(Call.class);
+    tracker.connectionAcquired(stalled, mockConnection(socket));
+    tracker.onStall(stalled);
+    verify(socket).close();
+    assertEquals(1, tracker.getNumEvictions());
+
+    // Canceling the stalled call afterwards doesn't count again.
+    tracker.callFailed(stalled, new IOException("Canceled"));
+    assertEquals(1, tracker.getNumEvictions());
+  }
+
+  @Test
+  public void testOtherFailuresDontEvict() throws Exception {
+    ConnectionHealthTracker tracker = new ConnectionHealthTracker();
+    Socket socket = mock(Socket.class);
+    Call call = mock(Call.class);
+    tracker.connectionAcquired(call, mockConnection(socket));
+    tracker.callFailed(call, new IOException("Canceled"));
+    verify(socket, never()).close();
+
+    // A timeout before any connection was acquired.
+    tracker.callFailed(mock(Call.class), new SocketTimeoutException());
+    assertEquals(0, tracker.getNumEvictions());
+  }
+
+  @Test
+  public void testResetAccounting() {
+    ConnectionHealthTracker tracker = new ConnectionHealthTracker();
+    tracker.onReset(3);
+    tracker.onReset(0);
+    assertEquals(2, tracker.getNumResets());
+    assertEquals(3, tracker.getNumResetCallsCanceled());
+  }
+
+  @Test
+  public void testAddStats() {
+    ConnectionHealthTracker a = new ConnectionHealthTracker();
+    ConnectionHealthTracker b = new ConnectionHealthTracker();
+    a.onReset(3);
+    b.onReset(1);
+    Call call = mock(Call.class);
+    b.connectionAcquired(call, mockConnection(mock(Socket.class)));
+    b.callFailed(call, new SocketTimeoutException());
+
+    ConnectionStats stats = new ConnectionStats();
+    a.addStats(stats);
+    b.addStats(stats);
+    assertEquals(2, stats.get(Names.RESETS));
+    assertEquals(4, stats.get(Names.RESET_CALLS_CANCELED));
+    assertEquals(1, stats.get(Names.EVICTIONS));
+    assertEquals(0, stats.get(Names.EVICTION_CALLS_DISRUPTED));
+  }
+
+  // Simulates a TLS handshake on |call| whose session was created at |creationTime|.
+  private static void handshake(ConnectionHealthTracker tracker, Call call, long creationTime) {
+    SSLSession session = mock(SSLSession.class);
+    when(session.getCreationTime()).thenReturn(creationTime);
+    SSLSocket socket = mock(SSLSocket.class);
+    when(socket.getSession()).thenReturn(session);
+    tracker.secureConnectStart(call);
+    tracker.secureConnectEnd(call, null);
+    tracker.connectionAcquired(call, mockConnection(socket));
+    tracker.callEnd(call);
+  }
+
+  @Test
+  public void testHandshakeTypes() {
+    ConnectionHealthTracker tracker = new ConnectionHealthTracker();
+
+    // A new session is created during the handshake.
+    handshake(tracker, mock(Call.class), System.currentTimeMillis() + 1000);
+    assertEquals(1, tracker.getNumFullHandshakes());
+    assertEquals(0, tracker.getNumResumedHandshakes());
+
+    // A resumed session was created by an earlier handshake.
+    handshake(tracker, mock(Call.class), System.currentTimeMillis() - 60 * 1000);
+    assertEquals(1, tracker.getNumFullHandshakes());
+    assertEquals(1, tracker.getNumResumedHandshakes());
+
+    ConnectionStats stats = new ConnectionStats();
+    tracker.addStats(stats);
+    assertEquals(1, stats.get(Names.FULL_HANDSHAKES));
+    assertEquals(1, stats.get(Names.RESUMED_HANDSHAKES));
+    assertTrue(stats.getCounters().containsKey(Names.FULL_HANDSHAKE_MS));
+    assertTrue(stats.getCounters().containsKey(Names.RESUMED_HANDSHAKE_MS));
+  }
+
+  @Test
+  public void testPooledConnectionIsNotAHandshake() {
+    ConnectionHealthTracker tracker = new ConnectionHealthTracker();
+    Call call = mock(Call.class);
+    tracker.connectionAcquired(call, mockConnection(mock(SSLSocket.class)));
+    tracker.callEnd(call);
+    assertEquals(0, tracker.getNumFullHandshakes());
+    assertEquals(0, tracker.getNumResumedHandshakes());
+  }
+}
@@ -0,0 +1,234 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.Names;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class FallbackServerConnectionTest {
+
+  // Answers or fails each query immediately, depending on |reachable|.
+  private static class FakeServer implements ServerConnection {
+    final Call call = mock(Call.class);
+    boolean reachable = true;
+    int queries = 0;
+    int resets = 0;
+
+    @Override
+    public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+      ++queries;
+      if (!reachable) {
+        cb.onFailure(call, new IOException("Unreachable"));
+        return call;
+      }
+      Response response = new Response.Builder()
+          .request(new Request.Builder().url("https://example.invalid/").build())
+          .protocol(Protocol.HTTP_2)
+          .code(200)
+          .message("OK")
+          .build();
+      try {
+        cb.onResponse(call, response);
+      } catch (IOException e) {
+        fail();
+      }
+      return call;
+    }
+
+    @Override
+    public String getUrl() {
+      return "https://example.invalid/dns-query";
+    }
+
+    @Override
+    public void reset() {
+      ++resets;
+    }
+
+    @Override
+    public void migrate(String from, String to) {
+    }
+
+    @Override
+    public void addStats(ConnectionStats stats) {
+    }
+  }
+
+  // Counts the results that reach the caller.
+  private static class CountingCallback implements Callback {
+    int failures = 0;
+    int responses = 0;
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      ++failures;
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      ++responses;
+    }
+  }
+
+  private FakeServer primary;
+  private FakeServer fallback;
+  private List<Boolean> changes;
+  private long now;
+  private FallbackServerConnection connection;
+
+  @Before
+  public void setUp() {
+    primary = new FakeServer();
+    fallback = new FakeServer();
+    changes = new ArrayList<>();
+    now = 1000;
+    connection = new FallbackServerConnection(primary, fallback,
+        new FallbackServerConnection.Listener() {
+          @Override
+          public void onFallbackChanged(boolean active) {
+            changes.add(active);
+          }
+        }) {
+      @Override
+      long elapsedRealtime() {
+        return now;
+      }
+    };
+  }
+
+  private void query(Callback cb) {
+    connection.performDnsRequest(new DnsUdpQuery(), new byte[12], cb);
+  }
+
+  @Test
+  public void testFallback() {
+    CountingCallback cb = new CountingCallback();
+    primary.reachable = false;
+    for (int i = 0; i < FallbackServerConnection.MIN_SAMPLES - 1; ++i) {
+      query(cb);
+    }
+    // Not enough samples yet.
+    assertFalse(connection.isActive());
+    assertEquals(FallbackServerConnection.MIN_SAMPLES - 1, cb.failures);
+
+    query(cb);
+    assertTrue(connection.isActive());
+    assertEquals(1, changes.size());
+    assertTrue(changes.get(0));
+
+    // Queries now go to the fallback, and succeed.
+    query(cb);
+    assertEquals(1, fallback.queries);
+    assertEquals(1, cb.responses);
+    ConnectionStats stats = new ConnectionStats();
+    connection.addStats(stats);
+    assertEquals(1, stats.get(Names.FALLBACKS));
+    assertEquals(1, stats.get(Names.FALLBACK_QUERIES));
+    assertEquals(FallbackServerConnection.MIN_SAMPLES, primary.queries);
+  }
+
+  @Test
+  public void testOccasionalFailures() {
+    CountingCallback cb = new CountingCallback();
+    for (int i = 0; i < 2 * FallbackServerConnection.WINDOW; ++i) {
+      primary.reachable = i % 2 == 0;
+      query(cb);
+    }
+    assertFalse(connection.isActive());
+    assertEquals(0, fallback.queries);
+  }
+
+  @Test
+  public void testCanceledNotCounted() {
+    CountingCallback cb = new CountingCallback();
+    primary.reachable = false;
+    when(primary.call.isCanceled()).thenReturn(true);
+    for (int i = 0; i < FallbackServerConnection.WINDOW; ++i) {
+      query(cb);
+    }
+    assertFalse(connection.isActive());
+    assertEquals(FallbackServerConnection.WINDOW, cb.failures);
+  }
+
+  @Test
+  public void testProbeRecovery() {
+    CountingCallback cb = new CountingCallback();
+    primary.reachable = false;
+    for (int i = 0; i < FallbackServerConnection.MIN_SAMPLES; ++i) {
+      query(cb);
+    }
+    assertTrue(connection.isActive());
+    int primaryQueries = primary.queries;
+
+    // No probe until the interval has passed.
+    query(cb);
+    assertEquals(primaryQueries, primary.queries);
+
+    // A failed probe doubles the interval.
+    now += FallbackServerConnection.MIN_PROBE_INTERVAL_MS;
+    query(cb);
+    assertEquals(primaryQueries + 1, primary.queries);
+    assertTrue(connection.isActive());
+    now += FallbackServerConnection.MIN_PROBE_INTERVAL_MS;
+    query(cb);
+    assertEquals(primaryQueries + 1, primary.queries);
+
+    // A successful probe ends the fallback.
+    primary.reachable = true;
+    now += FallbackServerConnection.MIN_PROBE_INTERVAL_MS;
+    query(cb);
+    assertEquals(primaryQueries + 2, primary.queries);
+    assertFalse(connection.isActive());
+    assertEquals(2, changes.size());
+    assertFalse(changes.get(1));
+    // The probe's query was also answered by the fallback.
+    assertEquals(4, fallback.queries);
+  }
+
+  @Test
+  public void testResetEndsFallback() {
+    CountingCallback cb = new CountingCallback();
+    primary.reachable = false;
+    for (int i = 0; i < FallbackServerConnection.MIN_SAMPLES; ++i) {
+      query(cb);
+    }
+    assertTrue(connection.isActive());
+
+    connection.reset();
+    assertEquals(1, primary.resets);
+    assertFalse(connection.isActive());
+    assertEquals(2, changes.size());
+
+    // The window starts over, so one failure isn't enough to fall back again.
+    query(cb);
+    assertFalse(connection.isActive());
+  }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import app.intra.util.DualStackResult;
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class GoogleServerConnectionTest {
+  private static final short TYPE_A = 1;
+  private static final short TYPE_AAAA = 28;
+
+  private static class TestBootstrap extends GoogleServerConnection.Bootstrap {
+    DualStackResult completed = null;
+    int numCompleted = 0;
+    long now = 0;
+
+    @Override
+    long elapsedRealtime() {
+      return now;
+    }
+
+    @Override
+    void onComplete(DualStackResult all) {
+      completed = all;
+      ++numCompleted;
+    }
+  }
+
+  private static Call call(short type) {
+    Call call = mock(Call.class);
+    when(call.request()).thenReturn(new Request.Builder()
+        .url("https://dns.google.com/resolve?name=dns.google.com&type=" + type + "&encoding=raw")
+        .build());
+    return call;
+  }
+
+  // Builds an answer for dns.google.com containing |address|.
+  private static Response answer(Call call, InetAddress address) {
+    byte[] rdata = address.getAddress();
+    short type = rdata.length == 4 ? TYPE_A : TYPE_AAAA;
+    ByteBuffer buffer = ByteBuffer.allocate(512);
+    buffer.putShort((short) 0);  // ID
+    buffer.putShort((short) 0x8180);  // Response, RD, RA, NOERROR
+    buffer.putShort((short) 1);  // QDCOUNT
+    buffer.putShort((short) 1);  // ANCOUNT
+    buffer.putShort((short) 0);  // NSCOUNT
+    buffer.putShort((short) 0);  // ARCOUNT
+    for (String label : new String[]{"dns", "google", "com"}) {
+      buffer.put((byte) label.length());
+      buffer.put(label.getBytes());
+    }
+    buffer.put((byte) 0);
+    buffer.putShort(type);
+    buffer.putShort((short) 1);  // IN
+    buffer.putShort((short) 0xC00C);  // Pointer to the question name
+    buffer.putShort(type);
+    buffer.putShort((short) 1);  // IN
+    buffer.putInt(300);  // TTL
+    buffer.putShort((short) rdata.length);
+    buffer.put(rdata);
+    byte[] body = new byte[buffer.position()];
+    buffer.flip();
+    buffer.get(body);
+    return new Response.Builder()
+        .request(call.request())
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .body(ResponseBody.create(MediaType.parse("application/dns-message"), body))
+        .build();
+  }
+
+  @Test
+  public void testFirstAnswerReturnsEarly() throws Exception {
+    TestBootstrap bootstrap = new TestBootstrap();
+    InetAddress v4 = InetAddress.getByName("192.0.2.1");
+    InetAddress v6 = InetAddress.getByName("2001:db8::1");
+    Call a = call(TYPE_A);
+    bootstrap.onResponse(a, answer(a, v4));
+
+    // The AAAA lookup is still pending.
+    DualStackResult first = bootstrap.awaitFirst();
+    assertArrayEquals(new String[]{"192.0.2.1"}, first.getV4());
+    assertEquals(0, first.getV6().length);
+
+    bootstrap.release();
+    assertEquals(0, bootstrap.numCompleted);
+
+    // The late answer is delivered along with the first.
+    Call aaaa = call(TYPE_AAAA);
+    bootstrap.onResponse(aaaa, answer(aaaa, v6));
+    assertEquals(1, bootstrap.numCompleted);
+    assertArrayEquals(new String[]{"192.0.2.1"}, bootstrap.completed.getV4());
+    assertArrayEquals(new String[]{v6.getHostAddress()}, bootstrap.completed.getV6());
+  }
+
+  @Test
+  public void testPhaseTimes() throws Exception {
+    TestBootstrap bootstrap = new TestBootstrap();
+    bootstrap.now = 40;
+    Call a = call(TYPE_A);
+    bootstrap.onResponse(a, answer(a, InetAddress.getByName("192.0.2.1")));
+    assertEquals(40, bootstrap.getFirstAnswerMs());
+    assertEquals(-1, bootstrap.getCompleteMs());
+
+    bootstrap.now = 90;
+    Call aaaa = call(TYPE_AAAA);
+    bootstrap.onFailure(aaaa, new IOException());
+    assertEquals(40, bootstrap.getFirstAnswerMs());
+    assertEquals(90, bootstrap.getCompleteMs());
+  }
+
+  @Test
+  public void testCompletionWaitsForRelease() throws Exception {
+    TestBootstrap bootstrap = new TestBootstrap();
+    Call a = call(TYPE_A);
+    bootstrap.onResponse(a, answer(a, InetAddress.getByName("192.0.2.1")));
+    assertNotNull(bootstrap.awaitFirst());
+
+    Call aaaa = call(TYPE_AAAA);
+    bootstrap.onResponse(aaaa, answer(aaaa, InetAddress.getByName("2001:db8::1")));
+    assertEquals(0, bootstrap.numCompleted);
+
+    bootstrap.release();
+    assertEquals(1, bootstrap.numCompleted);
+    assertEquals(2, bootstrap.completed.getInterleaved().size());
+  }
+
+  @Test
+  public void testFailedLookup() throws Exception {
+    TestBootstrap bootstrap = new TestBootstrap();
+    bootstrap.onFailure(call(TYPE_A), new IOException("Refused"));
+    Call aaaa = call(TYPE_AAAA);
+    bootstrap.onResponse(aaaa, answer(aaaa, InetAddress.getByName("2001:db8::1")));
+
+    DualStackResult first = bootstrap.awaitFirst();
+    assertEquals(0, first.getV4().length);
+    assertEquals(1, first.getV6().length);
+
+    // Nothing new arrived after awaitFirst().
+    bootstrap.release();
+    assertEquals(0, bootstrap.numCompleted);
+  }
+
+  @Test
+  public void testBothLookupsFail() throws Exception {
+    TestBootstrap bootstrap = new TestBootstrap();
+    bootstrap.onFailure(call(TYPE_A), new IOException("Refused"));
+    bootstrap.onFailure(call(TYPE_AAAA), new IOException("Refused"));
+    assertNull(bootstrap.awaitFirst());
+  }
+}
@@ -0,0 +1,222 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+
+import org.junit.Test;
+
+public class HappyEyeballsDnsTest {
+
+  private static final long HANG = -1;
+  private static final long FAIL = -2;
+
+  // Simulates a connection to each address, which succeeds after a delay, fails, or never finishes.
+  private static class FakeDns extends HappyEyeballsDns {
+    final Map<InetAddress, Long> delays = new HashMap<>();
+    final Map<InetAddress, Socket> sockets = new ConcurrentHashMap<>();
+    final AtomicInteger attempts = new AtomicInteger();
+
+    FakeDns(List<InetAddress> ips) {
+      this(ips, Collections.<InetAddress>emptyList());
+    }
+
+    FakeDns(List<InetAddress> ips, List<InetAddress> fallback) {
+      this(ips, fallback, 50);
+    }
+
+    FakeDns(List<InetAddress> ips, List<InetAddress> fallback, long staggerMs) {
+      super(ips, fallback, 443, staggerMs, 1000);
+    }
+
+    @Override
+    void connect(Socket socket, InetAddress address) throws IOException {
+      attempts.incrementAndGet();
+      sockets.put(address, socket);
+      long delay = delays.get(address);
+      if (delay == FAIL) {
+        throw new IOException("Refused");
+      }
+      try {
+        Thread.sleep(delay == HANG ? 60 * 1000 : delay);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  private static InetAddress ip(String address) throws Exception {
+    return InetAddress.getByName(address);
+  }
+
+  @Test
+  public void testBrokenIpv6() throws Exception {
+    InetAddress v6 = ip("2001:db8::1");
+    InetAddress v4 = ip("192.0.2.1");
+    FakeDns dns = new FakeDns(Arrays.asList(v4, v6));
+    dns.delays.put(v6, HANG);
+    dns.delays.put(v4, 10L);
+
+    long start = System.currentTimeMillis();
+    List<InetAddress> result = dns.lookup("example.com");
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(Arrays.asList(v4, v6), result);
+    assertEquals(Boolean.FALSE, dns.getPreferIpv6());
+    assertTrue(dns.getTimeToFirstConnectionMs() >= 0);
+
+    // The winner is remembered without another race.
+    assertEquals(Arrays.asList(v4, v6), dns.lookup("example.com"));
+    assertEquals(2, dns.attempts.get());
+  }
+
+  @Test
+  public void testIpv6First() throws Exception {
+    InetAddress v6 = ip("2001:db8::1");
+    InetAddress v4 = ip("192.0.2.1");
+    // The stagger delay is much longer than the test, so IPv4 is only tried if IPv6 fails.
+    FakeDns dns = new FakeDns(Arrays.asList(v4, v6), Collections.<InetAddress>emptyList(),
+        60 * 1000);
+    dns.delays.put(v6, 0L);
+    dns.delays.put(v4, 0L);
+
+    assertEquals(Arrays.asList(v6, v4), dns.lookup("example.com"));
+    assertEquals(Boolean.TRUE, dns.getPreferIpv6());
+    // IPv6 answered before the stagger delay, so IPv4 was never tried.
+    assertEquals(1, dns.attempts.get());
+  }
+
+  @Test
+  public void testWinnerHandedOff() throws Exception {
+    InetAddress v6 = ip("2001:db8::1");
+    InetAddress v4 = ip("192.0.2.1");
+    FakeDns dns = new FakeDns(Arrays.asList(v4, v6));
+    dns.delays.put(v6, FAIL);
+    dns.delays.put(v4, 0L);
+    dns.lookup("example.com");
+
+    // The client's first socket is the winner's connection, and the next one is new.
+    SocketFactory factory = dns.getSocketFactory();
+    Socket winner = dns.sockets.get(v4);
+    assertSame(winner, factory.createSocket());
+    assertFalse(winner.isClosed());
+    Socket next = factory.createSocket();
+    assertNotSame(winner, next);
+    assertFalse(next.isConnected());
+    // The loser was closed.
+    assertTrue(dns.sockets.get(v6).isClosed());
+  }
+
+  @Test
+  public void testConnectWinnerAgain() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      InetAddress local = server.getInetAddress();
+      HappyEyeballsDns dns = new HappyEyeballsDns(Arrays.asList(local),
+          Collections.<InetAddress>emptyList(), server.getLocalPort(), 50, 1000);
+      assertEquals(Arrays.asList(local), dns.lookup("localhost"));
+      Socket accepted = server.accept();
+
+      // Connecting the handed-off socket, as OkHttp does, reuses the race's connection.
+      Socket socket = dns.getSocketFactory().createSocket();
+      socket.connect(new InetSocketAddress(local, server.getLocalPort()), 1000);
+      assertEquals(accepted.getPort(), socket.getLocalPort());
+      socket.close();
+      accepted.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testFailureStartsNextAttempt() throws Exception {
+    InetAddress v6a = ip("2001:db8::1");
+    InetAddress v6b = ip("2001:db8::2");
+    InetAddress v4 = ip("192.0.2.1");
+    FakeDns dns = new FakeDns(Arrays.asList(v6a, v6b, v4));
+    dns.delays.put(v6a, FAIL);
+    dns.delays.put(v4, FAIL);
+    dns.delays.put(v6b, 0L);
+
+    List<InetAddress> result = dns.lookup("example.com");
+    assertEquals(v6b, result.get(0));
+    assertTrue(result.get(1) instanceof Inet6Address);
+    assertEquals(v4, result.get(2));
+  }
+
+  @Test
+  public void testNothingConnects() throws Exception {
+    InetAddress v6 = ip("2001:db8::1");
+    InetAddress v4 = ip("192.0.2.1");
+    FakeDns dns = new FakeDns(Arrays.asList(v4, v6));
+    dns.delays.put(v6, FAIL);
+    dns.delays.put(v4, FAIL);
+
+    assertEquals(Arrays.asList(v6, v4), dns.lookup("example.com"));
+    assertNull(dns.getPreferIpv6());
+    assertEquals(-1, dns.getTimeToFirstConnectionMs());
+  }
+
+  @Test
+  public void testFallback() throws Exception {
+    InetAddress oldV4 = ip("192.0.2.1");
+    InetAddress newV4 = ip("192.0.2.2");
+    InetAddress newV6 = ip("2001:db8::2");
+    FakeDns dns = new FakeDns(Arrays.asList(newV4, newV6), Arrays.asList(oldV4, newV4));
+    dns.delays.put(newV6, FAIL);
+    dns.delays.put(newV4, 0L);
+
+    // The old addresses come last, without duplicates, and are not raced.
+    assertEquals(Arrays.asList(newV4, newV6, oldV4), dns.lookup("example.com"));
+
+    dns.setAddresses(Arrays.asList(oldV4), Arrays.asList(newV4, newV6));
+    assertEquals(Arrays.asList(oldV4, newV4, newV6), dns.lookup("example.com"));
+  }
+
+  @Test
+  public void testRestoredWinner() throws Exception {
+    InetAddress v6a = ip("2001:db8::1");
+    InetAddress v6b = ip("2001:db8::2");
+    InetAddress v4 = ip("192.0.2.1");
+    FakeDns dns = new FakeDns(Arrays.asList(v6a, v4, v6b));
+    dns.setWinner(v6b);
+
+    // No race: the restored winner comes first, then the rest of its family.
+    assertEquals(Arrays.asList(v6b, v6a, v4), dns.lookup("example.com"));
+    assertEquals(Boolean.TRUE, dns.getPreferIpv6());
+    assertEquals(v6b, dns.getWinner());
+    assertEquals(0, dns.attempts.get());
+
+    // A winner that is no longer one of the addresses only sets the family.
+    dns.setAddresses(Arrays.asList(v4, v6a), Collections.<InetAddress>emptyList());
+    assertEquals(Arrays.asList(v6a, v4), dns.lookup("example.com"));
+  }
+}
@@ -0,0 +1,211 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import org.junit.Test;
+
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.Names;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class HedgedServerConnectionTest {
+
+  // A server that holds each query until the test answers it.
+  private static class FakeServer implements ServerConnection {
+    final Call call = mock(Call.class);
+    Callback callback = null;
+    int queries = 0;
+
+    @Override
+    public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+      ++queries;
+      callback = cb;
+      return call;
+    }
+
+    void answer() throws IOException {
+      Request request = new Request.Builder().url("https://example.invalid/").build();
+      Response response = new Response.Builder()
+          .request(request)
+          .protocol(Protocol.HTTP_2)
+          .code(200)
+          .message("OK")
+          .build();
+      callback.onResponse(call, response);
+    }
+
+    @Override
+    public String getUrl() {
+      return null;
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public void migrate(String from, String to) {
+    }
+
+    @Override
+    public void addStats(ConnectionStats stats) {
+    }
+  }
+
+  // A HedgedServerConnection whose clock and hedge timer are driven by the test.
+  private static class TestHedgedConnection extends HedgedServerConnection {
+    long now = 0;
+    final List<Runnable> timers = new ArrayList<>();
+    final List<Long> delays = new ArrayList<>();
+
+    TestHedgedConnection(ServerConnection primary, ServerConnection secondary,
+        double maxExtraLoad, long minDelayMs, long maxDelayMs) {
+      super(primary, secondary, maxExtraLoad, minDelayMs, maxDelayMs);
+    }
+
+    @Override
+    long elapsedRealtime() {
+      return now;
+    }
+
+    @Override
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+      timers.add(task);
+      delays.add(delayMs);
+      return mock(ScheduledFuture.class);
+    }
+
+    // Fires every hedge timer that has been scheduled so far.
+    void fireTimers() {
+      List<Runnable> due = new ArrayList<>(timers);
+      timers.clear();
+      for (Runnable task : due) {
+        task.run();
+      }
+    }
+  }
+
+  // Records which call's result was delivered.
+  private static class ResultCallback implements Callback {
+    Call winner = null;
+    int results = 0;
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      ++results;
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      ++results;
+      winner = call;
+    }
+  }
+
+  private static DnsUdpQuery query() {
+    DnsUdpQuery query = new DnsUdpQuery();
+    query.name = "example.com.";
+    query.type = 1;
+    return query;
+  }
+
+  @Test
+  public void testPrimaryAnswersFirst() throws Exception {
+    FakeServer primary = new FakeServer();
+    FakeServer secondary = new FakeServer();
+    TestHedgedConnection hedged = new TestHedgedConnection(primary, secondary, 1, 50, 50);
+    ResultCallback result = new ResultCallback();
+    hedged.performDnsRequest(query(), new byte[12], result);
+    assertEquals(Long.valueOf(50), hedged.delays.get(0));
+    primary.answer();
+    assertEquals(1, result.results);
+    assertSame(primary.call, result.winner);
+
+    // The hedge is never sent, even if its timer fires.
+    hedged.fireTimers();
+    assertEquals(0, secondary.queries);
+    assertEquals(0, hedged.getNumHedges());
+  }
+
+  @Test
+  public void testSecondaryWins() throws Exception {
+    FakeServer primary = new FakeServer();
+    FakeServer secondary = new FakeServer();
+    TestHedgedConnection hedged = new TestHedgedConnection(primary, secondary, 1, 10, 10);
+    ResultCallback result = new ResultCallback();
+    hedged.performDnsRequest(query(), new byte[12], result);
+
+    hedged.now = 10;
+    hedged.fireTimers();
+    assertEquals(1, secondary.queries);
+    hedged.now = 15;
+    secondary.answer();
+    assertEquals(1, result.results);
+    assertSame(secondary.call, result.winner);
+    verify(primary.call).cancel();
+
+    // The loser's result is not delivered.
+    primary.callback.onFailure(primary.call, new IOException("Canceled"));
+    assertEquals(1, result.results);
+    assertEquals(1, hedged.getNumHedgeWins());
+
+    ConnectionStats stats = new ConnectionStats();
+    hedged.addStats(stats);
+    assertEquals(1, stats.get(Names.HEDGES));
+    assertEquals(1, stats.get(Names.HEDGE_WINS));
+  }
+
+  @Test
+  public void testDelayFollowsPrimaryLatency() throws Exception {
+    FakeServer primary = new FakeServer();
+    FakeServer secondary = new FakeServer();
+    TestHedgedConnection hedged = new TestHedgedConnection(primary, secondary, 1, 10, 1000);
+    assertEquals(1000, hedged.getHedgeDelayMs());
+    for (int i = 0; i < 20; ++i) {
+      hedged.now = 0;
+      hedged.performDnsRequest(query(), new byte[12], new ResultCallback());
+      hedged.now = 100;
+      primary.answer();
+    }
+    assertEquals(100, hedged.getHedgeDelayMs());
+  }
+
+  @Test
+  public void testLoadCap() throws Exception {
+    FakeServer primary = new FakeServer();
+    FakeServer secondary = new FakeServer();
+    // One hedge for every two queries.
+    TestHedgedConnection hedged = new TestHedgedConnection(primary, secondary, 0.5, 10, 10);
+    for (int i = 0; i < 4; ++i) {
+      hedged.performDnsRequest(query(), new byte[12], new ResultCallback());
+    }
+    hedged.fireTimers();
+    assertEquals(2, secondary.queries);
+    assertEquals(2, hedged.getNumHedges());
+  }
+}
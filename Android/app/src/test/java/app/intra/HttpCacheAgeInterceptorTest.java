@@ -0,0 +1,110 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import app.intra.util.DnsPacket;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class HttpCacheAgeInterceptorTest {
+
+  // A response to "example.com. A" with one answer, TTL 300, and an OPT record.
+  private static byte[] makeResponse() {
+    ByteBuffer b = ByteBuffer.allocate(128);
+    b.putShort((short) 0);
+    b.putShort((short) 0x8180);
+    b.putShort((short) 1);
+    b.putShort((short) 1);
+    b.putShort((short) 0);
+    b.putShort((short) 1);
+    b.put(new byte[]{7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0});
+    b.putShort((short) 1);
+    b.putShort((short) 1);
+    // Answer
+    b.putShort((short) 0xc00c);
+    b.putShort((short) 1);
+    b.putShort((short) 1);
+    b.putInt(300);
+    b.putShort((short) 4);
+    b.put(new byte[]{93, (byte) 184, (byte) 216, 34});
+    // OPT
+    b.put((byte) 0);
+    b.putShort((short) 41);
+    b.putShort((short) 4096);
+    b.putInt(0);
+    b.putShort((short) 0);
+    byte[] out = new byte[b.position()];
+    b.flip();
+    b.get(out);
+    return out;
+  }
+
+  private static int firstTtl(byte[] response) throws Exception {
+    int offset = new DnsPacket(response).getTtlOffsets()[0];
+    return ByteBuffer.wrap(response).getInt(offset);
+  }
+
+  @Test
+  public void testSubtractAge() throws Exception {
+    byte[] response = makeResponse();
+    HttpCacheAgeInterceptor.subtractAge(response, 100);
+    assertEquals(200, firstTtl(response));
+    HttpCacheAgeInterceptor.subtractAge(response, 1000);
+    assertEquals(0, firstTtl(response));
+  }
+
+  @Test
+  public void testAgeHeader() throws Exception {
+    final byte[] body = makeResponse();
+    OkHttpClient client = new OkHttpClient.Builder()
+        .addInterceptor(new HttpCacheAgeInterceptor())
+        .addInterceptor(new Interceptor() {
+          @Override
+          public Response intercept(Chain chain) {
+            return new Response.Builder()
+                .request(chain.request())
+                .protocol(Protocol.HTTP_2)
+                .code(200)
+                .message("OK")
+                .header("Age", "40")
+                .body(ResponseBody.create(MediaType.parse("application/dns-message"), body))
+                .build();
+          }
+        })
+        .build();
+    Request request = new Request.Builder().url("https://example.invalid/").build();
+    Response response = client.newCall(request).execute();
+    assertEquals(260, firstTtl(response.body().bytes()));
+  }
+
+  @Test
+  public void testGarbage() {
+    byte[] garbage = new byte[]{1, 2, 3};
+    HttpCacheAgeInterceptor.subtractAge(garbage, 100);
+    assertArrayEquals(new byte[]{1, 2, 3}, garbage);
+  }
+}
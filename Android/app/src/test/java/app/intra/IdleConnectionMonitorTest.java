@@ -0,0 +1,144 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import app.intra.util.Names;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class IdleConnectionMonitorTest {
+  private static final long PING_INTERVAL_MS = 30 * 1000;
+
+  // Both clocks only move when the test advances them.
+  private static class TestMonitor extends IdleConnectionMonitor {
+    long elapsed = 0;
+    long uptime = 0;
+
+    TestMonitor() {
+      super(PING_INTERVAL_MS);
+    }
+
+    @Override
+    long elapsedRealtime() {
+      return elapsed;
+    }
+
+    @Override
+    long uptimeMillis() {
+      return uptime;
+    }
+
+    void awake(long ms) {
+      elapsed += ms;
+      uptime += ms;
+    }
+
+    // Deep sleep stops the uptime clock, but not the elapsed one.
+    void sleep(long ms) {
+      elapsed += ms;
+    }
+
+    long getEvictions() {
+      ConnectionStats stats = new ConnectionStats();
+      addStats(stats);
+      return stats.get(Names.IDLE_EVICTIONS);
+    }
+  }
+
+  private TestMonitor monitor;
+  private OkHttpClient client;
+
+  @Before
+  public void setUp() {
+    monitor = new TestMonitor();
+    client = new OkHttpClient();
+  }
+
+  @Test
+  public void testAwakeIsNotEvicted() {
+    // Pings keep the connections alive however long the device stays awake.
+    monitor.awake(10 * PING_INTERVAL_MS);
+    monitor.checkIdle(client);
+    assertEquals(0, monitor.getEvictions());
+  }
+
+  @Test
+  public void testShortSleepIsNotEvicted() {
+    monitor.awake(1000);
+    monitor.sleep(PING_INTERVAL_MS);
+    monitor.checkIdle(client);
+    assertEquals(0, monitor.getEvictions());
+  }
+
+  @Test
+  public void testDeepSleepEvictsOnce() {
+    monitor.awake(1000);
+    monitor.sleep(PING_INTERVAL_MS + 1);
+    monitor.awake(1000);
+    monitor.checkIdle(client);
+    assertEquals(1, monitor.getEvictions());
+
+    // The next query after the same sleep doesn't evict again.
+    monitor.awake(1000);
+    monitor.checkIdle(client);
+    assertEquals(1, monitor.getEvictions());
+
+    // Another sleep does.
+    monitor.sleep(2 * PING_INTERVAL_MS);
+    monitor.checkIdle(client);
+    assertEquals(2, monitor.getEvictions());
+  }
+
+  @Test
+  public void testSleepsAccumulate() {
+    // Short naps add up, since no exchange showed that the connections were still alive.
+    for (int i = 0; i < 4; ++i) {
+      monitor.sleep(PING_INTERVAL_MS / 2);
+      monitor.awake(1000);
+      monitor.checkIdle(client);
+    }
+    assertEquals(1, monitor.getEvictions());
+  }
+
+  @Test
+  public void testExchangeAfterSleep() throws Exception {
+    monitor.sleep(2 * PING_INTERVAL_MS);
+    // A response after the sleep shows that the connection survived it.
+    Interceptor.Chain chain = mock(Interceptor.Chain.class);
+    Request request = new Request.Builder().url("https://dns.example/dns-query").build();
+    when(chain.request()).thenReturn(request);
+    Response response = new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_2)
+        .code(200)
+        .message("OK")
+        .build();
+    when(chain.proceed(request)).thenReturn(response);
+    monitor.intercept(chain);
+
+    monitor.checkIdle(client);
+    assertEquals(0, monitor.getEvictions());
+  }
+}
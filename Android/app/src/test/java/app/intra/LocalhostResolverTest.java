@@ -29,6 +29,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
 
+import app.intra.util.DnsPacket;
 import app.intra.util.DnsTransaction;
 import app.intra.util.DnsUdpQuery;
 import app.intra.util.IpTagInterceptor;
@@ -252,6 +253,30 @@ public class LocalhostResolverTest {
     assertNull(transaction.response);
   }
 
+  @Test
+  public void shed() throws Exception {
+    sendQuery();
+
+    // Simulate a query dropped by the dispatcher under load.
+    Call mockCall = mock(Call.class);
+    callbackCaptor.getValue().onFailure(mockCall,
+        new UpstreamDispatcher.ShedException("Queue full"));
+
+    // The client gets a SERVFAIL right away, instead of waiting for its own timeout.
+    byte[] responseBuffer = new byte[4096];
+    DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+    clientSocket.receive(responsePacket);
+    DnsPacket response = new DnsPacket(Arrays.copyOfRange(responsePacket.getData(),
+        responsePacket.getOffset(), responsePacket.getLength()));
+    assertEquals(QUERY.requestId, response.getId());
+    assertEquals(DnsPacket.RCODE_SERVFAIL, response.getRcode());
+
+    verify(mockVpn).recordTransaction(transactionCaptor.capture());
+    DnsTransaction transaction = transactionCaptor.getValue();
+    assertEquals(DnsTransaction.Status.CANCELED, transaction.status);
+    assertTrue(transaction.shed);
+  }
+
   @Test
   public void nullConnection() throws Exception {
     // Set the serverConnection to null.  This is allowed, and should cause queries to fail.
@@ -0,0 +1,68 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import app.intra.util.RttEstimator;
+
+public class NetworkProfilesTest {
+
+  @Test
+  public void testSaveAndRestore() throws Exception {
+    NetworkProfiles profiles = new NetworkProfiles();
+    assertNull(profiles.restore("WIFI home"));
+    assertEquals(0, profiles.getNumRestored());
+
+    InetAddress v6 = InetAddress.getByName("2001:db8::1");
+    RttEstimator rtt = new RttEstimator(4);
+    rtt.addSample(30);
+    profiles.save("WIFI home", new NetworkProfiles.Profile(v6, rtt));
+    profiles.save("MOBILE apn", new NetworkProfiles.Profile(null, null));
+
+    NetworkProfiles.Profile home = profiles.restore("WIFI home");
+    assertEquals(v6, home.bestAddress);
+    assertSame(rtt, home.rtt);
+    assertEquals(Boolean.TRUE, home.preferIpv6());
+    assertNull(profiles.restore("MOBILE apn").preferIpv6());
+    assertEquals(2, profiles.getNumRestored());
+  }
+
+  @Test
+  public void testPreferIpv4() throws Exception {
+    NetworkProfiles.Profile profile =
+        new NetworkProfiles.Profile(InetAddress.getByName("192.0.2.1"), null);
+    assertEquals(Boolean.FALSE, profile.preferIpv6());
+  }
+
+  @Test
+  public void testBounded() {
+    NetworkProfiles profiles = new NetworkProfiles();
+    for (int i = 0; i < NetworkProfiles.MAX_NETWORKS; ++i) {
+      profiles.save("network " + i, new NetworkProfiles.Profile(null, null));
+    }
+    // Using the oldest network keeps it from being evicted.
+    assertNotNull(profiles.restore("network 0"));
+    profiles.save("network new", new NetworkProfiles.Profile(null, null));
+    assertNotNull(profiles.restore("network 0"));
+    assertNull(profiles.restore("network 1"));
+    assertNotNull(profiles.restore("network new"));
+  }
+}
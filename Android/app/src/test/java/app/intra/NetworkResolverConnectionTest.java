@@ -0,0 +1,110 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsUdpQuery;
+import app.intra.util.IpTagInterceptor;
+
+public class NetworkResolverConnectionTest {
+
+  private DatagramSocket server;
+  private Thread serverThread;
+
+  // Echoes each query back as its answer.
+  @Before
+  public void setUp() throws Exception {
+    server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[512];
+        try {
+          while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            server.receive(packet);
+            server.send(packet);
+          }
+        } catch (Exception e) {
+          // Closed.
+        }
+      }
+    });
+    serverThread.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    serverThread.join();
+  }
+
+  private NetworkResolverConnection connect(final List<InetAddress> resolvers) {
+    return new NetworkResolverConnection(new NetworkResolverConnection.ResolverSource() {
+      @Override
+      public List<InetAddress> getResolvers() {
+        return resolvers;
+      }
+
+      @Override
+      public void protect(DatagramSocket socket) {
+      }
+    }, server.getLocalPort(), 200);
+  }
+
+  @Test
+  public void testAnswer() throws Exception {
+    byte[] query = DnsQueryBuilder.buildError("example.com", (short) 1, (byte) 0);
+    // The first resolver doesn't answer, so the second one is tried.
+    NetworkResolverConnection connection = connect(Arrays.asList(
+        InetAddress.getByName("127.0.0.2"), InetAddress.getLoopbackAddress()));
+    TestDnsCallback cb = new TestDnsCallback();
+    connection.performDnsRequest(new DnsUdpQuery(), query, cb);
+    assertTrue(cb.semaphore.tryAcquire(5, TimeUnit.SECONDS));
+    assertNotNull(cb.response);
+    assertEquals("1", cb.response.header(NetworkResolverConnection.UNPROTECTED_HEADER));
+    assertEquals(InetAddress.getLoopbackAddress().getHostAddress(),
+        cb.response.header(IpTagInterceptor.HEADER_NAME));
+    byte[] answer = cb.response.body().bytes();
+    assertEquals(query.length, answer.length);
+    // Everything but the ID is echoed.
+    assertArrayEquals(Arrays.copyOfRange(query, 2, query.length),
+        Arrays.copyOfRange(answer, 2, answer.length));
+  }
+
+  @Test
+  public void testNoResolvers() throws Exception {
+    NetworkResolverConnection connection = connect(Collections.<InetAddress>emptyList());
+    TestDnsCallback cb = new TestDnsCallback();
+    connection.performDnsRequest(new DnsUdpQuery(), new byte[12], cb);
+    assertTrue(cb.semaphore.tryAcquire(5, TimeUnit.SECONDS));
+    assertNull(cb.response);
+  }
+}
@@ -0,0 +1,201 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsUdpQuery;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class PinnedAddressRefresherTest {
+
+  private static final String HOST = "dns.example";
+
+  // Answers A and AAAA queries immediately, with one address each, or fails them.
+  private static class FakeServer implements ServerConnection {
+    int ttl = 300;
+    boolean fail = false;
+    int queries = 0;
+
+    @Override
+    public Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+      ++queries;
+      if (fail) {
+        try {
+          cb.onFailure(null, new IOException("Failed"));
+        } catch (Exception e) {
+          fail();
+        }
+        return null;
+      }
+      byte[] address = metadata.type == 1 ?
+          new byte[]{(byte) 192, 0, 2, 7} :
+          new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 7};
+      Response response = new Response.Builder()
+          .request(new Request.Builder().url("https://" + HOST + "/").build())
+          .protocol(Protocol.HTTP_2)
+          .code(200)
+          .message("OK")
+          .body(ResponseBody.create(MediaType.parse("application/dns-message"),
+              answer(metadata.type, address, ttl)))
+          .build();
+      try {
+        cb.onResponse(null, response);
+      } catch (IOException e) {
+        fail();
+      }
+      return null;
+    }
+
+    @Override
+    public String getUrl() {
+      return "https://" + HOST + "/dns-query";
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public void migrate(String from, String to) {
+    }
+
+    @Override
+    public void addStats(ConnectionStats stats) {
+    }
+  }
+
+  private static byte[] answer(short type, byte[] address, int ttl) {
+    byte[] query;
+    try {
+      query = DnsQueryBuilder.build(HOST, type);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+    ByteBuffer b = ByteBuffer.allocate(query.length + 12 + address.length);
+    b.put(query);
+    b.put(2, (byte) 0x81);
+    b.put(3, (byte) 0x80);
+    b.putShort(6, (short) 1);  // ANCOUNT
+    b.putShort((short) 0xc00c);
+    b.putShort(type);
+    b.putShort((short) 1);
+    b.putInt(ttl);
+    b.putShort((short) address.length);
+    b.put(address);
+    return b.array();
+  }
+
+  private static class Recorder implements PinnedAddressRefresher.Listener {
+    final List<List<InetAddress>> results = new ArrayList<>();
+
+    @Override
+    public void onAddresses(List<InetAddress> addresses) {
+      results.add(addresses);
+    }
+  }
+
+  private static class TestRefresher extends PinnedAddressRefresher {
+    long now = 0;
+
+    TestRefresher(Listener listener) {
+      super(HOST, listener, 1000, 60 * 1000);
+    }
+
+    @Override
+    long elapsedRealtime() {
+      return now;
+    }
+  }
+
+  @Test
+  public void testRefreshFollowsTtl() throws Exception {
+    Recorder recorder = new Recorder();
+    TestRefresher refresher = new TestRefresher(recorder);
+    FakeServer server = new FakeServer();
+
+    // Not due until the minimum interval has passed.
+    refresher.maybeRefresh(server);
+    assertEquals(0, server.queries);
+
+    refresher.now = 1000;
+    refresher.maybeRefresh(server);
+    assertEquals(2, server.queries);
+    assertEquals(1, recorder.results.size());
+    assertEquals(new HashSet<>(Arrays.asList(
+        InetAddress.getByName("192.0.2.7"), InetAddress.getByName("2001:db8::7"))),
+        new HashSet<>(recorder.results.get(0)));
+    assertEquals(1, refresher.getNumRefreshes());
+
+    // The next refresh is due after the TTL, capped at the maximum interval.
+    refresher.now = 1000 + 59 * 1000;
+    refresher.maybeRefresh(server);
+    assertEquals(2, server.queries);
+    refresher.now = 1000 + 60 * 1000;
+    refresher.maybeRefresh(server);
+    assertEquals(4, server.queries);
+
+    // A short TTL is raised to the minimum interval.
+    server.ttl = 0;
+    refresher.now = 200 * 1000;
+    refresher.maybeRefresh(server);
+    assertEquals(6, server.queries);
+    refresher.now += 999;
+    refresher.maybeRefresh(server);
+    assertEquals(6, server.queries);
+    refresher.now += 1;
+    refresher.maybeRefresh(server);
+    assertEquals(8, server.queries);
+  }
+
+  @Test
+  public void testFailureKeepsAddresses() throws Exception {
+    Recorder recorder = new Recorder();
+    TestRefresher refresher = new TestRefresher(recorder);
+    FakeServer server = new FakeServer();
+    server.fail = true;
+
+    refresher.now = 1000;
+    refresher.maybeRefresh(server);
+    assertEquals(2, server.queries);
+    assertTrue(recorder.results.isEmpty());
+    assertEquals(0, refresher.getNumRefreshes());
+
+    // Retried after the minimum interval.
+    server.fail = false;
+    refresher.now = 2000;
+    refresher.maybeRefresh(server);
+    assertEquals(4, server.queries);
+    assertEquals(1, recorder.results.size());
+  }
+}
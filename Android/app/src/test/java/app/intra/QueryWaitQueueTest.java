@@ -0,0 +1,135 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import app.intra.util.DnsTransaction;
+import app.intra.util.DnsUdpQuery;
+
+public class QueryWaitQueueTest {
+
+  private static class TestQueue extends QueryWaitQueue {
+    long now = 0;
+
+    TestQueue(int capacity, long maxWaitMs) {
+      super(capacity, maxWaitMs);
+    }
+
+    @Override
+    long elapsedRealtime() {
+      return now;
+    }
+  }
+
+  // Records the queries that were sent and the ones that failed.
+  private static class Recorder implements QueryWaitQueue.Handler, DnsResponseWriter {
+    final List<String> processed = new ArrayList<>();
+    final List<String> failed = new ArrayList<>();
+
+    @Override
+    public void process(DnsUdpQuery query, byte[] data, DnsResponseWriter writer) {
+      assertSame(this, writer);
+      processed.add(query.name);
+    }
+
+    @Override
+    public void sendResult(DnsUdpQuery query, DnsTransaction transaction) {
+      assertEquals(DnsTransaction.Status.SEND_FAIL, transaction.status);
+      failed.add(query.name);
+    }
+  }
+
+  private TestQueue queue;
+  private Recorder recorder;
+
+  @Before
+  public void setUp() {
+    queue = new TestQueue(3, 1000);
+    recorder = new Recorder();
+  }
+
+  private boolean offer(String name) {
+    DnsUdpQuery query = new DnsUdpQuery();
+    query.name = name;
+    query.timestamp = queue.now;
+    return queue.offer(query, new byte[0], recorder);
+  }
+
+  @Test
+  public void testNotHolding() {
+    assertFalse(offer("a.example."));
+    queue.hold();
+    queue.release(recorder);
+    assertFalse(offer("b.example."));
+    assertEquals(0, queue.getNumHeld());
+    assertTrue(recorder.processed.isEmpty());
+  }
+
+  @Test
+  public void testReleaseInOrder() {
+    queue.hold();
+    assertTrue(offer("a.example."));
+    assertTrue(offer("b.example."));
+    assertTrue(recorder.processed.isEmpty());
+
+    queue.release(recorder);
+    assertEquals(2, recorder.processed.size());
+    assertEquals("a.example.", recorder.processed.get(0));
+    assertEquals("b.example.", recorder.processed.get(1));
+    assertTrue(recorder.failed.isEmpty());
+    assertEquals(2, queue.getNumHeld());
+    assertEquals(0, queue.getNumDropped());
+  }
+
+  @Test
+  public void testOverflowEvictsOldest() {
+    queue.hold();
+    for (String name : new String[]{"a.example.", "b.example.", "c.example.", "d.example."}) {
+      assertTrue(offer(name));
+    }
+    // The oldest query failed as soon as the fourth arrived.
+    assertEquals(1, recorder.failed.size());
+    assertEquals("a.example.", recorder.failed.get(0));
+
+    queue.release(recorder);
+    assertEquals(3, recorder.processed.size());
+    assertEquals("b.example.", recorder.processed.get(0));
+    assertEquals(1, queue.getNumDropped());
+  }
+
+  @Test
+  public void testExpired() {
+    queue.hold();
+    assertTrue(offer("old.example."));
+    queue.now += 800;
+    assertTrue(offer("new.example."));
+    queue.now += 800;
+
+    queue.release(recorder);
+    assertEquals(1, recorder.failed.size());
+    assertEquals("old.example.", recorder.failed.get(0));
+    assertEquals(1, recorder.processed.size());
+    assertEquals("new.example.", recorder.processed.get(0));
+    assertEquals(1, queue.getNumDropped());
+  }
+}
@@ -0,0 +1,204 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsUdpQuery;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class ServerBenchmarkTest {
+
+  private static final List<String> NAMES =
+      Arrays.asList("a.example", "b.example", "c.example", "d.example", "e.example");
+
+  // Answers immediately, except for the names in |failures|, which fail, and |hangs|, which are
+  // never answered.
+  private static class FakeServer implements ServerConnection {
+    final String url;
+    final List<String> failures;
+    final List<String> hangs;
+    int queries = 0;
+    int resets = 0;
+
+    FakeServer(String url, List<String> failures, List<String> hangs) {
+      this.url = url;
+      this.failures = failures;
+      this.hangs = hangs;
+    }
+
+    @Override
+    public synchronized Call performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+      ++queries;
+      if (hangs.contains(metadata.name)) {
+        return null;
+      }
+      try {
+        if (failures.contains(metadata.name)) {
+          cb.onFailure(null, new IOException("Failed"));
+          return null;
+        }
+        Response response = new Response.Builder()
+            .request(new Request.Builder().url("https://dns.example/").build())
+            .protocol(Protocol.HTTP_2)
+            .code(200)
+            .message("OK")
+            .body(ResponseBody.create(MediaType.parse("application/dns-message"),
+                DnsQueryBuilder.buildError(metadata.name, metadata.type, (byte) 0)))
+            .build();
+        cb.onResponse(null, response);
+      } catch (IOException e) {
+        fail();
+      }
+      return null;
+    }
+
+    @Override
+    public String getUrl() {
+      return url;
+    }
+
+    @Override
+    public synchronized void reset() {
+      ++resets;
+    }
+
+    @Override
+    public void migrate(String from, String to) {
+    }
+
+    @Override
+    public void addStats(ConnectionStats stats) {
+    }
+  }
+
+  private static ServerBenchmark benchmark(final Map<String, FakeServer> servers) {
+    return new ServerBenchmark(new ServerBenchmark.ConnectionFactory() {
+      @Override
+      public ServerConnection connect(String url) {
+        return servers.get(url);
+      }
+    }, NAMES, 100);
+  }
+
+  private static List<String> none() {
+    return Arrays.asList();
+  }
+
+  @Test
+  public void testRun() throws Exception {
+    Map<String, FakeServer> servers = new HashMap<>();
+    FakeServer good = new FakeServer("https://good.example/dns-query", none(), none());
+    FakeServer flaky = new FakeServer("https://flaky.example/dns-query",
+        Arrays.asList("b.example", "c.example"), Arrays.asList("d.example"));
+    servers.put(good.url, good);
+    servers.put(flaky.url, flaky);
+    String missing = "https://missing.example/dns-query";
+
+    List<ServerBenchmark.Result> results =
+        benchmark(servers).run(Arrays.asList(flaky.url, missing, good.url));
+    assertEquals(3, results.size());
+
+    ServerBenchmark.Result flakyResult = results.get(0);
+    assertEquals(flaky.url, flakyResult.url);
+    assertEquals(NAMES.size(), flakyResult.numQueries);
+    assertEquals(3, flakyResult.numFailures);
+    assertFalse(flakyResult.isReachable());
+    // One query to open the connection, and one for each name.
+    assertEquals(NAMES.size() + 1, flaky.queries);
+    assertEquals(1, flaky.resets);
+
+    ServerBenchmark.Result missingResult = results.get(1);
+    assertEquals(1.0, missingResult.getFailureRate(), 0);
+    assertEquals(-1, missingResult.medianMs);
+
+    ServerBenchmark.Result goodResult = results.get(2);
+    assertEquals(0, goodResult.numFailures);
+    assertTrue(goodResult.medianMs >= 0);
+    assertTrue(goodResult.p95Ms >= goodResult.medianMs);
+    assertSame(goodResult, ServerBenchmark.recommend(results));
+    assertEquals(1, good.resets);
+  }
+
+  @Test
+  public void testRecommendFastest() {
+    ServerBenchmark.Result slow = new ServerBenchmark.Result("https://slow/", 80, 200, 10, 0, 0);
+    ServerBenchmark.Result fast = new ServerBenchmark.Result("https://fast/", 20, 300, 10, 2, 0);
+    ServerBenchmark.Result tied = new ServerBenchmark.Result("https://tied/", 20, 90, 10, 0, 0);
+    ServerBenchmark.Result failing =
+        new ServerBenchmark.Result("https://failing/", 5, 10, 10, 3, 0);
+    assertSame(fast, ServerBenchmark.recommend(Arrays.asList(slow, fast, failing)));
+    assertSame(tied, ServerBenchmark.recommend(Arrays.asList(slow, fast, tied)));
+    assertNull(ServerBenchmark.recommend(Arrays.asList(failing)));
+  }
+
+  @Test
+  public void testCache() {
+    long now = 1000000000000L;
+    ServerBenchmark.Result google = new ServerBenchmark.Result("", 30, 60, 10, 0, now);
+    ServerBenchmark.Result other =
+        new ServerBenchmark.Result("https://dns.example/dns-query", 40, 90, 10, 1, now);
+    List<String> urls = Arrays.asList("", other.url);
+    ServerBenchmark.ResultCache cache = new ServerBenchmark.ResultCache("salt");
+    cache.put("WIFI home", Arrays.asList(google, other));
+
+    assertNull(cache.get("MOBILE apn", urls, now));
+    assertNull(cache.get("WIFI home", Arrays.asList("", "https://new.example/"), now));
+    assertNull(cache.get("WIFI home", urls, now + ServerBenchmark.ResultCache.MAX_AGE_MS + 1));
+
+    ServerBenchmark.ResultCache loaded = new ServerBenchmark.ResultCache("salt");
+    loaded.load(cache.save() + "garbage\n");
+    List<ServerBenchmark.Result> results = loaded.get("WIFI home", urls, now + 1000);
+    assertNotNull(results);
+    assertEquals("", results.get(0).url);
+    assertEquals(30, results.get(0).medianMs);
+    assertEquals(other.url, results.get(1).url);
+    assertEquals(90, results.get(1).p95Ms);
+    assertEquals(1, results.get(1).numFailures);
+
+    // The network's name is never saved, and a different salt can't find its results.
+    assertFalse(cache.save().contains("home"));
+    ServerBenchmark.ResultCache otherSalt = new ServerBenchmark.ResultCache("pepper");
+    otherSalt.load(cache.save());
+    assertNull(otherSalt.get("WIFI home", urls, now + 1000));
+  }
+
+  @Test
+  public void testCacheBounded() {
+    ServerBenchmark.ResultCache cache = new ServerBenchmark.ResultCache("salt");
+    List<String> urls = Arrays.asList("");
+    for (int i = 0; i <= ServerBenchmark.ResultCache.MAX_NETWORKS; ++i) {
+      cache.put("network " + i, Arrays.asList(new ServerBenchmark.Result("", 1, 1, 1, 0, 0)));
+    }
+    assertNull(cache.get("network 0", urls, 0));
+    assertNotNull(cache.get("network 1", urls, 0));
+  }
+}
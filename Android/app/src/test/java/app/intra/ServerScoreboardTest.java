@@ -0,0 +1,175 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerScoreboardTest {
+
+  private static class TestScoreboard extends ServerScoreboard {
+    long now = 1000000000000L;
+
+    TestScoreboard() {
+      super("salt");
+    }
+
+    @Override
+    long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  private TestScoreboard scoreboard;
+  private InetAddress a;
+  private InetAddress b;
+  private InetAddress c;
+
+  @Before
+  public void setUp() throws Exception {
+    scoreboard = new TestScoreboard();
+    scoreboard.setNetwork("WIFI home");
+    a = InetAddress.getByName("192.0.2.1");
+    b = InetAddress.getByName("192.0.2.2");
+    c = InetAddress.getByName("2001:db8::1");
+  }
+
+  @Test
+  public void testOrder() {
+    scoreboard.recordSuccess(b, 50);
+    scoreboard.recordFailure(c);
+    // Known-good first, then unknown, then known-bad.
+    assertEquals(Arrays.asList(b, a, c), scoreboard.order(Arrays.asList(a, b, c)));
+  }
+
+  @Test
+  public void testUnknownKeepsOrder() {
+    assertEquals(Arrays.asList(c, a, b), scoreboard.order(Arrays.asList(c, a, b)));
+  }
+
+  @Test
+  public void testFasterFirst() {
+    scoreboard.recordSuccess(a, 300);
+    scoreboard.recordSuccess(b, 40);
+    assertEquals(Arrays.asList(b, a), scoreboard.order(Arrays.asList(a, b)));
+  }
+
+  @Test
+  public void testDecay() {
+    scoreboard.recordFailure(a);
+    double fresh = scoreboard.getScore(a);
+    assertEquals(ServerScoreboard.FAILURE_COST_MS, fresh, 1);
+
+    scoreboard.now += ServerScoreboard.HALF_LIFE_MS;
+    double halfway = (ServerScoreboard.FAILURE_COST_MS + ServerScoreboard.UNKNOWN_COST_MS) / 2;
+    assertEquals(halfway, scoreboard.getScore(a), 1);
+
+    scoreboard.now += 20 * ServerScoreboard.HALF_LIFE_MS;
+    assertEquals(ServerScoreboard.UNKNOWN_COST_MS, scoreboard.getScore(a), 1);
+  }
+
+  @Test
+  public void testPerNetwork() {
+    scoreboard.recordFailure(a);
+    scoreboard.setNetwork("MOBILE apn");
+    assertEquals(ServerScoreboard.UNKNOWN_COST_MS, scoreboard.getScore(a), 0);
+    scoreboard.setNetwork("WIFI home");
+    assertEquals(ServerScoreboard.FAILURE_COST_MS, scoreboard.getScore(a), 1);
+  }
+
+  @Test
+  public void testSaveAndLoad() {
+    scoreboard.recordSuccess(a, 80);
+    scoreboard.recordFailure(c);
+    scoreboard.setNetwork("MOBILE apn");
+    scoreboard.recordSuccess(b, 120);
+
+    TestScoreboard loaded = new TestScoreboard();
+    loaded.load(scoreboard.save() + "garbage\n");
+    for (String network : new String[]{"WIFI home", "MOBILE apn"}) {
+      scoreboard.setNetwork(network);
+      loaded.setNetwork(network);
+      for (InetAddress address : new InetAddress[]{a, b, c}) {
+        assertEquals(scoreboard.getScore(address), loaded.getScore(address), 0.5);
+      }
+    }
+  }
+
+  @Test
+  public void testNetworkNameIsNotSaved() {
+    scoreboard.recordSuccess(a, 80);
+    String saved = scoreboard.save();
+    assertFalse(saved.contains("home"));
+
+    // A different salt gives different hashes, so the records don't apply.
+    ServerScoreboard other = new ServerScoreboard("pepper");
+    other.load(saved);
+    other.setNetwork("WIFI home");
+    assertEquals(ServerScoreboard.UNKNOWN_COST_MS, other.getScore(a), 0);
+
+    // Lines whose network field isn't a hash are malformed, and dropped.
+    TestScoreboard loaded = new TestScoreboard();
+    loaded.load("192.0.2.1 80.0 1.000 1000000000000 WIFI home\n");
+    loaded.setNetwork("WIFI home");
+    assertEquals(ServerScoreboard.UNKNOWN_COST_MS, loaded.getScore(a), 0);
+    assertEquals("", loaded.save());
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    for (int i = 0; i < ServerScoreboard.MAX_ADDRESSES + 10; ++i) {
+      scoreboard.recordSuccess(InetAddress.getByName("198.51.100." + i), 10);
+    }
+    // The oldest records were evicted.
+    assertEquals(ServerScoreboard.UNKNOWN_COST_MS,
+        scoreboard.getScore(InetAddress.getByName("198.51.100.0")), 0);
+    assertEquals(10, scoreboard.getScore(InetAddress.getByName("198.51.100.73")), 1);
+
+    for (int i = 0; i < ServerScoreboard.MAX_NETWORKS + 1; ++i) {
+      scoreboard.setNetwork("network " + i);
+      scoreboard.recordSuccess(a, 10);
+    }
+    scoreboard.setNetwork("network 0");
+    assertEquals(ServerScoreboard.UNKNOWN_COST_MS, scoreboard.getScore(a), 0);
+  }
+
+  @Test
+  public void testProber() {
+    final Map<InetAddress, Boolean> reachable = new HashMap<>();
+    reachable.put(a, false);
+    reachable.put(b, true);
+    ServerProber prober = new ServerProber(scoreboard, "dns.google.com", 443, 2, 1000) {
+      @Override
+      void connect(InetAddress address) throws IOException {
+        if (!reachable.get(address)) {
+          throw new IOException("Unreachable");
+        }
+      }
+    };
+    List<InetAddress> candidates = Arrays.asList(a, b, c);
+    prober.probe(candidates.subList(0, 2));
+    assertEquals(Arrays.asList(b, c, a), scoreboard.order(candidates));
+  }
+}
@@ -0,0 +1,46 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import app.intra.util.DnsQueryBuilder;
+import okhttp3.HttpUrl;
+
+public class StandardServerConnectionTest {
+
+  @Test
+  public void testGetUrl() throws Exception {
+    // The example from RFC 8484 Section 4.1.1.
+    byte[] query = DnsQueryBuilder.build("www.example.com", (short) 1);
+    HttpUrl url = StandardServerConnection.getQueryUrl(
+        HttpUrl.parse("https://dnsserver.example.net/dns-query"), query);
+    assertEquals(
+        "https://dnsserver.example.net/dns-query?dns=AAABAAABAAAAAAAAA3d3dwdleGFtcGxlA2NvbQAAAQAB",
+        url.toString());
+  }
+
+  @Test
+  public void testGetUrlWithQuery() throws Exception {
+    byte[] query = DnsQueryBuilder.build("www.example.com", (short) 1);
+    HttpUrl url = StandardServerConnection.getQueryUrl(
+        HttpUrl.parse("https://dnsserver.example.net/dns-query?format=wire"), query);
+    assertEquals("wire", url.queryParameter("format"));
+    assertEquals("AAABAAABAAAAAAAAA3d3dwdleGFtcGxlA2NvbQAAAQAB", url.queryParameter("dns"));
+  }
+}
@@ -0,0 +1,269 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app.intra.util.DnsPacket;
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.DnsUdpQuery;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okhttp3.internal.tls.OkHostnameVerifier;
+
+public class TlsServerConnectionTest {
+  private static final short TYPE_A = 1;
+
+  private TlsTestServer server;
+
+  // Records the outcome of one query.
+  private static class Result implements Callback {
+    final CountDownLatch done = new CountDownLatch(1);
+    Call call;
+    byte[] answer;
+    IOException error;
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      this.call = call;
+      error = e;
+      done.countDown();
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) throws IOException {
+      this.call = call;
+      answer = response.body().bytes();
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  // Uses the real clock, which SystemClock does not provide in unit tests.
+  private static class TestConnection extends TlsServerConnection {
+    TestConnection(int port, TlsTestServer server, long idleTimeoutMs, long queryTimeoutMs)
+        throws IOException {
+      super("tls://localhost:" + port, "localhost", port,
+          Collections.singletonList(InetAddress.getByName("127.0.0.1")),
+          server.getClientSocketFactory(), OkHostnameVerifier.INSTANCE, idleTimeoutMs,
+          queryTimeoutMs);
+    }
+
+    @Override
+    long elapsedRealtime() {
+      return System.nanoTime() / 1000000;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = new TlsTestServer();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  private TestConnection connect(long idleTimeoutMs, long queryTimeoutMs) throws IOException {
+    return new TestConnection(server.getPort(), server, idleTimeoutMs, queryTimeoutMs);
+  }
+
+  private static Result query(ServerConnection connection, String name) throws Exception {
+    Result result = new Result();
+    DnsUdpQuery metadata = new DnsUdpQuery();
+    metadata.name = name;
+    metadata.type = TYPE_A;
+    connection.performDnsRequest(metadata, DnsQueryBuilder.build(name, TYPE_A), result);
+    return result;
+  }
+
+  @Test
+  public void testGet() {
+    TlsServerConnection connection = TlsServerConnection.get("tls://127.0.0.1");
+    assertNotNull(connection);
+    assertEquals("tls://127.0.0.1", connection.getUrl());
+    assertNull(TlsServerConnection.get("https://127.0.0.1/dns-query"));
+    assertNull(TlsServerConnection.get("tls://"));
+  }
+
+  @Test
+  public void testOutOfOrderAnswers() throws Exception {
+    server.batchSize = 3;
+    TestConnection connection = connect(10000, 5000);
+    String[] names = {"a.example", "b.example", "c.example"};
+    Result[] results = new Result[names.length];
+    for (int i = 0; i < names.length; ++i) {
+      results[i] = query(connection, names[i]);
+    }
+    for (int i = 0; i < names.length; ++i) {
+      results[i].await();
+      assertNull(results[i].error);
+      DnsPacket packet = new DnsPacket(results[i].answer);
+      assertTrue(packet.isResponse());
+      assertEquals(names[i] + ".", packet.getQueryName());
+    }
+    // All queries shared one connection.
+    assertEquals(1, server.connections.get());
+    assertEquals(1, connection.getNumConnections());
+  }
+
+  @Test
+  public void testManyQueriesInFlight() throws Exception {
+    server.batchSize = 50;
+    TestConnection connection = connect(10000, 5000);
+    Result[] results = new Result[50];
+    for (int i = 0; i < results.length; ++i) {
+      results[i] = query(connection, "q" + i + ".example");
+    }
+    for (int i = 0; i < results.length; ++i) {
+      results[i].await();
+      assertEquals("q" + i + ".example.", new DnsPacket(results[i].answer).getQueryName());
+    }
+    assertEquals(1, server.connections.get());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    server.acceptQueries = false;
+    TestConnection connection = connect(10000, 5000);
+    Result result = new Result();
+    Call call = connection.performDnsRequest(new DnsUdpQuery(),
+        DnsQueryBuilder.build("example.org", TYPE_A), result);
+    call.cancel();
+    result.await();
+    assertNotNull(result.error);
+    assertTrue(result.call.isCanceled());
+  }
+
+  @Test
+  public void testQueryTimeout() throws Exception {
+    server.acceptQueries = false;
+    TestConnection connection = connect(10000, 200);
+    Result result = query(connection, "example.com");
+    result.await();
+    assertNotNull(result.error);
+    assertFalse(result.call.isCanceled());
+
+    // The dead connection is replaced.
+    server.acceptQueries = true;
+    Result retry = query(connection, "example.com");
+    retry.await();
+    assertNotNull(retry.answer);
+    assertEquals(2, server.connections.get());
+  }
+
+  @Test
+  public void testSplitLengthPrefix() throws Exception {
+    // Longer than the reader's socket timeout, which is half the query timeout.
+    server.splitPrefixDelayMs = 700;
+    TestConnection connection = connect(10000, 1000);
+    for (String name : new String[]{"a.example", "b.example"}) {
+      Result result = query(connection, name);
+      result.await();
+      assertNotNull(result.answer);
+      assertEquals(name + ".", new DnsPacket(result.answer).getQueryName());
+    }
+    assertEquals(1, server.connections.get());
+  }
+
+  @Test
+  public void testLostQueryOnBusyConnection() throws Exception {
+    server.ignoredName = "lost";
+    TestConnection connection = connect(10000, 300);
+    Result lost = query(connection, "lost.example");
+    // Answers keep arriving faster than the socket's read timeout.
+    for (int i = 0; i < 100 && lost.done.getCount() > 0; ++i) {
+      Result answered = query(connection, "example.com");
+      answered.await();
+      assertNotNull(answered.answer);
+      Thread.sleep(50);
+    }
+    lost.await();
+    assertTrue(lost.error instanceof SocketTimeoutException);
+
+    // Only the lost query failed.
+    Result after = query(connection, "example.com");
+    after.await();
+    assertNotNull(after.answer);
+    assertEquals(1, server.connections.get());
+  }
+
+  @Test
+  public void testIdleTimeout() throws Exception {
+    TestConnection connection = connect(200, 5000);
+    query(connection, "example.com").await();
+    assertEquals(1, server.connections.get());
+
+    Thread.sleep(600);
+    Result result = query(connection, "example.com");
+    result.await();
+    assertNotNull(result.answer);
+    assertEquals(2, server.connections.get());
+  }
+
+  @Test
+  public void testServerClosesConnection() throws Exception {
+    server.acceptQueries = false;
+    TestConnection connection = connect(10000, 5000);
+    Result result = query(connection, "example.com");
+    while (server.queries.get() == 0) {
+      Thread.sleep(10);
+    }
+    server.dropConnections();
+    result.await();
+    assertNotNull(result.error);
+  }
+
+  @Test
+  public void testReconnectBackoff() throws Exception {
+    TestConnection connection = connect(10000, 5000);
+    server.close();
+
+    Result first = query(connection, "example.com");
+    first.await();
+    assertNotNull(first.error);
+    assertEquals(1, connection.getNumConnections());
+
+    // Fails immediately, without another connection attempt.
+    Result second = query(connection, "example.com");
+    second.await();
+    assertNotNull(second.error);
+    assertEquals(1, connection.getNumConnections());
+
+    // reset() clears the backoff.
+    connection.reset();
+    Result third = query(connection, "example.com");
+    third.await();
+    assertNotNull(third.error);
+    assertEquals(2, connection.getNumConnections());
+  }
+}
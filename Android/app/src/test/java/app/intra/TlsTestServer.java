@@ -0,0 +1,192 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A local stand-in for a DNS-over-TLS server.  It listens on 127.0.0.1 with a self-signed
+ * certificate for "localhost", and answers each query by echoing it back with the QR bit set.
+ *
+ * Queries are collected into batches of |batchSize| before any of them is answered, and each batch
+ * is answered in reverse order, to simulate a server that answers out of order.  While
+ * |acceptQueries| is false, queries are read but never answered.
+ */
+class TlsTestServer {
+  private static final String KEYSTORE = "tls-test-server.p12";
+  private static final char[] PASSWORD = "password".toCharArray();
+
+  private final ServerSocket serverSocket;
+  private final SSLSocketFactory clientFactory;
+  private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+  // The number of TLS connections.
+  final AtomicInteger connections = new AtomicInteger();
+  final AtomicInteger queries = new AtomicInteger();
+  volatile int batchSize = 1;
+  volatile boolean acceptQueries = true;
+  // Queries for this name are read but never answered.
+  volatile String ignoredName = null;
+  // If positive, the first byte of each answer's length prefix is sent on its own, and the rest
+  // follows after this delay.
+  volatile long splitPrefixDelayMs = 0;
+
+  TlsTestServer() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = TlsTestServer.class.getResourceAsStream(KEYSTORE)) {
+      keyStore.load(in, PASSWORD);
+    }
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(keyStore, PASSWORD);
+    TrustManagerFactory trust =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(keyStore);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+    clientFactory = context.getSocketFactory();
+    serverSocket = context.getServerSocketFactory()
+        .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    }, "TlsTestServer");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * @return A client socket factory that trusts this server's certificate.
+   */
+  SSLSocketFactory getClientSocketFactory() {
+    return clientFactory;
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Closes all open connections, but keeps listening.
+   */
+  void dropConnections() throws IOException {
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+      sockets.clear();
+    }
+  }
+
+  /**
+   * Stops listening and closes all connections.
+   */
+  void close() throws IOException {
+    serverSocket.close();
+    dropConnections();
+  }
+
+  private void acceptLoop() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        return;
+      }
+      sockets.add(socket);
+      Thread handler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          serve(socket);
+        }
+      }, "TlsTestServer connection");
+      handler.setDaemon(true);
+      handler.start();
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      // Only count connections that complete a handshake, not the client's TCP probes.
+      ((SSLSocket) socket).startHandshake();
+      connections.incrementAndGet();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      List<byte[]> batch = new ArrayList<>();
+      while (true) {
+        byte[] query = new byte[in.readUnsignedShort()];
+        in.readFully(query);
+        queries.incrementAndGet();
+        String ignored = ignoredName;
+        if (!acceptQueries
+            || (ignored != null && new String(query, "ISO-8859-1").contains(ignored))) {
+          continue;
+        }
+        batch.add(query);
+        if (batch.size() < batchSize) {
+          continue;
+        }
+        for (int i = batch.size() - 1; i >= 0; --i) {
+          byte[] answer = batch.get(i);
+          answer[2] |= (byte) 0x80;
+          long delayMs = splitPrefixDelayMs;
+          if (delayMs > 0) {
+            out.write(answer.length >> 8);
+            out.flush();
+            try {
+              Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+              return;
+            }
+            out.write(answer.length);
+          } else {
+            out.writeShort(answer.length);
+          }
+          out.write(answer);
+        }
+        out.flush();
+        batch.clear();
+      }
+    } catch (IOException e) {
+      // Closed by either side.
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Already closed.
+      }
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import app.intra.util.DnsUdpQuery;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class UpstreamDispatcherTest {
+
+  private static final Request REQUEST =
+      new Request.Builder().url("https://example.invalid/").build();
+
+  // Records the failure reported for one call.
+  private static class FailureCallback implements Callback {
+    final CountDownLatch done = new CountDownLatch(1);
+    IOException failure = null;
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      failure = e;
+      done.countDown();
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      done.countDown();
+    }
+
+    IOException await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      return failure;
+    }
+  }
+
+  // Holds every request until |release| is counted down, then fails it without network activity.
+  private static class BlockingInterceptor implements Interceptor {
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      throw new IOException("Not sent");
+    }
+  }
+
+  // Answers every request immediately, without network activity.
+  private static class AnsweringInterceptor implements Interceptor {
+    @Override
+    public Response intercept(Chain chain) {
+      return new Response.Builder()
+          .request(chain.request())
+          .protocol(Protocol.HTTP_2)
+          .code(200)
+          .message("OK")
+          .body(ResponseBody.create(MediaType.parse("application/dns-message"), new byte[12]))
+          .build();
+    }
+  }
+
+  private static DnsUdpQuery query(long timestamp) {
+    DnsUdpQuery query = new DnsUdpQuery();
+    query.name = "example.com.";
+    query.type = 1;
+    query.timestamp = timestamp;
+    return query;
+  }
+
+  @Test
+  public void testShedsExpiredQuery() throws Exception {
+    UpstreamDispatcher dispatcher = new UpstreamDispatcher(4, 4, 1000);
+    BlockingInterceptor blocker = new BlockingInterceptor();
+    blocker.release.countDown();
+    OkHttpClient client = dispatcher.configure(new OkHttpClient.Builder())
+        .addInterceptor(blocker)
+        .build();
+
+    FailureCallback old = new FailureCallback();
+    dispatcher.enqueue(client, REQUEST, query(SystemClock.elapsedRealtime() - 5000), old);
+    assertTrue(old.await() instanceof UpstreamDispatcher.ShedException);
+
+    // A recent query reaches the next interceptor.
+    FailureCallback recent = new FailureCallback();
+    dispatcher.enqueue(client, REQUEST, query(SystemClock.elapsedRealtime()), recent);
+    IOException e = recent.await();
+    assertNotNull(e);
+    assertFalse(e instanceof UpstreamDispatcher.ShedException);
+  }
+
+  @Test
+  public void testBoundedQueue() throws Exception {
+    UpstreamDispatcher dispatcher = new UpstreamDispatcher(1, 1, 60 * 1000);
+    BlockingInterceptor blocker = new BlockingInterceptor();
+    OkHttpClient client = dispatcher.configure(new OkHttpClient.Builder())
+        .addInterceptor(blocker)
+        .build();
+
+    long now = SystemClock.elapsedRealtime();
+    FailureCallback running = new FailureCallback();
+    dispatcher.enqueue(client, REQUEST, query(now), running);
+    FailureCallback queued = new FailureCallback();
+    dispatcher.enqueue(client, REQUEST, query(now), queued);
+    assertEquals(1, dispatcher.getQueuedCount());
+
+    // The queue is full, so this query fails immediately.
+    FailureCallback rejected = new FailureCallback();
+    dispatcher.enqueue(client, REQUEST, query(now), rejected);
+    assertTrue(rejected.await() instanceof UpstreamDispatcher.ShedException);
+
+    blocker.release.countDown();
+    assertFalse(running.await() instanceof UpstreamDispatcher.ShedException);
+    assertFalse(queued.await() instanceof UpstreamDispatcher.ShedException);
+  }
+
+  @Test
+  public void testDeadlineExpires() throws Exception {
+    UpstreamDispatcher dispatcher = new UpstreamDispatcher(4, 4, 60 * 1000, 100, 200);
+    BlockingInterceptor blocker = new BlockingInterceptor();
+    OkHttpClient client = dispatcher.configure(new OkHttpClient.Builder())
+        .addInterceptor(blocker)
+        .build();
+
+    // With no round-trip times yet, the deadline is the ceiling.
+    assertEquals(200, dispatcher.getDeadlineMs());
+    FailureCallback stalled = new FailureCallback();
+    Call call = dispatcher.enqueue(client, REQUEST, query(SystemClock.elapsedRealtime()), stalled);
+    IOException e = stalled.await();
+    assertTrue(e instanceof UpstreamDispatcher.DeadlineExceededException);
+    assertEquals(200, ((UpstreamDispatcher.DeadlineExceededException) e).deadlineMs);
+    assertTrue(call.isCanceled());
+    blocker.release.countDown();
+  }
+
+  @Test
+  public void testDeadlineReportsStall() throws Exception {
+    UpstreamDispatcher dispatcher = new UpstreamDispatcher(1, 4, 60 * 1000, 100, 200);
+    ConnectionHealthTracker tracker = mock(ConnectionHealthTracker.class);
+    BlockingInterceptor blocker = new BlockingInterceptor();
+    OkHttpClient client = dispatcher.configure(new OkHttpClient.Builder(), tracker)
+        .addInterceptor(blocker)
+        .build();
+
+    // One query is sent and stalls, and the other never leaves the queue.
+    FailureCallback sent = new FailureCallback();
+    Call sentCall = dispatcher.enqueue(client, REQUEST, query(SystemClock.elapsedRealtime()), sent);
+    FailureCallback queued = new FailureCallback();
+    dispatcher.enqueue(client, REQUEST, query(SystemClock.elapsedRealtime()), queued);
+    assertTrue(sent.await() instanceof UpstreamDispatcher.DeadlineExceededException);
+    assertTrue(queued.await() instanceof UpstreamDispatcher.DeadlineExceededException);
+    verify(tracker).onStall(sentCall);
+
+    // Only the query that reached the server says anything about its round-trip time.
+    assertEquals(1, dispatcher.getRttEstimator().getSampleCount());
+    blocker.release.countDown();
+  }
+
+  @Test
+  public void testDeadlineFollowsRtt() throws Exception {
+    UpstreamDispatcher dispatcher = new UpstreamDispatcher(4, 4, 60 * 1000, 100, 5000);
+    OkHttpClient client = dispatcher.configure(new OkHttpClient.Builder())
+        .addInterceptor(new AnsweringInterceptor())
+        .build();
+    assertEquals(5000, dispatcher.getDeadlineMs());
+
+    for (int i = 0; i < 5; ++i) {
+      long expected = dispatcher.getDeadlineMs();
+      final CountDownLatch done = new CountDownLatch(1);
+      final Response[] result = new Response[1];
+      dispatcher.enqueue(client, REQUEST, query(SystemClock.elapsedRealtime()), new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          done.countDown();
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+          result[0] = response;
+          done.countDown();
+        }
+      });
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertNotNull(result[0]);
+      assertEquals(Long.toString(expected), result[0].header(UpstreamDispatcher.DEADLINE_HEADER));
+      result[0].close();
+    }
+
+    // Local answers are much faster than the floor.
+    assertEquals(100, dispatcher.getDeadlineMs());
+  }
+}
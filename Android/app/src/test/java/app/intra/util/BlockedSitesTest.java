@@ -0,0 +1,65 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class BlockedSitesTest {
+
+  @Test
+  public void testCategories() throws Exception {
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    builder.add("*.doubleclick.net", BlockedSites.Category.ANNOYING.ordinal());
+    builder.add("*.facebook.com", BlockedSites.Category.ANNOYING.ordinal());
+    builder.add("*.qq.com", BlockedSites.Category.ANNOYING.ordinal());
+    builder.add("news.example", BlockedSites.Category.NEWS.ordinal());
+    // A category that this version doesn't know.
+    builder.add("future.example", DomainTrie.MAX_VALUE);
+
+    // Load it the way the app does, by mapping a file.
+    File file = File.createTempFile("sites", ".blocklist");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      builder.build().writeTo(out);
+    } finally {
+      out.close();
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      BlockedSites.loadSites(in.getFD(), 0, file.length());
+    } finally {
+      in.close();
+    }
+    assertTrue(BlockedSites.isLoaded());
+
+    assertEquals(BlockedSites.Category.ANNOYING,
+        BlockedSites.getUrlCategory("static.doubleclick.net"));
+    assertEquals(BlockedSites.Category.ANNOYING,
+        BlockedSites.getUrlCategory("Graph.Facebook.com"));
+    // Wildcards don't cover the domain itself.
+    assertEquals(BlockedSites.Category.UNKNOWN, BlockedSites.getUrlCategory("facebook.com"));
+    assertEquals(BlockedSites.Category.UNKNOWN, BlockedSites.getUrlCategory("www.example.com"));
+    assertEquals(BlockedSites.Category.UNKNOWN, BlockedSites.getUrlCategory("qq.com.example"));
+  }
+}
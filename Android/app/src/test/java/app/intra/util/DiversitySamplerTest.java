@@ -18,8 +18,11 @@ package app.intra.util;
 import org.junit.Test;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -103,4 +106,50 @@ public class DiversitySamplerTest {
         }
         assertEquals(bits, 32);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPacked() throws Exception {
+        List<InetAddress> population = new ArrayList<>();
+        ByteBuffer packed = ByteBuffer.allocate(3 * 4);
+        for (String address : new String[]{"192.0.2.1", "192.0.2.2", "198.51.100.1"}) {
+            InetAddress a = InetAddress.getByName(address);
+            population.add(a);
+            packed.put(a.getAddress());
+        }
+        DiversitySampler d = DiversitySampler.fromPacked(packed.array(), 4);
+        Set<InetAddress> chosen = new HashSet<>();
+        for (int i = 0; i < 3; ++i) {
+            InetAddress c = d.choose();
+            assertTrue(population.contains(c));
+            chosen.add(c);
+        }
+        // The second choice is always a new address.
+        assertTrue(chosen.size() >= 2);
+    }
+
+    @Test
+    public void testPackedV6() throws Exception {
+        InetAddress a = InetAddress.getByName("2001:db8::1");
+        DiversitySampler d = DiversitySampler.fromPacked(a.getAddress(), 16);
+        assertEquals(a, d.choose());
+    }
+
+    @Test
+    public void testLargePopulation() throws Exception {
+        // Choices come from the half of the population farthest from the sample so far.
+        List<InetAddress> population = new ArrayList<>();
+        for (int i = 0; i < 4096; ++i) {
+            population.add(InetAddress.getByAddress(
+                new byte[]{10, (byte) (i >> 8), (byte) i, 1}));
+        }
+        DiversitySampler d = new DiversitySampler(population);
+        InetAddress first = d.choose();
+        InetAddress second = d.choose();
+        int distance = 0;
+        for (int i = 0; i < 4; ++i) {
+            distance += Integer.bitCount((first.getAddress()[i] ^ second.getAddress()[i]) & 0xff);
+        }
+        // Over half the population is at distance >= 6 from any one address.
+        assertTrue(distance >= 6);
+    }
+}
@@ -253,4 +253,63 @@ public class DnsPacketTest {
     assertEquals(28, p.getQueryType());
     assertEquals(0, p.getResponseAddresses().size());
   }
+
+  @Test
+  public void testDnssecFlags() throws ProtocolException {
+    byte[] data = {
+        0, 1,      // [0-1]   query ID
+        1, 16,     // [2-3]   flags: RD=1, CD=1
+        0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+        0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+        0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+        0, 1,      // [10-11] ARCOUNT (number of additional records) = 1
+        7, 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+        0,  // null terminator of FQDN (DNS root)
+        0, 1,  // QTYPE = A
+        0, 1,  // QCLASS = IN (Internet)
+        // OPT record
+        0,             // Root name
+        0, 41,         // TYPE = OPT
+        16, 0,         // CLASS = UDP payload size 4096
+        0, 0, -128, 0, // TTL = extended RCODE, version, DO=1
+        0, 0           // RDLEN = 0
+    };
+    DnsPacket p = new DnsPacket(data);
+    // The CD bit doesn't make this a strange query.
+    assertTrue(p.isNormalQuery());
+    assertTrue(p.isCheckingDisabled());
+    assertTrue(p.isDnssecOk());
+
+    data[3] = 0;
+    data[data.length - 4] = 0;
+    p = new DnsPacket(data);
+    assertTrue(p.isNormalQuery());
+    assertFalse(p.isCheckingDisabled());
+    assertFalse(p.isDnssecOk());
+  }
+
+  @Test
+  public void testCopyQuestionName() {
+    byte[] query = {
+        0, 1, 1, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+        3, 'W', 'w', 'W', 7, 'e', 'X', 'a', 'M', 'p', 'L', 'e', 0,
+        0, 1, 0, 1
+    };
+    byte[] response = {
+        0, 0, -127, -128, 0, 1, 0, 0, 0, 0, 0, 0,
+        3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0,
+        0, 1, 0, 1
+    };
+    byte[] expected = response.clone();
+    System.arraycopy(query, 12, expected, 12, 13);
+    DnsPacket.copyQuestionName(query, response);
+    assertArrayEquals(expected, response);
+
+    // Different names are left alone.
+    byte[] other = response.clone();
+    other[13] = 'x';
+    byte[] before = other.clone();
+    DnsPacket.copyQuestionName(query, other);
+    assertArrayEquals(before, other);
+  }
 }
@@ -0,0 +1,66 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+
+import static org.junit.Assert.*;
+
+public class DnsQueryBuilderTest {
+
+  @Test
+  public void testBuild() throws ProtocolException {
+    byte[] data = DnsQueryBuilder.build("mtalk.google.com.", (short) 28);
+    DnsPacket p = new DnsPacket(data);
+    assertEquals(0, p.getId());
+    assertTrue(p.isNormalQuery());
+    assertEquals("mtalk.google.com.", p.getQueryName());
+    assertEquals(28, p.getQueryType());
+  }
+
+  @Test
+  public void testNoTrailingDot() throws ProtocolException {
+    assertArrayEquals(DnsQueryBuilder.build("example.com.", (short) 1),
+        DnsQueryBuilder.build("example.com", (short) 1));
+  }
+
+  @Test
+  public void testBuildError() throws ProtocolException {
+    byte[] data = DnsQueryBuilder.buildError("example.com.", (short) 1, DnsPacket.RCODE_SERVFAIL);
+    DnsPacket p = new DnsPacket(data);
+    assertTrue(p.isResponse());
+    assertEquals(DnsPacket.RCODE_SERVFAIL, p.getRcode());
+    assertEquals("example.com.", p.getQueryName());
+    assertEquals(1, p.getQueryType());
+    assertTrue(p.getResponseAddresses().isEmpty());
+  }
+
+  @Test(expected = ProtocolException.class)
+  public void testLongLabel() throws ProtocolException {
+    StringBuilder label = new StringBuilder();
+    for (int i = 0; i < 64; ++i) {
+      label.append('a');
+    }
+    DnsQueryBuilder.build(label + ".com", (short) 1);
+  }
+
+  @Test(expected = ProtocolException.class)
+  public void testNonAscii() throws ProtocolException {
+    DnsQueryBuilder.build("exämple.com", (short) 1);
+  }
+}
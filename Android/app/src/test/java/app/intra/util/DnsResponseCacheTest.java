@@ -0,0 +1,139 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsResponseCacheTest {
+
+  private static final String NAME = "mtalk.google.com.";
+  private static final short TYPE_A = 1;
+  private static final int TTL_OFFSET = 40;
+
+  // A response to mtalk.google.com A with a single answer.
+  private static byte[] makeResponse(int ttl, byte rcode) {
+    byte[] data = {
+        -107, -6,    // [0-1]   query ID
+        -127, -128,  // [2-3]   flags: RD=1, QR=1, RA=1
+        0, 1,        // [4-5]   QDCOUNT (number of queries) = 1
+        0, 1,        // [6-7]   ANCOUNT (number of answers) = 1
+        0, 0,        // [8-9]   NSCOUNT (number of authoritative answers) = 0
+        0, 0,        // [10-11] ARCOUNT (number of additional records) = 0
+        // Query
+        5, 'm', 't', 'a', 'l', 'k',
+        6, 'g', 'o', 'o', 'g', 'l', 'e',
+        3, 'c', 'o', 'm',
+        0,  // null terminator of FQDN (DNS root)
+        0, 1,  // QTYPE = A
+        0, 1,  // QCLASS = IN (Internet)
+        // Answer
+        -64, 12,     // Compressed name reference, starting at byte 12: mtalk.google.com
+        0, 1,        // TYPE = A
+        0, 1,        // CLASS = IN (Internet)
+        0, 0, 0, 0,  // TTL, filled in below
+        0, 4,        // RDLEN = 4
+        -83, -62, -52, -68   // 173.194.204.188
+    };
+    data[3] |= rcode;
+    ByteBuffer.wrap(data).putInt(TTL_OFFSET, ttl);
+    return data;
+  }
+
+  private static int getTtl(byte[] response) {
+    return ByteBuffer.wrap(response).getInt(TTL_OFFSET);
+  }
+
+  @Test
+  public void testHitAndExpiration() {
+    DnsResponseCache cache = new DnsResponseCache(10000, new TtlPolicy(0, 3600, 300));
+    assertNull(cache.get(NAME, TYPE_A, 0));
+    assertTrue(cache.put(NAME, TYPE_A, makeResponse(100, DnsPacket.RCODE_NOERROR), 0));
+
+    DnsResponseCache.Hit hit = cache.get(NAME, TYPE_A, 30 * 1000);
+    assertNotNull(hit);
+    assertEquals(70, getTtl(hit.response));
+    // The ID is zeroed.
+    assertEquals(0, ByteBuffer.wrap(hit.response).getShort(0));
+    assertFalse(hit.savedByTtlPolicy);
+
+    // Names are case-insensitive.
+    assertNotNull(cache.get("MTALK.google.com.", TYPE_A, 30 * 1000));
+    // Types are not interchangeable.
+    assertNull(cache.get(NAME, (short) 28, 30 * 1000));
+
+    assertNull(cache.get(NAME, TYPE_A, 100 * 1000));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testFlags() {
+    DnsResponseCache cache = new DnsResponseCache(10000, new TtlPolicy(0, 3600, 300));
+    int flags = DnsResponseCache.FLAG_DNSSEC_OK | DnsResponseCache.FLAG_CHECKING_DISABLED;
+    assertTrue(cache.put(NAME, TYPE_A, flags, makeResponse(100, DnsPacket.RCODE_NOERROR), 0));
+    // Queries with different flags can get different answers, so they don't share entries.
+    assertNull(cache.get(NAME, TYPE_A, 0));
+    assertNull(cache.get(NAME, TYPE_A, DnsResponseCache.FLAG_DNSSEC_OK, 0));
+    assertNotNull(cache.get(NAME, TYPE_A, flags, 0));
+  }
+
+  @Test
+  public void testTtlFloor() {
+    DnsResponseCache cache = new DnsResponseCache(10000, new TtlPolicy(60, 3600, 300));
+    byte[] response = makeResponse(5, DnsPacket.RCODE_NOERROR);
+    assertTrue(cache.put(NAME, TYPE_A, response, 0));
+    // The caller's copy is clamped too.
+    assertEquals(60, getTtl(response));
+
+    DnsResponseCache.Hit hit = cache.get(NAME, TYPE_A, 2000);
+    assertFalse(hit.savedByTtlPolicy);
+    hit = cache.get(NAME, TYPE_A, 10 * 1000);
+    assertTrue(hit.savedByTtlPolicy);
+    assertEquals(50, getTtl(hit.response));
+  }
+
+  @Test
+  public void testUncacheable() {
+    DnsResponseCache cache = new DnsResponseCache(10000, new TtlPolicy(0, 3600, 300));
+    // SERVFAIL
+    assertFalse(cache.put(NAME, TYPE_A, makeResponse(100, (byte) 2), 0));
+    // TTL zero
+    assertFalse(cache.put(NAME, TYPE_A, makeResponse(0, DnsPacket.RCODE_NOERROR), 0));
+    // Not a DNS packet.
+    assertFalse(cache.put(NAME, TYPE_A, new byte[3], 0));
+    assertEquals(0, cache.size());
+
+    // NXDOMAIN is cacheable.
+    assertTrue(cache.put(NAME, TYPE_A, makeResponse(100, DnsPacket.RCODE_NXDOMAIN), 0));
+  }
+
+  @Test
+  public void testEviction() {
+    DnsResponseCache cache = new DnsResponseCache(500, new TtlPolicy(0, 3600, 300));
+    for (int i = 0; i < 10; ++i) {
+      cache.put("name" + i + ".", TYPE_A, makeResponse(100, DnsPacket.RCODE_NOERROR), 0);
+      assertTrue(cache.getBytes() <= 500);
+    }
+    assertTrue(cache.size() > 0);
+    assertTrue(cache.size() < 10);
+    // The most recent entry is retained.
+    assertNotNull(cache.get("name9.", TYPE_A, 0));
+    assertNull(cache.get("name0.", TYPE_A, 0));
+  }
+}
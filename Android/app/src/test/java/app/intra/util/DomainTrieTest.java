@@ -0,0 +1,182 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DomainTrieTest {
+
+  @Test
+  public void testExactAndWildcard() {
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    assertTrue(builder.add("example.com", 1));
+    assertTrue(builder.add("*.ads.example.com", 2));
+    DomainTrie trie = builder.build();
+    assertEquals(2, trie.size());
+
+    assertEquals(1, trie.lookup("example.com"));
+    assertEquals(0, trie.lookup("www.example.com"));
+    assertEquals(0, trie.lookup("com"));
+    assertEquals(0, trie.lookup("example.org"));
+    assertEquals(0, trie.lookup("badexample.com"));
+
+    // Wildcards match subdomains at any depth, but not the name itself.
+    assertEquals(0, trie.lookup("ads.example.com"));
+    assertEquals(2, trie.lookup("x.ads.example.com"));
+    assertEquals(2, trie.lookup("a.b.ads.example.com"));
+    assertEquals(0, trie.lookup("xads.example.com"));
+  }
+
+  @Test
+  public void testNormalization() {
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    builder.add("*.Tracker.NET.", 3);
+    DomainTrie trie = builder.build();
+    assertEquals(3, trie.lookup("a.tracker.net"));
+    assertEquals(3, trie.lookup("A.TRACKER.NET."));
+    assertEquals(0, trie.lookup(""));
+    assertEquals(0, trie.lookup("."));
+  }
+
+  @Test
+  public void testMostSpecificWins() {
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    builder.add("*.example.com", 1);
+    builder.add("*.cdn.example.com", 2);
+    builder.add("img.cdn.example.com", 3);
+    // Replaces the earlier value.
+    builder.add("*.example.com", 4);
+    DomainTrie trie = builder.build();
+    assertEquals(3, trie.size());
+    assertEquals(4, trie.lookup("www.example.com"));
+    assertEquals(4, trie.lookup("cdn.example.com"));
+    assertEquals(2, trie.lookup("a.cdn.example.com"));
+    assertEquals(3, trie.lookup("img.cdn.example.com"));
+    assertEquals(2, trie.lookup("x.img.cdn.example.com"));
+  }
+
+  @Test
+  public void testInvalid() {
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    assertFalse(builder.add("", 1));
+    assertFalse(builder.add("*.", 1));
+    assertFalse(builder.add("ads.*.example.com", 1));
+    assertFalse(builder.add("b\u00fccher.example", 1));
+    assertEquals(0, builder.build().size());
+    try {
+      builder.add("example.com", DomainTrie.MAX_VALUE + 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testMany() {
+    // Enough names that many of them share labels at every level.
+    Random random = new Random(1);
+    String[] names = new String[100000];
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    for (int i = 0; i < names.length; ++i) {
+      names[i] = "h" + random.nextInt(1000) + ".d" + random.nextInt(20000) + ".t"
+          + random.nextInt(50);
+      builder.add(names[i], 1 + i % DomainTrie.MAX_VALUE);
+    }
+    DomainTrie trie = builder.build();
+    for (int i = 0; i < names.length; ++i) {
+      // Later duplicates replace earlier values.
+      int value = trie.lookup(names[i]);
+      assertTrue(value > 0);
+      assertEquals(0, trie.lookup("x" + names[i]));
+    }
+    assertEquals(0, trie.lookup("h1.d1.t50"));
+  }
+
+  private static byte[] serialize(DomainTrie trie) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    trie.writeTo(out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testReadWrite() throws Exception {
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    builder.add("example.com", 1);
+    builder.add("*.ads.example.com", 2);
+    builder.add("*.tracker.net", 3);
+    DomainTrie original = builder.build();
+    byte[] bytes = serialize(original);
+    assertEquals(original.getSizeBytes(), bytes.length);
+
+    // Read it from the middle of a larger buffer, as when the trie is mapped from an APK.
+    ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 20);
+    buffer.position(10);
+    buffer.put(bytes);
+    buffer.position(10);
+    buffer.limit(10 + bytes.length);
+    DomainTrie trie = DomainTrie.read(buffer);
+    assertEquals(3, trie.size());
+    assertEquals(original.getNumNodes(), trie.getNumNodes());
+    assertEquals(1, trie.lookup("example.com"));
+    assertEquals(2, trie.lookup("x.ads.example.com"));
+    assertEquals(3, trie.lookup("www.tracker.net"));
+    assertEquals(0, trie.lookup("tracker.net"));
+    assertArrayEquals(bytes, serialize(trie));
+  }
+
+  @Test
+  public void testReadEmpty() throws Exception {
+    DomainTrie trie = DomainTrie.read(ByteBuffer.wrap(serialize(new DomainTrie.Builder().build())));
+    assertEquals(0, trie.size());
+    assertEquals(0, trie.lookup("example.com"));
+  }
+
+  @Test
+  public void testReadInvalid() throws Exception {
+    DomainTrie.Builder builder = new DomainTrie.Builder();
+    builder.add("example.com", 1);
+    byte[] bytes = serialize(builder.build());
+
+    byte[] badMagic = bytes.clone();
+    badMagic[0] ^= 1;
+    byte[] badVersion = bytes.clone();
+    badVersion[7] = 2;
+    byte[][] invalid = {
+        new byte[0],
+        Arrays.copyOf(bytes, 16),
+        Arrays.copyOf(bytes, bytes.length - 1),
+        Arrays.copyOf(bytes, bytes.length + 1),
+        badMagic,
+        badVersion,
+    };
+    for (byte[] input : invalid) {
+      try {
+        DomainTrie.read(ByteBuffer.wrap(input));
+        fail();
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PackedAddressesTest {
+
+  private static byte[] pack(List<InetAddress> addresses) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (InetAddress address : addresses) {
+      out.write(address.getAddress());
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testReadPacked() throws Exception {
+    byte[] packed = pack(Arrays.asList(
+        InetAddress.getByName("192.0.2.1"), InetAddress.getByName("198.51.100.255")));
+    assertArrayEquals(packed, PackedAddresses.readPacked(new ByteArrayInputStream(packed), 4));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertEquals(0, PackedAddresses.readPacked(new ByteArrayInputStream(new byte[0]), 4).length);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws Exception {
+    PackedAddresses.readPacked(new ByteArrayInputStream(new byte[20]), 16);
+  }
+}
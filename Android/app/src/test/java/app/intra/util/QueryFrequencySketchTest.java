@@ -0,0 +1,113 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryFrequencySketchTest {
+
+  private static final short TYPE_A = 1;
+  private static final short TYPE_AAAA = 28;
+  private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+  @Test
+  public void testTop() {
+    QueryFrequencySketch sketch = new QueryFrequencySketch(10, DAY_MS);
+    for (int i = 0; i < 5; ++i) {
+      sketch.record("a.example.", TYPE_A, 1);
+    }
+    for (int i = 0; i < 3; ++i) {
+      sketch.record("b.example.", TYPE_A, 1);
+    }
+    sketch.record("b.example.", TYPE_AAAA, 1);
+
+    List<QueryFrequencySketch.Query> top = sketch.getTop(2);
+    assertEquals(2, top.size());
+    assertEquals("a.example.", top.get(0).name);
+    assertEquals("b.example.", top.get(1).name);
+    assertEquals(TYPE_A, top.get(1).type);
+    assertEquals(3, sketch.getTop(100).size());
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    QueryFrequencySketch sketch = new QueryFrequencySketch(10, DAY_MS);
+    sketch.record("a.example.", TYPE_A, 1);
+    sketch.record("A.EXAMPLE.", TYPE_A, 1);
+    assertEquals(1, sketch.size());
+  }
+
+  @Test
+  public void testHeavyHitterSurvivesChurn() {
+    QueryFrequencySketch sketch = new QueryFrequencySketch(8, DAY_MS);
+    for (int i = 0; i < 1000; ++i) {
+      if (i % 4 == 0) {
+        sketch.record("popular.example.", TYPE_A, 1);
+      } else {
+        sketch.record("rare" + i + ".example.", TYPE_A, 1);
+      }
+      assertTrue(sketch.size() <= 8);
+    }
+    assertEquals("popular.example.", sketch.getTop(1).get(0).name);
+  }
+
+  @Test
+  public void testDecay() {
+    QueryFrequencySketch sketch = new QueryFrequencySketch(2, DAY_MS);
+    for (int i = 0; i < 10; ++i) {
+      sketch.record("old.example.", TYPE_A, 1);
+    }
+    // Ten half-lives later, the old favorite has decayed to almost nothing.
+    long later = 1 + 10 * DAY_MS;
+    sketch.record("new.example.", TYPE_A, later);
+    sketch.record("new.example.", TYPE_A, later);
+    assertEquals("new.example.", sketch.getTop(1).get(0).name);
+  }
+
+  @Test
+  public void testClear() {
+    QueryFrequencySketch sketch = new QueryFrequencySketch(10, DAY_MS);
+    sketch.record("a.example.", TYPE_A, 1);
+    sketch.clear();
+    assertEquals(0, sketch.size());
+    assertTrue(sketch.getTop(10).isEmpty());
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    QueryFrequencySketch sketch = new QueryFrequencySketch(10, DAY_MS);
+    sketch.record("a.example.", TYPE_A, 1);
+    sketch.record("a.example.", TYPE_A, 1);
+    sketch.record("b.example.", TYPE_AAAA, 1);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    sketch.writeTo(new DataOutputStream(bytes));
+
+    QueryFrequencySketch copy = new QueryFrequencySketch(1, DAY_MS);
+    copy.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    // The smaller copy keeps only the most popular query.
+    assertEquals(1, copy.size());
+    assertEquals("a.example.", copy.getTop(1).get(0).name);
+  }
+}
@@ -0,0 +1,118 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.junit.Test;
+
+import app.intra.util.QueryRateLimiter.Decision;
+
+public class QueryRateLimiterTest {
+
+  private static InetAddress source(int i) throws Exception {
+    return InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+  }
+
+  @Test
+  public void testSourceLimit() throws Exception {
+    // 10 queries per second, in bursts of up to 5.
+    QueryRateLimiter limiter = new QueryRateLimiter(10, 5, 1000, 1000, 0);
+    InetAddress flood = source(1000);
+    for (int i = 0; i < 5; ++i) {
+      assertEquals(Decision.ALLOW, limiter.check(flood, 0));
+    }
+    // Refused until the debt reaches the burst size, and then dropped.
+    for (int i = 0; i < 5; ++i) {
+      assertEquals(Decision.REFUSE, limiter.check(flood, 0));
+    }
+    assertEquals(Decision.DROP, limiter.check(flood, 0));
+    assertEquals(5, limiter.getNumRefused());
+    assertEquals(1, limiter.getNumDropped());
+
+    // Other sources are unaffected.
+    assertEquals(Decision.ALLOW, limiter.check(source(2000), 0));
+
+    // After 100 ms, one token has been paid back, which allows one more refusal.
+    assertEquals(Decision.REFUSE, limiter.check(flood, 100));
+    assertEquals(Decision.DROP, limiter.check(flood, 100));
+    // Once the debt is paid off, queries are allowed again.
+    assertEquals(Decision.ALLOW, limiter.check(flood, 1200));
+  }
+
+  @Test
+  public void testEphemeralPorts() throws Exception {
+    // A client that sends each query from a new port is still limited by its address.
+    QueryRateLimiter limiter = new QueryRateLimiter(10, 5, 1000, 1000, 0);
+    for (int i = 0; i < 10; ++i) {
+      InetSocketAddress from = new InetSocketAddress(source(1), 40000 + i);
+      Decision expected = i < 5 ? Decision.ALLOW : Decision.REFUSE;
+      assertEquals(expected, limiter.check(from.getAddress(), 0));
+    }
+    assertEquals(Decision.DROP, limiter.check(source(1), 0));
+    assertEquals(1, limiter.getThrottledSources().size());
+  }
+
+  @Test
+  public void testGlobalLimit() throws Exception {
+    QueryRateLimiter limiter = new QueryRateLimiter(100, 100, 10, 3, 0);
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(Decision.ALLOW, limiter.check(source(i), 0));
+    }
+    assertEquals(Decision.REFUSE, limiter.check(source(3), 0));
+    assertEquals(Decision.ALLOW, limiter.check(source(3), 200));
+  }
+
+  @Test
+  public void testThrottledSources() throws Exception {
+    QueryRateLimiter limiter = new QueryRateLimiter(1, 1, 1000, 1000, 0);
+    InetAddress light = source(1000);
+    InetAddress heavy = source(2000);
+    limiter.check(source(3000), 0);
+    for (int i = 0; i < 2; ++i) {
+      limiter.check(light, 0);
+    }
+    for (int i = 0; i < 5; ++i) {
+      limiter.check(heavy, 0);
+    }
+    List<QueryRateLimiter.Source> throttled = limiter.getThrottledSources();
+    assertEquals(2, throttled.size());
+    assertEquals(heavy, throttled.get(0).address);
+    assertEquals(1, throttled.get(0).numRefused);
+    assertEquals(3, throttled.get(0).numDropped);
+    assertEquals(light, throttled.get(1).address);
+    assertEquals(1, throttled.get(1).numRefused);
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    QueryRateLimiter limiter = new QueryRateLimiter(1, 1, 1000, 1000, 0);
+    InetAddress first = source(0);
+    limiter.check(first, 0);
+    limiter.check(first, 0);
+    assertEquals(1, limiter.getThrottledSources().size());
+    for (int i = 1; i <= QueryRateLimiter.MAX_SOURCES; ++i) {
+      limiter.check(source(i), 0);
+    }
+    // The first source's bucket was evicted, so it starts over with a full bucket.
+    assertTrue(limiter.getThrottledSources().isEmpty());
+    assertEquals(Decision.ALLOW, limiter.check(first, 0));
+  }
+}
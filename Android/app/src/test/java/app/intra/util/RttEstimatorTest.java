@@ -0,0 +1,56 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+
+  @Test
+  public void testEmpty() {
+    RttEstimator rtt = new RttEstimator(10);
+    assertEquals(0, rtt.getSampleCount());
+    assertEquals(123, rtt.getQuantile(0.5, 123));
+  }
+
+  @Test
+  public void testQuantiles() {
+    RttEstimator rtt = new RttEstimator(100);
+    for (int i = 100; i > 0; --i) {
+      rtt.addSample(i);
+    }
+    assertEquals(50, rtt.getQuantile(0.5, 0));
+    assertEquals(95, rtt.getQuantile(0.95, 0));
+    assertEquals(1, rtt.getQuantile(0, 0));
+    assertEquals(100, rtt.getQuantile(1, 0));
+  }
+
+  @Test
+  public void testWindow() {
+    RttEstimator rtt = new RttEstimator(4);
+    for (int i = 0; i < 4; ++i) {
+      rtt.addSample(1000);
+    }
+    // Old samples are forgotten.
+    for (int i = 0; i < 4; ++i) {
+      rtt.addSample(10);
+    }
+    assertEquals(4, rtt.getSampleCount());
+    assertEquals(10, rtt.getQuantile(1, 0));
+  }
+}
@@ -0,0 +1,128 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TtlPolicyTest {
+
+  @Test
+  public void testDefaultRange() {
+    TtlPolicy policy = new TtlPolicy(60, 3600, 300);
+    assertEquals(60, policy.clamp("example.com.", 0));
+    assertEquals(60, policy.clamp("example.com.", 30));
+    assertEquals(120, policy.clamp("example.com.", 120));
+    assertEquals(3600, policy.clamp("example.com.", 86400));
+  }
+
+  @Test
+  public void testNegativeTtl() {
+    TtlPolicy policy = new TtlPolicy(0, 3600, 300);
+    assertEquals(0, policy.clamp("example.com.", -1));
+  }
+
+  @Test
+  public void testOverride() {
+    TtlPolicy policy = new TtlPolicy(60, 3600, 600);
+    policy.setOverride("example.com", 10, 100);
+    policy.setOverride("www.example.com", 200, 400);
+    assertEquals(10, policy.clamp("example.com.", 5));
+    assertEquals(10, policy.clamp("a.b.EXAMPLE.com.", 5));
+    assertEquals(100, policy.clamp("a.example.com.", 1000));
+    assertEquals(200, policy.clamp("www.example.com.", 5));
+    assertEquals(400, policy.clamp("x.www.example.com.", 1000));
+    // Not a label boundary.
+    assertEquals(60, policy.clamp("notexample.com.", 5));
+    assertEquals(60, policy.clamp("com.", 5));
+  }
+
+  @Test
+  public void testSafetyCap() {
+    TtlPolicy policy = new TtlPolicy(60, 86400, 300);
+    policy.setOverride("example.com", 7200, 86400);
+    // The override floor is limited by the safety cap ...
+    assertEquals(300, policy.clamp("example.com.", 10));
+    // ... but the cap doesn't shorten TTLs that were already long.
+    assertEquals(7200, policy.clamp("example.com.", 7200));
+  }
+
+  @Test
+  public void testApply() {
+    TtlPolicy policy = new TtlPolicy(60, 3600, 300);
+    byte[] data = new byte[12];
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    buffer.putInt(0, 5);
+    buffer.putInt(4, 100000);
+    buffer.putInt(8, 500);
+    TtlPolicy.Result result = policy.apply("example.com.", data, new int[]{0, 4, 8});
+    assertEquals(5, result.originalTtl);
+    assertEquals(60, result.clampedTtl);
+    assertEquals(60, buffer.getInt(0));
+    assertEquals(3600, buffer.getInt(4));
+    assertEquals(500, buffer.getInt(8));
+  }
+
+  @Test
+  public void testApplyNoTtls() {
+    TtlPolicy policy = new TtlPolicy(60, 3600, 300);
+    assertNull(policy.apply("example.com.", new byte[12], new int[0]));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadRange() {
+    new TtlPolicy(100, 10, 300);
+  }
+
+  @Test
+  public void testRead() throws Exception {
+    TtlPolicy policy = TtlPolicy.read(new StringReader(
+        "# Comment\n"
+            + "default 60 3600\n"
+            + "\n"
+            + "cap 300\n"
+            + "  lb.example.com   0 86400\n"));
+    assertEquals(60, policy.clamp("example.com.", 0));
+    assertEquals(3600, policy.clamp("example.com.", 86400));
+    assertEquals(0, policy.clamp("www.lb.example.com.", 0));
+    assertEquals(86400, policy.clamp("lb.example.com.", 86400));
+  }
+
+  @Test
+  public void testReadInvalid() {
+    String[] invalid = {
+        "",
+        "default 60 3600\n",
+        "cap 300\n",
+        "default 60 3600\ncap 300\nexample.com 30\n",
+        "default 60 3600\ncap 300\nexample.com 30 x\n",
+        "default 3600 60\ncap 300\n",
+    };
+    for (String policy : invalid) {
+      try {
+        TtlPolicy.read(new StringReader(policy));
+        fail(policy);
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.blocklist;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import app.intra.util.BlockedSites;
+import app.intra.util.DomainTrie;
+
+/**
+ * Compiles domain lists into the binary blocklist that BlockedSites memory-maps at runtime, so that
+ * the app does no parsing at startup, and its heap use doesn't grow with the lists.
+ *
+ * Each input is a text file assigned to one BlockedSites.Category.  Three common list formats are
+ * accepted, and may be mixed in one file:
+ *
+ *   0.0.0.0 ads.example.com tracker.example.com   Hosts file: each name is blocked exactly.
+ *   ||example.com^                                AdBlock domain rule: example.com and every
+ *                                                 subdomain are blocked.
+ *   example.com                                   Plain list: the name is blocked exactly.
+ *   *.example.com                                 Every subdomain of example.com is blocked.
+ *
+ * Blank lines, comments starting with '#' or '!', and "[Adblock ...]" headers are ignored.  Other
+ * AdBlock rules (exceptions, options, paths and element hiding) can't be expressed as domain
+ * patterns, so they are counted as rejected and skipped, along with invalid names.
+ *
+ * If a pattern appears in more than one input, the last input's category wins.
+ */
+public class BlocklistCompiler {
+
+  private static final String USAGE = "Usage: blocklist -o OUTPUT CATEGORY:LIST...";
+
+  // A lower-case LDH label.  Underscores appear in real service names, so they are allowed too.
+  private static final Pattern LABEL = Pattern.compile("[a-z0-9_]([a-z0-9_-]{0,61}[a-z0-9_])?");
+  private static final Pattern ADDRESS = Pattern.compile("[0-9a-fA-F:.]+");
+  private static final Pattern IPV4_ADDRESS = Pattern.compile("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+  private static final int MAX_NAME_LENGTH = 253;
+
+  private final DomainTrie.Builder builder = new DomainTrie.Builder();
+  private int numLines = 0;
+  private int numRejected = 0;
+
+  /**
+   * Adds the patterns on one line of a list.
+   * @return False if the line held something that isn't a supported domain pattern.
+   */
+  boolean addLine(String line, BlockedSites.Category category) {
+    line = line.trim();
+    if (line.isEmpty() || line.startsWith("#") || line.startsWith("!")
+        || line.startsWith("[")) {
+      return true;
+    }
+    ++numLines;
+    if (line.startsWith("||")) {
+      // Only rules that block a whole domain.  Anything after the separator is a path or options.
+      if (!line.endsWith("^")) {
+        return reject();
+      }
+      String name = line.substring(2, line.length() - 1).toLowerCase(Locale.ROOT);
+      if (!isValidName(name)) {
+        return reject();
+      }
+      add(name, category);
+      add("*." + name, category);
+      return true;
+    }
+    // Hosts files and plain lists may have trailing comments.
+    int comment = line.indexOf('#');
+    if (comment >= 0) {
+      if (comment == 0 || !Character.isWhitespace(line.charAt(comment - 1))) {
+        // e.g. an AdBlock element hiding rule, "example.com##.ad".
+        return reject();
+      }
+      line = line.substring(0, comment).trim();
+    }
+    String[] fields = line.toLowerCase(Locale.ROOT).split("\\s+");
+    if (fields.length == 1) {
+      String name = fields[0];
+      boolean wildcard = name.startsWith("*.");
+      if (!isValidName(wildcard ? name.substring(2) : name)) {
+        return reject();
+      }
+      add(name, category);
+      return true;
+    }
+    if (!ADDRESS.matcher(fields[0]).matches()) {
+      return reject();
+    }
+    boolean valid = true;
+    for (int i = 1; i < fields.length; ++i) {
+      String name = fields[i];
+      // Hosts files usually map localhost and its aliases too, which must not be blocked.  Some
+      // also map an address to itself, e.g. "0.0.0.0 0.0.0.0".
+      if (name.indexOf('.') < 0 || name.equals("localhost.localdomain") || isAddress(name)) {
+        continue;
+      }
+      if (isValidName(name)) {
+        add(name, category);
+      } else {
+        valid = false;
+      }
+    }
+    return valid || reject();
+  }
+
+  // Returns true if |name| is an IP address literal, rather than a name.
+  private static boolean isAddress(String name) {
+    return IPV4_ADDRESS.matcher(name).matches()
+        || (name.indexOf(':') >= 0 && ADDRESS.matcher(name).matches());
+  }
+
+  private void add(String pattern, BlockedSites.Category category) {
+    builder.add(pattern, category.ordinal());
+  }
+
+  /**
+   * @return The number of lines that held something other than supported domain patterns.
+   */
+  int getNumRejected() {
+    return numRejected;
+  }
+
+  /**
+   * @return A trie of all the patterns added so far.
+   */
+  DomainTrie build() {
+    return builder.build();
+  }
+
+  private boolean reject() {
+    ++numRejected;
+    return false;
+  }
+
+  // Returns true if |name| is a fully-qualified domain name with at least two labels, and isn't an
+  // IPv4 address.
+  private static boolean isValidName(String name) {
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || name.indexOf('.') < 0) {
+      return false;
+    }
+    String[] labels = name.split("\\.", -1);
+    for (String label : labels) {
+      if (!LABEL.matcher(label).matches()) {
+        return false;
+      }
+    }
+    // No top-level domain is numeric.
+    return !labels[labels.length - 1].matches("[0-9]+");
+  }
+
+  private void addList(String path, BlockedSites.Category category) throws IOException {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        addLine(line, category);
+      }
+    }
+  }
+
+  private static BlockedSites.Category parseCategory(String name) {
+    BlockedSites.Category category =
+        BlockedSites.Category.valueOf(name.toUpperCase(Locale.ROOT));
+    if (category == BlockedSites.Category.UNKNOWN) {
+      throw new IllegalArgumentException(name);
+    }
+    return category;
+  }
+
+  public static void main(String[] args) {
+    String outputPath = null;
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals("-o") && i + 1 < args.length) {
+        outputPath = args[++i];
+        continue;
+      }
+      int colon = args[i].indexOf(':');
+      if (colon < 0) {
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+      BlockedSites.Category category;
+      try {
+        category = parseCategory(args[i].substring(0, colon));
+      } catch (IllegalArgumentException e) {
+        System.err.println("Unknown category: " + args[i].substring(0, colon));
+        System.exit(2);
+        return;
+      }
+      String path = args[i].substring(colon + 1);
+      try {
+        compiler.addList(path, category);
+      } catch (IOException e) {
+        System.err.println(path + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+    if (outputPath == null) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+
+    DomainTrie trie = compiler.build();
+    try (OutputStream out = new FileOutputStream(outputPath)) {
+      trie.writeTo(out);
+    } catch (IOException e) {
+      System.err.println(outputPath + ": " + e.getMessage());
+      System.exit(1);
+    }
+    System.out.println(String.format(Locale.ROOT,
+        "%s: %d patterns, %d nodes, %d bytes (%d of %d lines rejected)", outputPath, trie.size(),
+        trie.getNumNodes(), trie.getSizeBytes(), compiler.getNumRejected(), compiler.numLines));
+  }
+}
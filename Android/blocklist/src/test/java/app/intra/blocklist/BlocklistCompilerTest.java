@@ -0,0 +1,125 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.blocklist;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import app.intra.util.BlockedSites.Category;
+import app.intra.util.DomainTrie;
+
+public class BlocklistCompilerTest {
+  private static final int ANNOYING = Category.ANNOYING.ordinal();
+  private static final int NEWS = Category.NEWS.ordinal();
+
+  @Test
+  public void testIgnoredLines() {
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    assertTrue(compiler.addLine("", Category.ANNOYING));
+    assertTrue(compiler.addLine("   ", Category.ANNOYING));
+    assertTrue(compiler.addLine("# A comment", Category.ANNOYING));
+    assertTrue(compiler.addLine("! An AdBlock comment", Category.ANNOYING));
+    assertTrue(compiler.addLine("[Adblock Plus 2.0]", Category.ANNOYING));
+    assertEquals(0, compiler.getNumRejected());
+    assertEquals(0, compiler.build().size());
+  }
+
+  @Test
+  public void testHostsFile() {
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    assertTrue(compiler.addLine("0.0.0.0 ads.example.com Tracker.Example.com  # Trailing",
+        Category.ANNOYING));
+    assertTrue(compiler.addLine("127.0.0.1\tlocalhost localhost.localdomain", Category.ANNOYING));
+    assertTrue(compiler.addLine("::1 localhost ip6-localhost", Category.ANNOYING));
+    assertEquals(0, compiler.getNumRejected());
+    DomainTrie trie = compiler.build();
+    assertEquals(2, trie.size());
+    assertEquals(ANNOYING, trie.lookup("ads.example.com"));
+    assertEquals(ANNOYING, trie.lookup("tracker.example.com"));
+    assertEquals(0, trie.lookup("www.ads.example.com"));
+    assertEquals(0, trie.lookup("localhost.localdomain"));
+  }
+
+  @Test
+  public void testHostsAddressAsName() {
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    assertTrue(compiler.addLine("0.0.0.0 0.0.0.0", Category.ANNOYING));
+    assertTrue(compiler.addLine("127.0.0.1 127.0.0.1", Category.ANNOYING));
+    assertTrue(compiler.addLine(":: ::ffff:0.0.0.0", Category.ANNOYING));
+    assertEquals(0, compiler.getNumRejected());
+    assertEquals(0, compiler.build().size());
+
+    // A name that only looks numeric is still blocked.
+    assertTrue(compiler.addLine("0.0.0.0 bad.ad", Category.ANNOYING));
+    assertEquals(ANNOYING, compiler.build().lookup("bad.ad"));
+  }
+
+  @Test
+  public void testHostsInvalidName() {
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    assertFalse(compiler.addLine("0.0.0.0 ok.example.com bad..example.com", Category.ANNOYING));
+    assertFalse(compiler.addLine("not-an-address ads.example.com", Category.ANNOYING));
+    assertEquals(2, compiler.getNumRejected());
+    // The valid names on a rejected line are still added.
+    DomainTrie trie = compiler.build();
+    assertEquals(1, trie.size());
+    assertEquals(ANNOYING, trie.lookup("ok.example.com"));
+  }
+
+  @Test
+  public void testAdBlockRules() {
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    assertTrue(compiler.addLine("||Ads.Example.com^", Category.ANNOYING));
+    assertFalse(compiler.addLine("||example.net^$third-party", Category.ANNOYING));
+    assertFalse(compiler.addLine("||example.org/banner", Category.ANNOYING));
+    assertFalse(compiler.addLine("@@||example.com^", Category.ANNOYING));
+    assertFalse(compiler.addLine("example.com##.ad", Category.ANNOYING));
+    assertFalse(compiler.addLine("||1.2.3.4^", Category.ANNOYING));
+    assertEquals(5, compiler.getNumRejected());
+    DomainTrie trie = compiler.build();
+    assertEquals(2, trie.size());
+    assertEquals(ANNOYING, trie.lookup("ads.example.com"));
+    assertEquals(ANNOYING, trie.lookup("x.ads.example.com"));
+    assertEquals(0, trie.lookup("example.net"));
+  }
+
+  @Test
+  public void testPlainList() {
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    assertTrue(compiler.addLine("news.example.com", Category.NEWS));
+    assertTrue(compiler.addLine("*.feeds.example.com  # Comment", Category.NEWS));
+    assertTrue(compiler.addLine("_dmarc.example.com.", Category.NEWS));
+    assertFalse(compiler.addLine("com", Category.NEWS));
+    assertFalse(compiler.addLine("-bad.example.com", Category.NEWS));
+    assertFalse(compiler.addLine("1.2.3.4", Category.NEWS));
+    assertEquals(3, compiler.getNumRejected());
+    DomainTrie trie = compiler.build();
+    assertEquals(NEWS, trie.lookup("news.example.com"));
+    assertEquals(0, trie.lookup("www.news.example.com"));
+    assertEquals(NEWS, trie.lookup("a.feeds.example.com"));
+    assertEquals(0, trie.lookup("feeds.example.com"));
+    assertEquals(NEWS, trie.lookup("_dmarc.example.com"));
+  }
+
+  @Test
+  public void testLastCategoryWins() {
+    BlocklistCompiler compiler = new BlocklistCompiler();
+    compiler.addLine("example.com", Category.ANNOYING);
+    compiler.addLine("0.0.0.0 example.com", Category.NEWS);
+    assertEquals(NEWS, compiler.build().lookup("example.com"));
+  }
+}
@@ -0,0 +1,342 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.cachesim;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import app.intra.util.DnsPacket;
+import app.intra.util.DnsQueryBuilder;
+import app.intra.util.TtlPolicy;
+
+/**
+ * Replays a recorded query log through DnsResponseCache under a range of cache configurations, and
+ * reports how each configuration would have performed.  This makes it possible to choose a memory
+ * budget, TTL policy, serve-stale window and refresh-ahead threshold from real traffic instead of
+ * guesswork.
+ *
+ * The log is a tab-separated text file with one query per line, in time order:
+ *
+ *   timestamp_ms  name  type  rcode  ttl  size
+ *
+ * timestamp_ms is the time the query was received, in milliseconds on any clock.  type and rcode
+ * are numeric (e.g. 1 for A, 3 for NXDOMAIN).  ttl is the smallest TTL, in seconds, that the
+ * server returned for this query at that time, and size is the size of its response in bytes.
+ * Blank lines and lines starting with '#' are ignored.
+ *
+ * Each option takes a comma-separated list of values, and every combination is simulated:
+ *
+ *   --budget 256k,1m     Cache memory budget in bytes (k and m suffixes are allowed).
+ *   --min-ttl 0,60       TTL floor, in seconds.
+ *   --max-ttl 86400      TTL ceiling, in seconds.
+ *   --floor-cap 300      Largest TTL that the floor may raise a record to, in seconds.
+ *   --stale 0,30000      Serve-stale window, in milliseconds.
+ *   --refresh 0,0.1      Refresh-ahead threshold, as a fraction of the TTL.
+ *
+ * Upstream responses are assumed to arrive instantly, and a refresh is answered with the response
+ * recorded for the query that triggered it.
+ */
+public class CacheSimulator {
+
+  private static final short CLASS_IN = 1;
+  private static final short TYPE_SOA = 6;
+  // Header, question, and answer record overhead for the smallest synthetic response.
+  private static final int ANSWER_OVERHEAD = 2 + 2 + 2 + 4 + 2;
+
+  private static final String USAGE =
+      "Usage: cachesim [--budget B,...] [--min-ttl S,...] [--max-ttl S,...] "
+          + "[--floor-cap S,...] [--stale MS,...] [--refresh F,...] LOG";
+
+  /**
+   * One query from the log.
+   */
+  static class Record {
+    final long timestamp;
+    final String name;
+    final short type;
+    final byte[] response;
+
+    Record(long timestamp, String name, short type, byte[] response) {
+      this.timestamp = timestamp;
+      this.name = name;
+      this.type = type;
+      this.response = response;
+    }
+  }
+
+  /**
+   * A cache configuration to simulate.
+   */
+  static class Config {
+    long budget;
+    int minTtl;
+    int maxTtl;
+    int floorCap;
+    long staleMs;
+    double refreshFraction;
+  }
+
+  /**
+   * The outcome of one simulation.
+   */
+  static class Result {
+    long queries = 0;
+    long hits = 0;
+    long staleHits = 0;
+    long upstreamQueries = 0;
+    long peakBytes = 0;
+    long finalBytes = 0;
+    long durationMs = 0;
+
+    double hitRate() {
+      return queries == 0 ? 0 : (double) hits / queries;
+    }
+
+    double staleRate() {
+      return queries == 0 ? 0 : (double) staleHits / queries;
+    }
+
+    double upstreamQps() {
+      return durationMs == 0 ? 0 : upstreamQueries * 1000.0 / durationMs;
+    }
+  }
+
+  /**
+   * Builds a response to |name| with a single record carrying |ttl|, padded to |size| bytes.
+   * NXDOMAIN responses carry their TTL in an SOA record in the authority section, as they would
+   * from a real server.
+   */
+  static byte[] synthesizeResponse(String name, short type, byte rcode, int ttl, int size)
+      throws ProtocolException {
+    byte[] query = DnsQueryBuilder.build(name, type);
+    int dataLength = Math.max(0, size - query.length - ANSWER_OVERHEAD);
+    ByteBuffer buffer = ByteBuffer.allocate(query.length + ANSWER_OVERHEAD + dataLength);
+    buffer.put(query);
+    buffer.put(2, (byte) (query[2] | 0x80));  // QR
+    buffer.put(3, (byte) (0x80 | (rcode & 0x0f)));  // RA and RCODE
+    boolean negative = rcode == DnsPacket.RCODE_NXDOMAIN;
+    buffer.putShort(negative ? 8 : 6, (short) 1);  // NSCOUNT or ANCOUNT
+    buffer.putShort((short) 0xc00c);  // Pointer to the question name
+    buffer.putShort(negative ? TYPE_SOA : type);
+    buffer.putShort(CLASS_IN);
+    buffer.putInt(ttl);
+    buffer.putShort((short) dataLength);
+    return buffer.array();
+  }
+
+  /**
+   * Reads a query log in the format described above.
+   */
+  static List<Record> readLog(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    List<Record> records = new ArrayList<>();
+    // Responses are shared between records with identical contents to keep large logs in memory.
+    Map<String, byte[]> responses = new HashMap<>();
+    int lineNumber = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      ++lineNumber;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t");
+      if (fields.length != 6) {
+        throw new IOException("Line " + lineNumber + ": expected 6 fields");
+      }
+      try {
+        long timestamp = Long.parseLong(fields[0]);
+        String name = fields[1];
+        short type = (short) Integer.parseInt(fields[2]);
+        byte rcode = (byte) Integer.parseInt(fields[3]);
+        int ttl = Integer.parseInt(fields[4]);
+        int size = Integer.parseInt(fields[5]);
+        String key = name.toLowerCase(Locale.ROOT) + "/" + fields[2] + "/" + fields[3] + "/"
+            + fields[4] + "/" + fields[5];
+        byte[] response = responses.get(key);
+        if (response == null) {
+          response = synthesizeResponse(name, type, rcode, ttl, size);
+          responses.put(key, response);
+        }
+        records.add(new Record(timestamp, name, type, response));
+      } catch (NumberFormatException | ProtocolException e) {
+        throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Replays |records| through a cache configured by |config|.
+   */
+  static Result simulate(List<Record> records, Config config) {
+    TtlPolicy ttlPolicy = new TtlPolicy(config.minTtl, config.maxTtl, config.floorCap);
+    SimulatedCache cache =
+        new SimulatedCache(config.budget, ttlPolicy, config.staleMs, config.refreshFraction);
+    Result result = new Result();
+    for (Record record : records) {
+      ++result.queries;
+      SimulatedCache.Hit hit = cache.lookup(record.name, record.type, record.timestamp);
+      if (hit != null) {
+        ++result.hits;
+        if (hit.stale) {
+          ++result.staleHits;
+        }
+      }
+      if (hit == null || hit.needsRefresh) {
+        ++result.upstreamQueries;
+        // put() clamps TTLs in place, so give it a private copy.
+        byte[] response = record.response.clone();
+        cache.put(record.name, record.type, response, record.timestamp);
+        result.peakBytes = Math.max(result.peakBytes, cache.getBytes());
+      }
+    }
+    result.finalBytes = cache.getBytes();
+    if (!records.isEmpty()) {
+      result.durationMs =
+          records.get(records.size() - 1).timestamp - records.get(0).timestamp;
+    }
+    return result;
+  }
+
+  private static long parseSize(String value) {
+    String lower = value.toLowerCase(Locale.ROOT);
+    long multiplier = 1;
+    if (lower.endsWith("k")) {
+      multiplier = 1024;
+    } else if (lower.endsWith("m")) {
+      multiplier = 1024 * 1024;
+    }
+    if (multiplier != 1) {
+      lower = lower.substring(0, lower.length() - 1);
+    }
+    return Long.parseLong(lower) * multiplier;
+  }
+
+  private static String[] split(String list) {
+    return list.split(",");
+  }
+
+  /**
+   * @return Every combination of the values in |options|.
+   */
+  static List<Config> expand(Map<String, String> options) {
+    List<Config> configs = new ArrayList<>();
+    for (String budget : split(options.get("--budget"))) {
+      for (String minTtl : split(options.get("--min-ttl"))) {
+        for (String maxTtl : split(options.get("--max-ttl"))) {
+          for (String floorCap : split(options.get("--floor-cap"))) {
+            for (String stale : split(options.get("--stale"))) {
+              for (String refresh : split(options.get("--refresh"))) {
+                Config config = new Config();
+                config.budget = parseSize(budget);
+                config.minTtl = Integer.parseInt(minTtl);
+                config.maxTtl = Integer.parseInt(maxTtl);
+                config.floorCap = Integer.parseInt(floorCap);
+                config.staleMs = Long.parseLong(stale);
+                config.refreshFraction = Double.parseDouble(refresh);
+                configs.add(config);
+              }
+            }
+          }
+        }
+      }
+    }
+    return configs;
+  }
+
+  private static void printResults(PrintStream out, List<Config> configs, List<Result> results) {
+    out.println("budget\tmin_ttl\tmax_ttl\tfloor_cap\tstale_ms\trefresh\t"
+        + "hit_rate\tstale_rate\tupstream_qps\tupstream\tpeak_bytes\tfinal_bytes");
+    for (int i = 0; i < configs.size(); ++i) {
+      Config c = configs.get(i);
+      Result r = results.get(i);
+      out.println(String.format(Locale.ROOT,
+          "%d\t%d\t%d\t%d\t%d\t%.3f\t%.4f\t%.4f\t%.3f\t%d\t%d\t%d",
+          c.budget, c.minTtl, c.maxTtl, c.floorCap, c.staleMs, c.refreshFraction,
+          r.hitRate(), r.staleRate(), r.upstreamQps(), r.upstreamQueries, r.peakBytes,
+          r.finalBytes));
+    }
+  }
+
+  public static void main(String[] args) {
+    // Defaults match the settings in DnsVpnService.
+    Map<String, String> options = new HashMap<>();
+    options.put("--budget", "1m");
+    options.put("--min-ttl", "60");
+    options.put("--max-ttl", "86400");
+    options.put("--floor-cap", "300");
+    options.put("--stale", "0");
+    options.put("--refresh", "0");
+    String logPath = null;
+    for (int i = 0; i < args.length; ++i) {
+      if (options.containsKey(args[i]) && i + 1 < args.length) {
+        options.put(args[i], args[++i]);
+      } else if (logPath == null && !args[i].startsWith("--")) {
+        logPath = args[i];
+      } else {
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+    }
+    if (logPath == null) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+
+    List<Config> configs;
+    try {
+      configs = expand(options);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Bad option value: " + e.getMessage());
+      System.exit(2);
+      return;
+    }
+
+    List<Record> records;
+    try (InputStream in = new FileInputStream(logPath)) {
+      records = readLog(in);
+    } catch (IOException e) {
+      System.err.println(logPath + ": " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+
+    List<Result> results = new ArrayList<>(configs.size());
+    for (Config config : configs) {
+      try {
+        results.add(simulate(records, config));
+      } catch (IllegalArgumentException e) {
+        System.err.println("Bad TTL range: " + config.minTtl + "-" + config.maxTtl);
+        System.exit(2);
+        return;
+      }
+    }
+    printResults(System.out, configs, results);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.cachesim;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import app.intra.util.DnsResponseCache;
+import app.intra.util.TtlPolicy;
+
+/**
+ * A DnsResponseCache with two policies that the app doesn't use, so that the simulator can show
+ * whether they would pay for themselves: expired responses can be served for a while after they
+ * expire (RFC 8767), and responses that are close to expiring can be flagged for refresh, so that
+ * popular names are renewed before they drop out of the cache.
+ */
+class SimulatedCache extends DnsResponseCache {
+
+  /**
+   * The outcome of a lookup that found a response.
+   */
+  static class Hit {
+    // True if the response has expired, and is only being served because of the stale window.
+    final boolean stale;
+    // True if a fresh query should be sent to replace the response.  This is only set on the
+    // first such hit for each stored response, so that popular names are refreshed once.
+    final boolean needsRefresh;
+
+    Hit(boolean stale, boolean needsRefresh) {
+      this.stale = stale;
+      this.needsRefresh = needsRefresh;
+    }
+  }
+
+  private final long staleMs;
+  private final double refreshFraction;
+  // The expiration time of the last stored response for which a refresh was requested, by name and
+  // type.
+  private final Map<String, Long> refreshRequested = new HashMap<>();
+
+  /**
+   * @param maxBytes Approximate memory budget for the cache.
+   * @param ttlPolicy The policy applied to each response before it is stored.
+   * @param staleMs How long an expired response may still be served, or 0 to disable.
+   * @param refreshFraction When less than this fraction of a response's TTL remains, hits are
+   *     flagged for refresh.  0 disables refresh.
+   */
+  SimulatedCache(long maxBytes, TtlPolicy ttlPolicy, long staleMs, double refreshFraction) {
+    super(maxBytes, ttlPolicy);
+    this.staleMs = staleMs;
+    this.refreshFraction = refreshFraction;
+  }
+
+  @Override
+  protected long getStaleMs() {
+    return staleMs;
+  }
+
+  /**
+   * @return The outcome of a query for |name| and |type| at |now|, or null on a miss.
+   */
+  Hit lookup(String name, short type, long now) {
+    DnsResponseCache.Hit hit = get(name, type, now);
+    if (hit == null) {
+      return null;
+    }
+    boolean stale = now >= hit.expiration;
+    boolean needsRefresh = false;
+    long remaining = hit.expiration - now;
+    if (stale || remaining < refreshFraction * (hit.expiration - hit.storedAt)) {
+      String key = name.toLowerCase(Locale.ROOT) + "/" + (type & 0xffff);
+      Long requested = refreshRequested.put(key, hit.expiration);
+      needsRefresh = requested == null || requested != hit.expiration;
+    }
+    return new Hit(stale, needsRefresh);
+  }
+}
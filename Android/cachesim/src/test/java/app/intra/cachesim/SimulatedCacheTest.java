@@ -0,0 +1,74 @@
+/*
+Copyright 2018 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.cachesim;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import app.intra.util.DnsPacket;
+import app.intra.util.TtlPolicy;
+
+public class SimulatedCacheTest {
+  private static final String NAME = "mtalk.google.com.";
+  private static final short TYPE_A = 1;
+
+  private static byte[] makeResponse(int ttl) throws Exception {
+    return CacheSimulator.synthesizeResponse(NAME, TYPE_A, DnsPacket.RCODE_NOERROR, ttl, 64);
+  }
+
+  @Test
+  public void testServeStale() throws Exception {
+    SimulatedCache cache = new SimulatedCache(10000, new TtlPolicy(0, 3600, 300), 60 * 1000, 0);
+    assertTrue(cache.put(NAME, TYPE_A, makeResponse(100), 0));
+
+    SimulatedCache.Hit hit = cache.lookup(NAME, TYPE_A, 50 * 1000);
+    assertFalse(hit.stale);
+    assertFalse(hit.needsRefresh);
+
+    hit = cache.lookup(NAME, TYPE_A, 120 * 1000);
+    assertTrue(hit.stale);
+    assertTrue(hit.needsRefresh);
+    // Only the first stale hit asks for a refresh.
+    hit = cache.lookup(NAME, TYPE_A, 130 * 1000);
+    assertTrue(hit.stale);
+    assertFalse(hit.needsRefresh);
+
+    assertNull(cache.lookup(NAME, TYPE_A, 160 * 1000));
+  }
+
+  @Test
+  public void testNoStaleWindow() throws Exception {
+    SimulatedCache cache = new SimulatedCache(10000, new TtlPolicy(0, 3600, 300), 0, 0);
+    assertTrue(cache.put(NAME, TYPE_A, makeResponse(100), 0));
+    assertFalse(cache.lookup(NAME, TYPE_A, 99 * 1000).needsRefresh);
+    assertNull(cache.lookup(NAME, TYPE_A, 100 * 1000));
+  }
+
+  @Test
+  public void testRefreshAhead() throws Exception {
+    SimulatedCache cache = new SimulatedCache(10000, new TtlPolicy(0, 3600, 300), 0, 0.1);
+    assertTrue(cache.put(NAME, TYPE_A, makeResponse(100), 0));
+    assertFalse(cache.lookup(NAME, TYPE_A, 80 * 1000).needsRefresh);
+    assertTrue(cache.lookup(NAME, TYPE_A, 95 * 1000).needsRefresh);
+    assertFalse(cache.lookup(NAME, TYPE_A, 96 * 1000).needsRefresh);
+
+    // A new response resets the refresh.
+    assertTrue(cache.put(NAME, TYPE_A, makeResponse(100), 96 * 1000));
+    assertFalse(cache.lookup(NAME, TYPE_A, 97 * 1000).needsRefresh);
+    assertTrue(cache.lookup(NAME, TYPE_A, 191 * 1000).needsRefresh);
+  }
+}